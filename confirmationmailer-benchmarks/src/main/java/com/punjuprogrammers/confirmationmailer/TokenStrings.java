@@ -0,0 +1,27 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Gives the benchmarks the token strings as issued by the token stores, whose encoding is internal to the mailer.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public final class TokenStrings {
+	private TokenStrings() {
+	}
+
+	/**
+	 * Returns a new token of the generator in the form put into the mails.
+	 */
+	public static String issue(TokenGenerator tokenGenerator) {
+		return TokenEncoding.encode(tokenGenerator.generate());
+	}
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line and writes the results as JSON to <code>confirmationmailer-&lt;version&gt;.json</code>, named
+ * after the version of the benchmarked library, so that the files of two releases can be compared. An explicit <code>-rf</code> or
+ * <code>-rff</code> option replaces the default.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class BenchmarkRunner {
+	private static final String LIBRARY_POM = "/META-INF/maven/com.punjuprogrammers/confirmationmailer/pom.properties";
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-rf") && !options.contains("-rff")) {
+			options.add("-rf");
+			options.add("json");
+			options.add("-rff");
+			options.add("confirmationmailer-" + libraryVersion() + ".json");
+		}
+		Main.main(options.toArray(new String[options.size()]));
+	}
+
+	private static String libraryVersion() throws IOException {
+		InputStream in = BenchmarkRunner.class.getResourceAsStream(LIBRARY_POM);
+		if (in == null) {
+			return "unknown";
+		}
+		try {
+			Properties properties = new Properties();
+			properties.load(in);
+			return properties.getProperty("version", "unknown");
+		} finally {
+			in.close();
+		}
+	}
+}
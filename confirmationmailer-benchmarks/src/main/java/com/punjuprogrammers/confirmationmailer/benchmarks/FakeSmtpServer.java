@@ -0,0 +1,120 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal SMTP server in the benchmark process, which accepts every mail and drops it. It answers the commands used by JavaMail, so that a send
+ * measures the mailer and the protocol round trips, without a real server.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class FakeSmtpServer implements AutoCloseable {
+	private final ServerSocket serverSocket;
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * Starts the server on a free local port.
+	 */
+	public FakeSmtpServer() throws IOException {
+		serverSocket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "fake-smtp-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Number of mails received so far.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				Thread session = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "fake-smtp-session");
+				session.setDaemon(true);
+				session.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			OutputStream out = socket.getOutputStream();
+			reply(out, "220 localhost fake ESMTP");
+			String line;
+			while ((line = in.readLine()) != null) {
+				String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+				if (command.equals("EHLO")) {
+					reply(out, "250-localhost\r\n250 8BITMIME");
+				} else if (command.equals("DATA")) {
+					reply(out, "354 End data with <CR><LF>.<CR><LF>");
+					while ((line = in.readLine()) != null && !line.equals(".")) {
+						// mail content is dropped
+					}
+					received.incrementAndGet();
+					reply(out, "250 OK");
+				} else if (command.equals("QUIT")) {
+					reply(out, "221 Bye");
+					break;
+				} else {
+					// HELO, MAIL, RCPT, RSET, NOOP
+					reply(out, "250 OK");
+				}
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to clean up
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String reply) throws IOException {
+		out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+}
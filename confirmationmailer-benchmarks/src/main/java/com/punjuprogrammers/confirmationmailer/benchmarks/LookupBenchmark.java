@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.punjuprogrammers.confirmationmailer.ConfirmationMailerException;
+import com.punjuprogrammers.confirmationmailer.MailRequest;
+import com.punjuprogrammers.confirmationmailer.MailResult;
+import com.punjuprogrammers.confirmationmailer.MailToken;
+import com.punjuprogrammers.confirmationmailer.MailerConfig;
+
+/**
+ * Validation of random tokens out of {@link #TOKENS} issued ones, on each token store. The token cache is off, so every lookup reaches the
+ * store.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+	private static final int TOKENS = 10000;
+
+	@Param({ MailerFixture.JPA, MailerFixture.JDBC, MailerFixture.MEMORY })
+	public String store;
+
+	private FakeSmtpServer smtpServer;
+	private MailerFixture fixture;
+	private String[] tokens;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.setSmtpPort(smtpServer.getPort());
+		fixture = new MailerFixture(store, config);
+		List<MailRequest> requests = new ArrayList<MailRequest>(TOKENS);
+		for (int i = 0; i < TOKENS; i++) {
+			requests.add(new MailRequest("user" + i + "@example.com", MailerFixture.MAIL_TYPE, MailerFixture.fields(i), null));
+		}
+		tokens = new String[TOKENS];
+		int i = 0;
+		for (MailResult result : fixture.getMailer().sendMailsWithTokens(requests)) {
+			if (result.getToken() == null) {
+				throw new IllegalStateException("Mail not sent to " + result.getRequest().getMailId(), result.getError());
+			}
+			tokens[i++] = result.getToken();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		fixture.close();
+		smtpServer.close();
+	}
+
+	@Benchmark
+	public MailToken validateToken() throws ConfirmationMailerException {
+		return fixture.getMailer().validateToken(tokens[ThreadLocalRandom.current().nextInt(TOKENS)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public MailToken validateTokenFourThreads() throws ConfirmationMailerException {
+		return validateToken();
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import com.punjuprogrammers.confirmationmailer.ConfirmationMailer;
+import com.punjuprogrammers.confirmationmailer.EntityManagerFactoryProvider;
+import com.punjuprogrammers.confirmationmailer.MailerConfig;
+import com.punjuprogrammers.confirmationmailer.MailerConfigProvier;
+import com.punjuprogrammers.confirmationmailer.MailerTemplate;
+
+/**
+ * Creates a mailer on one of the token stores, each on its own embedded in-memory HSQLDB database.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class MailerFixture {
+	/** JPA with Hibernate, the default. */
+	public static final String JPA = "jpa";
+	/** Plain JDBC on a DataSource. */
+	public static final String JDBC = "jdbc";
+	/** Tokens in memory, logged to a file. */
+	public static final String MEMORY = "memory";
+
+	public static final String MAIL_TYPE = "activation";
+	public static final String SUBJECT = "Activate your account, ${NAME}";
+	public static final String TEXT = "Hello ${NAME},\n\nplease activate your account at https://example.com/activate?token=${TOKEN}\n\n"
+			+ "If you did not register with ${SITE}, just ignore this mail.\n\nRegards,\nThe ${SITE} team\n";
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	private final ConfirmationMailer mailer;
+	private EntityManagerFactory emf;
+	private JDBCDataSource dataSource;
+	private File tokenLog;
+
+	/**
+	 * @param store
+	 *            {@link #JPA}, {@link #JDBC} or {@link #MEMORY}.
+	 * @param config
+	 *            mailer configuration.
+	 */
+	public MailerFixture(String store, final MailerConfig config) throws IOException {
+		MailerConfigProvier configProvider = new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Arrays.asList(new MailerTemplate(MAIL_TYPE, SUBJECT, TEXT, "noreply@example.com", 24 * 60));
+			}
+		};
+		String url = "jdbc:hsqldb:mem:benchmark" + DATABASES.incrementAndGet();
+		if (JPA.equals(store)) {
+			Map<String, String> properties = new HashMap<String, String>();
+			properties.put("javax.persistence.jdbc.url", url);
+			emf = Persistence.createEntityManagerFactory("mailerBenchmark", properties);
+			mailer = new ConfirmationMailer(configProvider, new EntityManagerFactoryProvider(emf));
+		} else if (JDBC.equals(store)) {
+			dataSource = new JDBCDataSource();
+			dataSource.setUrl(url);
+			dataSource.setUser("SA");
+			mailer = new ConfirmationMailer(configProvider, dataSource);
+		} else if (MEMORY.equals(store)) {
+			tokenLog = File.createTempFile("benchmark-tokens", ".log");
+			tokenLog.delete();
+			mailer = new ConfirmationMailer(configProvider, tokenLog);
+		} else {
+			throw new IllegalArgumentException("Unknown store " + store);
+		}
+	}
+
+	public ConfirmationMailer getMailer() {
+		return mailer;
+	}
+
+	/**
+	 * Fields of one mail.
+	 */
+	public static Map<String, String> fields(int i) {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("NAME", "User " + i);
+		fields.put("SITE", "example.com");
+		return fields;
+	}
+
+	public void close() throws SQLException {
+		mailer.shutdown();
+		if (emf != null) {
+			emf.close();
+		}
+		if (dataSource != null) {
+			Connection connection = dataSource.getConnection();
+			try {
+				connection.createStatement().execute("SHUTDOWN");
+			} finally {
+				connection.close();
+			}
+		}
+		if (tokenLog != null) {
+			tokenLog.delete();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.punjuprogrammers.confirmationmailer.ConfirmationMailerException;
+import com.punjuprogrammers.confirmationmailer.MailerConfig;
+
+/**
+ * End to end {@link com.punjuprogrammers.confirmationmailer.ConfirmationMailer#sendMailWithToken}: rendering, token generation and storage, and
+ * the SMTP dialog with a {@link FakeSmtpServer} over pooled connections.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+	@Param({ MailerFixture.JPA, MailerFixture.JDBC, MailerFixture.MEMORY })
+	public String store;
+
+	private final AtomicLong mails = new AtomicLong();
+	private FakeSmtpServer smtpServer;
+	private MailerFixture fixture;
+	private Map<String, String> fields;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.setSmtpPort(smtpServer.getPort());
+		config.setMaxConnections(4);
+		fixture = new MailerFixture(store, config);
+		fields = MailerFixture.fields(1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		fixture.close();
+		smtpServer.close();
+	}
+
+	@Benchmark
+	public String sendMailWithToken() throws ConfirmationMailerException {
+		return fixture.getMailer().sendMailWithToken("user" + mails.incrementAndGet() + "@example.com", MailerFixture.MAIL_TYPE, fields, null);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String sendMailWithTokenFourThreads() throws ConfirmationMailerException {
+		return sendMailWithToken();
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.punjuprogrammers.confirmationmailer.utils.CompiledTemplate;
+
+/**
+ * Rendering of a mail text: the compiled template used by the mailer, and the regular expression substitution of the first releases as
+ * reference.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+	private static final Pattern FIELD = Pattern.compile("\\$\\{(.+?)\\}");
+
+	private CompiledTemplate template;
+	private Map<String, String> fields;
+
+	@Setup
+	public void setUp() {
+		template = CompiledTemplate.compile(MailerFixture.TEXT);
+		fields = MailerFixture.fields(1);
+		fields.put("TOKEN", "2Vq8hK0c_xRj3mYpL9aWbE");
+	}
+
+	@Benchmark
+	public String compiled() {
+		return template.render(fields);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String compiledAllThreads() {
+		return template.render(fields);
+	}
+
+	/**
+	 * The replaceTokens() of release 1.0.0.
+	 */
+	@Benchmark
+	public String regex() {
+		Matcher matcher = FIELD.matcher(MailerFixture.TEXT);
+		StringBuffer buffer = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(buffer, "");
+			buffer.append(fields.get(matcher.group(1)));
+		}
+		matcher.appendTail(buffer);
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.punjuprogrammers.confirmationmailer.RandomTokenGenerator;
+import com.punjuprogrammers.confirmationmailer.TimeOrderedTokenGenerator;
+import com.punjuprogrammers.confirmationmailer.TokenGenerator;
+import com.punjuprogrammers.confirmationmailer.TokenStrings;
+
+/**
+ * Token generation with the generators of the mailer, and with {@link UUID#randomUUID()} of the first releases as reference. Both give the
+ * string put into the mail, the 22 characters issued by the token stores against the 36 of the UUID. The variants on all threads show the
+ * contention on the secure random generators.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBenchmark {
+	private final TokenGenerator random = new RandomTokenGenerator();
+	private final TokenGenerator timeOrdered = new TimeOrderedTokenGenerator();
+
+	@Benchmark
+	public String random() {
+		return TokenStrings.issue(random);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String randomAllThreads() {
+		return TokenStrings.issue(random);
+	}
+
+	@Benchmark
+	public String timeOrdered() {
+		return TokenStrings.issue(timeOrdered);
+	}
+
+	/**
+	 * The genToken() of release 1.0.0.
+	 */
+	@Benchmark
+	public String uuid() {
+		return UUID.randomUUID().toString();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String uuidAllThreads() {
+		return UUID.randomUUID().toString();
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * What to do when an asynchronous mail is sent and the send queue is full. See
+ * {@link ConfirmationMailer#sendMailWithTokenAsync(String, String, java.util.Map, String)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public enum BackpressurePolicy {
+	/**
+	 * Caller waits until there is space in the queue.
+	 */
+	BLOCK,
+	/**
+	 * Mail is not sent and a {@link ConfirmationMailerException} with error code {@link ConfirmationMailer#ERROR_QUEUE_FULL} is thrown.
+	 */
+	REJECT,
+	/**
+	 * Mail is sent in the caller thread.
+	 */
+	CALLER_RUNS
+}
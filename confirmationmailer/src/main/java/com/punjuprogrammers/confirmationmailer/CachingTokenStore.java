@@ -0,0 +1,222 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Read-through {@link TokenCache} in front of another {@link TokenStore}. Lookups of known and unknown tokens are answered from the cache, and a
+ * token which is cached as unknown, used or expired is rejected by {@link #markUsed(String, Date)} and {@link #deleteValid(String, Date)}
+ * without asking the database. Every change of a token invalidates its entry.
+ *
+ * Cached tokens are copied, so that callers cannot change the cached instance.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class CachingTokenStore implements TokenStore {
+	private final TokenStore store;
+	private final TokenCache cache;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+
+	CachingTokenStore(TokenStore store, TokenCache cache, long ttlMillis, long negativeTtlMillis) {
+		this.store = store;
+		this.cache = cache;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return store.newToken(expiryDate);
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		store.save(mailToken, mail);
+		cache.invalidate(mailToken.getToken());
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		store.saveAll(mailTokens, mails);
+		for (MailToken mailToken : mailTokens) {
+			cache.invalidate(mailToken.getToken());
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		long now = System.currentTimeMillis();
+		TokenCache.CachedToken cached = cache.get(token, now);
+		if (cached != null) {
+			return copy(cached.getMailToken());
+		}
+		long stamp = cache.stamp(token);
+		MailToken mailToken = store.find(token);
+		long expiresAt;
+		if (mailToken == null) {
+			expiresAt = now + negativeTtlMillis;
+		} else if (mailToken.getExpiryDate().getTime() > now) {
+			expiresAt = Math.min(now + ttlMillis, mailToken.getExpiryDate().getTime());
+		} else {
+			// an expired token stays expired, it is cached for the full time
+			expiresAt = now + ttlMillis;
+		}
+		cache.put(token, copy(mailToken), stamp, expiresAt);
+		return mailToken;
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		if (isCachedInvalid(token, now)) {
+			return null;
+		}
+		try {
+			return store.markUsed(token, now);
+		} finally {
+			cache.invalidate(token);
+		}
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		if (isCachedInvalid(token, now)) {
+			return null;
+		}
+		try {
+			return store.deleteValid(token, now);
+		} finally {
+			cache.invalidate(token);
+		}
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		try {
+			return store.delete(token);
+		} finally {
+			cache.invalidate(token);
+		}
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		try {
+			return store.deleteAll(tokens);
+		} finally {
+			for (String token : tokens) {
+				cache.invalidate(token);
+			}
+		}
+	}
+
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		int count = store.deleteExpired(expiryDateTill, limit);
+		if (count > 0) {
+			cache.clear();
+		}
+		return count;
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		int count = store.deleteUsed(limit);
+		if (count > 0) {
+			cache.clear();
+		}
+		return count;
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		return store.findExpired(expiryDateTill);
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		return store.findUsed();
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		return store.findUsed(usedDateFrom, usedDateTill);
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		return store.findExpiredPage(expiryDateTill, after, limit);
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		return store.findUsedPage(usedDateFrom, usedDateTill, after, limit);
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		return store.saveUse(use);
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		return store.findUse(id);
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		return store.deleteExpiredUses(expiryDateTill, limit);
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		store.forEachTokenPage(action);
+	}
+
+	@Override
+	public long count() {
+		return store.count();
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		return store.findLive(mailId, mailType, expiryAfter);
+	}
+
+	/**
+	 * Tells if the cache knows that the token does not exist, is used or is expired at <code>now</code>. Such a token can never become valid
+	 * again.
+	 */
+	private boolean isCachedInvalid(String token, Date now) {
+		TokenCache.CachedToken cached = cache.get(token, System.currentTimeMillis());
+		if (cached == null) {
+			return false;
+		}
+		MailToken mailToken = cached.getMailToken();
+		return mailToken == null || mailToken.getStatus() != null || !mailToken.getExpiryDate().after(now);
+	}
+
+	private static MailToken copy(MailToken mailToken) {
+		if (mailToken == null) {
+			return null;
+		}
+		MailToken copy = new MailToken(mailToken.getToken(), mailToken.getMailType(), new Date(mailToken.getExpiryDate().getTime()),
+				mailToken.getMailId(), mailToken.getUserData());
+		copy.setStatus(mailToken.getStatus());
+		if (mailToken.getUsedDate() != null) {
+			copy.setUsedDate(new Date(mailToken.getUsedDate().getTime()));
+		}
+		return copy;
+	}
+}
@@ -8,20 +8,24 @@
  *******************************************************************************/
 package com.punjuprogrammers.confirmationmailer;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import javax.mail.MessagingException;
-import javax.persistence.EntityManager;
-import javax.persistence.Query;
-import javax.persistence.TypedQuery;
+import javax.sql.DataSource;
 
-import com.punjuprogrammers.confirmationmailer.utils.MailUtil;
+import com.punjuprogrammers.confirmationmailer.MailerMetrics.Stage;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool;
 import com.punjuprogrammers.confirmationmailer.utils.Util;
 
 /**
@@ -33,10 +37,22 @@ public class ConfirmationMailer {
 	public static final int ERROR_TOKEN_NOT_FOUND = 10001;
 	public static final int ERROR_TOKEN_EXPIRED = 10002;
 	public static final int ERROR_TOKEN_ALREADY_USED = 10002;
+	public static final int ERROR_QUEUE_FULL = 10003;
 	public static String TOKEN_STATUS_USED = "U";
-	private Map<String, MailerTemplate> templatesMap;
+	private Map<String, PreparedTemplate> templatesMap;
 	private MailerConfig mailConfig;
-	private MailerPersistentProvider persistentProvider;
+	private TokenStore tokenStore;
+	private SmtpTransportPool transportPool;
+	private SmtpRouter smtpRouter;
+	private volatile MailDispatcher dispatcher;
+	private OutboxDispatcher outboxDispatcher;
+	private FilteringTokenStore tokenFilter;
+	private TokenSigner tokenSigner;
+	private TokenPurger tokenPurger;
+	private MemoryTokenStore memoryTokenStore;
+	private boolean sharedEntityManager;
+	private MailerMetrics metrics;
+	private final RecentMails recentMails = new RecentMails();
 
 	/**
 	 * Constructor. Some information need to be added to the 'persistence.xml' file. See the README.TXT for usage instructions.
@@ -44,7 +60,8 @@ public class ConfirmationMailer {
 	 * @param configProvider
 	 *            a non-null object which provides the required configuration values.
 	 * @param persistentProvider
-	 *            a non-null provider to get the EntityManager from.
+	 *            a non-null provider to get the EntityManager from. For use by several threads, the provider should return an
+	 *            EntityManagerFactory, see {@link MailerPersistentProvider#getEntityManagerFactory()}.
 	 * 
 	 * @see MailerConfigProvier
 	 * @see MailerPersistentProvider
@@ -53,10 +70,139 @@ public class ConfirmationMailer {
 		Util.assertNotNull(configProvider, "configProvider");
 		Util.assertNotNull(persistentProvider, "persistentProvider");
 		this.mailConfig = configProvider.getMailConfig();
-		this.persistentProvider = persistentProvider;
-		templatesMap = new HashMap<String, MailerTemplate>();
+		EntityManagerAccess emAccess = new EntityManagerAccess(persistentProvider);
+		this.sharedEntityManager = emAccess.isShared();
+		if (sharedEntityManager && mailConfig.isOutboxEnabled()) {
+			throw new IllegalStateException("The outbox needs an EntityManagerFactory, see MailerPersistentProvider.getEntityManagerFactory()");
+		}
+		if (sharedEntityManager && mailConfig.getPurgeIntervalMillis() > 0) {
+			throw new IllegalStateException("The background purge needs an EntityManagerFactory, see MailerPersistentProvider.getEntityManagerFactory()");
+		}
+		if (sharedEntityManager && mailConfig.getTokenFilterExpectedTokens() > 0) {
+			throw new IllegalStateException("The token filter needs an EntityManagerFactory, see MailerPersistentProvider.getEntityManagerFactory()");
+		}
+		this.tokenStore = new JpaTokenStore(emAccess, mailConfig.getTokenGenerator());
+		if (mailConfig.getTokenPartitionMillis() > 0) {
+			this.tokenStore = new PartitionedTokenStore(emAccess, tokenStore, mailConfig.getTokenGenerator(), mailConfig.getTokenPartitionMillis(),
+					mailConfig.isCompactTokens());
+		} else if (mailConfig.isCompactTokens()) {
+			throw new IllegalStateException("Compact tokens need a token partition period, see MailerConfig.setTokenPartitionMillis()");
+		}
+		init(configProvider, new JpaOutboxStore(emAccess));
+	}
+
+	/**
+	 * Constructor for use without a JPA provider. The tokens are stored with plain JDBC in the same tables which are used with JPA, they are
+	 * created if missing. In this mode no JPA implementation like Hibernate is needed at runtime, only the persistence API for the annotations.
+	 * Token partitioning is not supported, see {@link MailerConfig#setTokenPartitionMillis(long)}.
+	 * 
+	 * @param configProvider
+	 *            a non-null object which provides the required configuration values.
+	 * @param dataSource
+	 *            a non-null source of connections, it should pool them and cache their prepared statements.
+	 */
+	public ConfirmationMailer(MailerConfigProvier configProvider, DataSource dataSource) {
+		Util.assertNotNull(configProvider, "configProvider");
+		Util.assertNotNull(dataSource, "dataSource");
+		this.mailConfig = configProvider.getMailConfig();
+		if (mailConfig.getTokenPartitionMillis() > 0 || mailConfig.isCompactTokens()) {
+			throw new IllegalStateException("Token partitioning is not supported with a DataSource, use a MailerPersistentProvider");
+		}
+		JdbcAccess jdbcAccess = new JdbcAccess(dataSource);
+		jdbcAccess.createTables();
+		this.tokenStore = new JdbcTokenStore(jdbcAccess, mailConfig.getTokenGenerator());
+		init(configProvider, new JdbcOutboxStore(jdbcAccess));
+	}
+
+	/**
+	 * Constructor for use without a database, e.g. on a single node or in tests. The tokens are kept in memory and, with a log file, appended to
+	 * that file to be read back by the next mailer created with it. Only one mailer may use a log file at a time. Expired tokens are removed by
+	 * the purge, so {@link MailerConfig#setPurgeIntervalMillis(long)} should be set. The outbox and token partitioning need a database and are not
+	 * supported.
+	 * 
+	 * @param configProvider
+	 *            a non-null object which provides the required configuration values.
+	 * @param tokenLog
+	 *            file to keep the tokens across restarts, null to keep them in memory only.
+	 */
+	public ConfirmationMailer(MailerConfigProvier configProvider, File tokenLog) {
+		Util.assertNotNull(configProvider, "configProvider");
+		this.mailConfig = configProvider.getMailConfig();
+		if (mailConfig.getTokenPartitionMillis() > 0 || mailConfig.isCompactTokens()) {
+			throw new IllegalStateException("Token partitioning is not supported without a database");
+		}
+		if (mailConfig.isOutboxEnabled()) {
+			throw new IllegalStateException("The outbox is not supported without a database");
+		}
+		memoryTokenStore = new MemoryTokenStore(mailConfig.getTokenGenerator(), tokenLog);
+		this.tokenStore = memoryTokenStore;
+		init(configProvider, null);
+	}
+
+	/**
+	 * Wraps the token store with the configured decorators and starts the background tasks.
+	 */
+	private void init(MailerConfigProvier configProvider, OutboxStore outboxStore) {
+		metrics = mailConfig.getMetrics();
+		if (mailConfig.getDatabaseConcurrency() > 0 && memoryTokenStore == null) {
+			this.tokenStore = new LimitingTokenStore(tokenStore, mailConfig.getDatabaseConcurrency());
+		}
+		if (mailConfig.getTokenCacheSize() > 0) {
+			this.tokenStore = new CachingTokenStore(tokenStore, new TokenCache(mailConfig.getTokenCacheSize()), mailConfig.getTokenCacheTtlMillis(),
+					mailConfig.getTokenCacheNegativeTtlMillis());
+		}
+		if (mailConfig.getTokenFilterExpectedTokens() > 0) {
+			tokenFilter = new FilteringTokenStore(tokenStore, mailConfig);
+			tokenFilter.start();
+			this.tokenStore = tokenFilter;
+		}
+		templatesMap = new HashMap<String, PreparedTemplate>();
+		boolean singleUseSigned = false;
 		for (MailerTemplate mt : configProvider.getMailerTemplates()) {
-			templatesMap.put(mt.getMailType(), mt);
+			templatesMap.put(mt.getMailType(), new PreparedTemplate(mt));
+			if (mt.getTokenMode() != TokenMode.STORED && mailConfig.getTokenSigningKeyId() == null) {
+				throw new IllegalStateException("Template " + mt.getMailType() + " uses signed tokens, but no signing key is configured");
+			}
+			if (mt.getTokenMode() == TokenMode.SIGNED_SINGLE_USE) {
+				singleUseSigned = true;
+			}
+		}
+		tokenPurger = new TokenPurger(tokenStore, mailConfig, singleUseSigned);
+		if (mailConfig.getPurgeIntervalMillis() > 0) {
+			tokenPurger.start();
+		}
+		tokenSigner = new TokenSigner(mailConfig);
+		transportPool = new SmtpTransportPool(mailConfig.getMaxConnections(), mailConfig.getConnectionMaxIdleMillis(), mailConfig.getConnectionWaitMillis(),
+				mailConfig.getSmtpPort(), mailConfig.getSmtpTimeoutMillis());
+		smtpRouter = new SmtpRouter(transportPool, mailConfig);
+		if (mailConfig.isOutboxEnabled()) {
+			outboxDispatcher = new OutboxDispatcher(outboxStore, smtpRouter, mailConfig, tokenStore);
+			if (mailConfig.getOutboxPollMillis() > 0) {
+				outboxDispatcher.start();
+			}
+		}
+		metrics.bind(this);
+	}
+
+	/**
+	 * Waits for the queued asynchronous mails to be delivered and closes the open SMTP connections. Mailer should not be used afterwards.
+	 */
+	public void shutdown() {
+		if (outboxDispatcher != null) {
+			outboxDispatcher.shutdown();
+		}
+		if (tokenFilter != null) {
+			tokenFilter.shutdown();
+		}
+		tokenPurger.shutdown();
+		synchronized (this) {
+			if (dispatcher != null) {
+				dispatcher.shutdown();
+			}
+		}
+		transportPool.close();
+		if (memoryTokenStore != null) {
+			memoryTokenStore.close();
 		}
 	}
 
@@ -88,6 +234,9 @@ public class ConfirmationMailer {
 	 * <code>mailType</code> and <code>userData</code> which is then used in validate methods. Token details can be retrieved with
 	 * {@link #getTokenDetails(String)} method.
 	 * 
+	 * If the template uses a signed {@link TokenMode}, the token carries these details itself and nothing is saved. Such mails are sent directly,
+	 * also when the outbox is enabled.
+	 * 
 	 * @param mailId
 	 *            mail address of the receiver. Null or empty value will cause an {@link IllegalArgumentException}
 	 * @param mailType
@@ -107,75 +256,637 @@ public class ConfirmationMailer {
 		return sendMail(mailId, mailType, fields, userData, true);
 	}
 
-	private String sendMail(String mailId, String mailType, Map<String, String> fields, String userData, boolean genToken) throws ConfirmationMailerException {
+	/**
+	 * Asynchronous version of {@link #sendMailWithToken(String, String, Map, String)}. When the outbox is enabled (see
+	 * {@link MailerConfig#setOutboxEnabled(boolean)}), the mail is saved to the outbox and an already completed future is returned.
+	 * 
+	 * The token is saved before this method returns. Rendering and delivery of the mail are queued and done by a worker thread. The returned
+	 * future completes with the token when the mail is sent. If the mail cannot be sent, the token is deleted and the future completes with the
+	 * error. Number of workers, queue size and the behavior when the queue is full are configured in {@link MailerConfig}.
+	 * 
+	 * A stored token can only be sent asynchronously if the provider returns an EntityManagerFactory, see
+	 * {@link MailerPersistentProvider#getEntityManagerFactory()}, as the worker deletes the token of a failed mail while the caller goes on
+	 * using the mailer. With one shared EntityManager an {@link IllegalStateException} is thrown.
+	 * 
+	 * For a template with an idempotency window, a mail requested again while the first request is being sent is not waited for: the returned
+	 * future completes with the token of the first request, or with a {@link ConfirmationMailerException} if that mail cannot be sent.
+	 * 
+	 * @param mailId
+	 *            mail address of the receiver. Null or empty value will cause an {@link IllegalArgumentException}
+	 * @param mailType
+	 *            name of the template from the list given in constructor (see {@link MailerConfigProvier}. Null, empty or invalid value will cause an
+	 *            {@link IllegalArgumentException}.
+	 * @param fields
+	 *            map of field names and their values for the given <code>mailType</code>. Null value will cause an {@link IllegalArgumentException}.
+	 *            If any of the template field is missing, the future completes with an {@link IllegalStateException}.
+	 * @param userData
+	 *            optional data stored with the token, see {@link #sendMailWithToken(String, String, Map, String)}.
+	 * @return future which completes with the generated token.
+	 * @throws ConfirmationMailerException
+	 *             thrown if the token cannot be saved or the mail cannot be queued. Error code {@link #ERROR_QUEUE_FULL} is used when the queue is full
+	 *             and {@link BackpressurePolicy#REJECT} is configured.
+	 */
+	public CompletableFuture<String> sendMailWithTokenAsync(final String mailId, String mailType, Map<String, String> fields, String userData)
+			throws ConfirmationMailerException {
+		final PreparedTemplate preparedTemplate = getPreparedTemplate(mailId, mailType, fields);
+		final MailerTemplate mailTemplate = preparedTemplate.getTemplate();
+		final boolean stored = isStored(mailTemplate);
+		if (stored && outboxDispatcher != null) {
+			return CompletableFuture.completedFuture(sendMailWithToken(mailId, mailType, fields, userData));
+		}
+		if (stored && sharedEntityManager) {
+			throw new IllegalStateException("Asynchronous sends need an EntityManagerFactory, see MailerPersistentProvider.getEntityManagerFactory()");
+		}
+		final boolean idempotent = mailTemplate.getIdempotencyWindowSeconds() > 0;
+		if (idempotent) {
+			CompletableFuture<String> pending = recentMails.claimAsync(mailTemplate.getMailType(), mailId, System.currentTimeMillis());
+			if (pending != null) {
+				return pending.thenApply(new Function<String, String>() {
+					public String apply(String token) {
+						if (token == null) {
+							throw new CompletionException(new ConfirmationMailerException("The same mail requested before could not be sent"));
+						}
+						return token;
+					}
+				});
+			}
+			String recent = findRecent(mailTemplate, mailId);
+			if (recent != null) {
+				return CompletableFuture.completedFuture(recent);
+			}
+		}
+		boolean queued = false;
+		try {
+			final String token = newToken(mailTemplate, mailId, mailType, userData);
+			final Map<String, String> mailFields = new HashMap<String, String>(fields);
+			mailFields.put("TOKEN", token);
+			if (stored) {
+				saveToken(token, mailTemplate, mailId, mailType, userData);
+			}
+			final long windowEnd = windowEnd(mailTemplate, null);
+
+			final CompletableFuture<String> future = new CompletableFuture<String>();
+			try {
+				getDispatcher().execute(new Runnable() {
+					public void run() {
+						try {
+							deliver(mailId, preparedTemplate, mailFields);
+							if (idempotent) {
+								recentMails.sent(mailTemplate.getMailType(), mailId, token, windowEnd);
+							}
+							future.complete(token);
+						} catch (Throwable e) {
+							try {
+								metrics.recordFailed(mailTemplate.getMailType());
+								if (stored) {
+									compensate(token, mailTemplate.getMailType());
+								}
+							} finally {
+								// the caller and the requests waiting for the claim are released, whatever happens to the clean up
+								if (idempotent) {
+									recentMails.failed(mailTemplate.getMailType(), mailId);
+								}
+								future.completeExceptionally(e);
+							}
+						}
+					}
+				});
+				queued = true;
+			} catch (RejectedExecutionException e) {
+				metrics.recordFailed(mailType);
+				if (stored) {
+					compensate(token, mailType);
+				}
+				throw new ConfirmationMailerException("Mail could not be queued: " + e.getMessage(), ERROR_QUEUE_FULL);
+			}
+			return future;
+		} finally {
+			if (idempotent && !queued) {
+				recentMails.failed(mailType, mailId);
+			}
+		}
+	}
+
+	/**
+	 * Sends many mails with token, i.e. for a campaign. Each request is handled like {@link #sendMailWithToken(String, String, Map, String)}, but
+	 * the tokens are saved in chunks of {@link MailerConfig#getBatchSize()} per transaction and the mails are sent over the pooled SMTP
+	 * connections. For JDBC batching of the inserts, set the persistence property <code>hibernate.jdbc.batch_size</code> to the same value.
+	 * 
+	 * A failure of one request does not stop the others. If a mail cannot be sent, its token is deleted.
+	 * 
+	 * @param requests
+	 *            mails to send. Null value will cause an {@link IllegalArgumentException}.
+	 * @return one result per request, in the order of <code>requests</code>.
+	 */
+	public List<MailResult> sendMailsWithTokens(Collection<MailRequest> requests) {
+		Util.assertNotNull(requests, "requests");
+		List<MailResult> results = new ArrayList<MailResult>(requests.size());
+		List<PendingMail> chunk = new ArrayList<PendingMail>(mailConfig.getBatchSize());
+		for (MailRequest request : requests) {
+			MailResult result = new MailResult(request);
+			results.add(result);
+			boolean claimed = false;
+			try {
+				Util.assertNotNull(request, "request");
+				PreparedTemplate preparedTemplate = getPreparedTemplate(request.getMailId(), request.getMailType(), request.getFields());
+				if (preparedTemplate.getTemplate().getIdempotencyWindowSeconds() > 0) {
+					String recent = recentMails.tryClaim(request.getMailType(), request.getMailId(), System.currentTimeMillis());
+					if (recent == RecentMails.BUSY) {
+						// the claims of this chunk are settled before waiting, so that two batches never wait for each other
+						sendChunk(chunk);
+						chunk.clear();
+						recent = claimRecent(preparedTemplate.getTemplate(), request.getMailId());
+					} else if (recent == null) {
+						recent = findRecent(preparedTemplate.getTemplate(), request.getMailId());
+					}
+					if (recent != null) {
+						result.setToken(recent);
+						continue;
+					}
+					claimed = true;
+				}
+				String token = newToken(preparedTemplate.getTemplate(), request.getMailId(), request.getMailType(), request.getUserData());
+				Map<String, String> mailFields = new HashMap<String, String>(request.getFields());
+				mailFields.put("TOKEN", token);
+				result.setToken(token);
+				long start = System.nanoTime();
+				String subject = preparedTemplate.renderSubject(mailFields);
+				String msgText = preparedTemplate.renderText(mailFields);
+				metrics.recordStage(Stage.RENDER, request.getMailType(), System.nanoTime() - start);
+				chunk.add(new PendingMail(result, preparedTemplate, subject, msgText, claimed));
+				claimed = false;
+			} catch (RuntimeException e) {
+				result.setError(e);
+				if (claimed) {
+					recentMails.failed(request.getMailType(), request.getMailId());
+				}
+			}
+			if (chunk.size() == mailConfig.getBatchSize()) {
+				sendChunk(chunk);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			sendChunk(chunk);
+		}
+		return results;
+	}
+
+	private void sendChunk(List<PendingMail> chunk) {
+		try {
+			deliverChunk(chunk);
+		} finally {
+			for (PendingMail mail : chunk) {
+				if (mail.claimed) {
+					MailerTemplate mailTemplate = mail.preparedTemplate.getTemplate();
+					if (mail.result.isSuccess()) {
+						recentMails.sent(mailTemplate.getMailType(), mail.result.getRequest().getMailId(), mail.result.getToken(),
+								windowEnd(mailTemplate, null));
+					} else {
+						recentMails.failed(mailTemplate.getMailType(), mail.result.getRequest().getMailId());
+					}
+				}
+			}
+		}
+	}
+
+	private void deliverChunk(List<PendingMail> chunk) {
+		Date now = new Date();
+		List<MailToken> mailTokens = new ArrayList<MailToken>(chunk.size());
+		List<MailOutbox> mails = outboxDispatcher == null ? null : new ArrayList<MailOutbox>(chunk.size());
+		for (PendingMail mail : chunk) {
+			MailRequest request = mail.result.getRequest();
+			MailerTemplate mailTemplate = mail.preparedTemplate.getTemplate();
+			if (!isStored(mailTemplate)) {
+				continue;
+			}
+			mailTokens.add(newMailToken(mail.result.getToken(), mailTemplate, request.getMailId(), request.getMailType(), request.getUserData(), now));
+			if (mails != null) {
+				mails.add(new MailOutbox(mail.result.getToken(), request.getMailId(), request.getMailType(), mailTemplate.getFromEmail(), mail.subject,
+						mail.msgText, now));
+			}
+		}
+		boolean saved = true;
+		if (!mailTokens.isEmpty()) {
+			try {
+				long start = System.nanoTime();
+				tokenStore.saveAll(mailTokens, mails);
+				// each token is recorded with its share of the batch
+				long nanos = (System.nanoTime() - start) / mailTokens.size();
+				for (MailToken mailToken : mailTokens) {
+					metrics.recordStage(Stage.TOKEN_SAVE, mailToken.getMailType(), nanos);
+				}
+			} catch (RuntimeException e) {
+				saved = false;
+				for (PendingMail mail : chunk) {
+					if (isStored(mail.preparedTemplate.getTemplate())) {
+						mail.result.setError(new ConfirmationMailerException(e.getMessage(), e));
+					}
+				}
+			}
+		}
+
+		List<PendingMail> unsent = new ArrayList<PendingMail>(chunk.size());
+		List<SmtpRouter.Mail> rendered = new ArrayList<SmtpRouter.Mail>(chunk.size());
+		for (PendingMail mail : chunk) {
+			MailerTemplate mailTemplate = mail.preparedTemplate.getTemplate();
+			if (isStored(mailTemplate) && (!saved || outboxDispatcher != null)) {
+				// not saved, or delivered from the outbox
+				continue;
+			}
+			unsent.add(mail);
+			rendered.add(new SmtpRouter.Mail(mailTemplate.getMailType(), mail.result.getRequest().getMailId(), mail.subject, mail.msgText,
+					mailTemplate.getFromEmail()));
+		}
+		MessagingException[] errors = smtpRouter.sendAll(rendered);
+
+		List<String> failedTokens = new ArrayList<String>();
+		List<String> failedTypes = new ArrayList<String>();
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] == null) {
+				continue;
+			}
+			PendingMail mail = unsent.get(i);
+			MailerTemplate mailTemplate = mail.preparedTemplate.getTemplate();
+			metrics.recordFailed(mailTemplate.getMailType());
+			if (isStored(mailTemplate)) {
+				failedTokens.add(mail.result.getToken());
+				failedTypes.add(mailTemplate.getMailType());
+			}
+			mail.result.setError(new ConfirmationMailerException(errors[i].getMessage(), errors[i]));
+		}
+		if (!failedTokens.isEmpty()) {
+			try {
+				tokenStore.deleteAll(failedTokens);
+				for (String mailType : failedTypes) {
+					metrics.recordCompensatingDelete(mailType);
+				}
+			} catch (RuntimeException e) {
+				// tokens of unsent mails are left to expire
+			}
+		}
+	}
+
+	private static class PendingMail {
+		private final MailResult result;
+		private final PreparedTemplate preparedTemplate;
+		private final String subject;
+		private final String msgText;
+		// holds the claim of an idempotent mail
+		private final boolean claimed;
+
+		private PendingMail(MailResult result, PreparedTemplate preparedTemplate, String subject, String msgText, boolean claimed) {
+			this.result = result;
+			this.preparedTemplate = preparedTemplate;
+			this.subject = subject;
+			this.msgText = msgText;
+			this.claimed = claimed;
+		}
+	}
+
+	private MailDispatcher getDispatcher() {
+		MailDispatcher result = dispatcher;
+		if (result == null) {
+			synchronized (this) {
+				result = dispatcher;
+				if (result == null && mailConfig.isVirtualThreads()) {
+					result = MailDispatcher.withVirtualThreads(mailConfig.getAsyncQueueCapacity(), mailConfig.getBackpressurePolicy());
+					dispatcher = result;
+				} else if (result == null) {
+					result = new MailDispatcher(mailConfig.getAsyncWorkers(), mailConfig.getAsyncQueueCapacity(), mailConfig.getBackpressurePolicy());
+					dispatcher = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	private PreparedTemplate getPreparedTemplate(String mailId, String mailType, Map<String, String> fields) {
 		Util.assertNotNullNotEmpty(mailId, "mailId");
 		Util.assertNotNullNotEmpty(mailType, "mailType");
 		Util.assertNotNull(fields, "fields");
 
-		MailerTemplate mailTemplate = templatesMap.get(mailType);
+		PreparedTemplate preparedTemplate = templatesMap.get(mailType);
 
-		if (mailTemplate == null) {
+		if (preparedTemplate == null) {
 			throw new IllegalArgumentException("Template not found for mail type: " + mailType);
 		}
+		return preparedTemplate;
+	}
+
+	private void deliver(String mailId, PreparedTemplate preparedTemplate, Map<String, String> mailFields) throws ConfirmationMailerException {
+		MailerTemplate mailTemplate = preparedTemplate.getTemplate();
+		long start = System.nanoTime();
+		String subject = preparedTemplate.renderSubject(mailFields);
+		String msgText = preparedTemplate.renderText(mailFields);
+		metrics.recordStage(Stage.RENDER, mailTemplate.getMailType(), System.nanoTime() - start);
+		try {
+			smtpRouter.send(mailTemplate.getMailType(), mailId, subject, msgText, mailTemplate.getFromEmail());
+		} catch (MessagingException e) {
+			throw new ConfirmationMailerException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Deletes the token of a mail which could not be sent. If the token cannot be deleted, it is left to expire and the error of the mail is
+	 * reported instead.
+	 */
+	private void compensate(String token, String mailType) {
+		try {
+			deleteToken(token);
+		} catch (RuntimeException e) {
+			return;
+		}
+		metrics.recordCompensatingDelete(mailType);
+	}
+
+	private String sendMail(String mailId, String mailType, Map<String, String> fields, String userData, boolean genToken) throws ConfirmationMailerException {
+		PreparedTemplate preparedTemplate = getPreparedTemplate(mailId, mailType, fields);
+		MailerTemplate mailTemplate = preparedTemplate.getTemplate();
+		if (!genToken || mailTemplate.getIdempotencyWindowSeconds() == 0) {
+			return sendMail(preparedTemplate, mailId, mailType, fields, userData, genToken);
+		}
+		String token = claimRecent(mailTemplate, mailId);
+		if (token != null) {
+			return token;
+		}
+		boolean sent = false;
+		try {
+			token = sendMail(preparedTemplate, mailId, mailType, fields, userData, true);
+			recentMails.sent(mailType, mailId, token, windowEnd(mailTemplate, null));
+			sent = true;
+			return token;
+		} finally {
+			if (!sent) {
+				recentMails.failed(mailType, mailId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the token of a mail sent within the idempotency window of the template. Otherwise null is returned and the caller has claimed the
+	 * mail, see {@link RecentMails}.
+	 */
+	private String claimRecent(MailerTemplate mailTemplate, String mailId) {
+		String token = recentMails.claim(mailTemplate.getMailType(), mailId, System.currentTimeMillis());
+		return token != null ? token : findRecent(mailTemplate, mailId);
+	}
+
+	/**
+	 * Looks up a live token issued by another node within the idempotency window, for a mail claimed by the caller. A token found is recorded
+	 * in place of the claim.
+	 * 
+	 * @return the token, null if the mail is to be sent.
+	 */
+	private String findRecent(MailerTemplate mailTemplate, String mailId) {
+		if (!isStored(mailTemplate)) {
+			return null;
+		}
+		long validityMillis = mailTemplate.getValidityMinutes() * 60 * 1000;
+		MailToken recent;
+		try {
+			recent = tokenStore.findLive(mailId, mailTemplate.getMailType(),
+					new Date(System.currentTimeMillis() + validityMillis - mailTemplate.getIdempotencyWindowSeconds() * 1000));
+		} catch (RuntimeException e) {
+			// a mail sent twice is better than one not sent
+			return null;
+		}
+		if (recent == null) {
+			return null;
+		}
+		recentMails.sent(mailTemplate.getMailType(), mailId, recent.getToken(), windowEnd(mailTemplate, recent));
+		return recent.getToken();
+	}
+
+	/**
+	 * Returns the end of the idempotency window of <code>recent</code>, or of a token issued now if null.
+	 */
+	private static long windowEnd(MailerTemplate mailTemplate, MailToken recent) {
+		long issued = recent == null ? System.currentTimeMillis() : recent.getExpiryDate().getTime() - mailTemplate.getValidityMinutes() * 60 * 1000;
+		return issued + mailTemplate.getIdempotencyWindowSeconds() * 1000;
+	}
+
+	private String sendMail(PreparedTemplate preparedTemplate, String mailId, String mailType, Map<String, String> fields, String userData,
+			boolean genToken) throws ConfirmationMailerException {
+		MailerTemplate mailTemplate = preparedTemplate.getTemplate();
 		Map<String, String> mailFields = fields;
 		String token = null;
+		boolean stored = genToken && isStored(mailTemplate);
 		if (genToken) {
 			mailFields = new HashMap<String, String>(fields);
-			token = genToken();
+			token = newToken(mailTemplate, mailId, mailType, userData);
 			mailFields.put("TOKEN", token);
 		}
 
-		String subject = replaceTokens(mailTemplate.getSubject(), mailFields);
-		String msgText = replaceTokens(mailTemplate.getText(), mailFields);
-		if (genToken) {
+		long start = System.nanoTime();
+		String subject = preparedTemplate.renderSubject(mailFields);
+		String msgText = preparedTemplate.renderText(mailFields);
+		metrics.recordStage(Stage.RENDER, mailType, System.nanoTime() - start);
+		if (stored && outboxDispatcher != null) {
+			saveTokenWithOutbox(token, mailTemplate, mailId, mailType, userData, subject, msgText);
+			return token;
+		}
+		if (stored) {
 			saveToken(token, mailTemplate, mailId, mailType, userData);
 		}
 		try {
-			MailUtil.sendMail(mailId, subject, msgText, mailTemplate.getFromEmail(), mailConfig.getSmtpServer(), mailConfig.getServerUserName(), mailConfig.getServerPassowrd());
+			smtpRouter.send(mailType, mailId, subject, msgText, mailTemplate.getFromEmail());
 		} catch (MessagingException e) {
-			if (genToken) {
-				deleteToken(token);
+			metrics.recordFailed(mailType);
+			if (stored) {
+				compensate(token, mailType);
 			}
 			throw new ConfirmationMailerException(e.getMessage(), e);
 		}
 		return token;
 	}
 
-	private String replaceTokens(String template, Map<String, String> fields) {
-		Pattern pattern = Pattern.compile("\\$\\{(.+?)\\}");
-		Matcher matcher = pattern.matcher(template);
-		StringBuffer buffer = new StringBuffer();
-		while (matcher.find()) {
-			String replacement = fields.get(matcher.group(1));
-			if (replacement != null) {
-				// if replacement contains $ sing or backspaces, appendReplacement can have problem therefore append is split into two lines.
-				matcher.appendReplacement(buffer, "");
-				buffer.append(replacement);
-			} else {
-				throw new IllegalStateException("Field not found in template: " + matcher.group(1));
+	private static boolean isStored(MailerTemplate mailTemplate) {
+		return mailTemplate.getTokenMode() == TokenMode.STORED;
+	}
+
+	/**
+	 * Returns a random token for a stored token mode, otherwise a signed token carrying the token details.
+	 */
+	private String newToken(MailerTemplate mailTemplate, String mailId, String mailType, String userData) {
+		Date expiryDate = new Date(System.currentTimeMillis() + (mailTemplate.getValidityMinutes() * 60 * 1000));
+		if (isStored(mailTemplate)) {
+			return tokenStore.newToken(expiryDate);
+		}
+		return tokenSigner.sign(mailType, mailId, expiryDate, userData, mailTemplate.getTokenMode() == TokenMode.SIGNED_SINGLE_USE);
+	}
+
+	/**
+	 * Tells if the token was issued for a template with a signed {@link TokenMode}.
+	 */
+	private boolean isSigned(String token) {
+		return mailConfig.getTokenSigningKeyId() != null && TokenSigner.isSigned(token);
+	}
+
+	/**
+	 * Returns the details of a signed token, null if its signature is not valid.
+	 */
+	private MailToken getSignedTokenDetails(String token) {
+		TokenSigner.SignedToken signed = tokenSigner.verify(token);
+		if (signed == null) {
+			return null;
+		}
+		MailToken mailToken = signed.getMailToken();
+		if (signed.isSingleUse()) {
+			MailTokenUse use = tokenStore.findUse(signed.getUseId());
+			if (use != null) {
+				mailToken.setStatus(TOKEN_STATUS_USED);
+				mailToken.setUsedDate(use.getUsedDate());
 			}
 		}
-		matcher.appendTail(buffer);
-		return buffer.toString();
+		return mailToken;
+	}
+
+	/**
+	 * Validates a signed token and, for a single use token, records its use. Nothing is written for a token which can be used many times.
+	 */
+	private MailToken useSignedToken(String token, long start) throws ConfirmationMailerException {
+		Date now = new Date();
+		TokenSigner.SignedToken signed = tokenSigner.verify(token);
+		MailToken mailToken = signed == null ? null : signed.getMailToken();
+		try {
+			validateToken(token, mailToken);
+		} catch (ConfirmationMailerException e) {
+			throw rejected(e, mailToken, start);
+		}
+		if (signed.isSingleUse() && !tokenStore.saveUse(new MailTokenUse(signed.getUseId(), now, mailToken.getExpiryDate()))) {
+			throw rejected(new ConfirmationMailerException("Token is already used: " + token, ERROR_TOKEN_ALREADY_USED), mailToken, start);
+		}
+		mailToken.setStatus(TOKEN_STATUS_USED);
+		mailToken.setUsedDate(now);
+		accepted(mailToken, start);
+		recentMails.forget(mailToken.getMailType(), mailToken.getMailId(), token);
+		return mailToken;
 	}
 
-	private String genToken() {
-		return UUID.randomUUID().toString();
+	private static MailToken newMailToken(String token, MailerTemplate mailTemplate, String mailId, String mailType, String userData, Date now) {
+		Date expiryDate = new Date(now.getTime() + (mailTemplate.getValidityMinutes() * 60 * 1000));
+		return new MailToken(token, mailType, expiryDate, mailId, userData);
 	}
 
 	private String saveToken(String token, MailerTemplate mailTemplate, String mailId, String mailType, String userData) throws ConfirmationMailerException {
-		Date expiryDate = new Date((new Date().getTime()) + (mailTemplate.getValidityMinutes() * 60 * 1000));
-		MailToken mailToken = new MailToken(token, mailType, expiryDate, mailId, userData);
+		MailToken mailToken = newMailToken(token, mailTemplate, mailId, mailType, userData, new Date());
+		long start = System.nanoTime();
 		try {
-			persistentProvider.getEntityManager().getTransaction().begin();
-			persistentProvider.getEntityManager().persist(mailToken);
-			persistentProvider.getEntityManager().getTransaction().commit();
+			tokenStore.save(mailToken, null);
+			metrics.recordStage(Stage.TOKEN_SAVE, mailType, System.nanoTime() - start);
 		} catch (Throwable e) {
 			throw new ConfirmationMailerException(e.getMessage(), e);
 		}
 		return token;
 	}
 
+	private void saveTokenWithOutbox(String token, MailerTemplate mailTemplate, String mailId, String mailType, String userData, String subject,
+			String msgText) throws ConfirmationMailerException {
+		Date now = new Date();
+		MailToken mailToken = newMailToken(token, mailTemplate, mailId, mailType, userData, now);
+		MailOutbox mail = new MailOutbox(token, mailId, mailType, mailTemplate.getFromEmail(), subject, msgText, now);
+		long start = System.nanoTime();
+		try {
+			tokenStore.save(mailToken, mail);
+			metrics.recordStage(Stage.TOKEN_SAVE, mailType, System.nanoTime() - start);
+		} catch (Throwable e) {
+			throw new ConfirmationMailerException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Delivers one batch of mails from the outbox. Normally the outbox is drained by an internal scheduler, this method is meant for applications
+	 * which disable it with {@link MailerConfig#setOutboxPollMillis(long)} and schedule the delivery themselves.
+	 * 
+	 * @return number of mails processed, sent or failed. Less than {@link MailerConfig#getOutboxBatchSize()} means the outbox has no more due
+	 *         mails.
+	 */
+	public int dispatchOutbox() {
+		if (outboxDispatcher == null) {
+			throw new IllegalStateException("Outbox is not enabled");
+		}
+		return outboxDispatcher.dispatch();
+	}
+
+	/**
+	 * Returns the mails of the outbox which could not be delivered: their recipient was rejected or all attempts failed, see
+	 * {@link MailerConfig#setOutboxMaxAttempts(int)}. Their tokens are deleted; the mails stay in the outbox with the last error until they are
+	 * deleted with {@link #deleteFailedOutboxMails(Date)}.
+	 * 
+	 * @param limit
+	 *            maximum number of mails returned, the oldest first.
+	 * @return failed mails.
+	 */
+	public List<MailOutbox> getFailedOutboxMails(int limit) {
+		if (outboxDispatcher == null) {
+			throw new IllegalStateException("Outbox is not enabled");
+		}
+		return outboxDispatcher.findFailed(limit);
+	}
+
+	/**
+	 * Deletes the mails of the outbox which could not be delivered, see {@link #getFailedOutboxMails(int)}.
+	 * 
+	 * @param createdDateTill
+	 *            mails created till this date are deleted.
+	 * @return number of mails deleted.
+	 */
+	public int deleteFailedOutboxMails(Date createdDateTill) {
+		Util.assertNotNull(createdDateTill, "createdDateTill");
+		if (outboxDispatcher == null) {
+			throw new IllegalStateException("Outbox is not enabled");
+		}
+		return outboxDispatcher.deleteFailed(createdDateTill);
+	}
+
+	/**
+	 * Returns the number of asynchronously sent mails waiting for a worker, see {@link #sendMailWithTokenAsync(String, String, Map, String)}.
+	 * 
+	 * @return queued mails.
+	 */
+	public int getAsyncQueueDepth() {
+		MailDispatcher current = dispatcher;
+		return current == null ? 0 : current.getQueueDepth();
+	}
+
+	/**
+	 * Returns the number of mails in the outbox waiting for delivery, by all nodes. This runs a count query on the database.
+	 * 
+	 * @return waiting mails, 0 if the outbox is not enabled.
+	 */
+	public long getOutboxDepth() {
+		return outboxDispatcher == null ? 0 : outboxDispatcher.countPending();
+	}
+
+	/**
+	 * Returns the number of SMTP connections sending a mail at the moment.
+	 * 
+	 * @return connections in use, at most {@link MailerConfig#getMaxConnections()}.
+	 */
+	public int getSmtpConnectionsInUse() {
+		return transportPool.getInUse();
+	}
+
+	/**
+	 * Returns the number of open SMTP connections waiting for the next mail.
+	 * 
+	 * @return idle connections.
+	 */
+	public int getSmtpConnectionsIdle() {
+		return transportPool.getIdle();
+	}
+
+	/**
+	 * Returns the number of stored tokens, including the used and expired ones which are not purged yet. With a database this runs a count query
+	 * on the token tables, which can take a while for big tables, so it should not be read more often than every few seconds.
+	 * 
+	 * @return number of tokens.
+	 */
+	public long getTokenCount() {
+		return tokenStore.count();
+	}
+
 	/**
 	 * Returns the token details.
 	 * 
@@ -185,7 +896,10 @@ public class ConfirmationMailer {
 	 */
 	public MailToken getTokenDetails(String token) {
 		Util.assertNotNull(token, "token");
-		MailToken mailToken = persistentProvider.getEntityManager().find(MailToken.class, token);
+		if (isSigned(token)) {
+			return getSignedTokenDetails(token);
+		}
+		MailToken mailToken = tokenStore.find(token);
 
 		return mailToken;
 	}
@@ -216,8 +930,14 @@ public class ConfirmationMailer {
 	 */
 	public MailToken validateToken(String token) throws ConfirmationMailerException {
 		Util.assertNotNull(token, "token");
-		MailToken mailToken = persistentProvider.getEntityManager().find(MailToken.class, token);
-		validateToken(token, mailToken);
+		long start = System.nanoTime();
+		MailToken mailToken = isSigned(token) ? getSignedTokenDetails(token) : tokenStore.find(token);
+		try {
+			validateToken(token, mailToken);
+		} catch (ConfirmationMailerException e) {
+			throw rejected(e, mailToken, start);
+		}
+		accepted(mailToken, start);
 		return mailToken;
 	}
 
@@ -232,13 +952,18 @@ public class ConfirmationMailer {
 	 */
 	public MailToken validateAndMarkUsedToken(String token) throws ConfirmationMailerException {
 		Util.assertNotNull(token, "token");
-		MailToken mailToken = persistentProvider.getEntityManager().find(MailToken.class, token);
-		validateToken(token, mailToken);
-		mailToken.setStatus(TOKEN_STATUS_USED);
-		mailToken.setUsedDate(new Date());
-		persistentProvider.getEntityManager().getTransaction().begin();
-		persistentProvider.getEntityManager().merge(mailToken);
-		persistentProvider.getEntityManager().getTransaction().commit();
+		long start = System.nanoTime();
+		if (isSigned(token)) {
+			return useSignedToken(token, start);
+		}
+		Date now = new Date();
+		MailToken mailToken = tokenStore.markUsed(token, now);
+		if (mailToken == null) {
+			MailToken found = tokenStore.find(token);
+			throw rejected(invalidTokenException(token, found, now), found, start);
+		}
+		accepted(mailToken, start);
+		recentMails.forget(mailToken.getMailType(), mailToken.getMailId(), token);
 
 		return mailToken;
 	}
@@ -255,35 +980,85 @@ public class ConfirmationMailer {
 	 */
 	public MailToken validateAndDeleteToken(String token) throws ConfirmationMailerException {
 		Util.assertNotNull(token, "token");
-		MailToken mailToken = persistentProvider.getEntityManager().find(MailToken.class, token);
-		validateToken(token, mailToken);
+		long start = System.nanoTime();
+		if (isSigned(token)) {
+			return useSignedToken(token, start);
+		}
+		Date now = new Date();
+		MailToken mailToken = tokenStore.deleteValid(token, now);
+		if (mailToken == null) {
+			MailToken found = tokenStore.find(token);
+			throw rejected(invalidTokenException(token, found, now), found, start);
+		}
 		mailToken.setStatus(TOKEN_STATUS_USED);
-		persistentProvider.getEntityManager().getTransaction().begin();
-		persistentProvider.getEntityManager().remove(mailToken);
-		persistentProvider.getEntityManager().getTransaction().commit();
+		accepted(mailToken, start);
+		recentMails.forget(mailToken.getMailType(), mailToken.getMailId(), token);
 
 		return mailToken;
 	}
 
+	private void accepted(MailToken mailToken, long start) {
+		metrics.recordStage(Stage.VALIDATE, mailToken.getMailType(), System.nanoTime() - start);
+		metrics.recordValidation(mailToken.getMailType(), 0);
+	}
+
 	/**
-	 * Deletes the <code>token</code> permanently from database.
+	 * Records a rejected token.
+	 * 
+	 * @return the given exception, to be thrown.
+	 */
+	private ConfirmationMailerException rejected(ConfirmationMailerException e, MailToken mailToken, long start) {
+		String mailType = mailToken == null ? null : mailToken.getMailType();
+		metrics.recordStage(Stage.VALIDATE, mailType, System.nanoTime() - start);
+		metrics.recordValidation(mailType, e.getErrorCode());
+		return e;
+	}
+
+	/**
+	 * Returns true if the stored token is neither used nor expired at <code>now</code>. Lets a store skip a conditional statement which cannot
+	 * match, the statement still decides whether the token is consumed.
+	 */
+	static boolean isValid(MailToken mailToken, Date now) {
+		return mailToken.getStatus() == null && mailToken.getExpiryDate().after(now);
+	}
+
+	/**
+	 * Returns the reason why a conditional update on the token did not match. Only called on the failure path.
+	 */
+	private ConfirmationMailerException invalidTokenException(String token, MailToken mailToken, Date now) {
+		try {
+			validateToken(token, mailToken);
+		} catch (ConfirmationMailerException e) {
+			return e;
+		}
+		if (!mailToken.getExpiryDate().after(now)) {
+			return new ConfirmationMailerException("Token is expired: " + token, ERROR_TOKEN_EXPIRED);
+		}
+		// valid now, but it was used by a concurrent request
+		return new ConfirmationMailerException("Token is already used: " + token, ERROR_TOKEN_ALREADY_USED);
+	}
+
+	/**
+	 * Deletes the <code>token</code> permanently from database. A signed token is not stored, its details are returned and nothing is deleted.
 	 * 
 	 * @param token a valid token.
 	 * @return token details.
 	 */
 	public MailToken deleteToken(String token) {
 		Util.assertNotNull(token, "token");
-		MailToken mailToken = persistentProvider.getEntityManager().find(MailToken.class, token);
+		if (isSigned(token)) {
+			return getSignedTokenDetails(token);
+		}
+		MailToken mailToken = tokenStore.delete(token);
 		if (mailToken != null) {
-			persistentProvider.getEntityManager().getTransaction().begin();
-			persistentProvider.getEntityManager().remove(mailToken);
-			persistentProvider.getEntityManager().getTransaction().commit();
+			recentMails.forget(mailToken.getMailType(), mailToken.getMailId(), token);
 		}
 		return mailToken;
 	}
 
 	/**
-	 * Deletes all tokens whose expiry date is till <code>expiryDateTill</code>.
+	 * Deletes all tokens whose expiry date is till <code>expiryDateTill</code>, including the recorded uses of expired signed single use tokens.
+	 * The tokens are deleted in chunks, see {@link MailerConfig#setPurgeChunkSize(int)}.
 	 * 
 	 * @param expiryDateTill
 	 *            timestamp till the tokens should be deleted.
@@ -291,34 +1066,42 @@ public class ConfirmationMailer {
 	 */
 	public int deleteAll(Date expiryDateTill) {
 		Util.assertNotNull(expiryDateTill, "expiryDateTill");
-		EntityManager em = persistentProvider.getEntityManager();
-		Query q = em.createQuery(" DELETE FROM MailToken m WHERE m.expiryDate <= :expiryDateTill");
-		q.setParameter("expiryDateTill", expiryDateTill);
-		em.getTransaction().begin();
-		int count = q.executeUpdate();
-		em.getTransaction().commit();
-
-		return count;
+		return tokenPurger.purge(expiryDateTill, false, 0, 0, true).getDeletedExpired();
 	}
 
 	/**
-	 * Deletes all used tokens.
+	 * Deletes all used tokens. The tokens are deleted in chunks, see {@link MailerConfig#setPurgeChunkSize(int)}.
 	 * 
 	 * @return the number of records deleted.
 	 */
 	public int deleteAllUsed() {
-		EntityManager em = persistentProvider.getEntityManager();
-		Query q = em.createQuery(" DELETE FROM MailToken m WHERE m.status <= :status");
-		q.setParameter("status", TOKEN_STATUS_USED);
-		em.getTransaction().begin();
-		int count = q.executeUpdate();
-		em.getTransaction().commit();
+		return tokenPurger.purge(null, true, 0, 0, true).getDeletedUsed();
+	}
 
-		return count;
+	/**
+	 * Deletes the expired tokens and, if {@link MailerConfig#setPurgeUsedTokens(boolean)} is set, the used tokens, within the time budget of
+	 * {@link MailerConfig#setPurgeTimeBudgetMillis(long)}. This is what the background purge does every
+	 * {@link MailerConfig#getPurgeIntervalMillis()}; this method is meant for applications which schedule the purge themselves.
+	 * 
+	 * @return deleted counts. If the result is not complete, the remaining tokens are deleted by the next purge.
+	 */
+	public PurgeResult purge() {
+		return tokenPurger.purge();
 	}
 
 	/**
-	 * Returns all tokens whose expiry date is till <code>expiryDateTill</code>.
+	 * Sets the listener which receives the progress of all purges, including {@link #deleteAll(Date)} and {@link #deleteAllUsed()}.
+	 * 
+	 * @param listener
+	 *            listener, null to remove it.
+	 */
+	public void setPurgeListener(PurgeListener listener) {
+		tokenPurger.setListener(listener);
+	}
+
+	/**
+	 * Returns all tokens whose expiry date is till <code>expiryDateTill</code>. All tokens are loaded into memory at once, for many tokens use
+	 * {@link #streamExpired(Date)}.
 	 * 
 	 * @param expiryDateTill
 	 *            timestamp.
@@ -327,22 +1110,16 @@ public class ConfirmationMailer {
 	 */
 	public List<MailToken> getAllExpired(Date expiryDateTill) {
 		Util.assertNotNull(expiryDateTill, "expiryDateTill");
-		EntityManager em = persistentProvider.getEntityManager();
-		TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Expired", MailToken.class);
-		q.setParameter("expiryDateTill", expiryDateTill);
-		return q.getResultList();
+		return tokenStore.findExpired(expiryDateTill);
 	}
 
 	/**
-	 * Returns the list of all used tokens
+	 * Returns the list of all used tokens. For many tokens use {@link #streamUsed()}.
 	 * 
 	 * @return list of objects
 	 */
 	public List<MailToken> getAllUsed() {
-		EntityManager em = persistentProvider.getEntityManager();
-		TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Status", MailToken.class);
-		q.setParameter("status", TOKEN_STATUS_USED);
-		return q.getResultList();
+		return tokenStore.findUsed();
 	}
 
 	/**
@@ -357,10 +1134,94 @@ public class ConfirmationMailer {
 	public List<MailToken> getAllUsed(Date usedDateFrom, Date usedDateTill) {
 		Util.assertNotNull(usedDateFrom, "usedDateFrom");
 		Util.assertNotNull(usedDateTill, "usedDateTill");
-		EntityManager em = persistentProvider.getEntityManager();
-		TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Used", MailToken.class);
-		q.setParameter("usedDateFrom", usedDateFrom);
-		q.setParameter("usedDateTill", usedDateTill);
-		return q.getResultList();
+		return tokenStore.findUsed(usedDateFrom, usedDateTill);
+	}
+
+	/**
+	 * Returns all tokens whose expiry date is till <code>expiryDateTill</code> as a stream, ordered by expiry date. Unlike
+	 * {@link #getAllExpired(Date)}, the tokens are read in pages of {@link MailerConfig#getStreamPageSize()} while the stream is consumed, so the
+	 * memory use does not depend on the number of tokens. Tokens are detached.
+	 * 
+	 * @param expiryDateTill
+	 *            timestamp.
+	 * @return stream of token objects.
+	 */
+	public Stream<MailToken> streamExpired(final Date expiryDateTill) {
+		Util.assertNotNull(expiryDateTill, "expiryDateTill");
+		return PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				return tokenStore.findExpiredPage(expiryDateTill, after, limit);
+			}
+		}, mailConfig.getStreamPageSize());
+	}
+
+	/**
+	 * Returns all used tokens as a stream, ordered by token. See {@link #streamExpired(Date)}.
+	 * 
+	 * @return stream of token objects.
+	 */
+	public Stream<MailToken> streamUsed() {
+		return PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				return tokenStore.findUsedPage(null, null, after, limit);
+			}
+		}, mailConfig.getStreamPageSize());
+	}
+
+	/**
+	 * Returns the tokens used between <code>usedDateFrom</code> and <code>usedDateTill</code> as a stream, ordered by used date. See
+	 * {@link #streamExpired(Date)}.
+	 * 
+	 * @param usedDateFrom
+	 *            start timestamp.
+	 * @param usedDateTill
+	 *            end timestamp.
+	 * @return stream of token objects.
+	 */
+	public Stream<MailToken> streamUsed(final Date usedDateFrom, final Date usedDateTill) {
+		Util.assertNotNull(usedDateFrom, "usedDateFrom");
+		Util.assertNotNull(usedDateTill, "usedDateTill");
+		return PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				return tokenStore.findUsedPage(usedDateFrom, usedDateTill, after, limit);
+			}
+		}, mailConfig.getStreamPageSize());
+	}
+
+	/**
+	 * Returns one page of the tokens whose expiry date is till <code>expiryDateTill</code>, ordered by expiry date and token. The next page is
+	 * requested with the last token of the previous page, which stays correct while tokens are added or deleted in between.
+	 * 
+	 * @param expiryDateTill
+	 *            timestamp.
+	 * @param after
+	 *            last token of the previous page, null for the first page.
+	 * @param limit
+	 *            maximum number of tokens returned.
+	 * @return list of token objects, less than <code>limit</code> for the last page.
+	 */
+	public List<MailToken> getExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		Util.assertNotNull(expiryDateTill, "expiryDateTill");
+		return tokenStore.findExpiredPage(expiryDateTill, after, limit);
+	}
+
+	/**
+	 * Returns one page of the tokens used between <code>usedDateFrom</code> and <code>usedDateTill</code>, ordered by used date and token. See
+	 * {@link #getExpiredPage(Date, MailToken, int)}.
+	 * 
+	 * @param usedDateFrom
+	 *            start timestamp.
+	 * @param usedDateTill
+	 *            end timestamp.
+	 * @param after
+	 *            last token of the previous page, null for the first page.
+	 * @param limit
+	 *            maximum number of tokens returned.
+	 * @return list of token objects, less than <code>limit</code> for the last page.
+	 */
+	public List<MailToken> getUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		Util.assertNotNull(usedDateFrom, "usedDateFrom");
+		Util.assertNotNull(usedDateTill, "usedDateTill");
+		return tokenStore.findUsedPage(usedDateFrom, usedDateTill, after, limit);
 	}
 }
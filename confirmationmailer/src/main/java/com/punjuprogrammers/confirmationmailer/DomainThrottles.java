@@ -0,0 +1,100 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One {@link Throttle} per recipient domain, with the limit of {@link MailerConfig#getDomainRateLimits()} for the domain or else
+ * {@link MailerConfig#getDomainRateLimit()}.
+ * 
+ * A domain gets its throttle with its first mail. Once there are many domains, idle throttles are removed again; an idle throttle is in the same
+ * state as a new one, so nothing is lost.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class DomainThrottles {
+	private static final int MAX_IDLE_DOMAINS = 10000;
+
+	private final RateLimit defaultLimit;
+	private final Map<String, RateLimit> domainLimits;
+	private final ConcurrentMap<String, Throttle> throttles = new ConcurrentHashMap<String, Throttle>();
+
+	DomainThrottles(MailerConfig mailConfig) {
+		this.defaultLimit = mailConfig.getDomainRateLimit();
+		this.domainLimits = mailConfig.getDomainRateLimits();
+	}
+
+	/**
+	 * Tells if any domain is limited.
+	 */
+	boolean isEnabled() {
+		return defaultLimit != null || !domainLimits.isEmpty();
+	}
+
+	/**
+	 * Reserves the slot of a mail to <code>mailId</code>.
+	 * 
+	 * @return nanoseconds to wait before sending.
+	 */
+	long reserve(String mailId, long now) {
+		Throttle throttle = throttle(domainOf(mailId), now);
+		return throttle == null ? 0 : throttle.reserve(now);
+	}
+
+	/**
+	 * Returns how long a mail to <code>mailId</code> would have to wait now.
+	 */
+	long delay(String mailId, long now) {
+		Throttle throttle = throttles.get(domainOf(mailId));
+		return throttle == null ? 0 : throttle.delay(now);
+	}
+
+	private Throttle throttle(String domain, long now) {
+		Throttle throttle = throttles.get(domain);
+		if (throttle == null) {
+			RateLimit limit = domainLimits.get(domain);
+			if (limit == null) {
+				limit = defaultLimit;
+			}
+			if (limit == null) {
+				return null;
+			}
+			if (throttles.size() >= MAX_IDLE_DOMAINS) {
+				removeIdle(now);
+			}
+			Throttle newThrottle = new Throttle(limit);
+			throttle = throttles.putIfAbsent(domain, newThrottle);
+			if (throttle == null) {
+				throttle = newThrottle;
+			}
+		}
+		return throttle;
+	}
+
+	private void removeIdle(long now) {
+		for (Iterator<Throttle> i = throttles.values().iterator(); i.hasNext();) {
+			if (i.next().isIdle(now)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the lower case part after the last '@', the whole address if there is none.
+	 */
+	static String domainOf(String mailId) {
+		return mailId.substring(mailId.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+	}
+}
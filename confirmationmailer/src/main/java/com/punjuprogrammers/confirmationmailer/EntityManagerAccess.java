@@ -0,0 +1,63 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Hands out the EntityManager for one persistence operation. If the {@link MailerPersistentProvider} returns an EntityManagerFactory, every
+ * operation gets its own EntityManager which is closed afterwards, so that operations can run in parallel threads. Otherwise the one EntityManager
+ * of the provider is used for all operations.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class EntityManagerAccess {
+	private final MailerPersistentProvider provider;
+	private final EntityManagerFactory factory;
+
+	EntityManagerAccess(MailerPersistentProvider provider) {
+		this.provider = provider;
+		this.factory = provider.getEntityManagerFactory();
+	}
+
+	/**
+	 * Returns the EntityManager for an operation. It must be given back with {@link #close(EntityManager)}.
+	 */
+	EntityManager open() {
+		if (factory == null) {
+			return provider.getEntityManager();
+		}
+		return factory.createEntityManager();
+	}
+
+	/**
+	 * Ends the operation. A transaction left open by a failure is rolled back.
+	 */
+	void close(EntityManager em) {
+		rollbackIfActive(em);
+		if (factory != null) {
+			em.close();
+		}
+	}
+
+	/**
+	 * Tells if one EntityManager is shared by all operations. Entities can then stay in its persistence context after an operation.
+	 */
+	boolean isShared() {
+		return factory == null;
+	}
+
+	static void rollbackIfActive(EntityManager em) {
+		if (em.getTransaction().isActive()) {
+			em.getTransaction().rollback();
+		}
+	}
+}
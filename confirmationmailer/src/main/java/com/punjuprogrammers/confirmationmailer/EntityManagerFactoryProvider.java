@@ -0,0 +1,48 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.punjuprogrammers.confirmationmailer.utils.Util;
+
+/**
+ * {@link MailerPersistentProvider} for multi-threaded use. {@link ConfirmationMailer} creates its own EntityManager from the factory for every
+ * operation, therefore no external synchronization is needed.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class EntityManagerFactoryProvider implements MailerPersistentProvider {
+	private EntityManagerFactory entityManagerFactory;
+
+	/**
+	 * Default constructor.
+	 * 
+	 * @param entityManagerFactory
+	 *            a non-null factory of the persistence unit containing the {@link MailToken} entity.
+	 */
+	public EntityManagerFactoryProvider(EntityManagerFactory entityManagerFactory) {
+		Util.assertNotNull(entityManagerFactory, "entityManagerFactory");
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	/**
+	 * Returns a new EntityManager which must be closed by the caller. It is not used by {@link ConfirmationMailer}.
+	 */
+	public EntityManager getEntityManager() {
+		return entityManagerFactory.createEntityManager();
+	}
+
+	@Override
+	public EntityManagerFactory getEntityManagerFactory() {
+		return entityManagerFactory;
+	}
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.punjuprogrammers.confirmationmailer.utils.BloomFilter;
+
+/**
+ * {@link BloomFilter} of the issued tokens in front of another {@link TokenStore}. A token which is definitely not in the filter is reported as
+ * not existing without a database lookup.
+ *
+ * The filter is built from the table in the background when {@link #start()} is called and rebuilt every
+ * {@link MailerConfig#getTokenFilterRebuildMillis()}, which also drops the tokens deleted since. Until the first build is complete every lookup
+ * goes to the database. Tokens saved while a build is running are added to both the old and the new filter. A save holds the read lock of
+ * <code>saveLock</code> until it is committed, and the build takes the write lock to publish the new filter, so that every token is either
+ * committed before the table is read or added to the new filter.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class FilteringTokenStore implements TokenStore {
+	private final TokenStore store;
+	private final MailerConfig mailConfig;
+	private volatile BloomFilter filter;
+	private volatile BloomFilter building;
+	private final ReadWriteLock saveLock = new ReentrantReadWriteLock();
+	private ScheduledExecutorService scheduler;
+
+	FilteringTokenStore(TokenStore store, MailerConfig mailConfig) {
+		this.store = store;
+		this.mailConfig = mailConfig;
+	}
+
+	/**
+	 * Builds the filter in the background and schedules the rebuilds.
+	 */
+	void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "confirmationmailer-tokenfilter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Runnable rebuild = new Runnable() {
+			public void run() {
+				try {
+					rebuild();
+				} catch (RuntimeException e) {
+					// database not reachable, the current filter stays in use until the next rebuild
+				}
+			}
+		};
+		long rebuildMillis = mailConfig.getTokenFilterRebuildMillis();
+		if (rebuildMillis > 0) {
+			scheduler.scheduleWithFixedDelay(rebuild, 0, rebuildMillis, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler.execute(rebuild);
+		}
+	}
+
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads all token ids into a new filter and replaces the current filter with it.
+	 */
+	void rebuild() {
+		final BloomFilter newFilter = new BloomFilter(mailConfig.getTokenFilterExpectedTokens(), mailConfig.getTokenFilterFalsePositiveRate());
+		saveLock.writeLock().lock();
+		try {
+			building = newFilter;
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+		try {
+			store.forEachTokenPage(new Consumer<List<String>>() {
+				public void accept(List<String> tokens) {
+					for (String token : tokens) {
+						newFilter.put(token);
+					}
+				}
+			});
+			filter = newFilter;
+		} finally {
+			building = null;
+		}
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return store.newToken(expiryDate);
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		saveLock.readLock().lock();
+		try {
+			add(mailToken.getToken());
+			store.save(mailToken, mail);
+		} finally {
+			saveLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		saveLock.readLock().lock();
+		try {
+			for (MailToken mailToken : mailTokens) {
+				add(mailToken.getToken());
+			}
+			store.saveAll(mailTokens, mails);
+		} finally {
+			saveLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		return isUnknown(token) ? null : store.find(token);
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		return isUnknown(token) ? null : store.markUsed(token, now);
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		return isUnknown(token) ? null : store.deleteValid(token, now);
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		return isUnknown(token) ? null : store.delete(token);
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		return store.deleteAll(tokens);
+	}
+
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		return store.deleteExpired(expiryDateTill, limit);
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		return store.deleteUsed(limit);
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		return store.findExpired(expiryDateTill);
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		return store.findUsed();
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		return store.findUsed(usedDateFrom, usedDateTill);
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		return store.findExpiredPage(expiryDateTill, after, limit);
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		return store.findUsedPage(usedDateFrom, usedDateTill, after, limit);
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		return store.saveUse(use);
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		return store.findUse(id);
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		return store.deleteExpiredUses(expiryDateTill, limit);
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		store.forEachTokenPage(action);
+	}
+
+	@Override
+	public long count() {
+		return store.count();
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		return store.findLive(mailId, mailType, expiryAfter);
+	}
+
+	/**
+	 * Adds the token before it is saved, so that a lookup can never see a saved token which is missing in the filter. The filter being built is
+	 * read first: once it is published as the current filter, <code>building</code> is cleared only after the swap.
+	 */
+	private void add(String token) {
+		BloomFilter next = building;
+		BloomFilter current = filter;
+		if (next != null) {
+			next.put(token);
+		}
+		if (current != null && current != next) {
+			current.put(token);
+		}
+	}
+
+	private boolean isUnknown(String token) {
+		BloomFilter current = filter;
+		return current != null && !current.mightContain(token);
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+/**
+ * Hands out the JDBC connection for one persistence operation, the counterpart of {@link EntityManagerAccess} for a {@link DataSource}. The
+ * connection is in manual commit mode. Failures are thrown as {@link PersistenceException}, as they are by JPA, so that the callers handle both
+ * stores alike.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class JdbcAccess {
+	private final DataSource dataSource;
+
+	JdbcAccess(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Returns the connection for an operation. It must be given back with {@link #close(Connection)}.
+	 */
+	Connection open() {
+		try {
+			Connection connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+			return connection;
+		} catch (SQLException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Ends the operation. A transaction left open by a failure is rolled back.
+	 */
+	static void close(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			// connection broken, closing is all that is left
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// nothing to clean up
+		}
+	}
+
+	static PersistenceException failure(SQLException e) {
+		return new PersistenceException(e.getMessage(), e);
+	}
+
+	static Timestamp timestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+
+	static Date date(Timestamp timestamp) {
+		return timestamp == null ? null : new Date(timestamp.getTime());
+	}
+
+	/**
+	 * Creates the tables of {@link MailToken}, {@link MailOutbox} and {@link MailTokenUse} with their indexes, if they do not exist. The columns
+	 * are those of the JPA mapping, so that the JDBC and the JPA store can work on the same tables.
+	 */
+	void createTables() {
+		Connection connection = open();
+		try {
+			createTable(connection, "MAIL_TOKEN", "CREATE TABLE MAIL_TOKEN (TOKEN VARCHAR(255) NOT NULL PRIMARY KEY, MAIL_TYPE VARCHAR(255) NOT NULL,"
+					+ " MAIL_ID VARCHAR(255) NOT NULL, USER_DATA VARCHAR(255), EXPIRY_DATE TIMESTAMP NOT NULL, STATUS VARCHAR(255), USED_DATE TIMESTAMP)",
+					"CREATE INDEX idx_expiry_date ON MAIL_TOKEN (EXPIRY_DATE)", "CREATE INDEX idx_used_date ON MAIL_TOKEN (USED_DATE)",
+					"CREATE INDEX idx_mail_id_type ON MAIL_TOKEN (MAIL_ID, MAIL_TYPE)");
+			createTable(connection, "MAIL_OUTBOX", "CREATE TABLE MAIL_OUTBOX (TOKEN VARCHAR(255) NOT NULL PRIMARY KEY, MAIL_ID VARCHAR(255) NOT NULL,"
+					+ " MAIL_TYPE VARCHAR(255) NOT NULL, FROM_EMAIL VARCHAR(255) NOT NULL, SUBJECT VARCHAR(1000) NOT NULL, BODY CLOB NOT NULL,"
+					+ " CREATED_DATE TIMESTAMP NOT NULL, NEXT_ATTEMPT_DATE TIMESTAMP NOT NULL, ATTEMPTS INTEGER NOT NULL, STATUS VARCHAR(255),"
+					+ " LAST_ERROR VARCHAR(1000), LEASE_OWNER VARCHAR(255), LEASE_UNTIL TIMESTAMP)",
+					"CREATE INDEX idx_outbox_next_attempt ON MAIL_OUTBOX (NEXT_ATTEMPT_DATE)",
+					"CREATE INDEX idx_outbox_lease_owner ON MAIL_OUTBOX (LEASE_OWNER)");
+			createTable(connection, "MAIL_TOKEN_USE", "CREATE TABLE MAIL_TOKEN_USE (ID VARCHAR(32) NOT NULL PRIMARY KEY,"
+					+ " USED_DATE TIMESTAMP NOT NULL, EXPIRY_DATE TIMESTAMP NOT NULL)",
+					"CREATE INDEX idx_token_use_expiry_date ON MAIL_TOKEN_USE (EXPIRY_DATE)");
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	private static void createTable(Connection connection, String table, String... statements) throws SQLException {
+		if (exists(connection.getMetaData(), table)) {
+			return;
+		}
+		Statement statement = connection.createStatement();
+		try {
+			for (String sql : statements) {
+				statement.executeUpdate(sql);
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			// created by another node in the meantime
+			connection.rollback();
+			if (!exists(connection.getMetaData(), table)) {
+				throw e;
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Looks the table up as given and in the case the database stores unquoted names in.
+	 */
+	private static boolean exists(DatabaseMetaData metaData, String table) throws SQLException {
+		for (String name : new String[] { table, table.toLowerCase() }) {
+			ResultSet tables = metaData.getTables(null, null, name, new String[] { "TABLE" });
+			try {
+				if (tables.next()) {
+					return true;
+				}
+			} finally {
+				tables.close();
+			}
+		}
+		return false;
+	}
+}
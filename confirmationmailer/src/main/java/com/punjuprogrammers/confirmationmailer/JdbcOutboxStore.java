@@ -0,0 +1,252 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Plain JDBC persistence of the {@link MailOutbox}, the counterpart of {@link JpaOutboxStore} for {@link JdbcTokenStore}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class JdbcOutboxStore implements OutboxStore {
+	private static final String DUE = "SELECT TOKEN FROM MAIL_OUTBOX WHERE STATUS IS NULL AND NEXT_ATTEMPT_DATE <= ?"
+			+ " AND (LEASE_UNTIL IS NULL OR LEASE_UNTIL < ?) ORDER BY NEXT_ATTEMPT_DATE";
+	private static final String CLAIM = "UPDATE MAIL_OUTBOX SET LEASE_OWNER = ?, LEASE_UNTIL = ? WHERE TOKEN = ? AND STATUS IS NULL"
+			+ " AND (LEASE_UNTIL IS NULL OR LEASE_UNTIL < ?)";
+	private static final String CLAIMED = "SELECT TOKEN, MAIL_ID, MAIL_TYPE, FROM_EMAIL, SUBJECT, BODY, CREATED_DATE, NEXT_ATTEMPT_DATE,"
+			+ " ATTEMPTS, STATUS, LAST_ERROR, LEASE_OWNER, LEASE_UNTIL FROM MAIL_OUTBOX WHERE LEASE_OWNER = ?";
+	private static final String DELETE = "DELETE FROM MAIL_OUTBOX WHERE TOKEN = ? AND LEASE_OWNER = ?";
+	private static final String UPDATE = "UPDATE MAIL_OUTBOX SET NEXT_ATTEMPT_DATE = ?, ATTEMPTS = ?, STATUS = ?, LAST_ERROR = ?, LEASE_OWNER = NULL,"
+			+ " LEASE_UNTIL = NULL WHERE TOKEN = ? AND LEASE_OWNER = ?";
+	private static final String RENEW = "UPDATE MAIL_OUTBOX SET LEASE_UNTIL = ? WHERE LEASE_OWNER = ?";
+	private static final String COUNT_PENDING = "SELECT COUNT(*) FROM MAIL_OUTBOX WHERE STATUS IS NULL";
+	private static final String FAILED = "SELECT TOKEN, MAIL_ID, MAIL_TYPE, FROM_EMAIL, SUBJECT, BODY, CREATED_DATE, NEXT_ATTEMPT_DATE,"
+			+ " ATTEMPTS, STATUS, LAST_ERROR, LEASE_OWNER, LEASE_UNTIL FROM MAIL_OUTBOX WHERE STATUS = ? ORDER BY CREATED_DATE, TOKEN";
+	private static final String DELETE_FAILED = "DELETE FROM MAIL_OUTBOX WHERE STATUS = ? AND CREATED_DATE <= ?";
+
+	private final JdbcAccess jdbcAccess;
+
+	JdbcOutboxStore(JdbcAccess jdbcAccess) {
+		this.jdbcAccess = jdbcAccess;
+	}
+
+	@Override
+	public List<MailOutbox> claim(Date now, Date leaseUntil, String leaseOwner, int limit) {
+		Connection connection = jdbcAccess.open();
+		try {
+			Timestamp nowTimestamp = JdbcAccess.timestamp(now);
+			List<String> tokens = new ArrayList<String>();
+			PreparedStatement due = connection.prepareStatement(DUE);
+			try {
+				due.setTimestamp(1, nowTimestamp);
+				due.setTimestamp(2, nowTimestamp);
+				due.setMaxRows(limit);
+				due.setFetchSize(limit);
+				ResultSet rows = due.executeQuery();
+				while (rows.next()) {
+					tokens.add(rows.getString(1));
+				}
+			} finally {
+				due.close();
+			}
+			if (tokens.isEmpty()) {
+				return Collections.emptyList();
+			}
+
+			PreparedStatement claim = connection.prepareStatement(CLAIM);
+			try {
+				for (String token : tokens) {
+					claim.setString(1, leaseOwner);
+					claim.setTimestamp(2, JdbcAccess.timestamp(leaseUntil));
+					claim.setString(3, token);
+					claim.setTimestamp(4, nowTimestamp);
+					claim.addBatch();
+				}
+				claim.executeBatch();
+			} finally {
+				claim.close();
+			}
+			connection.commit();
+
+			List<MailOutbox> mails = new ArrayList<MailOutbox>(tokens.size());
+			PreparedStatement claimed = connection.prepareStatement(CLAIMED);
+			try {
+				claimed.setString(1, leaseOwner);
+				ResultSet rows = claimed.executeQuery();
+				while (rows.next()) {
+					mails.add(toMailOutbox(rows));
+				}
+			} finally {
+				claimed.close();
+			}
+			return mails;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public boolean delete(String token, String leaseOwner) {
+		Connection connection = jdbcAccess.open();
+		try {
+			int rows;
+			PreparedStatement delete = connection.prepareStatement(DELETE);
+			try {
+				delete.setString(1, token);
+				delete.setString(2, leaseOwner);
+				rows = delete.executeUpdate();
+			} finally {
+				delete.close();
+			}
+			connection.commit();
+			return rows == 1;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public boolean update(MailOutbox mail, String leaseOwner) {
+		Connection connection = jdbcAccess.open();
+		try {
+			int rows;
+			PreparedStatement update = connection.prepareStatement(UPDATE);
+			try {
+				update.setTimestamp(1, JdbcAccess.timestamp(mail.getNextAttemptDate()));
+				update.setInt(2, mail.getAttempts());
+				update.setString(3, mail.getStatus());
+				update.setString(4, mail.getLastError());
+				update.setString(5, mail.getToken());
+				update.setString(6, leaseOwner);
+				rows = update.executeUpdate();
+			} finally {
+				update.close();
+			}
+			connection.commit();
+			return rows == 1;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public int renew(String leaseOwner, Date leaseUntil) {
+		Connection connection = jdbcAccess.open();
+		try {
+			int rows;
+			PreparedStatement renew = connection.prepareStatement(RENEW);
+			try {
+				renew.setTimestamp(1, JdbcAccess.timestamp(leaseUntil));
+				renew.setString(2, leaseOwner);
+				rows = renew.executeUpdate();
+			} finally {
+				renew.close();
+			}
+			connection.commit();
+			return rows;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public long countPending() {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement count = connection.prepareStatement(COUNT_PENDING);
+			try {
+				ResultSet rows = count.executeQuery();
+				rows.next();
+				return rows.getLong(1);
+			} finally {
+				count.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public List<MailOutbox> findFailed(int limit) {
+		Connection connection = jdbcAccess.open();
+		try {
+			List<MailOutbox> mails = new ArrayList<MailOutbox>();
+			PreparedStatement failed = connection.prepareStatement(FAILED);
+			try {
+				failed.setString(1, MailOutbox.STATUS_FAILED);
+				failed.setMaxRows(limit);
+				ResultSet rows = failed.executeQuery();
+				while (rows.next()) {
+					mails.add(toMailOutbox(rows));
+				}
+			} finally {
+				failed.close();
+			}
+			return mails;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public int deleteFailed(Date createdDateTill) {
+		Connection connection = jdbcAccess.open();
+		try {
+			int rows;
+			PreparedStatement delete = connection.prepareStatement(DELETE_FAILED);
+			try {
+				delete.setString(1, MailOutbox.STATUS_FAILED);
+				delete.setTimestamp(2, JdbcAccess.timestamp(createdDateTill));
+				rows = delete.executeUpdate();
+			} finally {
+				delete.close();
+			}
+			connection.commit();
+			return rows;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	private static MailOutbox toMailOutbox(ResultSet rows) throws SQLException {
+		MailOutbox mail = new MailOutbox(rows.getString(1), rows.getString(2), rows.getString(3), rows.getString(4), rows.getString(5),
+				rows.getString(6), JdbcAccess.date(rows.getTimestamp(7)));
+		mail.setNextAttemptDate(JdbcAccess.date(rows.getTimestamp(8)));
+		mail.setAttempts(rows.getInt(9));
+		mail.setStatus(rows.getString(10));
+		mail.setLastError(rows.getString(11));
+		mail.setLeaseOwner(rows.getString(12));
+		mail.setLeaseUntil(JdbcAccess.date(rows.getTimestamp(13)));
+		return mail;
+	}
+}
@@ -0,0 +1,557 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Plain JDBC persistence of {@link MailToken}, for use without a JPA provider. It works on the same tables as {@link JpaTokenStore}. Every
+ * method is one operation on its own connection from {@link JdbcAccess}. Whether a token can still be used or deleted is decided by one
+ * conditional update or delete statement, as in the JPA store.
+ * 
+ * All statements have constant texts, so that the statement cache of the connection pool or driver can reuse them across connections. Multiple
+ * rows are written with JDBC batches.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class JdbcTokenStore implements TokenStore {
+	private static final int SCAN_PAGE_SIZE = 1000;
+	private static final String COLUMNS = "TOKEN, MAIL_TYPE, MAIL_ID, USER_DATA, EXPIRY_DATE, STATUS, USED_DATE";
+	private static final String INSERT = "INSERT INTO MAIL_TOKEN (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String INSERT_OUTBOX = "INSERT INTO MAIL_OUTBOX (TOKEN, MAIL_ID, MAIL_TYPE, FROM_EMAIL, SUBJECT, BODY, CREATED_DATE,"
+			+ " NEXT_ATTEMPT_DATE, ATTEMPTS, STATUS, LAST_ERROR, LEASE_OWNER, LEASE_UNTIL) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SELECT = "SELECT " + COLUMNS + " FROM MAIL_TOKEN WHERE TOKEN = ?";
+	private static final String MARK_USED = "UPDATE MAIL_TOKEN SET STATUS = ?, USED_DATE = ? WHERE TOKEN = ? AND STATUS IS NULL AND EXPIRY_DATE > ?";
+	private static final String DELETE_VALID = "DELETE FROM MAIL_TOKEN WHERE TOKEN = ? AND STATUS IS NULL AND EXPIRY_DATE > ?";
+	private static final String DELETE = "DELETE FROM MAIL_TOKEN WHERE TOKEN = ?";
+	private static final String EXPIRED = "SELECT " + COLUMNS + " FROM MAIL_TOKEN WHERE EXPIRY_DATE <= ?";
+	private static final String EXPIRED_PAGE = EXPIRED + " ORDER BY EXPIRY_DATE, TOKEN";
+	private static final String EXPIRED_PAGE_AFTER = EXPIRED + " AND (EXPIRY_DATE > ? OR (EXPIRY_DATE = ? AND TOKEN > ?)) ORDER BY EXPIRY_DATE, TOKEN";
+	private static final String EXPIRED_IDS = "SELECT TOKEN FROM MAIL_TOKEN WHERE EXPIRY_DATE <= ?";
+	private static final String DELETE_EXPIRED = "DELETE FROM MAIL_TOKEN WHERE TOKEN = ? AND EXPIRY_DATE <= ?";
+	private static final String USED = "SELECT " + COLUMNS + " FROM MAIL_TOKEN WHERE STATUS <= ?";
+	private static final String USED_PAGE = USED + " ORDER BY TOKEN";
+	private static final String USED_PAGE_AFTER = USED + " AND TOKEN > ? ORDER BY TOKEN";
+	private static final String USED_IDS = "SELECT TOKEN FROM MAIL_TOKEN WHERE STATUS <= ?";
+	private static final String DELETE_USED = "DELETE FROM MAIL_TOKEN WHERE TOKEN = ? AND STATUS <= ?";
+	private static final String USED_BETWEEN = "SELECT " + COLUMNS + " FROM MAIL_TOKEN WHERE USED_DATE >= ? AND USED_DATE <= ?";
+	private static final String USED_BETWEEN_PAGE = USED_BETWEEN + " ORDER BY USED_DATE, TOKEN";
+	private static final String USED_BETWEEN_PAGE_AFTER = USED_BETWEEN + " AND (USED_DATE > ? OR (USED_DATE = ? AND TOKEN > ?)) ORDER BY USED_DATE, TOKEN";
+	private static final String COUNT = "SELECT COUNT(*) FROM MAIL_TOKEN";
+	private static final String LIVE = "SELECT " + COLUMNS + " FROM MAIL_TOKEN WHERE MAIL_ID = ? AND MAIL_TYPE = ? AND STATUS IS NULL"
+			+ " AND EXPIRY_DATE > ? ORDER BY EXPIRY_DATE DESC";
+	private static final String TOKENS = "SELECT TOKEN FROM MAIL_TOKEN ORDER BY TOKEN";
+	private static final String TOKENS_AFTER = "SELECT TOKEN FROM MAIL_TOKEN WHERE TOKEN > ? ORDER BY TOKEN";
+	private static final String INSERT_USE = "INSERT INTO MAIL_TOKEN_USE (ID, USED_DATE, EXPIRY_DATE) VALUES (?, ?, ?)";
+	private static final String SELECT_USE = "SELECT ID, USED_DATE, EXPIRY_DATE FROM MAIL_TOKEN_USE WHERE ID = ?";
+	private static final String EXPIRED_USE_IDS = "SELECT ID FROM MAIL_TOKEN_USE WHERE EXPIRY_DATE <= ?";
+	private static final String DELETE_EXPIRED_USE = "DELETE FROM MAIL_TOKEN_USE WHERE ID = ? AND EXPIRY_DATE <= ?";
+
+	private final JdbcAccess jdbcAccess;
+	private final TokenGenerator tokenGenerator;
+
+	JdbcTokenStore(JdbcAccess jdbcAccess, TokenGenerator tokenGenerator) {
+		this.jdbcAccess = jdbcAccess;
+		this.tokenGenerator = tokenGenerator;
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return TokenEncoding.encode(tokenGenerator.generate());
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement insert = connection.prepareStatement(INSERT);
+			try {
+				bind(insert, mailToken);
+				insert.executeUpdate();
+			} finally {
+				insert.close();
+			}
+			if (mail != null) {
+				PreparedStatement insertOutbox = connection.prepareStatement(INSERT_OUTBOX);
+				try {
+					bind(insertOutbox, mail);
+					insertOutbox.executeUpdate();
+				} finally {
+					insertOutbox.close();
+				}
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement insert = connection.prepareStatement(INSERT);
+			try {
+				for (MailToken mailToken : mailTokens) {
+					bind(insert, mailToken);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+			if (mails != null && !mails.isEmpty()) {
+				PreparedStatement insertOutbox = connection.prepareStatement(INSERT_OUTBOX);
+				try {
+					for (MailOutbox mail : mails) {
+						bind(insertOutbox, mail);
+						insertOutbox.addBatch();
+					}
+					insertOutbox.executeBatch();
+				} finally {
+					insertOutbox.close();
+				}
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		Connection connection = jdbcAccess.open();
+		try {
+			return find(connection, token);
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	/**
+	 * Marks the token first and reads it in the same transaction only if the update succeeded.
+	 */
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement update = connection.prepareStatement(MARK_USED);
+			try {
+				update.setString(1, ConfirmationMailer.TOKEN_STATUS_USED);
+				update.setTimestamp(2, JdbcAccess.timestamp(now));
+				update.setString(3, token);
+				update.setTimestamp(4, JdbcAccess.timestamp(now));
+				if (update.executeUpdate() == 0) {
+					return null;
+				}
+			} finally {
+				update.close();
+			}
+			MailToken mailToken = find(connection, token);
+			connection.commit();
+			return mailToken;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		Connection connection = jdbcAccess.open();
+		try {
+			// a deleted row cannot be read back, the details are read first
+			MailToken mailToken = find(connection, token);
+			if (mailToken == null || !ConfirmationMailer.isValid(mailToken, now)) {
+				return null;
+			}
+			PreparedStatement delete = connection.prepareStatement(DELETE_VALID);
+			try {
+				delete.setString(1, token);
+				delete.setTimestamp(2, JdbcAccess.timestamp(now));
+				if (delete.executeUpdate() == 0) {
+					return null;
+				}
+			} finally {
+				delete.close();
+			}
+			connection.commit();
+			return mailToken;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		Connection connection = jdbcAccess.open();
+		try {
+			MailToken mailToken = find(connection, token);
+			if (mailToken == null) {
+				return null;
+			}
+			PreparedStatement delete = connection.prepareStatement(DELETE);
+			try {
+				delete.setString(1, token);
+				delete.executeUpdate();
+			} finally {
+				delete.close();
+			}
+			connection.commit();
+			return mailToken;
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement delete = connection.prepareStatement(DELETE);
+			try {
+				for (String token : tokens) {
+					delete.setString(1, token);
+					delete.addBatch();
+				}
+				int count = sum(delete.executeBatch());
+				connection.commit();
+				return count;
+			} finally {
+				delete.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		return deleteChunk(EXPIRED_IDS, DELETE_EXPIRED, JdbcAccess.timestamp(expiryDateTill), limit);
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		return deleteChunk(USED_IDS, DELETE_USED, ConfirmationMailer.TOKEN_STATUS_USED, limit);
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		return query(EXPIRED, 0, JdbcAccess.timestamp(expiryDateTill));
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		return query(USED, 0, ConfirmationMailer.TOKEN_STATUS_USED);
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		return query(USED_BETWEEN, 0, JdbcAccess.timestamp(usedDateFrom), JdbcAccess.timestamp(usedDateTill));
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		if (after == null) {
+			return query(EXPIRED_PAGE, limit, JdbcAccess.timestamp(expiryDateTill));
+		}
+		return query(EXPIRED_PAGE_AFTER, limit, JdbcAccess.timestamp(expiryDateTill), JdbcAccess.timestamp(after.getExpiryDate()),
+				JdbcAccess.timestamp(after.getExpiryDate()), after.getToken());
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		if (usedDateFrom == null) {
+			if (after == null) {
+				return query(USED_PAGE, limit, ConfirmationMailer.TOKEN_STATUS_USED);
+			}
+			return query(USED_PAGE_AFTER, limit, ConfirmationMailer.TOKEN_STATUS_USED, after.getToken());
+		}
+		if (after == null) {
+			return query(USED_BETWEEN_PAGE, limit, JdbcAccess.timestamp(usedDateFrom), JdbcAccess.timestamp(usedDateTill));
+		}
+		return query(USED_BETWEEN_PAGE_AFTER, limit, JdbcAccess.timestamp(usedDateFrom), JdbcAccess.timestamp(usedDateTill),
+				JdbcAccess.timestamp(after.getUsedDate()), JdbcAccess.timestamp(after.getUsedDate()), after.getToken());
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement insert = connection.prepareStatement(INSERT_USE);
+			try {
+				insert.setString(1, use.getId());
+				insert.setTimestamp(2, JdbcAccess.timestamp(use.getUsedDate()));
+				insert.setTimestamp(3, JdbcAccess.timestamp(use.getExpiryDate()));
+				insert.executeUpdate();
+				connection.commit();
+				return true;
+			} catch (SQLException e) {
+				// primary key violation if the token was used before
+				connection.rollback();
+				if (findUse(connection, use.getId()) != null) {
+					return false;
+				}
+				throw e;
+			} finally {
+				insert.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		Connection connection = jdbcAccess.open();
+		try {
+			return findUse(connection, id);
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		return deleteChunk(EXPIRED_USE_IDS, DELETE_EXPIRED_USE, JdbcAccess.timestamp(expiryDateTill), limit);
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		List<MailToken> rows = query(LIVE, 1, mailId, mailType, JdbcAccess.timestamp(expiryAfter));
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+	@Override
+	public long count() {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement count = connection.prepareStatement(COUNT);
+			try {
+				ResultSet rows = count.executeQuery();
+				rows.next();
+				return rows.getLong(1);
+			} finally {
+				count.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		String last = null;
+		while (true) {
+			List<String> tokens = new ArrayList<String>(SCAN_PAGE_SIZE);
+			Connection connection = jdbcAccess.open();
+			try {
+				PreparedStatement select = connection.prepareStatement(last == null ? TOKENS : TOKENS_AFTER);
+				try {
+					if (last != null) {
+						select.setString(1, last);
+					}
+					select.setMaxRows(SCAN_PAGE_SIZE);
+					select.setFetchSize(SCAN_PAGE_SIZE);
+					ResultSet rows = select.executeQuery();
+					while (rows.next()) {
+						tokens.add(rows.getString(1));
+					}
+				} finally {
+					select.close();
+				}
+			} catch (SQLException e) {
+				throw JdbcAccess.failure(e);
+			} finally {
+				JdbcAccess.close(connection);
+			}
+			action.accept(tokens);
+			if (tokens.size() < SCAN_PAGE_SIZE) {
+				return;
+			}
+			last = tokens.get(tokens.size() - 1);
+		}
+	}
+
+	/**
+	 * Selects at most <code>limit</code> ids with <code>idQuery</code> and deletes them in one batch of <code>deleteQuery</code>, which repeats
+	 * the condition, so that a row changed since the select is kept.
+	 */
+	private int deleteChunk(String idQuery, String deleteQuery, Object value, int limit) {
+		Connection connection = jdbcAccess.open();
+		try {
+			List<String> ids = new ArrayList<String>();
+			PreparedStatement select = connection.prepareStatement(idQuery);
+			try {
+				select.setObject(1, value);
+				select.setMaxRows(limit);
+				select.setFetchSize(limit);
+				ResultSet rows = select.executeQuery();
+				while (rows.next()) {
+					ids.add(rows.getString(1));
+				}
+			} finally {
+				select.close();
+			}
+			if (ids.isEmpty()) {
+				return 0;
+			}
+			PreparedStatement delete = connection.prepareStatement(deleteQuery);
+			try {
+				for (String id : ids) {
+					delete.setString(1, id);
+					delete.setObject(2, value);
+					delete.addBatch();
+				}
+				int count = sum(delete.executeBatch());
+				connection.commit();
+				return count;
+			} finally {
+				delete.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	/**
+	 * Runs a token query.
+	 * 
+	 * @param limit
+	 *            maximum number of rows, fetched in one round trip, 0 for all rows.
+	 */
+	private List<MailToken> query(String sql, int limit, Object... values) {
+		Connection connection = jdbcAccess.open();
+		try {
+			PreparedStatement select = connection.prepareStatement(sql);
+			try {
+				for (int i = 0; i < values.length; i++) {
+					select.setObject(i + 1, values[i]);
+				}
+				if (limit > 0) {
+					select.setMaxRows(limit);
+					select.setFetchSize(limit);
+				}
+				List<MailToken> result = new ArrayList<MailToken>();
+				ResultSet rows = select.executeQuery();
+				while (rows.next()) {
+					result.add(toMailToken(rows));
+				}
+				return result;
+			} finally {
+				select.close();
+			}
+		} catch (SQLException e) {
+			throw JdbcAccess.failure(e);
+		} finally {
+			JdbcAccess.close(connection);
+		}
+	}
+
+	private static MailToken find(Connection connection, String token) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(SELECT);
+		try {
+			select.setString(1, token);
+			ResultSet rows = select.executeQuery();
+			return rows.next() ? toMailToken(rows) : null;
+		} finally {
+			select.close();
+		}
+	}
+
+	private static MailTokenUse findUse(Connection connection, String id) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(SELECT_USE);
+		try {
+			select.setString(1, id);
+			ResultSet rows = select.executeQuery();
+			if (!rows.next()) {
+				return null;
+			}
+			return new MailTokenUse(rows.getString(1), JdbcAccess.date(rows.getTimestamp(2)), JdbcAccess.date(rows.getTimestamp(3)));
+		} finally {
+			select.close();
+		}
+	}
+
+	private static MailToken toMailToken(ResultSet rows) throws SQLException {
+		MailToken mailToken = new MailToken(rows.getString(1), rows.getString(2), JdbcAccess.date(rows.getTimestamp(5)), rows.getString(3),
+				rows.getString(4));
+		mailToken.setStatus(rows.getString(6));
+		mailToken.setUsedDate(JdbcAccess.date(rows.getTimestamp(7)));
+		return mailToken;
+	}
+
+	private static void bind(PreparedStatement insert, MailToken mailToken) throws SQLException {
+		insert.setString(1, mailToken.getToken());
+		insert.setString(2, mailToken.getMailType());
+		insert.setString(3, mailToken.getMailId());
+		insert.setString(4, mailToken.getUserData());
+		insert.setTimestamp(5, JdbcAccess.timestamp(mailToken.getExpiryDate()));
+		insert.setString(6, mailToken.getStatus());
+		insert.setTimestamp(7, JdbcAccess.timestamp(mailToken.getUsedDate()));
+	}
+
+	private static void bind(PreparedStatement insert, MailOutbox mail) throws SQLException {
+		insert.setString(1, mail.getToken());
+		insert.setString(2, mail.getMailId());
+		insert.setString(3, mail.getMailType());
+		insert.setString(4, mail.getFromEmail());
+		insert.setString(5, mail.getSubject());
+		insert.setString(6, mail.getBody());
+		insert.setTimestamp(7, JdbcAccess.timestamp(mail.getCreatedDate()));
+		insert.setTimestamp(8, JdbcAccess.timestamp(mail.getNextAttemptDate()));
+		insert.setInt(9, mail.getAttempts());
+		insert.setString(10, mail.getStatus());
+		insert.setString(11, mail.getLastError());
+		insert.setString(12, mail.getLeaseOwner());
+		insert.setTimestamp(13, JdbcAccess.timestamp(mail.getLeaseUntil()));
+	}
+
+	/**
+	 * Adds up the update counts of a batch. A driver which does not report the count of a statement is counted as one row.
+	 */
+	private static int sum(int[] counts) {
+		int sum = 0;
+		for (int count : counts) {
+			sum += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+		}
+		return sum;
+	}
+}
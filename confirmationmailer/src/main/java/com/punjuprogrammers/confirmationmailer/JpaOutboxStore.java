@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+/**
+ * JPA persistence of the {@link MailOutbox}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class JpaOutboxStore implements OutboxStore {
+	private final EntityManagerAccess emAccess;
+
+	JpaOutboxStore(EntityManagerAccess emAccess) {
+		this.emAccess = emAccess;
+	}
+
+	@Override
+	public List<MailOutbox> claim(Date now, Date leaseUntil, String leaseOwner, int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<String> due = em.createNamedQuery("MailOutbox_Due", String.class);
+			due.setParameter("now", now);
+			due.setMaxResults(limit);
+			List<String> tokens = due.getResultList();
+			if (tokens.isEmpty()) {
+				return Collections.emptyList();
+			}
+
+			Query claim = em.createNamedQuery("MailOutbox_Claim");
+			claim.setParameter("leaseOwner", leaseOwner);
+			claim.setParameter("leaseUntil", leaseUntil);
+			claim.setParameter("tokens", tokens);
+			claim.setParameter("now", now);
+			em.getTransaction().begin();
+			claim.executeUpdate();
+			em.getTransaction().commit();
+			// bulk update bypasses the persistence context, claimed rows must be read fresh
+			em.clear();
+
+			TypedQuery<MailOutbox> claimed = em.createNamedQuery("MailOutbox_Claimed", MailOutbox.class);
+			claimed.setParameter("leaseOwner", leaseOwner);
+			List<MailOutbox> mails = claimed.getResultList();
+			for (MailOutbox mail : mails) {
+				em.detach(mail);
+			}
+			return mails;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public boolean delete(String token, String leaseOwner) {
+		EntityManager em = emAccess.open();
+		try {
+			Query delete = em.createNamedQuery("MailOutbox_Delete");
+			delete.setParameter("token", token);
+			delete.setParameter("leaseOwner", leaseOwner);
+			return executeUpdate(em, delete) == 1;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public boolean update(MailOutbox mail, String leaseOwner) {
+		EntityManager em = emAccess.open();
+		try {
+			Query update = em.createNamedQuery("MailOutbox_Update");
+			update.setParameter("nextAttemptDate", mail.getNextAttemptDate());
+			update.setParameter("attempts", mail.getAttempts());
+			update.setParameter("status", mail.getStatus());
+			update.setParameter("lastError", mail.getLastError());
+			update.setParameter("token", mail.getToken());
+			update.setParameter("leaseOwner", leaseOwner);
+			return executeUpdate(em, update) == 1;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public int renew(String leaseOwner, Date leaseUntil) {
+		EntityManager em = emAccess.open();
+		try {
+			Query renew = em.createNamedQuery("MailOutbox_Renew");
+			renew.setParameter("leaseUntil", leaseUntil);
+			renew.setParameter("leaseOwner", leaseOwner);
+			return executeUpdate(em, renew);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public long countPending() {
+		EntityManager em = emAccess.open();
+		try {
+			return em.createQuery("SELECT COUNT(m) FROM MailOutbox m WHERE m.status IS NULL", Long.class).getSingleResult();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public List<MailOutbox> findFailed(int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailOutbox> failed = em.createNamedQuery("MailOutbox_Failed", MailOutbox.class);
+			failed.setParameter("status", MailOutbox.STATUS_FAILED);
+			failed.setMaxResults(limit);
+			List<MailOutbox> mails = failed.getResultList();
+			for (MailOutbox mail : mails) {
+				em.detach(mail);
+			}
+			return mails;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public int deleteFailed(Date createdDateTill) {
+		EntityManager em = emAccess.open();
+		try {
+			Query delete = em.createNamedQuery("MailOutbox_DeleteFailed");
+			delete.setParameter("status", MailOutbox.STATUS_FAILED);
+			delete.setParameter("createdDateTill", createdDateTill);
+			return executeUpdate(em, delete);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	private static int executeUpdate(EntityManager em, Query query) {
+		em.getTransaction().begin();
+		int rows = query.executeUpdate();
+		em.getTransaction().commit();
+		return rows;
+	}
+}
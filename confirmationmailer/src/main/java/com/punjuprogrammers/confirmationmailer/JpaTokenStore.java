@@ -0,0 +1,439 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+/**
+ * JPA persistence of {@link MailToken}. Every method is one operation with its own EntityManager from {@link EntityManagerAccess}. Returned
+ * tokens are detached. Whether a token can still be used or deleted is decided by one conditional update or delete statement.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class JpaTokenStore implements TokenStore {
+	private static final int SCAN_PAGE_SIZE = 1000;
+	private static final String HINT_FETCH_SIZE = "org.hibernate.fetchSize";
+	private static final String HINT_READ_ONLY = "org.hibernate.readOnly";
+
+	private final EntityManagerAccess emAccess;
+	private final TokenGenerator tokenGenerator;
+
+	JpaTokenStore(EntityManagerAccess emAccess, TokenGenerator tokenGenerator) {
+		this.emAccess = emAccess;
+		this.tokenGenerator = tokenGenerator;
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return TokenEncoding.encode(tokenGenerator.generate());
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		EntityManager em = emAccess.open();
+		try {
+			em.getTransaction().begin();
+			em.persist(mailToken);
+			if (mail != null) {
+				em.persist(mail);
+			}
+			em.getTransaction().commit();
+			detach(em, mailToken);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		EntityManager em = emAccess.open();
+		try {
+			em.getTransaction().begin();
+			for (MailToken mailToken : mailTokens) {
+				em.persist(mailToken);
+			}
+			if (mails != null) {
+				for (MailOutbox mail : mails) {
+					em.persist(mail);
+				}
+			}
+			em.flush();
+			em.clear();
+			em.getTransaction().commit();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		EntityManager em = emAccess.open();
+		try {
+			MailToken mailToken = em.find(MailToken.class, token);
+			if (mailToken != null) {
+				detach(em, mailToken);
+			}
+			return mailToken;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		EntityManager em = emAccess.open();
+		try {
+			Query q = em.createNamedQuery("MailToken_MarkUsed");
+			q.setParameter("status", ConfirmationMailer.TOKEN_STATUS_USED);
+			q.setParameter("usedDate", now);
+			q.setParameter("token", token);
+			q.setParameter("now", now);
+			if (executeUpdate(em, q) == 0) {
+				return null;
+			}
+			MailToken mailToken = em.find(MailToken.class, token);
+			if (mailToken == null) {
+				// deleted right after it was marked
+				return null;
+			}
+			// an instance of a shared EntityManager may be older than the update
+			detach(em, mailToken);
+			mailToken.setStatus(ConfirmationMailer.TOKEN_STATUS_USED);
+			mailToken.setUsedDate(now);
+			return mailToken;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		EntityManager em = emAccess.open();
+		try {
+			// a deleted row cannot be read back, the details are read first
+			MailToken mailToken = em.find(MailToken.class, token);
+			if (mailToken == null) {
+				return null;
+			}
+			if (!ConfirmationMailer.isValid(mailToken, now)) {
+				detach(em, mailToken);
+				return null;
+			}
+			Query q = em.createNamedQuery("MailToken_DeleteValid");
+			q.setParameter("token", token);
+			q.setParameter("now", now);
+			int count = executeUpdate(em, q);
+			detach(em, mailToken);
+			return count == 1 ? mailToken : null;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		EntityManager em = emAccess.open();
+		try {
+			MailToken mailToken = em.find(MailToken.class, token);
+			if (mailToken != null) {
+				em.getTransaction().begin();
+				em.remove(mailToken);
+				em.getTransaction().commit();
+			}
+			return mailToken;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		EntityManager em = emAccess.open();
+		try {
+			Query q = em.createQuery("DELETE FROM MailToken m WHERE m.token IN :tokens");
+			q.setParameter("tokens", tokens);
+			return executeUpdate(em, q);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		return deleteChunk("SELECT m.token FROM MailToken m WHERE m.expiryDate <= :value",
+				"DELETE FROM MailToken m WHERE m.token IN :ids AND m.expiryDate <= :value", expiryDateTill, limit);
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		return deleteChunk("SELECT m.token FROM MailToken m WHERE m.status <= :value",
+				"DELETE FROM MailToken m WHERE m.token IN :ids AND m.status <= :value", ConfirmationMailer.TOKEN_STATUS_USED, limit);
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Expired", MailToken.class);
+			q.setParameter("expiryDateTill", expiryDateTill);
+			return q.getResultList();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Status", MailToken.class);
+			q.setParameter("status", ConfirmationMailer.TOKEN_STATUS_USED);
+			return q.getResultList();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Used", MailToken.class);
+			q.setParameter("usedDateFrom", usedDateFrom);
+			q.setParameter("usedDateTill", usedDateTill);
+			return q.getResultList();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q;
+			if (after == null) {
+				q = em.createQuery("FROM MailToken m WHERE m.expiryDate <= :expiryDateTill ORDER BY m.expiryDate, m.token", MailToken.class);
+			} else {
+				q = em.createQuery("FROM MailToken m WHERE m.expiryDate <= :expiryDateTill"
+						+ " AND (m.expiryDate > :lastDate OR (m.expiryDate = :lastDate AND m.token > :lastToken)) ORDER BY m.expiryDate, m.token",
+						MailToken.class);
+				q.setParameter("lastDate", after.getExpiryDate());
+				q.setParameter("lastToken", after.getToken());
+			}
+			q.setParameter("expiryDateTill", expiryDateTill);
+			return getPage(em, q, limit);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q;
+			if (usedDateFrom == null) {
+				if (after == null) {
+					q = em.createQuery("FROM MailToken m WHERE m.status <= :status ORDER BY m.token", MailToken.class);
+				} else {
+					q = em.createQuery("FROM MailToken m WHERE m.status <= :status AND m.token > :lastToken ORDER BY m.token", MailToken.class);
+					q.setParameter("lastToken", after.getToken());
+				}
+				q.setParameter("status", ConfirmationMailer.TOKEN_STATUS_USED);
+			} else {
+				if (after == null) {
+					q = em.createQuery("FROM MailToken m WHERE m.usedDate >= :usedDateFrom AND m.usedDate <= :usedDateTill ORDER BY m.usedDate, m.token",
+							MailToken.class);
+				} else {
+					q = em.createQuery("FROM MailToken m WHERE m.usedDate >= :usedDateFrom AND m.usedDate <= :usedDateTill"
+							+ " AND (m.usedDate > :lastDate OR (m.usedDate = :lastDate AND m.token > :lastToken)) ORDER BY m.usedDate, m.token",
+							MailToken.class);
+					q.setParameter("lastDate", after.getUsedDate());
+					q.setParameter("lastToken", after.getToken());
+				}
+				q.setParameter("usedDateFrom", usedDateFrom);
+				q.setParameter("usedDateTill", usedDateTill);
+			}
+			return getPage(em, q, limit);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	/**
+	 * Reads one page as read-only entities, fetching all rows of the page in one round trip, and detaches them.
+	 */
+	private List<MailToken> getPage(EntityManager em, TypedQuery<MailToken> q, int limit) {
+		q.setMaxResults(limit);
+		q.setHint(HINT_FETCH_SIZE, limit);
+		q.setHint(HINT_READ_ONLY, true);
+		List<MailToken> page = q.getResultList();
+		for (MailToken mailToken : page) {
+			detach(em, mailToken);
+		}
+		return page;
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		EntityManager em = emAccess.open();
+		try {
+			MailTokenUse existing = em.find(MailTokenUse.class, use.getId());
+			if (existing != null) {
+				// repeated use, the insert would fail anyway
+				detach(em, existing);
+				return false;
+			}
+			em.getTransaction().begin();
+			em.persist(use);
+			em.getTransaction().commit();
+			detach(em, use);
+			return true;
+		} catch (PersistenceException e) {
+			// primary key violation if the token was used concurrently
+			EntityManagerAccess.rollbackIfActive(em);
+			if (em.contains(use)) {
+				em.detach(use);
+			}
+			if (em.find(MailTokenUse.class, use.getId()) != null) {
+				return false;
+			}
+			throw e;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		EntityManager em = emAccess.open();
+		try {
+			MailTokenUse use = em.find(MailTokenUse.class, id);
+			if (use != null) {
+				detach(em, use);
+			}
+			return use;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		return deleteChunk("SELECT m.id FROM MailTokenUse m WHERE m.expiryDate <= :value",
+				"DELETE FROM MailTokenUse m WHERE m.id IN :ids AND m.expiryDate <= :value", expiryDateTill, limit);
+	}
+
+	@Override
+	public long count() {
+		EntityManager em = emAccess.open();
+		try {
+			return em.createQuery("SELECT COUNT(m) FROM MailToken m", Long.class).getSingleResult();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<MailToken> q = em.createNamedQuery("MailToken_Live", MailToken.class);
+			q.setParameter("mailId", mailId);
+			q.setParameter("mailType", mailType);
+			q.setParameter("expiryAfter", expiryAfter);
+			q.setMaxResults(1);
+			List<MailToken> rows = q.getResultList();
+			if (rows.isEmpty()) {
+				return null;
+			}
+			detach(em, rows.get(0));
+			return rows.get(0);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		String last = null;
+		while (true) {
+			List<String> tokens;
+			EntityManager em = emAccess.open();
+			try {
+				TypedQuery<String> q;
+				if (last == null) {
+					q = em.createQuery("SELECT m.token FROM MailToken m ORDER BY m.token", String.class);
+				} else {
+					q = em.createQuery("SELECT m.token FROM MailToken m WHERE m.token > :last ORDER BY m.token", String.class);
+					q.setParameter("last", last);
+				}
+				q.setMaxResults(SCAN_PAGE_SIZE);
+				tokens = q.getResultList();
+			} finally {
+				emAccess.close(em);
+			}
+			action.accept(tokens);
+			if (tokens.size() < SCAN_PAGE_SIZE) {
+				return;
+			}
+			last = tokens.get(tokens.size() - 1);
+		}
+	}
+
+	/**
+	 * Selects at most <code>limit</code> ids with <code>idQuery</code> and deletes them with <code>deleteQuery</code>. The delete repeats the
+	 * condition, so that a row changed since the select is kept. JPQL has no limit for a delete statement, and a delete by primary keys locks only
+	 * the selected rows.
+	 */
+	private int deleteChunk(String idQuery, String deleteQuery, Object value, int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			TypedQuery<String> select = em.createQuery(idQuery, String.class);
+			select.setParameter("value", value);
+			select.setMaxResults(limit);
+			List<String> ids = select.getResultList();
+			if (ids.isEmpty()) {
+				return 0;
+			}
+			Query delete = em.createQuery(deleteQuery);
+			delete.setParameter("ids", ids);
+			delete.setParameter("value", value);
+			return executeUpdate(em, delete);
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	private static int executeUpdate(EntityManager em, Query q) {
+		em.getTransaction().begin();
+		int count = q.executeUpdate();
+		em.getTransaction().commit();
+		return count;
+	}
+
+	/**
+	 * Removes the entity from a shared persistence context, so that a later read does not return an instance made stale by a bulk update.
+	 */
+	private void detach(EntityManager em, Object entity) {
+		if (emAccess.isShared()) {
+			em.detach(entity);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Limits the number of operations running at the same time on another {@link TokenStore} to {@link MailerConfig#getDatabaseConcurrency()}.
+ * Further callers wait in the order they came, without a timeout, instead of in the connection pool of the database; a virtual thread waiting
+ * here gives up its carrier thread. Streaming reads hold their permit until the stream is done, a scan of all tokens takes one per page.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class LimitingTokenStore implements TokenStore {
+	private final TokenStore store;
+	private final Semaphore permits;
+
+	LimitingTokenStore(TokenStore store, int maxConcurrency) {
+		this.store = store;
+		this.permits = new Semaphore(maxConcurrency, true);
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		// generated without the database
+		return store.newToken(expiryDate);
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		permits.acquireUninterruptibly();
+		try {
+			store.save(mailToken, mail);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		permits.acquireUninterruptibly();
+		try {
+			store.saveAll(mailTokens, mails);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.find(token);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.markUsed(token, now);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.deleteValid(token, now);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.delete(token);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.deleteAll(tokens);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.deleteExpired(expiryDateTill, limit);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.deleteUsed(limit);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findExpired(expiryDateTill);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findUsed();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findUsed(usedDateFrom, usedDateTill);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findExpiredPage(expiryDateTill, after, limit);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findUsedPage(usedDateFrom, usedDateTill, after, limit);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.saveUse(use);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findUse(id);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.deleteExpiredUses(expiryDateTill, limit);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void forEachTokenPage(final Consumer<List<String>> action) {
+		permits.acquireUninterruptibly();
+		try {
+			store.forEachTokenPage(new Consumer<List<String>>() {
+				public void accept(List<String> tokens) {
+					// the permit is given back while the caller works on the page, and taken again for the next one
+					permits.release();
+					try {
+						action.accept(tokens);
+					} finally {
+						permits.acquireUninterruptibly();
+					}
+				}
+			});
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long count() {
+		permits.acquireUninterruptibly();
+		try {
+			return store.count();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		permits.acquireUninterruptibly();
+		try {
+			return store.findLive(mailId, mailType, expiryAfter);
+		} finally {
+			permits.release();
+		}
+	}
+}
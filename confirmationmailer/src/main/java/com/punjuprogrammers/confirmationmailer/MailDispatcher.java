@@ -0,0 +1,237 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers asynchronously sent mails, either by a worker pool with a bounded queue or by a new thread per mail with a bounded number of mails
+ * in progress. The latter is meant for virtual threads, which are cheap enough to have one per mail blocked on SMTP or the database.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class MailDispatcher {
+	private static final long SHUTDOWN_WAIT_SECONDS = 30;
+	private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+	// null with a thread per mail
+	private final ThreadPoolExecutor executor;
+	// null with a worker pool
+	private final ThreadFactory taskThreads;
+	private final BackpressurePolicy policy;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private volatile boolean shutdown;
+
+	MailDispatcher(int workers, int queueCapacity, BackpressurePolicy policy) {
+		executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerThreadFactory(),
+				rejectedHandler(policy));
+		this.taskThreads = null;
+		this.policy = policy;
+		this.maxInFlight = 0;
+		this.inFlight = null;
+	}
+
+	/**
+	 * Creates a dispatcher which starts a thread per mail.
+	 * 
+	 * @param maxInFlight
+	 *            number of mails in progress, above it the policy applies.
+	 */
+	MailDispatcher(ThreadFactory taskThreads, int maxInFlight, BackpressurePolicy policy) {
+		this.executor = null;
+		this.taskThreads = taskThreads;
+		this.policy = policy;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Creates a dispatcher with a virtual thread per mail.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the JVM has no virtual threads.
+	 */
+	static MailDispatcher withVirtualThreads(int maxInFlight, BackpressurePolicy policy) {
+		if (VIRTUAL_THREADS == null) {
+			throw new IllegalStateException("Virtual threads need Java 21 or later");
+		}
+		return new MailDispatcher(VIRTUAL_THREADS, maxInFlight, policy);
+	}
+
+	static boolean isVirtualThreadsSupported() {
+		return VIRTUAL_THREADS != null;
+	}
+
+	/**
+	 * Queues the task.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the policy does not allow waiting or running in the caller thread.
+	 */
+	void execute(Runnable task) {
+		if (executor != null) {
+			executor.execute(task);
+			return;
+		}
+		if (shutdown) {
+			throw new RejectedExecutionException("Mail dispatcher is shut down");
+		}
+		if (!inFlight.tryAcquire()) {
+			switch (policy) {
+			case REJECT:
+				throw new RejectedExecutionException("Too many mails in progress");
+			case CALLER_RUNS:
+				task.run();
+				return;
+			default:
+				try {
+					inFlight.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for a mail to complete", e);
+				}
+			}
+		}
+		if (shutdown) {
+			// shut down while waiting for the permit, the shutdown may be waiting for it too
+			inFlight.release();
+			throw new RejectedExecutionException("Mail dispatcher is shut down");
+		}
+		try {
+			taskThreads.newThread(new Task(task)).start();
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		} catch (Error e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a worker, with a thread per mail the number of mails in progress.
+	 */
+	int getQueueDepth() {
+		if (executor == null) {
+			return maxInFlight - inFlight.availablePermits();
+		}
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting new tasks and waits for the queued ones to finish.
+	 */
+	void shutdown() {
+		try {
+			if (executor != null) {
+				executor.shutdown();
+				executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+			} else {
+				shutdown = true;
+				// all permits are back once the running mails are done
+				if (inFlight.tryAcquire(maxInFlight, SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+					inFlight.release(maxInFlight);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the factory of virtual threads, null before Java 21. It is looked up by reflection as the library is built for Java 8.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "confirmationmailer-sender-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			// Java 19 and 20 have them as preview only
+			return null;
+		}
+	}
+
+	/**
+	 * Gives back the permit of its mail when done.
+	 */
+	private class Task implements Runnable {
+		private final Runnable task;
+
+		private Task(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				inFlight.release();
+			}
+		}
+	}
+
+	private static RejectedExecutionHandler rejectedHandler(BackpressurePolicy policy) {
+		switch (policy) {
+		case REJECT:
+			return new ThreadPoolExecutor.AbortPolicy();
+		case CALLER_RUNS:
+			return new CallerRunsPolicy();
+		default:
+			return new BlockPolicy();
+		}
+	}
+
+	private static class CallerRunsPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Mail dispatcher is shut down");
+			}
+			task.run();
+		}
+	}
+
+	private static class BlockPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Mail dispatcher is shut down");
+			}
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for space in mail queue", e);
+			}
+			// shut down while waiting for space, the workers may be gone already; a task taken by a worker is run
+			if (executor.isShutdown() && executor.remove(task)) {
+				throw new RejectedExecutionException("Mail dispatcher is shut down");
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "confirmationmailer-sender-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+/**
+ * A rendered mail waiting for delivery. It is saved in the same transaction as its {@link MailToken} and removed once the mail is sent.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@Entity
+@Table(name="MAIL_OUTBOX", indexes={@Index(name="idx_outbox_next_attempt",columnList="NEXT_ATTEMPT_DATE"),@Index(name="idx_outbox_lease_owner",columnList="LEASE_OWNER")})
+@NamedQueries(value={
+		@NamedQuery(name="MailOutbox_Due",query="SELECT m.token FROM MailOutbox m WHERE m.status IS NULL AND m.nextAttemptDate <= :now AND (m.leaseUntil IS NULL OR m.leaseUntil < :now) ORDER BY m.nextAttemptDate"),
+		@NamedQuery(name="MailOutbox_Claim",query="UPDATE MailOutbox m SET m.leaseOwner = :leaseOwner, m.leaseUntil = :leaseUntil WHERE m.token IN :tokens AND m.status IS NULL AND (m.leaseUntil IS NULL OR m.leaseUntil < :now)"),
+		@NamedQuery(name="MailOutbox_Claimed",query="FROM MailOutbox m WHERE m.leaseOwner = :leaseOwner"),
+		@NamedQuery(name="MailOutbox_Delete",query="DELETE FROM MailOutbox m WHERE m.token = :token AND m.leaseOwner = :leaseOwner"),
+		@NamedQuery(name="MailOutbox_Update",query="UPDATE MailOutbox m SET m.nextAttemptDate = :nextAttemptDate, m.attempts = :attempts, m.status = :status, m.lastError = :lastError, m.leaseOwner = NULL, m.leaseUntil = NULL WHERE m.token = :token AND m.leaseOwner = :leaseOwner"),
+		@NamedQuery(name="MailOutbox_Renew",query="UPDATE MailOutbox m SET m.leaseUntil = :leaseUntil WHERE m.leaseOwner = :leaseOwner"),
+		@NamedQuery(name="MailOutbox_Failed",query="FROM MailOutbox m WHERE m.status = :status ORDER BY m.createdDate, m.token"),
+		@NamedQuery(name="MailOutbox_DeleteFailed",query="DELETE FROM MailOutbox m WHERE m.status = :status AND m.createdDate <= :createdDateTill"),
+})
+public class MailOutbox {
+	public static final String STATUS_FAILED = "F";
+
+	@Id
+	private String token;
+
+	@Column(name="MAIL_ID",nullable=false)
+	private String mailId;
+
+	@Column(name="MAIL_TYPE",nullable=false)
+	private String mailType;
+
+	@Column(name="FROM_EMAIL",nullable=false)
+	private String fromEmail;
+
+	@Column(name="SUBJECT",nullable=false,length=1000)
+	private String subject;
+
+	@Lob
+	@Column(name="BODY",nullable=false)
+	private String body;
+
+	@Column(name="CREATED_DATE",nullable=false)
+	private Date createdDate;
+
+	@Column(name="NEXT_ATTEMPT_DATE",nullable=false)
+	private Date nextAttemptDate;
+
+	@Column(name="ATTEMPTS",nullable=false)
+	private int attempts;
+
+	@Column(name="STATUS")
+	private String status;
+
+	@Column(name="LAST_ERROR",length=1000)
+	private String lastError;
+
+	@Column(name="LEASE_OWNER")
+	private String leaseOwner;
+
+	@Column(name="LEASE_UNTIL")
+	private Date leaseUntil;
+
+	public MailOutbox() {
+
+	}
+	public MailOutbox(String token, String mailId, String mailType, String fromEmail, String subject, String body, Date createdDate) {
+		super();
+		this.token = token;
+		this.mailId = mailId;
+		this.mailType = mailType;
+		this.fromEmail = fromEmail;
+		this.subject = subject;
+		this.body = body;
+		this.createdDate = createdDate;
+		this.nextAttemptDate = createdDate;
+	}
+	public String getToken() {
+		return token;
+	}
+	public void setToken(String token) {
+		this.token = token;
+	}
+	public String getMailId() {
+		return mailId;
+	}
+	public void setMailId(String mailId) {
+		this.mailId = mailId;
+	}
+	public String getMailType() {
+		return mailType;
+	}
+	public void setMailType(String mailType) {
+		this.mailType = mailType;
+	}
+	public String getFromEmail() {
+		return fromEmail;
+	}
+	public void setFromEmail(String fromEmail) {
+		this.fromEmail = fromEmail;
+	}
+	public String getSubject() {
+		return subject;
+	}
+	public void setSubject(String subject) {
+		this.subject = subject;
+	}
+	public String getBody() {
+		return body;
+	}
+	public void setBody(String body) {
+		this.body = body;
+	}
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+	public void setCreatedDate(Date createdDate) {
+		this.createdDate = createdDate;
+	}
+	public Date getNextAttemptDate() {
+		return nextAttemptDate;
+	}
+	public void setNextAttemptDate(Date nextAttemptDate) {
+		this.nextAttemptDate = nextAttemptDate;
+	}
+	public int getAttempts() {
+		return attempts;
+	}
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	public String getStatus() {
+		return status;
+	}
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	public String getLastError() {
+		return lastError;
+	}
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+	public String getLeaseOwner() {
+		return leaseOwner;
+	}
+	public void setLeaseOwner(String leaseOwner) {
+		this.leaseOwner = leaseOwner;
+	}
+	public Date getLeaseUntil() {
+		return leaseUntil;
+	}
+	public void setLeaseUntil(Date leaseUntil) {
+		this.leaseUntil = leaseUntil;
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Map;
+
+/**
+ * One mail of a {@link ConfirmationMailer#sendMailsWithTokens(java.util.Collection)} call. Parameters have the same meaning as in
+ * {@link ConfirmationMailer#sendMailWithToken(String, String, Map, String)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class MailRequest {
+	private String mailId;
+	private String mailType;
+	private Map<String, String> fields;
+	private String userData;
+
+	/**
+	 * Default constructor.
+	 * 
+	 * @param mailId
+	 *            mail address of the receiver.
+	 * @param mailType
+	 *            name of the template.
+	 * @param fields
+	 *            map of field names and their values for the given <code>mailType</code>.
+	 * @param userData
+	 *            optional data stored with the token.
+	 */
+	public MailRequest(String mailId, String mailType, Map<String, String> fields, String userData) {
+		super();
+		this.mailId = mailId;
+		this.mailType = mailType;
+		this.fields = fields;
+		this.userData = userData;
+	}
+
+	public String getMailId() {
+		return mailId;
+	}
+
+	public String getMailType() {
+		return mailType;
+	}
+
+	public Map<String, String> getFields() {
+		return fields;
+	}
+
+	public String getUserData() {
+		return userData;
+	}
+
+}
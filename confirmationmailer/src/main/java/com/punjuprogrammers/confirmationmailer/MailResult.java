@@ -0,0 +1,61 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Outcome of one {@link MailRequest} sent with {@link ConfirmationMailer#sendMailsWithTokens(java.util.Collection)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class MailResult {
+	private MailRequest request;
+	private String token;
+	private Exception error;
+
+	MailResult(MailRequest request) {
+		this.request = request;
+	}
+
+	public MailRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns the generated token.
+	 * 
+	 * @return token, null if the mail was not sent.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns the reason why the mail was not sent. It is an {@link IllegalArgumentException} or {@link IllegalStateException} for invalid
+	 * requests and a {@link ConfirmationMailerException} if the token could not be saved or the mail could not be sent.
+	 * 
+	 * @return error, null if the mail was sent.
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	void setToken(String token) {
+		this.token = token;
+	}
+
+	void setError(Exception error) {
+		this.token = null;
+		this.error = error;
+	}
+}
@@ -19,11 +19,16 @@ import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 
 @Entity
-@Table(name="MAIL_TOKEN", indexes={@Index(name="idx_expiry_date",columnList="EXPIRY_DATE")})
+@Table(name="MAIL_TOKEN", indexes={@Index(name="idx_expiry_date",columnList="EXPIRY_DATE"),@Index(name="idx_used_date",columnList="USED_DATE"),
+		@Index(name="idx_mail_id_type",columnList="MAIL_ID,MAIL_TYPE")})
 @NamedQueries(value={
 		@NamedQuery(name="MailToken_Expired",query="FROM MailToken m WHERE m.expiryDate <= :expiryDateTill"),
 		@NamedQuery(name="MailToken_Status",query="FROM MailToken m WHERE m.status <= :status"),
-		@NamedQuery(name="MailToken_Used",query="FROM MailToken m WHERE m.usedDate >= :useDateFrom AND m.usedDate <= :useDateTill"),
+		@NamedQuery(name="MailToken_Used",query="FROM MailToken m WHERE m.usedDate >= :usedDateFrom AND m.usedDate <= :usedDateTill"),
+		@NamedQuery(name="MailToken_MarkUsed",query="UPDATE MailToken m SET m.status = :status, m.usedDate = :usedDate WHERE m.token = :token AND m.status IS NULL AND m.expiryDate > :now"),
+		@NamedQuery(name="MailToken_DeleteValid",query="DELETE FROM MailToken m WHERE m.token = :token AND m.status IS NULL AND m.expiryDate > :now"),
+		@NamedQuery(name="MailToken_Live",query="FROM MailToken m WHERE m.mailId = :mailId AND m.mailType = :mailType AND m.status IS NULL"
+				+ " AND m.expiryDate > :expiryAfter ORDER BY m.expiryDate DESC"),
 		
 })
 public class MailToken {
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Records that a token issued with {@link TokenMode#SIGNED_SINGLE_USE} was used. The id is the signature part of the token, therefore a row is
+ * much smaller than a {@link MailToken}. Rows are deleted together with the expired tokens by {@link ConfirmationMailer#deleteAll(Date)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+@Entity
+@Table(name="MAIL_TOKEN_USE", indexes={@Index(name="idx_token_use_expiry_date",columnList="EXPIRY_DATE")})
+public class MailTokenUse {
+
+	@Id
+	@Column(name="ID",length=32)
+	private String id;
+
+	@Column(name="USED_DATE",nullable=false)
+	private Date usedDate;
+
+	@Column(name="EXPIRY_DATE",nullable=false)
+	private Date expiryDate;
+
+	public MailTokenUse() {
+
+	}
+
+	public MailTokenUse(String id, Date usedDate, Date expiryDate) {
+		this.id = id;
+		this.usedDate = usedDate;
+		this.expiryDate = expiryDate;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public Date getUsedDate() {
+		return usedDate;
+	}
+
+	public void setUsedDate(Date usedDate) {
+		this.usedDate = usedDate;
+	}
+
+	public Date getExpiryDate() {
+		return expiryDate;
+	}
+
+	public void setExpiryDate(Date expiryDate) {
+		this.expiryDate = expiryDate;
+	}
+}
@@ -8,6 +8,14 @@
  *******************************************************************************/
 package com.punjuprogrammers.confirmationmailer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 import com.punjuprogrammers.confirmationmailer.utils.Util;
 
 /**
@@ -20,6 +28,49 @@ public class MailerConfig {
 	private String smtpServer;
 	private String serverUserName;
 	private String serverPassowrd;
+	private int smtpPort = 0;
+	private List<SmtpEndpoint> smtpEndpoints = Collections.emptyList();
+	private SmtpRouting smtpRouting = SmtpRouting.LEAST_OUTSTANDING;
+	private int circuitBreakerFailures = 5;
+	private long circuitBreakerOpenMillis = 30 * 1000;
+	private long smtpTimeoutMillis = 0;
+	private boolean smtpPipelining;
+	private RateLimit domainRateLimit;
+	private Map<String, RateLimit> domainRateLimits = Collections.emptyMap();
+	private RateLimit serverRateLimit;
+	private int maxConnections = 4;
+	private long connectionMaxIdleMillis = 60 * 1000;
+	private long connectionWaitMillis = 30 * 1000;
+	private int asyncWorkers = 4;
+	private int asyncQueueCapacity = 1000;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+	private boolean virtualThreads;
+	private int smtpConcurrency = 0;
+	private int databaseConcurrency = 0;
+	private boolean outboxEnabled;
+	private long outboxPollMillis = 1000;
+	private int outboxBatchSize = 100;
+	private long outboxLeaseMillis = 5 * 60 * 1000;
+	private int outboxMaxAttempts = 5;
+	private int batchSize = 50;
+	private int tokenCacheSize = 0;
+	private long tokenCacheTtlMillis = 30 * 1000;
+	private long tokenCacheNegativeTtlMillis = 10 * 1000;
+	private long tokenFilterExpectedTokens = 0;
+	private double tokenFilterFalsePositiveRate = 0.01;
+	private long tokenFilterRebuildMillis = 60 * 60 * 1000;
+	private int purgeChunkSize = 1000;
+	private int streamPageSize = 500;
+	private long tokenPartitionMillis = 0;
+	private boolean compactTokens;
+	private TokenGenerator tokenGenerator = new RandomTokenGenerator();
+	private MailerMetrics metrics = MailerMetrics.NONE;
+	private long purgePauseMillis = 100;
+	private long purgeTimeBudgetMillis = 5 * 60 * 1000;
+	private long purgeIntervalMillis = 0;
+	private boolean purgeUsedTokens;
+	private volatile Map<String, byte[]> tokenSigningKeys = Collections.emptyMap();
+	private volatile String tokenSigningKeyId;
 
 	/**
 	 * Default constructor.
@@ -51,4 +102,797 @@ public class MailerConfig {
 		return serverPassowrd;
 	}
 
+	public int getSmtpPort() {
+		return smtpPort;
+	}
+
+	/**
+	 * Port of the SMTP Server. Default is 0, which connects to the standard SMTP port.
+	 * 
+	 * @param smtpPort
+	 *            port number, 0 for the standard port.
+	 */
+	public void setSmtpPort(int smtpPort) {
+		if (smtpPort < 0 || smtpPort > 65535) {
+			throw new IllegalArgumentException("smtpPort must be between 0 and 65535");
+		}
+		this.smtpPort = smtpPort;
+	}
+
+	/**
+	 * Returns the SMTP servers the mails are sent to.
+	 * 
+	 * @return the servers set with {@link #setSmtpEndpoints(List)}, otherwise the server given in the constructor on {@link #getSmtpPort()}.
+	 */
+	public List<SmtpEndpoint> getSmtpEndpoints() {
+		if (smtpEndpoints.isEmpty()) {
+			return Collections.singletonList(new SmtpEndpoint(smtpServer, smtpPort, 1));
+		}
+		return smtpEndpoints;
+	}
+
+	/**
+	 * Several SMTP servers to spread the mails over, instead of the one given in the constructor. Each server has its own
+	 * {@link #getMaxConnections()} connections, the server for a mail is chosen by {@link #getSmtpRouting()}. If a server cannot be connected to
+	 * or fails with a temporary error, the mail is sent to the next server. Default is an empty list, which uses the server of the constructor.
+	 * 
+	 * @param smtpEndpoints
+	 *            up to 64 servers, empty to use the server of the constructor.
+	 */
+	public void setSmtpEndpoints(List<SmtpEndpoint> smtpEndpoints) {
+		Util.assertNotNull(smtpEndpoints, "smtpEndpoints");
+		if (smtpEndpoints.size() > 64) {
+			throw new IllegalArgumentException("At most 64 smtpEndpoints are supported");
+		}
+		for (SmtpEndpoint endpoint : smtpEndpoints) {
+			Util.assertNotNull(endpoint, "smtpEndpoint");
+		}
+		this.smtpEndpoints = Collections.unmodifiableList(new ArrayList<SmtpEndpoint>(smtpEndpoints));
+	}
+
+	public SmtpRouting getSmtpRouting() {
+		return smtpRouting;
+	}
+
+	/**
+	 * How the server of a mail is chosen from {@link #getSmtpEndpoints()}. Default is {@link SmtpRouting#LEAST_OUTSTANDING}.
+	 * 
+	 * @param smtpRouting
+	 *            non-null routing.
+	 */
+	public void setSmtpRouting(SmtpRouting smtpRouting) {
+		Util.assertNotNull(smtpRouting, "smtpRouting");
+		this.smtpRouting = smtpRouting;
+	}
+
+	public int getCircuitBreakerFailures() {
+		return circuitBreakerFailures;
+	}
+
+	/**
+	 * Number of failed mails in a row after which an SMTP server is skipped for {@link #getCircuitBreakerOpenMillis()}. Then one mail is sent to
+	 * it as a trial, if it succeeds the server is used again. Rejected recipients do not count as failures. When all servers are skipped, the one
+	 * skipped the longest is tried anyway. Default is 5.
+	 * 
+	 * @param circuitBreakerFailures
+	 *            a positive number.
+	 */
+	public void setCircuitBreakerFailures(int circuitBreakerFailures) {
+		if (circuitBreakerFailures < 1) {
+			throw new IllegalArgumentException("circuitBreakerFailures must be at least 1");
+		}
+		this.circuitBreakerFailures = circuitBreakerFailures;
+	}
+
+	public long getCircuitBreakerOpenMillis() {
+		return circuitBreakerOpenMillis;
+	}
+
+	/**
+	 * How long a failing SMTP server is skipped, see {@link #setCircuitBreakerFailures(int)}. Default is 30 seconds.
+	 * 
+	 * @param circuitBreakerOpenMillis
+	 *            time in milliseconds.
+	 */
+	public void setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+		if (circuitBreakerOpenMillis < 0) {
+			throw new IllegalArgumentException("circuitBreakerOpenMillis must not be negative");
+		}
+		this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+	}
+
+	public long getSmtpTimeoutMillis() {
+		return smtpTimeoutMillis;
+	}
+
+	/**
+	 * Timeout for connecting to an SMTP server and for each of its replies. A server which does not answer in time is treated as failed, so
+	 * that the mail goes to the next server. Default is 0, which waits without limit.
+	 * 
+	 * @param smtpTimeoutMillis
+	 *            time in milliseconds, 0 for no limit.
+	 */
+	public void setSmtpTimeoutMillis(long smtpTimeoutMillis) {
+		if (smtpTimeoutMillis < 0 || smtpTimeoutMillis > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("smtpTimeoutMillis must be between 0 and " + Integer.MAX_VALUE);
+		}
+		this.smtpTimeoutMillis = smtpTimeoutMillis;
+	}
+
+	public boolean isSmtpPipelining() {
+		return smtpPipelining;
+	}
+
+	/**
+	 * Sends the mails of a batch, of {@link ConfirmationMailer#sendMailsWithTokens(java.util.Collection)} and of the outbox, back to back over one
+	 * connection with ESMTP PIPELINING, see {@link com.punjuprogrammers.confirmationmailer.utils.SmtpSession}. Each mail then takes one round trip
+	 * to the server instead of four, which matters for a distant server. A server without PIPELINING gets the commands one by one over the same
+	 * connection. The connection is plain SMTP, without STARTTLS. Default is false, which sends each mail over the connection pool.
+	 * 
+	 * @param smtpPipelining
+	 *            true to pipeline batches.
+	 */
+	public void setSmtpPipelining(boolean smtpPipelining) {
+		this.smtpPipelining = smtpPipelining;
+	}
+
+	public RateLimit getDomainRateLimit() {
+		return domainRateLimit;
+	}
+
+	/**
+	 * Limit of the mails to each recipient domain, i.e. the part of the mail id after the '@', for the domains without a limit of their own
+	 * (see {@link #setDomainRateLimit(String, RateLimit)}). Mails over the limit wait for their turn in the sending thread, mails from the
+	 * outbox are put back until their turn, so that the domain's provider does not defer them. Default is null, no limit.
+	 * 
+	 * @param domainRateLimit
+	 *            limit per domain, null for no limit.
+	 */
+	public void setDomainRateLimit(RateLimit domainRateLimit) {
+		this.domainRateLimit = domainRateLimit;
+	}
+
+	public Map<String, RateLimit> getDomainRateLimits() {
+		return domainRateLimits;
+	}
+
+	/**
+	 * Sets the limit of the mails to one recipient domain, instead of {@link #getDomainRateLimit()}.
+	 * 
+	 * @param domain
+	 *            domain, i.e. <code>gmail.com</code>. Not case sensitive.
+	 * @param rateLimit
+	 *            limit of the domain, null to remove it.
+	 */
+	public synchronized void setDomainRateLimit(String domain, RateLimit rateLimit) {
+		Util.assertNotNullNotEmpty(domain, "domain");
+		Map<String, RateLimit> limits = new HashMap<String, RateLimit>(domainRateLimits);
+		if (rateLimit == null) {
+			limits.remove(domain.toLowerCase(Locale.ROOT));
+		} else {
+			limits.put(domain.toLowerCase(Locale.ROOT), rateLimit);
+		}
+		domainRateLimits = Collections.unmodifiableMap(limits);
+	}
+
+	public RateLimit getServerRateLimit() {
+		return serverRateLimit;
+	}
+
+	/**
+	 * Limit of the mails to each SMTP server of {@link #getSmtpEndpoints()}. Mails over the limit wait for their turn in the sending thread.
+	 * Default is null, no limit.
+	 * 
+	 * @param serverRateLimit
+	 *            limit per server, null for no limit.
+	 */
+	public void setServerRateLimit(RateLimit serverRateLimit) {
+		this.serverRateLimit = serverRateLimit;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Maximum number of SMTP connections kept open to the SMTP Server. Connections are reused for multiple mails. Default is 4.
+	 * 
+	 * @param maxConnections
+	 *            a positive number.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections must be at least 1");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	public long getConnectionMaxIdleMillis() {
+		return connectionMaxIdleMillis;
+	}
+
+	/**
+	 * Time after which an unused SMTP connection is closed. Default is 60 seconds.
+	 * 
+	 * @param connectionMaxIdleMillis
+	 *            idle time in milliseconds.
+	 */
+	public void setConnectionMaxIdleMillis(long connectionMaxIdleMillis) {
+		this.connectionMaxIdleMillis = connectionMaxIdleMillis;
+	}
+
+	public long getConnectionWaitMillis() {
+		return connectionWaitMillis;
+	}
+
+	/**
+	 * Maximum time to wait for a free SMTP connection when all {@link #getMaxConnections()} connections are in use. Default is 30 seconds.
+	 * 
+	 * @param connectionWaitMillis
+	 *            wait time in milliseconds.
+	 */
+	public void setConnectionWaitMillis(long connectionWaitMillis) {
+		this.connectionWaitMillis = connectionWaitMillis;
+	}
+
+	public int getAsyncWorkers() {
+		return asyncWorkers;
+	}
+
+	/**
+	 * Number of threads which deliver the mails sent with
+	 * {@link ConfirmationMailer#sendMailWithTokenAsync(String, String, java.util.Map, String)}. Default is 4.
+	 * 
+	 * @param asyncWorkers
+	 *            a positive number.
+	 */
+	public void setAsyncWorkers(int asyncWorkers) {
+		if (asyncWorkers < 1) {
+			throw new IllegalArgumentException("asyncWorkers must be at least 1");
+		}
+		this.asyncWorkers = asyncWorkers;
+	}
+
+	public int getAsyncQueueCapacity() {
+		return asyncQueueCapacity;
+	}
+
+	/**
+	 * Maximum number of asynchronous mails waiting for delivery. Default is 1000. See {@link #setBackpressurePolicy(BackpressurePolicy)} for what
+	 * happens when the queue is full.
+	 * 
+	 * @param asyncQueueCapacity
+	 *            a positive number.
+	 */
+	public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+		if (asyncQueueCapacity < 1) {
+			throw new IllegalArgumentException("asyncQueueCapacity must be at least 1");
+		}
+		this.asyncQueueCapacity = asyncQueueCapacity;
+	}
+
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	/**
+	 * Policy used when the asynchronous send queue is full. Default is {@link BackpressurePolicy#BLOCK}.
+	 * 
+	 * @param backpressurePolicy
+	 *            a non-null policy.
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		Util.assertNotNull(backpressurePolicy, "backpressurePolicy");
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Delivers each asynchronous mail on its own virtual thread instead of the {@link #getAsyncWorkers()} workers, so that tens of thousands of
+	 * mails can wait on slow SMTP servers at little cost. {@link #getAsyncQueueCapacity()} is then the number of mails in progress, above which
+	 * the {@link #getBackpressurePolicy()} applies. Limit the connections to the servers and the database with
+	 * {@link #setSmtpConcurrency(int)} and {@link #setDatabaseConcurrency(int)}, and raise the capacity as needed. Default is false.
+	 * 
+	 * On Java 21 to 23 a thread blocked inside the synchronized methods of JavaMail's SMTP transport keeps its carrier thread, so the SMTP
+	 * concurrency should not exceed the number of processors there; with {@link #setSmtpPipelining(boolean)} batches avoid JavaMail.
+	 * 
+	 * @param virtualThreads
+	 *            true for a virtual thread per mail.
+	 * @throws IllegalArgumentException
+	 *             if enabled on a JVM before Java 21.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !MailDispatcher.isVirtualThreadsSupported()) {
+			throw new IllegalArgumentException("virtualThreads need Java 21 or later");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	public int getSmtpConcurrency() {
+		return smtpConcurrency;
+	}
+
+	/**
+	 * Maximum number of mails sent at the same time over all SMTP servers. Further senders wait for their turn without a timeout, unlike
+	 * {@link #setConnectionWaitMillis(long)}. Default is 0, which leaves the limit to {@link #getMaxConnections()} per server.
+	 * 
+	 * @param smtpConcurrency
+	 *            maximum number of sends, 0 for no limit.
+	 */
+	public void setSmtpConcurrency(int smtpConcurrency) {
+		if (smtpConcurrency < 0) {
+			throw new IllegalArgumentException("smtpConcurrency must not be negative");
+		}
+		this.smtpConcurrency = smtpConcurrency;
+	}
+
+	public int getDatabaseConcurrency() {
+		return databaseConcurrency;
+	}
+
+	/**
+	 * Maximum number of token store operations running at the same time, i.e. the size of the connection pool of the database, so that waiting
+	 * senders queue in the mailer instead of the pool. Lookups answered by the token cache do not count. Not used with the in-memory token
+	 * store. Default is 0, which is no limit.
+	 * 
+	 * @param databaseConcurrency
+	 *            maximum number of operations, 0 for no limit.
+	 */
+	public void setDatabaseConcurrency(int databaseConcurrency) {
+		if (databaseConcurrency < 0) {
+			throw new IllegalArgumentException("databaseConcurrency must not be negative");
+		}
+		this.databaseConcurrency = databaseConcurrency;
+	}
+
+	public boolean isOutboxEnabled() {
+		return outboxEnabled;
+	}
+
+	/**
+	 * If enabled, mails with token are not sent directly. The rendered mail is saved to the {@link MailOutbox} in the same transaction as the
+	 * token and delivered later by the outbox dispatcher. The 'persistence.xml' file must then also list the {@link MailOutbox} class. Default is
+	 * disabled.
+	 * 
+	 * The dispatcher runs on its own thread, so with JPA the provider must return an EntityManagerFactory, see
+	 * {@link MailerPersistentProvider#getEntityManagerFactory()}. Otherwise the mailer refuses the outbox with an {@link IllegalStateException}.
+	 * 
+	 * @param outboxEnabled
+	 *            true to enable the outbox.
+	 */
+	public void setOutboxEnabled(boolean outboxEnabled) {
+		this.outboxEnabled = outboxEnabled;
+	}
+
+	public long getOutboxPollMillis() {
+		return outboxPollMillis;
+	}
+
+	/**
+	 * Interval in which the outbox is checked for mails to deliver. Zero disables the internal polling, the application must then call
+	 * {@link ConfirmationMailer#dispatchOutbox()} itself. Default is 1 second.
+	 * 
+	 * @param outboxPollMillis
+	 *            interval in milliseconds.
+	 */
+	public void setOutboxPollMillis(long outboxPollMillis) {
+		if (outboxPollMillis < 0) {
+			throw new IllegalArgumentException("outboxPollMillis cannot be negative");
+		}
+		this.outboxPollMillis = outboxPollMillis;
+	}
+
+	public int getOutboxBatchSize() {
+		return outboxBatchSize;
+	}
+
+	/**
+	 * Maximum number of outbox mails claimed at once. Default is 100.
+	 * 
+	 * @param outboxBatchSize
+	 *            a positive number.
+	 */
+	public void setOutboxBatchSize(int outboxBatchSize) {
+		if (outboxBatchSize < 1) {
+			throw new IllegalArgumentException("outboxBatchSize must be at least 1");
+		}
+		this.outboxBatchSize = outboxBatchSize;
+	}
+
+	public long getOutboxLeaseMillis() {
+		return outboxLeaseMillis;
+	}
+
+	/**
+	 * How long claimed outbox mails are reserved for one dispatcher. It must be longer than the time needed to send one batch, otherwise another
+	 * node can claim the same mails again. Default is 5 minutes.
+	 * 
+	 * @param outboxLeaseMillis
+	 *            lease time in milliseconds.
+	 */
+	public void setOutboxLeaseMillis(long outboxLeaseMillis) {
+		this.outboxLeaseMillis = outboxLeaseMillis;
+	}
+
+	public int getOutboxMaxAttempts() {
+		return outboxMaxAttempts;
+	}
+
+	/**
+	 * Number of delivery attempts before an outbox mail is marked as failed and its token is deleted. Default is 5.
+	 * 
+	 * @param outboxMaxAttempts
+	 *            a positive number.
+	 */
+	public void setOutboxMaxAttempts(int outboxMaxAttempts) {
+		if (outboxMaxAttempts < 1) {
+			throw new IllegalArgumentException("outboxMaxAttempts must be at least 1");
+		}
+		this.outboxMaxAttempts = outboxMaxAttempts;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Number of tokens saved in one transaction by {@link ConfirmationMailer#sendMailsWithTokens(java.util.Collection)}. Default is 50.
+	 * 
+	 * @param batchSize
+	 *            a positive number.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getTokenCacheSize() {
+		return tokenCacheSize;
+	}
+
+	/**
+	 * Maximum number of tokens kept in memory for token lookups. Unknown tokens are cached as well, so that repeated lookups of invalid tokens do
+	 * not reach the database. Default is 0, which disables the cache.
+	 * 
+	 * The cache is local to this mailer. If tokens are used or deleted by another process, it may answer from a stale entry until the entry
+	 * expires, see {@link #setTokenCacheTtlMillis(long)}.
+	 * 
+	 * @param tokenCacheSize
+	 *            maximum number of cached tokens, 0 to disable the cache.
+	 */
+	public void setTokenCacheSize(int tokenCacheSize) {
+		if (tokenCacheSize < 0) {
+			throw new IllegalArgumentException("tokenCacheSize must not be negative");
+		}
+		this.tokenCacheSize = tokenCacheSize;
+	}
+
+	public long getTokenCacheTtlMillis() {
+		return tokenCacheTtlMillis;
+	}
+
+	/**
+	 * How long a found token is kept in the cache. An entry never lives beyond the expiry date of its token. Default is 30 seconds.
+	 * 
+	 * @param tokenCacheTtlMillis
+	 *            time in milliseconds.
+	 */
+	public void setTokenCacheTtlMillis(long tokenCacheTtlMillis) {
+		if (tokenCacheTtlMillis < 0) {
+			throw new IllegalArgumentException("tokenCacheTtlMillis must not be negative");
+		}
+		this.tokenCacheTtlMillis = tokenCacheTtlMillis;
+	}
+
+	public long getTokenCacheNegativeTtlMillis() {
+		return tokenCacheNegativeTtlMillis;
+	}
+
+	/**
+	 * How long a token which was not found is remembered as unknown. Default is 10 seconds.
+	 * 
+	 * @param tokenCacheNegativeTtlMillis
+	 *            time in milliseconds.
+	 */
+	public void setTokenCacheNegativeTtlMillis(long tokenCacheNegativeTtlMillis) {
+		if (tokenCacheNegativeTtlMillis < 0) {
+			throw new IllegalArgumentException("tokenCacheNegativeTtlMillis must not be negative");
+		}
+		this.tokenCacheNegativeTtlMillis = tokenCacheNegativeTtlMillis;
+	}
+
+	public long getTokenFilterExpectedTokens() {
+		return tokenFilterExpectedTokens;
+	}
+
+	/**
+	 * Enables a Bloom filter of the issued tokens, sized for the given number of tokens. A token which is not in the filter is reported as not
+	 * found without a database lookup. The filter takes about 1.2 bytes per token at a false positive rate of 1%, for example 12 MB for 10
+	 * million tokens. Default is 0, which disables the filter.
+	 * 
+	 * The filter knows the tokens in the table at its last build and the tokens issued by this mailer since. It must only be enabled if tokens are
+	 * not issued by other processes, otherwise their tokens are rejected until the next rebuild. The filter is built on its own thread, so with
+	 * JPA the provider must return an EntityManagerFactory, see {@link MailerPersistentProvider#getEntityManagerFactory()}.
+	 * 
+	 * @param tokenFilterExpectedTokens
+	 *            number of tokens expected in the table, 0 to disable the filter.
+	 */
+	public void setTokenFilterExpectedTokens(long tokenFilterExpectedTokens) {
+		if (tokenFilterExpectedTokens < 0) {
+			throw new IllegalArgumentException("tokenFilterExpectedTokens must not be negative");
+		}
+		this.tokenFilterExpectedTokens = tokenFilterExpectedTokens;
+	}
+
+	public double getTokenFilterFalsePositiveRate() {
+		return tokenFilterFalsePositiveRate;
+	}
+
+	/**
+	 * Rate of unknown tokens which pass the filter and are looked up in the database. Default is 0.01.
+	 * 
+	 * @param tokenFilterFalsePositiveRate
+	 *            rate greater than 0 and less than 1.
+	 */
+	public void setTokenFilterFalsePositiveRate(double tokenFilterFalsePositiveRate) {
+		if (!(tokenFilterFalsePositiveRate > 0 && tokenFilterFalsePositiveRate < 1)) {
+			throw new IllegalArgumentException("tokenFilterFalsePositiveRate must be between 0 and 1");
+		}
+		this.tokenFilterFalsePositiveRate = tokenFilterFalsePositiveRate;
+	}
+
+	public long getTokenFilterRebuildMillis() {
+		return tokenFilterRebuildMillis;
+	}
+
+	/**
+	 * Interval of rebuilding the token filter from the table, which removes deleted tokens from it. Default is 1 hour.
+	 * 
+	 * @param tokenFilterRebuildMillis
+	 *            interval in milliseconds, 0 to build the filter only once at start.
+	 */
+	public void setTokenFilterRebuildMillis(long tokenFilterRebuildMillis) {
+		if (tokenFilterRebuildMillis < 0) {
+			throw new IllegalArgumentException("tokenFilterRebuildMillis must not be negative");
+		}
+		this.tokenFilterRebuildMillis = tokenFilterRebuildMillis;
+	}
+
+	public int getPurgeChunkSize() {
+		return purgeChunkSize;
+	}
+
+	/**
+	 * Maximum number of tokens deleted in one transaction by {@link ConfirmationMailer#deleteAll(java.util.Date)},
+	 * {@link ConfirmationMailer#deleteAllUsed()} and the background purge. Small chunks keep the locks and the undo log of each transaction small.
+	 * Default is 1000.
+	 * 
+	 * @param purgeChunkSize
+	 *            a positive number.
+	 */
+	public void setPurgeChunkSize(int purgeChunkSize) {
+		if (purgeChunkSize < 1) {
+			throw new IllegalArgumentException("purgeChunkSize must be at least 1");
+		}
+		this.purgeChunkSize = purgeChunkSize;
+	}
+
+	public long getPurgePauseMillis() {
+		return purgePauseMillis;
+	}
+
+	/**
+	 * Pause between two chunks of the background purge and of {@link ConfirmationMailer#purge()}, which leaves room for concurrent sends and
+	 * validations. {@link ConfirmationMailer#deleteAll(java.util.Date)} and {@link ConfirmationMailer#deleteAllUsed()} do not pause, the
+	 * application calls them when it wants the tokens gone. Default is 100 milliseconds.
+	 * 
+	 * @param purgePauseMillis
+	 *            pause in milliseconds, 0 for no pause.
+	 */
+	public void setPurgePauseMillis(long purgePauseMillis) {
+		if (purgePauseMillis < 0) {
+			throw new IllegalArgumentException("purgePauseMillis must not be negative");
+		}
+		this.purgePauseMillis = purgePauseMillis;
+	}
+
+	public long getPurgeTimeBudgetMillis() {
+		return purgeTimeBudgetMillis;
+	}
+
+	/**
+	 * Maximum run time of one background purge or {@link ConfirmationMailer#purge()}. The remaining tokens are deleted by the next purge. Default
+	 * is 5 minutes.
+	 * 
+	 * @param purgeTimeBudgetMillis
+	 *            time in milliseconds, 0 for no limit.
+	 */
+	public void setPurgeTimeBudgetMillis(long purgeTimeBudgetMillis) {
+		if (purgeTimeBudgetMillis < 0) {
+			throw new IllegalArgumentException("purgeTimeBudgetMillis must not be negative");
+		}
+		this.purgeTimeBudgetMillis = purgeTimeBudgetMillis;
+	}
+
+	public long getPurgeIntervalMillis() {
+		return purgeIntervalMillis;
+	}
+
+	/**
+	 * Interval of the background purge of expired tokens. Default is 0, which disables the background purge. The purge runs on its own thread,
+	 * so with JPA the provider must return an EntityManagerFactory, see {@link MailerPersistentProvider#getEntityManagerFactory()}.
+	 * 
+	 * @param purgeIntervalMillis
+	 *            interval in milliseconds, 0 to disable.
+	 */
+	public void setPurgeIntervalMillis(long purgeIntervalMillis) {
+		if (purgeIntervalMillis < 0) {
+			throw new IllegalArgumentException("purgeIntervalMillis must not be negative");
+		}
+		this.purgeIntervalMillis = purgeIntervalMillis;
+	}
+
+	public boolean isPurgeUsedTokens() {
+		return purgeUsedTokens;
+	}
+
+	/**
+	 * Tells the background purge to delete the used tokens as well as the expired ones. Default is false.
+	 * 
+	 * @param purgeUsedTokens
+	 *            true to delete used tokens.
+	 */
+	public void setPurgeUsedTokens(boolean purgeUsedTokens) {
+		this.purgeUsedTokens = purgeUsedTokens;
+	}
+
+	public int getStreamPageSize() {
+		return streamPageSize;
+	}
+
+	/**
+	 * Number of tokens read at once by the streams of {@link ConfirmationMailer}, e.g.
+	 * {@link ConfirmationMailer#streamExpired(java.util.Date)}. Only one page is held in memory. Default is 500.
+	 * 
+	 * @param streamPageSize
+	 *            a positive number.
+	 */
+	public void setStreamPageSize(int streamPageSize) {
+		if (streamPageSize < 1) {
+			throw new IllegalArgumentException("streamPageSize must be at least 1");
+		}
+		this.streamPageSize = streamPageSize;
+	}
+
+	public long getTokenPartitionMillis() {
+		return tokenPartitionMillis;
+	}
+
+	/**
+	 * Stores the tokens in one table per period of expiry dates, e.g. 24 hours for a table per day. Tokens of a period are deleted by dropping
+	 * its table once they are all expired, instead of deleting them row by row. Tokens issued before are still found in the
+	 * <code>MAIL_TOKEN</code> table. Default is 0, which stores all tokens in the <code>MAIL_TOKEN</code> table.
+	 * 
+	 * The tables are created at runtime, so the database user needs the rights to create and drop tables. Partitioning needs JPA, it is not
+	 * supported by the mailer created with a DataSource.
+	 * 
+	 * @param tokenPartitionMillis
+	 *            period in milliseconds, 0 to disable partitioning.
+	 */
+	public void setTokenPartitionMillis(long tokenPartitionMillis) {
+		if (tokenPartitionMillis < 0) {
+			throw new IllegalArgumentException("tokenPartitionMillis must not be negative");
+		}
+		this.tokenPartitionMillis = tokenPartitionMillis;
+	}
+
+	public boolean isCompactTokens() {
+		return compactTokens;
+	}
+
+	/**
+	 * Stores new tokens in a compact form: the token as two 64 bit numbers instead of a 22 character string, the dates as epoch milliseconds and
+	 * the status as a number. This makes the primary key index much smaller and the expiry scans cheaper. The tokens are 32 hex digits after the
+	 * partition number. Tokens issued before keep their form and are still accepted. Default is false.
+	 * 
+	 * The compact form is used for the tables created with {@link #setTokenPartitionMillis(long)}, which must be set as well. The
+	 * <code>MAIL_TOKEN</code> table keeps the mapping of {@link MailToken}.
+	 * 
+	 * @param compactTokens
+	 *            true to store new tokens in the compact form.
+	 */
+	public void setCompactTokens(boolean compactTokens) {
+		this.compactTokens = compactTokens;
+	}
+
+	public TokenGenerator getTokenGenerator() {
+		return tokenGenerator;
+	}
+
+	/**
+	 * Generator of the stored tokens. Default is a {@link RandomTokenGenerator}. A {@link TimeOrderedTokenGenerator} keeps the inserts at the end
+	 * of the primary key index of the token table.
+	 * 
+	 * @param tokenGenerator
+	 *            non-null generator.
+	 */
+	public void setTokenGenerator(TokenGenerator tokenGenerator) {
+		Util.assertNotNull(tokenGenerator, "tokenGenerator");
+		this.tokenGenerator = tokenGenerator;
+	}
+
+	public MailerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Receiver of the latencies, counters and gauges of the mailer. Default is {@link MailerMetrics#NONE}, which records nothing. A
+	 * {@link MailerStats} keeps them in memory.
+	 * 
+	 * @param metrics
+	 *            non-null metrics.
+	 */
+	public void setMetrics(MailerMetrics metrics) {
+		Util.assertNotNull(metrics, "metrics");
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds a key for signing the tokens of templates with a signed {@link TokenMode}. The last added key signs new tokens, all added keys are
+	 * accepted when a token is verified. To rotate the keys, add the new key and remove the old key with {@link #removeTokenSigningKey(String)}
+	 * once the tokens signed with it have expired.
+	 * 
+	 * @param keyId
+	 *            short identifier of the key, written into the token. Up to 16 letters, digits, '_' or '-'.
+	 * @param key
+	 *            secret key of at least 32 bytes.
+	 */
+	public synchronized void addTokenSigningKey(String keyId, byte[] key) {
+		Util.assertNotNull(keyId, "keyId");
+		Util.assertNotNull(key, "key");
+		if (!keyId.matches("[A-Za-z0-9_-]{1,16}")) {
+			throw new IllegalArgumentException("keyId must be 1 to 16 letters, digits, '_' or '-'");
+		}
+		if (key.length < 32) {
+			throw new IllegalArgumentException("key must have at least 32 bytes");
+		}
+		Map<String, byte[]> keys = new LinkedHashMap<String, byte[]>(tokenSigningKeys);
+		keys.put(keyId, key.clone());
+		tokenSigningKeys = Collections.unmodifiableMap(keys);
+		tokenSigningKeyId = keyId;
+	}
+
+	/**
+	 * Removes a signing key. Tokens signed with it are no longer accepted. The current signing key cannot be removed.
+	 * 
+	 * @param keyId
+	 *            identifier given to {@link #addTokenSigningKey(String, byte[])}.
+	 */
+	public synchronized void removeTokenSigningKey(String keyId) {
+		if (keyId.equals(tokenSigningKeyId)) {
+			throw new IllegalArgumentException("Current signing key cannot be removed: " + keyId);
+		}
+		Map<String, byte[]> keys = new LinkedHashMap<String, byte[]>(tokenSigningKeys);
+		keys.remove(keyId);
+		tokenSigningKeys = Collections.unmodifiableMap(keys);
+	}
+
+	/**
+	 * Returns the identifier of the key which signs new tokens.
+	 * 
+	 * @return key identifier, null if no key was added.
+	 */
+	public String getTokenSigningKeyId() {
+		return tokenSigningKeyId;
+	}
+
+	Map<String, byte[]> getTokenSigningKeys() {
+		return tokenSigningKeys;
+	}
+
 }
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Receives the measurements of a {@link ConfirmationMailer}, set with {@link MailerConfig#setMetrics(MailerMetrics)}. The methods are called by
+ * the sending and validating threads in the middle of their work, at the same time. An implementation must be thread-safe, should return quickly
+ * and should not allocate, i.e. it looks up its counters by the enum and the mail type instead of building names.
+ *
+ * The gauges, i.e. queue depths, pool usage and the number of tokens, are read from the mailer when they are needed, see
+ * {@link #bind(ConfirmationMailer)}.
+ *
+ * To report to a metrics library such as Micrometer, implement this interface with the library's timers and counters, created once per stage
+ * and mail type.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ * @see MailerStats
+ */
+public interface MailerMetrics {
+	/**
+	 * Timed parts of sending and validating a mail.
+	 */
+	public enum Stage {
+		/**
+		 * Replacing the fields of the subject and the text.
+		 */
+		RENDER,
+		/**
+		 * Saving the token, together with the outbox row when the outbox is enabled.
+		 */
+		TOKEN_SAVE,
+		/**
+		 * Waiting for the rate limits of the recipient domain and the SMTP server. Only recorded for mails which had to wait.
+		 */
+		RATE_LIMIT,
+		/**
+		 * Opening a new SMTP connection. Not recorded when a pooled connection is reused.
+		 */
+		SMTP_CONNECT,
+		/**
+		 * Sending the message over an open connection, i.e. the envelope and DATA commands.
+		 */
+		SMTP_SEND,
+		/**
+		 * Looking up and, for the validate-and-use methods, updating the token.
+		 */
+		VALIDATE
+	}
+
+	/**
+	 * Measurements which are thrown away, the default.
+	 */
+	public static final MailerMetrics NONE = new MailerMetrics() {
+		public void bind(ConfirmationMailer mailer) {
+		}
+
+		public void recordStage(Stage stage, String mailType, long nanos) {
+		}
+
+		public void recordSent(String mailType) {
+		}
+
+		public void recordFailed(String mailType) {
+		}
+
+		public void recordCompensatingDelete(String mailType) {
+		}
+
+		public void recordValidation(String mailType, int errorCode) {
+		}
+	};
+
+	/**
+	 * Called once when the mailer is constructed, to register its gauges: {@link ConfirmationMailer#getAsyncQueueDepth()},
+	 * {@link ConfirmationMailer#getOutboxDepth()}, {@link ConfirmationMailer#getSmtpConnectionsInUse()},
+	 * {@link ConfirmationMailer#getSmtpConnectionsIdle()} and {@link ConfirmationMailer#getTokenCount()}. The outbox depth and, unless the
+	 * tokens are kept in memory, the token count run a count query on the database. The others read the state of the mailer.
+	 *
+	 * @param mailer
+	 *            the mailer, fully constructed.
+	 */
+	void bind(ConfirmationMailer mailer);
+
+	/**
+	 * Records the duration of one stage.
+	 *
+	 * @param stage
+	 *            timed stage.
+	 * @param mailType
+	 *            template of the mail. For {@link Stage#VALIDATE} it is null if the token was not found.
+	 * @param nanos
+	 *            duration in nanoseconds.
+	 */
+	void recordStage(Stage stage, String mailType, long nanos);
+
+	/**
+	 * Records a mail accepted by the SMTP server.
+	 */
+	void recordSent(String mailType);
+
+	/**
+	 * Records a mail which could not be sent, or for the outbox could not be sent for the last time.
+	 */
+	void recordFailed(String mailType);
+
+	/**
+	 * Records the deletion of the token of a mail which could not be sent.
+	 */
+	void recordCompensatingDelete(String mailType);
+
+	/**
+	 * Records the result of a token validation.
+	 *
+	 * @param mailType
+	 *            template the token was sent with, null if the token was not found.
+	 * @param errorCode
+	 *            the {@link ConfirmationMailerException#getErrorCode()} of a rejected token, 0 for a valid token.
+	 */
+	void recordValidation(String mailType, int errorCode);
+}
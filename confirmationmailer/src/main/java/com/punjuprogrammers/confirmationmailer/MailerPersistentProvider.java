@@ -9,10 +9,14 @@
 package com.punjuprogrammers.confirmationmailer;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 
 /**
  * Provider interface to inject JPA EntityManager into {@link ConfirmationMailer}.
  * 
+ * An EntityManager is not thread-safe. If the mailer is used by several threads, the provider should return an EntityManagerFactory from
+ * {@link #getEntityManagerFactory()}. The mailer then creates a short-lived EntityManager for every operation and closes it afterwards.
+ * 
  * @author Joga Singh - joga.singh@gmail.com
  *
  */
@@ -23,4 +27,15 @@ public interface MailerPersistentProvider {
 	 * @return
 	 */
 	public EntityManager getEntityManager();
+
+	/**
+	 * Returns the JPA EntityManagerFactory to create an EntityManager per operation. If null is returned, which is the default, the EntityManager
+	 * from {@link #getEntityManager()} is used for all operations and calls to the mailer must not be made by several threads at the same time.
+	 * Asynchronous sends of stored tokens, the outbox, the background purge and the token filter are then refused.
+	 * 
+	 * @return factory or null.
+	 */
+	default EntityManagerFactory getEntityManagerFactory() {
+		return null;
+	}
 }
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link MailerMetrics} which keeps the measurements in memory, per mail type, for applications without a metrics library or to be read by a
+ * scheduled reporter.
+ *
+ * Latencies are counted in buckets of at most 12.5% width, so a percentile is exact to that precision. Recording is lock-free and, once a mail
+ * type has been seen, does not allocate.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class MailerStats implements MailerMetrics {
+	/**
+	 * Validation codes counted on their own, from 0 for a valid token up to this value minus 10000. Other codes share the last slot.
+	 */
+	private static final int VALIDATION_SLOTS = 16;
+	private static final int ERROR_CODE_BASE = 10000;
+
+	private final ConcurrentMap<String, TypeStats> types = new ConcurrentHashMap<String, TypeStats>();
+	/**
+	 * Validations of tokens which were not found, the mail type is not known.
+	 */
+	private final TypeStats unknownType = new TypeStats();
+
+	public void bind(ConfirmationMailer mailer) {
+		// gauges are read from the mailer by the application
+	}
+
+	public void recordStage(Stage stage, String mailType, long nanos) {
+		stats(mailType).latencies[stage.ordinal()].record(nanos);
+	}
+
+	public void recordSent(String mailType) {
+		stats(mailType).sent.increment();
+	}
+
+	public void recordFailed(String mailType) {
+		stats(mailType).failed.increment();
+	}
+
+	public void recordCompensatingDelete(String mailType) {
+		stats(mailType).compensatingDeletes.increment();
+	}
+
+	public void recordValidation(String mailType, int errorCode) {
+		stats(mailType).validations.incrementAndGet(slot(errorCode));
+	}
+
+	/**
+	 * Returns the mail types seen so far.
+	 *
+	 * @return mail types, without the null type of unknown tokens.
+	 */
+	public Set<String> getMailTypes() {
+		return Collections.unmodifiableSet(types.keySet());
+	}
+
+	/**
+	 * Returns the latencies of one stage.
+	 *
+	 * @param mailType
+	 *            mail type, null for the validations of unknown tokens.
+	 * @return live latencies, empty for a mail type not seen yet.
+	 */
+	public Latency getLatency(Stage stage, String mailType) {
+		TypeStats typeStats = find(mailType);
+		return typeStats == null ? new Latency() : typeStats.latencies[stage.ordinal()];
+	}
+
+	public long getSent(String mailType) {
+		TypeStats typeStats = find(mailType);
+		return typeStats == null ? 0 : typeStats.sent.sum();
+	}
+
+	public long getFailed(String mailType) {
+		TypeStats typeStats = find(mailType);
+		return typeStats == null ? 0 : typeStats.failed.sum();
+	}
+
+	public long getCompensatingDeletes(String mailType) {
+		TypeStats typeStats = find(mailType);
+		return typeStats == null ? 0 : typeStats.compensatingDeletes.sum();
+	}
+
+	/**
+	 * Returns the number of validations with the given result.
+	 *
+	 * @param mailType
+	 *            mail type, null for the validations of unknown tokens.
+	 * @param errorCode
+	 *            error code of {@link ConfirmationMailer}, 0 for the valid tokens.
+	 * @return count.
+	 */
+	public long getValidations(String mailType, int errorCode) {
+		TypeStats typeStats = find(mailType);
+		return typeStats == null ? 0 : typeStats.validations.get(slot(errorCode));
+	}
+
+	private TypeStats stats(String mailType) {
+		if (mailType == null) {
+			return unknownType;
+		}
+		TypeStats typeStats = types.get(mailType);
+		if (typeStats == null) {
+			TypeStats newStats = new TypeStats();
+			typeStats = types.putIfAbsent(mailType, newStats);
+			if (typeStats == null) {
+				typeStats = newStats;
+			}
+		}
+		return typeStats;
+	}
+
+	private TypeStats find(String mailType) {
+		return mailType == null ? unknownType : types.get(mailType);
+	}
+
+	private static int slot(int errorCode) {
+		if (errorCode == 0) {
+			return 0;
+		}
+		int slot = errorCode - ERROR_CODE_BASE;
+		return slot > 0 && slot < VALIDATION_SLOTS - 1 ? slot : VALIDATION_SLOTS - 1;
+	}
+
+	private static class TypeStats {
+		private final Latency[] latencies = new Latency[Stage.values().length];
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder compensatingDeletes = new LongAdder();
+		private final AtomicLongArray validations = new AtomicLongArray(VALIDATION_SLOTS);
+
+		private TypeStats() {
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new Latency();
+			}
+		}
+	}
+
+	/**
+	 * Histogram of durations in nanoseconds. Values below 8 have a bucket each, above that every power of two is split into 8 buckets.
+	 */
+	public static class Latency {
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private Latency() {
+		}
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(bucket(nanos));
+			count.increment();
+			totalNanos.add(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long n = count.sum();
+			return n == 0 ? 0 : totalNanos.sum() / n;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the given percentile, at most the maximum.
+		 *
+		 * @param percentile
+		 *            between 0 and 100, i.e. 99.9.
+		 * @return duration in nanoseconds, 0 if nothing is recorded.
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("percentile must be between 0 and 100");
+			}
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), maxNanos.get());
+				}
+			}
+			return maxNanos.get();
+		}
+
+		static int bucket(long nanos) {
+			if (nanos < SUB_BUCKETS) {
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+			return lower + (1L << shift) - 1;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + getCount() + ", mean=" + getMeanNanos() + "ns, p50=" + getPercentileNanos(50) + "ns, p99=" + getPercentileNanos(99)
+					+ "ns, max=" + getMaxNanos() + "ns";
+		}
+	}
+}
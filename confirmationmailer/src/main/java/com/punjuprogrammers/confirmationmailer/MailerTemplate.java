@@ -31,6 +31,8 @@ public class MailerTemplate {
 	private String text;
 	private String fromEmail;
 	private long validityMinutes;
+	private TokenMode tokenMode = TokenMode.STORED;
+	private long idempotencyWindowSeconds = 0;
 
 	/**
 	 * Default constructor.
@@ -84,4 +86,40 @@ public class MailerTemplate {
 		return validityMinutes;
 	}
 
+	public TokenMode getTokenMode() {
+		return tokenMode;
+	}
+
+	/**
+	 * Sets how the tokens of this template are issued. Signed tokens need no database write when the mail is sent and are meant for mails like
+	 * newsletter confirmations, see {@link TokenMode}. Default is {@link TokenMode#STORED}.
+	 * 
+	 * @param tokenMode
+	 *            non-null token mode.
+	 */
+	public void setTokenMode(TokenMode tokenMode) {
+		Util.assertNotNull(tokenMode, "tokenMode");
+		this.tokenMode = tokenMode;
+	}
+
+	public long getIdempotencyWindowSeconds() {
+		return idempotencyWindowSeconds;
+	}
+
+	/**
+	 * Time after sending a mail with token in which a repeated request for the same mail address, e.g. from a form submitted twice, returns the
+	 * token of the first mail instead of sending another one. A token which is used meanwhile is not returned. Requests on the same mailer find
+	 * the token in memory, requests on other nodes look it up in the database; the in-memory token store is not searched. Default is 0, which
+	 * sends a mail for every request.
+	 * 
+	 * @param idempotencyWindowSeconds
+	 *            time in seconds, at most the validity of the token.
+	 */
+	public void setIdempotencyWindowSeconds(long idempotencyWindowSeconds) {
+		if (idempotencyWindowSeconds < 0 || idempotencyWindowSeconds > validityMinutes * 60) {
+			throw new IllegalArgumentException("idempotencyWindowSeconds must be between 0 and the validity of the token");
+		}
+		this.idempotencyWindowSeconds = idempotencyWindowSeconds;
+	}
+
 }
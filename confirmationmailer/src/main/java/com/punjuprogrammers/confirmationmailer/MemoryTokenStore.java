@@ -0,0 +1,714 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the tokens in memory, for a single node without a database. The tokens are held by their 128 bits in open addressing hash tables of
+ * primitive arrays, with the expiry and use dates as numbers, so a lookup needs no database and creates no garbage beyond the returned token. The
+ * expired tokens are found through a {@link TimingWheel} of their expiry dates instead of a scan.
+ * 
+ * Expired tokens stay until they are purged, as in the database, so {@link ConfirmationMailer#validateToken(String)} still tells them from
+ * unknown ones. The store accepts only tokens it has issued itself.
+ * 
+ * With a log file, every change is appended to a {@link TokenLog} and the tokens are read back from it on the next start. The log is rewritten
+ * with the live tokens at the start and whenever a purge finds it has doubled since.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class MemoryTokenStore implements TokenStore {
+	private static final int SEGMENT_COUNT = 16;
+	private static final int SEGMENT_CAPACITY = 64;
+	private static final long TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 4096;
+	private static final long MIN_REWRITE_SIZE = 4 << 20;
+	private static final Comparator<MailToken> BY_TOKEN = new Comparator<MailToken>() {
+		public int compare(MailToken t1, MailToken t2) {
+			return t1.getToken().compareTo(t2.getToken());
+		}
+	};
+	private static final Comparator<MailToken> BY_EXPIRY_DATE = new Comparator<MailToken>() {
+		public int compare(MailToken t1, MailToken t2) {
+			int result = t1.getExpiryDate().compareTo(t2.getExpiryDate());
+			return result != 0 ? result : BY_TOKEN.compare(t1, t2);
+		}
+	};
+	private static final Comparator<MailToken> BY_USED_DATE = new Comparator<MailToken>() {
+		public int compare(MailToken t1, MailToken t2) {
+			int result = t1.getUsedDate().compareTo(t2.getUsedDate());
+			return result != 0 ? result : BY_TOKEN.compare(t1, t2);
+		}
+	};
+
+	private final TokenGenerator tokenGenerator;
+	private final Segment[] segments = new Segment[SEGMENT_COUNT];
+	private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE);
+	private final Map<String, MailTokenUse> uses = new ConcurrentHashMap<String, MailTokenUse>();
+	private final TokenLog log;
+	// changes are made and logged under the read lock, the log is rewritten under the write lock
+	private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+	private long rewrittenSize;
+
+	/**
+	 * @param logFile
+	 *            file to keep the tokens across restarts, null to keep them in memory only.
+	 */
+	MemoryTokenStore(TokenGenerator tokenGenerator, File logFile) {
+		this.tokenGenerator = tokenGenerator;
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment(SEGMENT_CAPACITY);
+		}
+		if (logFile == null) {
+			log = null;
+			return;
+		}
+		log = new TokenLog(logFile);
+		try {
+			log.replay(new TokenLog.Replay() {
+				public void put(long high, long low, long expiryMillis, long usedMillis, String mailType, String mailId, String userData) {
+					Segment segment = segment(high, low);
+					synchronized (segment) {
+						segment.put(high, low, expiryMillis, usedMillis, new Details(mailType, mailId, userData));
+					}
+					wheel.add(high, low, expiryMillis);
+				}
+
+				public void used(long high, long low, long usedMillis) {
+					Segment segment = segment(high, low);
+					synchronized (segment) {
+						int slot = segment.indexOf(high, low);
+						if (slot >= 0) {
+							segment.usedDates[slot] = usedMillis;
+						}
+					}
+				}
+
+				public void delete(long high, long low) {
+					Segment segment = segment(high, low);
+					synchronized (segment) {
+						int slot = segment.indexOf(high, low);
+						if (slot >= 0) {
+							segment.remove(slot);
+						}
+					}
+				}
+
+				public void use(String id, long usedMillis, long expiryMillis) {
+					uses.put(id, new MailTokenUse(id, new Date(usedMillis), new Date(expiryMillis)));
+				}
+
+				public void deleteUse(String id) {
+					uses.remove(id);
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		rewrite();
+	}
+
+	/**
+	 * Writes the log to disk and closes it. The store must not be changed afterwards.
+	 */
+	void close() {
+		if (log != null) {
+			logLock.writeLock().lock();
+			try {
+				log.close();
+			} finally {
+				logLock.writeLock().unlock();
+			}
+		}
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return TokenEncoding.encode(tokenGenerator.generate());
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		if (mail != null) {
+			throw new IllegalStateException("The outbox needs a database");
+		}
+		beginChange();
+		try {
+			store(mailToken);
+		} finally {
+			endChange();
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		if (mails != null && !mails.isEmpty()) {
+			throw new IllegalStateException("The outbox needs a database");
+		}
+		beginChange();
+		try {
+			for (MailToken mailToken : mailTokens) {
+				store(mailToken);
+			}
+		} finally {
+			endChange();
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		UUID bits = TokenEncoding.decode(token);
+		if (bits == null) {
+			return null;
+		}
+		Segment segment = segment(bits.getMostSignificantBits(), bits.getLeastSignificantBits());
+		synchronized (segment) {
+			int slot = segment.indexOf(bits.getMostSignificantBits(), bits.getLeastSignificantBits());
+			return slot < 0 ? null : segment.toMailToken(slot);
+		}
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		UUID bits = TokenEncoding.decode(token);
+		if (bits == null) {
+			return null;
+		}
+		long high = bits.getMostSignificantBits();
+		long low = bits.getLeastSignificantBits();
+		Segment segment = segment(high, low);
+		beginChange();
+		try {
+			synchronized (segment) {
+				int slot = segment.indexOf(high, low);
+				if (slot < 0 || !segment.isValid(slot, now.getTime())) {
+					return null;
+				}
+				segment.usedDates[slot] = now.getTime();
+				if (log != null) {
+					log.used(high, low, now.getTime());
+				}
+				return segment.toMailToken(slot);
+			}
+		} finally {
+			endChange();
+		}
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		return delete(token, now.getTime());
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		return delete(token, Long.MIN_VALUE);
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		int count = 0;
+		for (String token : tokens) {
+			if (delete(token) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Takes the due entries from the timing wheel and deletes the tokens which are still there.
+	 */
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		long tillMillis = expiryDateTill.getTime();
+		int count = 0;
+		long[] entries;
+		while (count < limit && (entries = wheel.drain(tillMillis, limit - count)).length > 0) {
+			count += evict(entries, tillMillis, limit - count);
+		}
+		if (count < limit) {
+			count += evict(wheel.drainCurrent(tillMillis), tillMillis, limit - count);
+		}
+		rewriteIfGrown();
+		return count;
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		int count = 0;
+		beginChange();
+		try {
+			for (Segment segment : segments) {
+				synchronized (segment) {
+					for (int slot = 0; slot < segment.details.length && count < limit;) {
+						if (segment.details[slot] != null && segment.usedDates[slot] != 0) {
+							removeLogged(segment, slot);
+							count++;
+							// the slot holds the next entry after the shift
+						} else {
+							slot++;
+						}
+					}
+				}
+			}
+		} finally {
+			endChange();
+		}
+		rewriteIfGrown();
+		return count;
+	}
+
+	@Override
+	public List<MailToken> findExpired(final Date expiryDateTill) {
+		return select(new Condition() {
+			public boolean accept(long expiryMillis, long usedMillis) {
+				return expiryMillis <= expiryDateTill.getTime();
+			}
+		}, null, null, 0);
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		return select(new Condition() {
+			public boolean accept(long expiryMillis, long usedMillis) {
+				return usedMillis != 0;
+			}
+		}, null, null, 0);
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		return select(usedBetween(usedDateFrom, usedDateTill), null, null, 0);
+	}
+
+	@Override
+	public List<MailToken> findExpiredPage(final Date expiryDateTill, MailToken after, int limit) {
+		return select(new Condition() {
+			public boolean accept(long expiryMillis, long usedMillis) {
+				return expiryMillis <= expiryDateTill.getTime();
+			}
+		}, BY_EXPIRY_DATE, after, limit);
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		if (usedDateFrom == null) {
+			return select(new Condition() {
+				public boolean accept(long expiryMillis, long usedMillis) {
+					return usedMillis != 0;
+				}
+			}, BY_TOKEN, after, limit);
+		}
+		return select(usedBetween(usedDateFrom, usedDateTill), BY_USED_DATE, after, limit);
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		beginChange();
+		try {
+			if (uses.putIfAbsent(use.getId(), use) != null) {
+				return false;
+			}
+			if (log != null) {
+				log.use(use.getId(), use.getUsedDate().getTime(), use.getExpiryDate().getTime());
+			}
+			return true;
+		} finally {
+			endChange();
+		}
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		return uses.get(id);
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		int count = 0;
+		beginChange();
+		try {
+			for (Iterator<MailTokenUse> i = uses.values().iterator(); i.hasNext() && count < limit;) {
+				MailTokenUse use = i.next();
+				if (!use.getExpiryDate().after(expiryDateTill)) {
+					i.remove();
+					if (log != null) {
+						log.deleteUse(use.getId());
+					}
+					count++;
+				}
+			}
+		} finally {
+			endChange();
+		}
+		rewriteIfGrown();
+		return count;
+	}
+
+	/**
+	 * Not indexed by mail, the mailer keeps the recent mails of this node in memory anyway.
+	 */
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		return null;
+	}
+
+	@Override
+	public long count() {
+		long count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.size;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		for (Segment segment : segments) {
+			List<String> tokens = new ArrayList<String>();
+			synchronized (segment) {
+				for (int slot = 0; slot < segment.details.length; slot++) {
+					if (segment.details[slot] != null) {
+						tokens.add(TokenEncoding.encode(segment.keys[2 * slot], segment.keys[2 * slot + 1]));
+					}
+				}
+			}
+			action.accept(tokens);
+		}
+	}
+
+	private void store(MailToken mailToken) {
+		UUID bits = TokenEncoding.decode(mailToken.getToken());
+		if (bits == null) {
+			throw new IllegalArgumentException("Token " + mailToken.getToken() + " was not issued by this store");
+		}
+		long high = bits.getMostSignificantBits();
+		long low = bits.getLeastSignificantBits();
+		long expiryMillis = mailToken.getExpiryDate().getTime();
+		long usedMillis = mailToken.getUsedDate() == null ? 0 : mailToken.getUsedDate().getTime();
+		Segment segment = segment(high, low);
+		synchronized (segment) {
+			segment.put(high, low, expiryMillis, usedMillis, new Details(mailToken.getMailType(), mailToken.getMailId(), mailToken.getUserData()));
+			if (log != null) {
+				log.put(high, low, expiryMillis, usedMillis, mailToken.getMailType(), mailToken.getMailId(), mailToken.getUserData());
+			}
+		}
+		wheel.add(high, low, expiryMillis);
+	}
+
+	/**
+	 * Deletes the token.
+	 * 
+	 * @param validAt
+	 *            time at which the token must be valid to be deleted, {@link Long#MIN_VALUE} to delete it in any state.
+	 */
+	private MailToken delete(String token, long validAt) {
+		UUID bits = TokenEncoding.decode(token);
+		if (bits == null) {
+			return null;
+		}
+		Segment segment = segment(bits.getMostSignificantBits(), bits.getLeastSignificantBits());
+		beginChange();
+		try {
+			synchronized (segment) {
+				int slot = segment.indexOf(bits.getMostSignificantBits(), bits.getLeastSignificantBits());
+				if (slot < 0 || (validAt != Long.MIN_VALUE && !segment.isValid(slot, validAt))) {
+					return null;
+				}
+				MailToken mailToken = segment.toMailToken(slot);
+				removeLogged(segment, slot);
+				return mailToken;
+			}
+		} finally {
+			endChange();
+		}
+	}
+
+	/**
+	 * Deletes at most <code>limit</code> tokens of the drained wheel entries which are expired at <code>tillMillis</code>. The other entries are
+	 * given back to the wheel, except those of tokens which are gone.
+	 */
+	private int evict(long[] entries, long tillMillis, int limit) {
+		int count = 0;
+		beginChange();
+		try {
+			for (int i = 0; i < entries.length; i += 3) {
+				long high = entries[i];
+				long low = entries[i + 1];
+				long expiryMillis = entries[i + 2];
+				if (expiryMillis > tillMillis || count >= limit) {
+					wheel.add(high, low, expiryMillis);
+					continue;
+				}
+				Segment segment = segment(high, low);
+				synchronized (segment) {
+					int slot = segment.indexOf(high, low);
+					if (slot >= 0 && segment.expiryDates[slot] <= tillMillis) {
+						removeLogged(segment, slot);
+						count++;
+					}
+				}
+			}
+		} finally {
+			endChange();
+		}
+		return count;
+	}
+
+	private void removeLogged(Segment segment, int slot) {
+		if (log != null) {
+			log.delete(segment.keys[2 * slot], segment.keys[2 * slot + 1]);
+		}
+		segment.remove(slot);
+	}
+
+	/**
+	 * Selects the tokens matching <code>condition</code>.
+	 * 
+	 * @param order
+	 *            order of a page, null for all matching tokens in no particular order.
+	 * @param after
+	 *            last token of the previous page, null for the first page.
+	 */
+	private List<MailToken> select(Condition condition, final Comparator<MailToken> order, MailToken after, int limit) {
+		// the largest of the page is on top, to be dropped for a smaller one
+		PriorityQueue<MailToken> page = order == null ? null : new PriorityQueue<MailToken>(Math.min(limit, 1024) + 1, Collections.reverseOrder(order));
+		List<MailToken> result = new ArrayList<MailToken>();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (int slot = 0; slot < segment.details.length; slot++) {
+					if (segment.details[slot] == null || !condition.accept(segment.expiryDates[slot], segment.usedDates[slot])) {
+						continue;
+					}
+					MailToken mailToken = segment.toMailToken(slot);
+					if (page == null) {
+						result.add(mailToken);
+					} else if (after == null || order.compare(mailToken, after) > 0) {
+						page.add(mailToken);
+						if (page.size() > limit) {
+							page.poll();
+						}
+					}
+				}
+			}
+		}
+		if (page != null) {
+			result.addAll(page);
+			Collections.sort(result, order);
+		}
+		return result;
+	}
+
+	private static Condition usedBetween(final Date usedDateFrom, final Date usedDateTill) {
+		return new Condition() {
+			public boolean accept(long expiryMillis, long usedMillis) {
+				return usedMillis != 0 && usedMillis >= usedDateFrom.getTime() && usedMillis <= usedDateTill.getTime();
+			}
+		};
+	}
+
+	private void beginChange() {
+		if (log != null) {
+			logLock.readLock().lock();
+		}
+	}
+
+	private void endChange() {
+		if (log != null) {
+			logLock.readLock().unlock();
+		}
+	}
+
+	private void rewriteIfGrown() {
+		if (log != null && log.size() > Math.max(2 * rewrittenSize, MIN_REWRITE_SIZE)) {
+			rewrite();
+		}
+	}
+
+	private void rewrite() {
+		logLock.writeLock().lock();
+		try {
+			log.rewrite(new TokenLog.Contents() {
+				public void writeTo(TokenLog target) {
+					for (Segment segment : segments) {
+						for (int slot = 0; slot < segment.details.length; slot++) {
+							Details details = segment.details[slot];
+							if (details != null) {
+								target.put(segment.keys[2 * slot], segment.keys[2 * slot + 1], segment.expiryDates[slot], segment.usedDates[slot],
+										details.mailType, details.mailId, details.userData);
+							}
+						}
+					}
+					for (MailTokenUse use : uses.values()) {
+						target.use(use.getId(), use.getUsedDate().getTime(), use.getExpiryDate().getTime());
+					}
+				}
+			});
+			// also if the log could not be replaced, to not try again with every purge
+			rewrittenSize = log.size();
+		} finally {
+			logLock.writeLock().unlock();
+		}
+	}
+
+	private Segment segment(long high, long low) {
+		return segments[(int) (hash(high, low) >>> 60)];
+	}
+
+	private static long hash(long high, long low) {
+		long hash = high * 0x9E3779B97F4A7C15L + low;
+		hash ^= hash >>> 31;
+		hash *= 0xBF58476D1CE4E5B9L;
+		return hash ^ (hash >>> 29);
+	}
+
+	private interface Condition {
+		boolean accept(long expiryMillis, long usedMillis);
+	}
+
+	/**
+	 * The variable length fields of a token.
+	 */
+	private static final class Details {
+		final String mailType;
+		final String mailId;
+		final String userData;
+
+		Details(String mailType, String mailId, String userData) {
+			this.mailType = mailType;
+			this.mailId = mailId;
+			this.userData = userData;
+		}
+	}
+
+	/**
+	 * Hash table with linear probing, the fields of a slot are kept in parallel arrays. A slot is free while its details are null. Deletion
+	 * shifts the following entries back, so there are no tombstones. Access is synchronized on the segment.
+	 */
+	private static final class Segment {
+		long[] keys;
+		long[] expiryDates;
+		// 0 while the token is not used
+		long[] usedDates;
+		Details[] details;
+		int size;
+
+		Segment(int capacity) {
+			allocate(capacity);
+		}
+
+		int indexOf(long high, long low) {
+			int mask = details.length - 1;
+			for (int slot = home(high, low, mask); details[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[2 * slot] == high && keys[2 * slot + 1] == low) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		boolean isValid(int slot, long now) {
+			return usedDates[slot] == 0 && expiryDates[slot] > now;
+		}
+
+		void put(long high, long low, long expiryMillis, long usedMillis, Details tokenDetails) {
+			int slot = indexOf(high, low);
+			if (slot < 0) {
+				if ((size + 1) * 3 > details.length * 2) {
+					resize();
+				}
+				int mask = details.length - 1;
+				slot = home(high, low, mask);
+				while (details[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[2 * slot] = high;
+				keys[2 * slot + 1] = low;
+				size++;
+			}
+			expiryDates[slot] = expiryMillis;
+			usedDates[slot] = usedMillis;
+			details[slot] = tokenDetails;
+		}
+
+		void remove(int slot) {
+			int mask = details.length - 1;
+			int hole = slot;
+			for (int next = (slot + 1) & mask; details[next] != null; next = (next + 1) & mask) {
+				int home = home(keys[2 * next], keys[2 * next + 1], mask);
+				// the entry may fill the hole if the hole is not before its home slot
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[2 * hole] = keys[2 * next];
+					keys[2 * hole + 1] = keys[2 * next + 1];
+					expiryDates[hole] = expiryDates[next];
+					usedDates[hole] = usedDates[next];
+					details[hole] = details[next];
+					hole = next;
+				}
+			}
+			details[hole] = null;
+			size--;
+		}
+
+		MailToken toMailToken(int slot) {
+			Details tokenDetails = details[slot];
+			MailToken mailToken = new MailToken(TokenEncoding.encode(keys[2 * slot], keys[2 * slot + 1]), tokenDetails.mailType,
+					new Date(expiryDates[slot]), tokenDetails.mailId, tokenDetails.userData);
+			if (usedDates[slot] != 0) {
+				mailToken.setStatus(ConfirmationMailer.TOKEN_STATUS_USED);
+				mailToken.setUsedDate(new Date(usedDates[slot]));
+			}
+			return mailToken;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			long[] oldExpiryDates = expiryDates;
+			long[] oldUsedDates = usedDates;
+			Details[] oldDetails = details;
+			allocate(oldDetails.length * 2);
+			size = 0;
+			for (int slot = 0; slot < oldDetails.length; slot++) {
+				if (oldDetails[slot] != null) {
+					put(oldKeys[2 * slot], oldKeys[2 * slot + 1], oldExpiryDates[slot], oldUsedDates[slot], oldDetails[slot]);
+				}
+			}
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[2 * capacity];
+			expiryDates = new long[capacity];
+			usedDates = new long[capacity];
+			details = new Details[capacity];
+		}
+
+		private static int home(long high, long low, int mask) {
+			return (int) hash(high, low) & mask;
+		}
+	}
+}
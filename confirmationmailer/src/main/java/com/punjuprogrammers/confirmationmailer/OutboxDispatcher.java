@@ -0,0 +1,236 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import com.punjuprogrammers.confirmationmailer.utils.MailUtil;
+
+/**
+ * Delivers the mails saved in the {@link MailOutbox}.
+ * 
+ * Rows are claimed in batches by setting a lease on them with a conditional update. A row whose lease is not expired is skipped by the other
+ * dispatchers, therefore several nodes can drain the same outbox. The lease is renewed while the batch is sent, and a row is only deleted or
+ * updated by the dispatcher still holding its lease. If a node dies while holding a lease, the rows are picked up again once the lease expires.
+ * 
+ * A single mail taking longer than the lease, see {@link MailerConfig#setOutboxLeaseMillis(long)}, can still be sent by two nodes. The SMTP
+ * timeout should therefore be well below the lease.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class OutboxDispatcher {
+	// mails sent between two checks of the lease
+	private static final int SLICE_SIZE = 20;
+
+	private final OutboxStore outboxStore;
+	private final SmtpRouter smtpRouter;
+	private final MailerConfig mailConfig;
+	private final TokenStore tokenStore;
+	private final String nodeId = UUID.randomUUID().toString();
+	private final AtomicLong claimSequence = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param tokenStore
+	 *            store to delete the token from when its mail cannot be delivered.
+	 */
+	OutboxDispatcher(OutboxStore outboxStore, SmtpRouter smtpRouter, MailerConfig mailConfig, TokenStore tokenStore) {
+		this.outboxStore = outboxStore;
+		this.smtpRouter = smtpRouter;
+		this.mailConfig = mailConfig;
+		this.tokenStore = tokenStore;
+	}
+
+	/**
+	 * Starts polling the outbox every {@link MailerConfig#getOutboxPollMillis()} milliseconds.
+	 */
+	void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "confirmationmailer-outbox");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					while (dispatch() == mailConfig.getOutboxBatchSize()) {
+						// full batch, more rows are probably waiting
+					}
+				} catch (RuntimeException e) {
+					// database not reachable, try again with the next poll
+				}
+			}
+		}, mailConfig.getOutboxPollMillis(), mailConfig.getOutboxPollMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(mailConfig.getOutboxLeaseMillis(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	long countPending() {
+		return outboxStore.countPending();
+	}
+
+	/**
+	 * Claims one batch of due mails and delivers them.
+	 * 
+	 * @return number of mails claimed.
+	 */
+	int dispatch() {
+		long leaseMillis = mailConfig.getOutboxLeaseMillis();
+		long now = System.currentTimeMillis();
+		String leaseOwner = nodeId + ":" + claimSequence.incrementAndGet();
+		List<MailOutbox> batch = outboxStore.claim(new Date(now), new Date(now + leaseMillis), leaseOwner, mailConfig.getOutboxBatchSize());
+		long renewAt = now + leaseMillis / 2;
+		List<MailOutbox> due = new ArrayList<MailOutbox>(batch.size());
+		for (MailOutbox mail : batch) {
+			long delayMillis = smtpRouter.domainDelayMillis(mail.getMailId());
+			if (delayMillis > 0) {
+				defer(mail, leaseOwner, delayMillis);
+			} else {
+				due.add(mail);
+			}
+		}
+		for (int from = 0; from < due.size(); from += SLICE_SIZE) {
+			now = System.currentTimeMillis();
+			if (now >= renewAt) {
+				if (renew(leaseOwner, new Date(now + leaseMillis)) < due.size() - from) {
+					// some of the rest went to another dispatcher, which ones is not known; the others are picked up after the lease
+					break;
+				}
+				renewAt = now + leaseMillis / 2;
+			}
+			List<MailOutbox> slice = due.subList(from, Math.min(from + SLICE_SIZE, due.size()));
+			List<SmtpRouter.Mail> mails = new ArrayList<SmtpRouter.Mail>(slice.size());
+			for (MailOutbox mail : slice) {
+				mails.add(new SmtpRouter.Mail(mail.getMailType(), mail.getMailId(), mail.getSubject(), mail.getBody(), mail.getFromEmail()));
+			}
+			MessagingException[] errors = smtpRouter.sendAll(mails);
+			for (int i = 0; i < errors.length; i++) {
+				complete(slice.get(i), leaseOwner, errors[i]);
+			}
+		}
+		return batch.size();
+	}
+
+	/**
+	 * Returns at most <code>limit</code> mails which failed permanently, the oldest first.
+	 */
+	List<MailOutbox> findFailed(int limit) {
+		return outboxStore.findFailed(limit);
+	}
+
+	/**
+	 * Deletes the mails which failed permanently and were created till <code>createdDateTill</code>.
+	 */
+	int deleteFailed(Date createdDateTill) {
+		return outboxStore.deleteFailed(createdDateTill);
+	}
+
+	/**
+	 * Extends the lease of the rows still held by <code>leaseOwner</code>.
+	 * 
+	 * @return number of rows still leased.
+	 */
+	private int renew(String leaseOwner, Date leaseUntil) {
+		try {
+			return outboxStore.renew(leaseOwner, leaseUntil);
+		} catch (RuntimeException e) {
+			// nothing is known about the lease, the rows are left to its expiry
+			return 0;
+		}
+	}
+
+	/**
+	 * Deletes a sent mail, or records the failed attempt. Nothing is written for a mail whose lease was lost.
+	 */
+	private void complete(MailOutbox mail, String leaseOwner, MessagingException error) {
+		try {
+			if (error == null) {
+				outboxStore.delete(mail.getToken(), leaseOwner);
+				return;
+			}
+			mail.setAttempts(mail.getAttempts() + 1);
+			mail.setLastError(truncate(error.getMessage()));
+			mail.setLeaseOwner(null);
+			mail.setLeaseUntil(null);
+			if (MailUtil.isRefused(error) || mail.getAttempts() >= mailConfig.getOutboxMaxAttempts()) {
+				// permanent failure, the token is deleted once the status is committed
+				mail.setStatus(MailOutbox.STATUS_FAILED);
+			} else {
+				mail.setNextAttemptDate(new Date(System.currentTimeMillis() + retryDelayMillis(mail.getAttempts())));
+			}
+			if (!outboxStore.update(mail, leaseOwner)) {
+				// the mail belongs to another dispatcher now
+				return;
+			}
+		} catch (RuntimeException e) {
+			// lease expires and the mail is picked up again
+			return;
+		}
+		if (MailOutbox.STATUS_FAILED.equals(mail.getStatus())) {
+			mailConfig.getMetrics().recordFailed(mail.getMailType());
+			try {
+				tokenStore.delete(mail.getToken());
+				mailConfig.getMetrics().recordCompensatingDelete(mail.getMailType());
+			} catch (RuntimeException e) {
+				// left for the purge once expired
+			}
+		}
+	}
+
+	/**
+	 * Puts back a mail whose recipient domain is over its rate limit, without counting an attempt, so that the rest of the batch is not held up
+	 * by it.
+	 */
+	private void defer(MailOutbox mail, String leaseOwner, long delayMillis) {
+		mail.setLeaseOwner(null);
+		mail.setLeaseUntil(null);
+		mail.setNextAttemptDate(new Date(System.currentTimeMillis() + delayMillis));
+		try {
+			outboxStore.update(mail, leaseOwner);
+		} catch (RuntimeException e) {
+			// lease expires and the mail is picked up again
+		}
+	}
+
+	/**
+	 * Exponential backoff starting at the poll interval, at least one second.
+	 */
+	private long retryDelayMillis(int attempts) {
+		return Math.max(mailConfig.getOutboxPollMillis(), 1000) << Math.min(attempts, 16);
+	}
+
+	private static String truncate(String message) {
+		if (message != null && message.length() > 1000) {
+			return message.substring(0, 1000);
+		}
+		return message;
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Persistence of the {@link MailOutbox} rows, used by the {@link OutboxDispatcher}. Every method is one transaction.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+interface OutboxStore {
+	/**
+	 * Leases at most <code>limit</code> mails which are due at <code>now</code> and not leased by anybody else.
+	 * 
+	 * @return the mails leased to <code>leaseOwner</code>, detached.
+	 */
+	List<MailOutbox> claim(Date now, Date leaseUntil, String leaseOwner, int limit);
+
+	/**
+	 * Deletes a delivered mail, if it is still leased to <code>leaseOwner</code>.
+	 * 
+	 * @return false if the lease was lost, the mail then belongs to another dispatcher and is left alone.
+	 */
+	boolean delete(String token, String leaseOwner);
+
+	/**
+	 * Writes back the next attempt date, attempts, status and last error of a mail which could not be delivered and releases its lease, if the
+	 * mail is still leased to <code>leaseOwner</code>.
+	 * 
+	 * @return false if the lease was lost, the mail then belongs to another dispatcher and is left alone.
+	 */
+	boolean update(MailOutbox mail, String leaseOwner);
+
+	/**
+	 * Extends the lease of the mails leased to <code>leaseOwner</code>.
+	 * 
+	 * @return number of mails still leased to <code>leaseOwner</code>.
+	 */
+	int renew(String leaseOwner, Date leaseUntil);
+
+	/**
+	 * Returns the number of mails waiting for delivery, without the failed ones.
+	 */
+	long countPending();
+
+	/**
+	 * Returns at most <code>limit</code> mails which failed permanently, the oldest first.
+	 */
+	List<MailOutbox> findFailed(int limit);
+
+	/**
+	 * Deletes the mails which failed permanently and were created till <code>createdDateTill</code>.
+	 * 
+	 * @return number of mails deleted.
+	 */
+	int deleteFailed(Date createdDateTill);
+}
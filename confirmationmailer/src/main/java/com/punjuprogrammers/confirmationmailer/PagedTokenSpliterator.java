@@ -0,0 +1,79 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator over tokens read page by page with keyset pagination. Only one page is held in memory and every page is read with its own
+ * EntityManager, so no database cursor or connection is kept open while the caller processes the tokens.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class PagedTokenSpliterator extends Spliterators.AbstractSpliterator<MailToken> {
+
+	/**
+	 * Reads the page following a token.
+	 */
+	interface PageReader {
+		List<MailToken> read(MailToken after, int limit);
+	}
+
+	private final PageReader reader;
+	private final int pageSize;
+	private Iterator<MailToken> page = Collections.<MailToken> emptyList().iterator();
+	private MailToken last;
+	private boolean lastPage;
+
+	private PagedTokenSpliterator(PageReader reader, int pageSize) {
+		super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+		this.reader = reader;
+		this.pageSize = pageSize;
+	}
+
+	static Stream<MailToken> stream(PageReader reader, int pageSize) {
+		return StreamSupport.stream(new PagedTokenSpliterator(reader, pageSize), false);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super MailToken> action) {
+		if (!page.hasNext()) {
+			if (lastPage) {
+				return false;
+			}
+			List<MailToken> next = reader.read(last, pageSize);
+			lastPage = next.size() < pageSize;
+			page = next.iterator();
+			if (!page.hasNext()) {
+				return false;
+			}
+		}
+		MailToken mailToken = page.next();
+		last = cursor(mailToken);
+		action.accept(mailToken);
+		return true;
+	}
+
+	/**
+	 * Copies the keys used for the next page, so that the caller can change the returned token.
+	 */
+	private static MailToken cursor(MailToken mailToken) {
+		MailToken cursor = new MailToken(mailToken.getToken(), null, mailToken.getExpiryDate(), null, null);
+		cursor.setUsedDate(mailToken.getUsedDate());
+		return cursor;
+	}
+}
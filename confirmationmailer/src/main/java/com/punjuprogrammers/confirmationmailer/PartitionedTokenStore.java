@@ -0,0 +1,1119 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+
+/**
+ * Token storage in time buckets. Every bucket covers {@link MailerConfig#getTokenPartitionMillis()} of expiry dates and has its own table,
+ * created on first use and listed in the table <code>MAIL_TOKEN_PARTITION</code>. The bucket is the prefix of the token, so a lookup goes
+ * straight to its table. Once all tokens of a bucket are expired, the purge drops the whole table instead of deleting its rows.
+ *
+ * A bucket table has one of two layouts, see {@link Layout}. New tokens are stored in the layout chosen by
+ * {@link MailerConfig#isCompactTokens()}, the separator after the bucket tells the layout of an existing token.
+ *
+ * Tokens without a bucket prefix, issued before partitioning was enabled, are kept in the <code>MAIL_TOKEN</code> table of the wrapped store.
+ * Recorded uses of signed tokens are kept there as well.
+ *
+ * The bucket tables are accessed with native SQL, because the {@link MailToken} entity is mapped to <code>MAIL_TOKEN</code>.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class PartitionedTokenStore implements TokenStore {
+	private static final String REGISTRY = "MAIL_TOKEN_PARTITION";
+	private static final long REGISTRY_RELOAD_MILLIS = 1000;
+	private static final int SCAN_PAGE_SIZE = 1000;
+	private static final Comparator<MailToken> EXPIRY_ORDER = new Comparator<MailToken>() {
+		public int compare(MailToken a, MailToken b) {
+			int result = a.getExpiryDate().compareTo(b.getExpiryDate());
+			return result != 0 ? result : a.getToken().compareTo(b.getToken());
+		}
+	};
+	private static final Comparator<MailToken> USED_ORDER = new Comparator<MailToken>() {
+		public int compare(MailToken a, MailToken b) {
+			int result = a.getUsedDate().compareTo(b.getUsedDate());
+			return result != 0 ? result : a.getToken().compareTo(b.getToken());
+		}
+	};
+	private static final Comparator<MailToken> TOKEN_ORDER = new Comparator<MailToken>() {
+		public int compare(MailToken a, MailToken b) {
+			return a.getToken().compareTo(b.getToken());
+		}
+	};
+
+	/**
+	 * Column layout of a bucket table.
+	 */
+	enum Layout {
+		/**
+		 * Same columns as <code>MAIL_TOKEN</code>. Tokens have the form <code>&lt;bucket&gt;_&lt;key&gt;</code>, the key in the form of
+		 * {@link TokenEncoding}.
+		 */
+		TEXT("MAIL_TOKEN_P", '_') {
+			@Override
+			String createTable(String table) {
+				return "CREATE TABLE " + table + " (TOKEN VARCHAR(255) NOT NULL PRIMARY KEY, MAIL_TYPE VARCHAR(255) NOT NULL,"
+						+ " MAIL_ID VARCHAR(255) NOT NULL, USER_DATA VARCHAR(255), EXPIRY_DATE TIMESTAMP NOT NULL, STATUS VARCHAR(255),"
+						+ " USED_DATE TIMESTAMP)";
+			}
+
+			@Override
+			String columns() {
+				return "TOKEN, MAIL_TYPE, MAIL_ID, USER_DATA, EXPIRY_DATE, STATUS, USED_DATE";
+			}
+
+			@Override
+			String keyColumns() {
+				return "TOKEN";
+			}
+
+			@Override
+			String expiryColumn() {
+				return "EXPIRY_DATE";
+			}
+
+			@Override
+			String usedColumn() {
+				return "USED_DATE";
+			}
+
+			@Override
+			String valid() {
+				return "STATUS IS NULL";
+			}
+
+			@Override
+			String used() {
+				return "STATUS <= '" + ConfirmationMailer.TOKEN_STATUS_USED + "'";
+			}
+
+			@Override
+			Object usedStatus() {
+				return ConfirmationMailer.TOKEN_STATUS_USED;
+			}
+
+			@Override
+			Object time(Date date) {
+				return date;
+			}
+
+			@Override
+			String newKey(UUID bits) {
+				return TokenEncoding.encode(bits);
+			}
+
+			@Override
+			boolean isKey(int length) {
+				// 36 for the UUID strings of older tokens
+				return length == TokenEncoding.LENGTH || length == 36;
+			}
+
+			@Override
+			boolean appendKey(Sql sql, String token, String prefix) {
+				sql.append("TOKEN = ").param(token);
+				return true;
+			}
+
+			@Override
+			void appendAfter(Sql sql, String after, String prefix) {
+				sql.append("TOKEN > ").param(after);
+			}
+
+			@Override
+			void appendAtMost(Sql sql, String token, String prefix) {
+				sql.append("TOKEN <= ").param(token);
+			}
+
+			@Override
+			void bindInsert(Sql sql, MailToken mailToken, String prefix) {
+				sql.param(mailToken.getToken()).append(", ").param(mailToken.getMailType()).append(", ").param(mailToken.getMailId()).append(", ")
+						.param(mailToken.getUserData()).append(", ").param(mailToken.getExpiryDate()).append(", ").param(mailToken.getStatus())
+						.append(", ").param(mailToken.getUsedDate());
+			}
+
+			@Override
+			MailToken toMailToken(Object[] row, String prefix) {
+				MailToken mailToken = new MailToken((String) row[0], (String) row[1], toDate(row[4]), (String) row[2], (String) row[3]);
+				mailToken.setStatus((String) row[5]);
+				mailToken.setUsedDate(toDate(row[6]));
+				return mailToken;
+			}
+		},
+		/**
+		 * The 128 bit key in two BIGINT columns, dates as epoch milliseconds and the status as a number. Tokens have the form
+		 * <code>&lt;bucket&gt;x&lt;32 hex digits&gt;</code>. Each key column holds its half with the sign bit flipped, so that the numeric
+		 * order of the columns is the order of the hex digits, and keyset pages by token work the same as for the text layout.
+		 */
+		COMPACT("MAIL_TOKEN_C", 'x') {
+			@Override
+			String createTable(String table) {
+				return "CREATE TABLE " + table + " (TOKEN_HI BIGINT NOT NULL, TOKEN_LO BIGINT NOT NULL, MAIL_TYPE VARCHAR(255) NOT NULL,"
+						+ " MAIL_ID VARCHAR(255) NOT NULL, USER_DATA VARCHAR(255), EXPIRY_MILLIS BIGINT NOT NULL, STATUS SMALLINT NOT NULL,"
+						+ " USED_MILLIS BIGINT, PRIMARY KEY (TOKEN_HI, TOKEN_LO))";
+			}
+
+			@Override
+			String columns() {
+				return "TOKEN_HI, TOKEN_LO, MAIL_TYPE, MAIL_ID, USER_DATA, EXPIRY_MILLIS, STATUS, USED_MILLIS";
+			}
+
+			@Override
+			String keyColumns() {
+				return "TOKEN_HI, TOKEN_LO";
+			}
+
+			@Override
+			String expiryColumn() {
+				return "EXPIRY_MILLIS";
+			}
+
+			@Override
+			String usedColumn() {
+				return "USED_MILLIS";
+			}
+
+			@Override
+			String valid() {
+				return "STATUS = " + STATUS_VALID;
+			}
+
+			@Override
+			String used() {
+				return "STATUS = " + STATUS_USED;
+			}
+
+			@Override
+			Object usedStatus() {
+				return STATUS_USED;
+			}
+
+			@Override
+			Object time(Date date) {
+				return date == null ? null : date.getTime();
+			}
+
+			@Override
+			String newKey(UUID bits) {
+				return hex(bits.getMostSignificantBits()) + hex(bits.getLeastSignificantBits());
+			}
+
+			@Override
+			boolean isKey(int length) {
+				return length == 32;
+			}
+
+			@Override
+			boolean appendKey(Sql sql, String token, String prefix) {
+				long[] key = parseKey(token, prefix);
+				if (key == null) {
+					return false;
+				}
+				sql.append("TOKEN_HI = ").param(key[0]).append(" AND TOKEN_LO = ").param(key[1]);
+				return true;
+			}
+
+			/**
+			 * Tokens of other tables compare by their prefix, which is before or after all tokens of this table.
+			 */
+			@Override
+			void appendAfter(Sql sql, String after, String prefix) {
+				long[] key = parseKey(after, prefix);
+				if (key != null) {
+					sql.append("(TOKEN_HI > ").param(key[0]).append(" OR (TOKEN_HI = ").param(key[0]).append(" AND TOKEN_LO > ").param(key[1])
+							.append("))");
+				} else {
+					sql.append(after.compareTo(prefix) < 0 ? "1 = 1" : "1 = 0");
+				}
+			}
+
+			@Override
+			void appendAtMost(Sql sql, String token, String prefix) {
+				long[] key = parseKey(token, prefix);
+				sql.append("(TOKEN_HI < ").param(key[0]).append(" OR (TOKEN_HI = ").param(key[0]).append(" AND TOKEN_LO <= ").param(key[1])
+						.append("))");
+			}
+
+			@Override
+			void bindInsert(Sql sql, MailToken mailToken, String prefix) {
+				long[] key = parseKey(mailToken.getToken(), prefix);
+				boolean used = mailToken.getStatus() != null;
+				sql.param(key[0]).append(", ").param(key[1]).append(", ").param(mailToken.getMailType()).append(", ").param(mailToken.getMailId())
+						.append(", ").param(mailToken.getUserData()).append(", ").param(time(mailToken.getExpiryDate())).append(", ")
+						.param(used ? STATUS_USED : STATUS_VALID).append(", ").param(time(mailToken.getUsedDate()));
+			}
+
+			@Override
+			MailToken toMailToken(Object[] row, String prefix) {
+				String token = prefix + hex(((Number) row[0]).longValue() ^ Long.MIN_VALUE) + hex(((Number) row[1]).longValue() ^ Long.MIN_VALUE);
+				MailToken mailToken = new MailToken(token, (String) row[2], toDate(row[5]), (String) row[3], (String) row[4]);
+				if (((Number) row[6]).intValue() == STATUS_USED) {
+					mailToken.setStatus(ConfirmationMailer.TOKEN_STATUS_USED);
+				}
+				mailToken.setUsedDate(toDate(row[7]));
+				return mailToken;
+			}
+
+			/**
+			 * Returns the stored key columns of the token, null if the token does not belong to the table. Only the lower case hex digits of
+			 * issued tokens are accepted, the parser of {@link Long} would read another spelling of the same key as well.
+			 */
+			private long[] parseKey(String token, String prefix) {
+				if (!token.startsWith(prefix) || token.length() != prefix.length() + 32) {
+					return null;
+				}
+				int start = prefix.length();
+				for (int i = start; i < token.length(); i++) {
+					char c = token.charAt(i);
+					if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+						return null;
+					}
+				}
+				return new long[] { Long.parseUnsignedLong(token.substring(start, start + 16), 16) ^ Long.MIN_VALUE,
+						Long.parseUnsignedLong(token.substring(start + 16), 16) ^ Long.MIN_VALUE };
+			}
+
+			private String hex(long value) {
+				String digits = Long.toHexString(value);
+				return "0000000000000000".substring(digits.length()) + digits;
+			}
+		};
+
+		private static final short STATUS_VALID = 0;
+		private static final short STATUS_USED = 1;
+
+		private final String tablePrefix;
+		private final char separator;
+
+		private Layout(String tablePrefix, char separator) {
+			this.tablePrefix = tablePrefix;
+			this.separator = separator;
+		}
+
+		abstract String createTable(String table);
+
+		abstract String columns();
+
+		/**
+		 * Returns the primary key columns in token order.
+		 */
+		abstract String keyColumns();
+
+		abstract String expiryColumn();
+
+		abstract String usedColumn();
+
+		/**
+		 * Returns the condition for a token which is not used.
+		 */
+		abstract String valid();
+
+		abstract String used();
+
+		abstract Object usedStatus();
+
+		/**
+		 * Converts a date to the parameter of a date column.
+		 */
+		abstract Object time(Date date);
+
+		/**
+		 * Returns the token without the prefix.
+		 */
+		abstract String newKey(UUID bits);
+
+		/**
+		 * Tells if a token without the prefix can have the length.
+		 */
+		abstract boolean isKey(int length);
+
+		/**
+		 * Appends the condition selecting the token.
+		 *
+		 * @return false if the token cannot be in the table.
+		 */
+		abstract boolean appendKey(Sql sql, String token, String prefix);
+
+		/**
+		 * Appends the condition for the tokens greater than <code>after</code>, which can be a token of any table.
+		 */
+		abstract void appendAfter(Sql sql, String after, String prefix);
+
+		/**
+		 * Appends the condition for the tokens up to a token of the table.
+		 */
+		abstract void appendAtMost(Sql sql, String token, String prefix);
+
+		/**
+		 * Appends the values of all {@link #columns()}.
+		 */
+		abstract void bindInsert(Sql sql, MailToken mailToken, String prefix);
+
+		abstract MailToken toMailToken(Object[] row, String prefix);
+
+		private static Date toDate(Object value) {
+			if (value == null) {
+				return null;
+			}
+			return new Date(value instanceof Number ? ((Number) value).longValue() : ((Date) value).getTime());
+		}
+	}
+
+	/**
+	 * One bucket table.
+	 */
+	private static final class Partition implements Comparable<Partition> {
+		private final long bucket;
+		private final Layout layout;
+
+		private Partition(long bucket, Layout layout) {
+			this.bucket = bucket;
+			this.layout = layout;
+		}
+
+		String table() {
+			return layout.tablePrefix + bucket;
+		}
+
+		/**
+		 * Returns the start of all tokens in the table.
+		 */
+		String prefix() {
+			return Long.toString(bucket) + layout.separator;
+		}
+
+		@Override
+		public int compareTo(Partition other) {
+			int result = Long.compare(bucket, other.bucket);
+			return result != 0 ? result : layout.compareTo(other.layout);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Partition && compareTo((Partition) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(bucket) * 31 + layout.ordinal();
+		}
+	}
+
+	/**
+	 * Native statement with numbered parameters.
+	 */
+	private static final class Sql {
+		private final StringBuilder text = new StringBuilder();
+		private final List<Object> params = new ArrayList<Object>();
+
+		Sql append(String part) {
+			text.append(part);
+			return this;
+		}
+
+		Sql param(Object value) {
+			params.add(value);
+			text.append('?').append(params.size());
+			return this;
+		}
+
+		Query create(EntityManager em) {
+			Query q = em.createNativeQuery(text.toString());
+			for (int i = 0; i < params.size(); i++) {
+				Object value = params.get(i);
+				if (value instanceof Date) {
+					q.setParameter(i + 1, (Date) value, TemporalType.TIMESTAMP);
+				} else {
+					q.setParameter(i + 1, value);
+				}
+			}
+			return q;
+		}
+	}
+
+	private final EntityManagerAccess emAccess;
+	private final TokenStore legacyStore;
+	private final TokenGenerator tokenGenerator;
+	private final long partitionMillis;
+	private final Layout layout;
+	private final NavigableSet<Partition> partitions = new ConcurrentSkipListSet<Partition>();
+	private final Lock partitionLock = new ReentrantLock();
+	private volatile long registryLoaded;
+
+	PartitionedTokenStore(EntityManagerAccess emAccess, TokenStore legacyStore, TokenGenerator tokenGenerator, long partitionMillis,
+			boolean compact) {
+		this.emAccess = emAccess;
+		this.tokenGenerator = tokenGenerator;
+		this.legacyStore = legacyStore;
+		this.partitionMillis = partitionMillis;
+		this.layout = compact ? Layout.COMPACT : Layout.TEXT;
+		createRegistry();
+		loadRegistry();
+	}
+
+	@Override
+	public String newToken(Date expiryDate) {
+		return new Partition(expiryDate.getTime() / partitionMillis, layout).prefix() + layout.newKey(tokenGenerator.generate());
+	}
+
+	@Override
+	public void save(MailToken mailToken, MailOutbox mail) {
+		Partition partition = partitionOf(mailToken.getToken());
+		if (partition == null) {
+			legacyStore.save(mailToken, mail);
+			return;
+		}
+		createPartition(partition);
+		EntityManager em = emAccess.open();
+		try {
+			em.getTransaction().begin();
+			insert(em, partition, mailToken);
+			if (mail != null) {
+				em.persist(mail);
+			}
+			em.getTransaction().commit();
+			if (mail != null && emAccess.isShared()) {
+				em.detach(mail);
+			}
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails) {
+		for (MailToken mailToken : mailTokens) {
+			Partition partition = partitionOf(mailToken.getToken());
+			if (partition != null) {
+				createPartition(partition);
+			}
+		}
+		EntityManager em = emAccess.open();
+		try {
+			em.getTransaction().begin();
+			for (MailToken mailToken : mailTokens) {
+				Partition partition = partitionOf(mailToken.getToken());
+				if (partition == null) {
+					// the legacy store keeps the entities on the same EntityManagers, so both kinds are saved in one transaction
+					em.persist(mailToken);
+				} else {
+					insert(em, partition, mailToken);
+				}
+			}
+			if (mails != null) {
+				for (MailOutbox mail : mails) {
+					em.persist(mail);
+				}
+			}
+			em.flush();
+			em.clear();
+			em.getTransaction().commit();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	@Override
+	public MailToken find(String token) {
+		Partition partition = partitionOf(token);
+		if (partition == null) {
+			return legacyStore.find(token);
+		}
+		if (!hasPartition(partition)) {
+			return null;
+		}
+		Sql sql = new Sql().append("SELECT " + partition.layout.columns() + " FROM " + partition.table() + " WHERE ");
+		if (!partition.layout.appendKey(sql, token, partition.prefix())) {
+			return null;
+		}
+		List<MailToken> rows = select(partition, sql, 1);
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+	@Override
+	public MailToken markUsed(String token, Date now) {
+		Partition partition = partitionOf(token);
+		if (partition == null) {
+			return legacyStore.markUsed(token, now);
+		}
+		if (!hasPartition(partition)) {
+			return null;
+		}
+		Layout l = partition.layout;
+		Sql sql = new Sql().append("UPDATE " + partition.table() + " SET STATUS = ").param(l.usedStatus()).append(", " + l.usedColumn() + " = ")
+				.param(l.time(now)).append(" WHERE ");
+		if (!l.appendKey(sql, token, partition.prefix())) {
+			return null;
+		}
+		sql.append(" AND " + l.valid() + " AND " + l.expiryColumn() + " > ").param(l.time(now));
+		if (update(sql) == 0) {
+			return null;
+		}
+		// null if deleted right after it was marked
+		return find(token);
+	}
+
+	@Override
+	public MailToken deleteValid(String token, Date now) {
+		Partition partition = partitionOf(token);
+		if (partition == null) {
+			return legacyStore.deleteValid(token, now);
+		}
+		// a deleted row cannot be read back, the details are read first
+		MailToken mailToken = find(token);
+		if (mailToken == null || !ConfirmationMailer.isValid(mailToken, now)) {
+			return null;
+		}
+		Layout l = partition.layout;
+		Sql sql = new Sql().append("DELETE FROM " + partition.table() + " WHERE ");
+		l.appendKey(sql, token, partition.prefix());
+		sql.append(" AND " + l.valid() + " AND " + l.expiryColumn() + " > ").param(l.time(now));
+		return update(sql) == 1 ? mailToken : null;
+	}
+
+	@Override
+	public MailToken delete(String token) {
+		Partition partition = partitionOf(token);
+		if (partition == null) {
+			return legacyStore.delete(token);
+		}
+		MailToken mailToken = find(token);
+		if (mailToken == null) {
+			return null;
+		}
+		Sql sql = new Sql().append("DELETE FROM " + partition.table() + " WHERE ");
+		partition.layout.appendKey(sql, token, partition.prefix());
+		// a concurrent delete returned the token already
+		return update(sql) == 1 ? mailToken : null;
+	}
+
+	@Override
+	public int deleteAll(Collection<String> tokens) {
+		List<String> legacy = new ArrayList<String>();
+		Map<Partition, List<String>> byPartition = new HashMap<Partition, List<String>>();
+		for (String token : tokens) {
+			Partition partition = partitionOf(token);
+			if (partition == null) {
+				legacy.add(token);
+			} else if (hasPartition(partition)) {
+				List<String> list = byPartition.get(partition);
+				if (list == null) {
+					list = new ArrayList<String>();
+					byPartition.put(partition, list);
+				}
+				list.add(token);
+			}
+		}
+		int count = legacy.isEmpty() ? 0 : legacyStore.deleteAll(legacy);
+		for (Map.Entry<Partition, List<String>> entry : byPartition.entrySet()) {
+			Partition partition = entry.getKey();
+			EntityManager em = emAccess.open();
+			try {
+				em.getTransaction().begin();
+				for (String token : entry.getValue()) {
+					Sql sql = new Sql().append("DELETE FROM " + partition.table() + " WHERE ");
+					if (partition.layout.appendKey(sql, token, partition.prefix())) {
+						count += sql.create(em).executeUpdate();
+					}
+				}
+				em.getTransaction().commit();
+			} finally {
+				emAccess.close(em);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Drops the buckets whose tokens are all expired till <code>expiryDateTill</code>, then deletes expired rows from the bucket which is partly
+	 * expired and from the legacy table, until <code>limit</code> tokens are deleted or no expired token is left. Every step is a transaction of
+	 * its own.
+	 *
+	 * @return number of deleted tokens. A dropped bucket counts all its rows, so it can be more than <code>limit</code>.
+	 */
+	@Override
+	public int deleteExpired(Date expiryDateTill, int limit) {
+		loadRegistry();
+		int count = 0;
+		while (count < limit) {
+			int deleted = deleteExpiredStep(expiryDateTill, limit - count);
+			if (deleted == 0) {
+				break;
+			}
+			count += deleted;
+		}
+		return count;
+	}
+
+	private int deleteExpiredStep(Date expiryDateTill, int limit) {
+		for (Partition partition : expiredPartitions(expiryDateTill)) {
+			if (bucketEnd(partition.bucket) <= expiryDateTill.getTime()) {
+				int count = dropPartition(partition, expiryDateTill);
+				if (count >= 0) {
+					return count;
+				}
+			}
+			Layout l = partition.layout;
+			int count = deleteChunk(partition, new Sql().append(l.expiryColumn() + " <= ").param(l.time(expiryDateTill)), limit);
+			if (count > 0) {
+				return count;
+			}
+		}
+		return legacyStore.deleteExpired(expiryDateTill, limit);
+	}
+
+	@Override
+	public int deleteUsed(int limit) {
+		for (Partition partition : partitions) {
+			int count = deleteChunk(partition, new Sql().append(partition.layout.used()), limit);
+			if (count > 0) {
+				return count;
+			}
+		}
+		return legacyStore.deleteUsed(limit);
+	}
+
+	@Override
+	public List<MailToken> findExpired(Date expiryDateTill) {
+		List<MailToken> result = new ArrayList<MailToken>(legacyStore.findExpired(expiryDateTill));
+		for (Partition partition : expiredPartitions(expiryDateTill)) {
+			result.addAll(select(partition, expiredPage(partition, expiryDateTill, null), Integer.MAX_VALUE));
+		}
+		return result;
+	}
+
+	@Override
+	public List<MailToken> findUsed() {
+		List<MailToken> result = new ArrayList<MailToken>(legacyStore.findUsed());
+		for (Partition partition : partitions) {
+			result.addAll(select(partition, usedPage(partition, null, null, null), Integer.MAX_VALUE));
+		}
+		return result;
+	}
+
+	@Override
+	public List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill) {
+		List<MailToken> result = new ArrayList<MailToken>(legacyStore.findUsed(usedDateFrom, usedDateTill));
+		for (Partition partition : partitions) {
+			result.addAll(select(partition, usedPage(partition, usedDateFrom, usedDateTill, null), Integer.MAX_VALUE));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the page from every bucket which can contain expired tokens and from the legacy table, and merges them.
+	 */
+	@Override
+	public List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit) {
+		List<MailToken> result = new ArrayList<MailToken>(legacyStore.findExpiredPage(expiryDateTill, after, limit));
+		for (Partition partition : expiredPartitions(expiryDateTill)) {
+			result.addAll(select(partition, expiredPage(partition, expiryDateTill, after), limit));
+		}
+		return firstOf(result, EXPIRY_ORDER, limit);
+	}
+
+	@Override
+	public List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit) {
+		List<MailToken> result = new ArrayList<MailToken>(legacyStore.findUsedPage(usedDateFrom, usedDateTill, after, limit));
+		for (Partition partition : partitions) {
+			result.addAll(select(partition, usedPage(partition, usedDateFrom, usedDateTill, after), limit));
+		}
+		return firstOf(result, usedDateFrom == null ? TOKEN_ORDER : USED_ORDER, limit);
+	}
+
+	@Override
+	public boolean saveUse(MailTokenUse use) {
+		return legacyStore.saveUse(use);
+	}
+
+	@Override
+	public MailTokenUse findUse(String id) {
+		return legacyStore.findUse(id);
+	}
+
+	@Override
+	public int deleteExpiredUses(Date expiryDateTill, int limit) {
+		return legacyStore.deleteExpiredUses(expiryDateTill, limit);
+	}
+
+	@Override
+	public long count() {
+		long count = legacyStore.count();
+		for (Partition partition : partitions) {
+			EntityManager em = emAccess.open();
+			try {
+				count += ((Number) em.createNativeQuery("SELECT COUNT(*) FROM " + partition.table()).getSingleResult()).longValue();
+			} catch (PersistenceException e) {
+				// dropped by another node meanwhile
+				loadRegistry();
+			} finally {
+				emAccess.close(em);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public MailToken findLive(String mailId, String mailType, Date expiryAfter) {
+		MailToken latest = legacyStore.findLive(mailId, mailType, expiryAfter);
+		for (Partition partition : partitions) {
+			if (bucketEnd(partition.bucket) <= expiryAfter.getTime()) {
+				continue;
+			}
+			Layout l = partition.layout;
+			Sql sql = new Sql().append("SELECT " + l.columns() + " FROM " + partition.table() + " WHERE MAIL_ID = ").param(mailId)
+					.append(" AND MAIL_TYPE = ").param(mailType).append(" AND " + l.valid() + " AND " + l.expiryColumn() + " > ")
+					.param(l.time(expiryAfter)).append(" ORDER BY " + l.expiryColumn() + " DESC");
+			for (MailToken mailToken : select(partition, sql, 1)) {
+				if (latest == null || mailToken.getExpiryDate().after(latest.getExpiryDate())) {
+					latest = mailToken;
+				}
+			}
+		}
+		return latest;
+	}
+
+	@Override
+	public void forEachTokenPage(Consumer<List<String>> action) {
+		legacyStore.forEachTokenPage(action);
+		for (Partition partition : partitions) {
+			String last = null;
+			List<MailToken> page;
+			do {
+				Sql sql = new Sql().append("SELECT " + partition.layout.columns() + " FROM " + partition.table() + " WHERE ");
+				if (last == null) {
+					sql.append("1 = 1");
+				} else {
+					partition.layout.appendAfter(sql, last, partition.prefix());
+				}
+				sql.append(" ORDER BY " + partition.layout.keyColumns());
+				page = select(partition, sql, SCAN_PAGE_SIZE);
+				List<String> tokens = new ArrayList<String>(page.size());
+				for (MailToken mailToken : page) {
+					tokens.add(mailToken.getToken());
+					last = mailToken.getToken();
+				}
+				action.accept(tokens);
+			} while (page.size() == SCAN_PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * Returns the table of the token, null for a token without bucket.
+	 */
+	private static Partition partitionOf(String token) {
+		int end = 0;
+		long bucket = 0;
+		while (end < token.length() && end < 18 && token.charAt(end) >= '0' && token.charAt(end) <= '9') {
+			bucket = bucket * 10 + (token.charAt(end) - '0');
+			end++;
+		}
+		if (end == 0 || end == token.length()) {
+			return null;
+		}
+		for (Layout layout : Layout.values()) {
+			if (token.charAt(end) == layout.separator && layout.isKey(token.length() - end - 1)) {
+				return new Partition(bucket, layout);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the end of the expiry dates of the bucket. Tokens are issued with the bucket of their expiry date, which is therefore before the end.
+	 */
+	private long bucketEnd(long bucket) {
+		return (bucket + 1) * partitionMillis;
+	}
+
+	private List<Partition> expiredPartitions(Date expiryDateTill) {
+		long last = expiryDateTill.getTime() / partitionMillis;
+		List<Partition> result = new ArrayList<Partition>();
+		for (Partition partition : partitions) {
+			if (partition.bucket > last) {
+				break;
+			}
+			result.add(partition);
+		}
+		return result;
+	}
+
+	private Sql expiredPage(Partition partition, Date expiryDateTill, MailToken after) {
+		Layout l = partition.layout;
+		String expiry = l.expiryColumn();
+		Sql sql = new Sql().append("SELECT " + l.columns() + " FROM " + partition.table() + " WHERE " + expiry + " <= ").param(l.time(expiryDateTill));
+		if (after != null) {
+			Object afterExpiry = l.time(after.getExpiryDate());
+			sql.append(" AND (" + expiry + " > ").param(afterExpiry).append(" OR (" + expiry + " = ").param(afterExpiry).append(" AND ");
+			l.appendAfter(sql, after.getToken(), partition.prefix());
+			sql.append("))");
+		}
+		return sql.append(" ORDER BY " + expiry + ", " + l.keyColumns());
+	}
+
+	/**
+	 * Used tokens between the dates ordered by used date, or all used tokens ordered by token if the dates are null.
+	 */
+	private Sql usedPage(Partition partition, Date usedDateFrom, Date usedDateTill, MailToken after) {
+		Layout l = partition.layout;
+		Sql sql = new Sql().append("SELECT " + l.columns() + " FROM " + partition.table() + " WHERE ");
+		if (usedDateFrom == null) {
+			sql.append(l.used());
+			if (after != null) {
+				sql.append(" AND ");
+				l.appendAfter(sql, after.getToken(), partition.prefix());
+			}
+			return sql.append(" ORDER BY " + l.keyColumns());
+		}
+		String used = l.usedColumn();
+		sql.append(used + " >= ").param(l.time(usedDateFrom)).append(" AND " + used + " <= ").param(l.time(usedDateTill));
+		if (after != null) {
+			Object afterUsed = l.time(after.getUsedDate());
+			sql.append(" AND (" + used + " > ").param(afterUsed).append(" OR (" + used + " = ").param(afterUsed).append(" AND ");
+			l.appendAfter(sql, after.getToken(), partition.prefix());
+			sql.append("))");
+		}
+		return sql.append(" ORDER BY " + used + ", " + l.keyColumns());
+	}
+
+	/**
+	 * Tells if the table exists. An unknown table of a bucket which is not expired may have been created by another node, then the registry is
+	 * reloaded, but not more often than once a second.
+	 */
+	private boolean hasPartition(Partition partition) {
+		if (partitions.contains(partition)) {
+			return true;
+		}
+		if (bucketEnd(partition.bucket) > System.currentTimeMillis() && System.currentTimeMillis() - registryLoaded > REGISTRY_RELOAD_MILLIS) {
+			loadRegistry();
+			return partitions.contains(partition);
+		}
+		return false;
+	}
+
+	private void createRegistry() {
+		EntityManager em = emAccess.open();
+		try {
+			Query q = em.createNativeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_NAME) = ?1");
+			q.setParameter(1, REGISTRY);
+			if (((Number) q.getSingleResult()).intValue() == 0) {
+				try {
+					executeUpdate(em, em.createNativeQuery("CREATE TABLE " + REGISTRY + " (TABLE_NAME VARCHAR(64) NOT NULL PRIMARY KEY)"));
+				} catch (PersistenceException e) {
+					// created by another node in the meantime
+				}
+			}
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	private void loadRegistry() {
+		EntityManager em = emAccess.open();
+		try {
+			List<?> rows = em.createNativeQuery("SELECT TABLE_NAME FROM " + REGISTRY).getResultList();
+			List<Partition> loaded = new ArrayList<Partition>(rows.size());
+			for (Object row : rows) {
+				String table = (String) row;
+				for (Layout layout : Layout.values()) {
+					if (table.startsWith(layout.tablePrefix)) {
+						loaded.add(new Partition(Long.parseLong(table.substring(layout.tablePrefix.length())), layout));
+					}
+				}
+			}
+			partitions.retainAll(loaded);
+			partitions.addAll(loaded);
+			registryLoaded = System.currentTimeMillis();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	/**
+	 * Creates the table if it does not exist yet.
+	 */
+	private void createPartition(Partition partition) {
+		if (partitions.contains(partition)) {
+			return;
+		}
+		// a lock instead of synchronized, so that a virtual thread waiting for the DDL does not keep its carrier thread
+		partitionLock.lock();
+		try {
+			loadRegistry();
+			if (partitions.contains(partition)) {
+				return;
+			}
+			String table = partition.table();
+			Layout l = partition.layout;
+			EntityManager em = emAccess.open();
+			try {
+				try {
+					executeUpdate(em, em.createNativeQuery(l.createTable(table)));
+					executeUpdate(em, em.createNativeQuery("CREATE INDEX IDX_" + table + "_EXPIRY ON " + table + " (" + l.expiryColumn() + ")"));
+					executeUpdate(em, em.createNativeQuery("CREATE INDEX IDX_" + table + "_USED ON " + table + " (" + l.usedColumn() + ")"));
+					executeUpdate(em, em.createNativeQuery("CREATE INDEX IDX_" + table + "_MAIL ON " + table + " (MAIL_ID, MAIL_TYPE)"));
+				} catch (PersistenceException e) {
+					// created by another node, which registers it as well
+					EntityManagerAccess.rollbackIfActive(em);
+				}
+				try {
+					Query q = em.createNativeQuery("INSERT INTO " + REGISTRY + " (TABLE_NAME) VALUES (?1)");
+					q.setParameter(1, table);
+					executeUpdate(em, q);
+				} catch (PersistenceException e) {
+					// registered by another node
+				}
+			} finally {
+				emAccess.close(em);
+			}
+			partitions.add(partition);
+		} finally {
+			partitionLock.unlock();
+		}
+	}
+
+	/**
+	 * Counts the rows of the table, then drops it. The drop takes the same time however many rows there are. A token saved a few milliseconds
+	 * after it was issued can expire just after the end of its bucket, then the table is not dropped yet.
+	 *
+	 * @return number of dropped tokens, -1 if the table has tokens expiring after <code>expiryDateTill</code>.
+	 */
+	private int dropPartition(Partition partition, Date expiryDateTill) {
+		String table = partition.table();
+		Layout l = partition.layout;
+		EntityManager em = emAccess.open();
+		try {
+			int count;
+			try {
+				Query later = new Sql().append("SELECT COUNT(*) FROM " + table + " WHERE " + l.expiryColumn() + " > ").param(l.time(expiryDateTill))
+						.create(em);
+				if (((Number) later.getSingleResult()).intValue() > 0) {
+					return -1;
+				}
+				count = ((Number) em.createNativeQuery("SELECT COUNT(*) FROM " + table).getSingleResult()).intValue();
+				executeUpdate(em, em.createNativeQuery("DROP TABLE " + table));
+			} catch (PersistenceException e) {
+				// dropped by another node
+				EntityManagerAccess.rollbackIfActive(em);
+				count = 0;
+			}
+			Query q = em.createNativeQuery("DELETE FROM " + REGISTRY + " WHERE TABLE_NAME = ?1");
+			q.setParameter(1, table);
+			executeUpdate(em, q);
+			partitions.remove(partition);
+			return count;
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	/**
+	 * Deletes up to <code>limit</code> matching tokens: finds the last token of the chunk in key order, then deletes the matching tokens up to
+	 * it with one range condition.
+	 */
+	private int deleteChunk(Partition partition, Sql condition, int limit) {
+		Layout l = partition.layout;
+		Sql select = new Sql().append("SELECT " + l.columns() + " FROM " + partition.table() + " WHERE ");
+		append(select, condition);
+		select.append(" ORDER BY " + l.keyColumns());
+		List<MailToken> rows = select(partition, select, limit);
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		Sql delete = new Sql().append("DELETE FROM " + partition.table() + " WHERE ");
+		append(delete, condition);
+		delete.append(" AND ");
+		l.appendAtMost(delete, rows.get(rows.size() - 1).getToken(), partition.prefix());
+		return update(delete);
+	}
+
+	/**
+	 * Appends a condition built on its own, renumbering its parameters.
+	 */
+	private static void append(Sql sql, Sql condition) {
+		String text = condition.text.toString();
+		int start = 0;
+		for (int i = 0; i < condition.params.size(); i++) {
+			String marker = "?" + (i + 1);
+			int at = text.indexOf(marker, start);
+			sql.append(text.substring(start, at)).param(condition.params.get(i));
+			start = at + marker.length();
+		}
+		sql.append(text.substring(start));
+	}
+
+	private void insert(EntityManager em, Partition partition, MailToken mailToken) {
+		Sql sql = new Sql().append("INSERT INTO " + partition.table() + " (" + partition.layout.columns() + ") VALUES (");
+		partition.layout.bindInsert(sql, mailToken, partition.prefix());
+		sql.append(")").create(em).executeUpdate();
+	}
+
+	/**
+	 * Selects tokens of one table. A table dropped in the meantime has no tokens.
+	 */
+	private List<MailToken> select(Partition partition, Sql sql, int limit) {
+		EntityManager em = emAccess.open();
+		try {
+			Query q = sql.create(em);
+			if (limit < Integer.MAX_VALUE) {
+				q.setMaxResults(limit);
+			}
+			List<?> rows = q.getResultList();
+			List<MailToken> result = new ArrayList<MailToken>(rows.size());
+			for (Object row : rows) {
+				result.add(partition.layout.toMailToken((Object[]) row, partition.prefix()));
+			}
+			return result;
+		} catch (PersistenceException e) {
+			loadRegistry();
+			return Collections.emptyList();
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	private int update(Sql sql) {
+		EntityManager em = emAccess.open();
+		try {
+			return executeUpdate(em, sql.create(em));
+		} finally {
+			emAccess.close(em);
+		}
+	}
+
+	private static List<MailToken> firstOf(List<MailToken> tokens, Comparator<MailToken> order, int limit) {
+		Collections.sort(tokens, order);
+		return tokens.size() > limit ? new ArrayList<MailToken>(tokens.subList(0, limit)) : tokens;
+	}
+
+	private static int executeUpdate(EntityManager em, Query q) {
+		em.getTransaction().begin();
+		int count = q.executeUpdate();
+		em.getTransaction().commit();
+		return count;
+	}
+}
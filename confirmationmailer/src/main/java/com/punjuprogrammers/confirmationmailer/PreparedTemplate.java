@@ -0,0 +1,43 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Map;
+
+import com.punjuprogrammers.confirmationmailer.utils.CompiledTemplate;
+
+/**
+ * A {@link MailerTemplate} together with its compiled subject and text. Built once per template when the {@link ConfirmationMailer} is created.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class PreparedTemplate {
+	private final MailerTemplate template;
+	private final CompiledTemplate subject;
+	private final CompiledTemplate text;
+
+	PreparedTemplate(MailerTemplate template) {
+		this.template = template;
+		this.subject = CompiledTemplate.compile(template.getSubject());
+		this.text = CompiledTemplate.compile(template.getText());
+	}
+
+	MailerTemplate getTemplate() {
+		return template;
+	}
+
+	String renderSubject(Map<String, String> fields) {
+		return subject.render(fields);
+	}
+
+	String renderText(Map<String, String> fields) {
+		return text.render(fields);
+	}
+}
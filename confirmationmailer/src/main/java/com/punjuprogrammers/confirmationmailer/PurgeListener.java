@@ -0,0 +1,27 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Receives the progress of token purges, see {@link ConfirmationMailer#setPurgeListener(PurgeListener)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public interface PurgeListener {
+
+	/**
+	 * Called after every deleted chunk and once more when the purge has finished. It is called by the thread running the purge and should return
+	 * quickly.
+	 * 
+	 * @param progress
+	 *            counts so far, {@link PurgeResult#isFinished()} is true for the last call.
+	 */
+	void purgeProgress(PurgeResult progress);
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Progress of a purge of expired and used tokens. A purge deletes the tokens in chunks, see {@link MailerConfig#setPurgeChunkSize(int)}, and
+ * reports its progress to the {@link PurgeListener} after every chunk.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class PurgeResult {
+	private final int deletedExpired;
+	private final int deletedUsed;
+	private final int chunks;
+	private final long elapsedMillis;
+	private final boolean finished;
+	private final boolean complete;
+
+	PurgeResult(int deletedExpired, int deletedUsed, int chunks, long elapsedMillis, boolean finished, boolean complete) {
+		this.deletedExpired = deletedExpired;
+		this.deletedUsed = deletedUsed;
+		this.chunks = chunks;
+		this.elapsedMillis = elapsedMillis;
+		this.finished = finished;
+		this.complete = complete;
+	}
+
+	/**
+	 * Returns the number of deleted expired tokens, including the recorded uses of expired signed tokens.
+	 * 
+	 * @return number of deleted rows.
+	 */
+	public int getDeletedExpired() {
+		return deletedExpired;
+	}
+
+	/**
+	 * Returns the number of deleted used tokens.
+	 * 
+	 * @return number of deleted rows.
+	 */
+	public int getDeletedUsed() {
+		return deletedUsed;
+	}
+
+	/**
+	 * Returns the number of delete transactions run so far.
+	 * 
+	 * @return number of chunks.
+	 */
+	public int getChunks() {
+		return chunks;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Tells if the purge has stopped.
+	 * 
+	 * @return false while the purge is running.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Tells if all matching tokens were deleted. A purge which ran out of its time budget, failed or was interrupted is finished but not complete;
+	 * the remaining tokens are deleted by the next purge.
+	 * 
+	 * @return true if no matching tokens were left.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return "PurgeResult [deletedExpired=" + deletedExpired + ", deletedUsed=" + deletedUsed + ", chunks=" + chunks + ", elapsedMillis="
+				+ elapsedMillis + ", finished=" + finished + ", complete=" + complete + "]";
+	}
+}
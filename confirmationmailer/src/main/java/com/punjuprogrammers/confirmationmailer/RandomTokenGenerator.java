@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Default {@link TokenGenerator}, 128 bits from a cryptographically strong generator. Unlike {@link UUID#randomUUID()}, which draws from one
+ * shared SecureRandom, the bits come from a pool of generators, twice as many as processors, which read their random bytes in blocks. Every
+ * token is drawn from a generator picked at random, so that threads sending at the same time rarely wait for each other. A generator per thread
+ * would be seeded again for every virtual thread, i.e. for every mail.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class RandomTokenGenerator implements TokenGenerator {
+	private static final int BUFFER_SIZE = 512;
+	// seeded on first use
+	private static final AtomicReferenceArray<RandomBuffer> POOL = new AtomicReferenceArray<RandomBuffer>(
+			2 * Runtime.getRuntime().availableProcessors());
+
+	@Override
+	public UUID generate() {
+		RandomBuffer buffer = pick();
+		synchronized (buffer) {
+			return new UUID(buffer.nextLong(), buffer.nextLong());
+		}
+	}
+
+	/**
+	 * Returns 64 random bits of a generator of the pool.
+	 */
+	static long nextLong() {
+		RandomBuffer buffer = pick();
+		synchronized (buffer) {
+			return buffer.nextLong();
+		}
+	}
+
+	private static RandomBuffer pick() {
+		int slot = ThreadLocalRandom.current().nextInt(POOL.length());
+		RandomBuffer buffer = POOL.get(slot);
+		if (buffer == null) {
+			POOL.compareAndSet(slot, null, new RandomBuffer());
+			buffer = POOL.get(slot);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Random bytes of one generator of the pool, used by one thread at a time.
+	 */
+	private static class RandomBuffer {
+		private final SecureRandom random = newSecureRandom();
+		private final byte[] bytes = new byte[BUFFER_SIZE];
+		private int position = BUFFER_SIZE;
+
+		long nextLong() {
+			if (position == BUFFER_SIZE) {
+				random.nextBytes(bytes);
+				position = 0;
+			}
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (bytes[position++] & 0xFF);
+			}
+			return value;
+		}
+
+		/**
+		 * DRBG is not synchronized across instances; the default NativePRNG of Linux serializes all instances on one lock. DRBG is missing before
+		 * Java 9.
+		 */
+		private static SecureRandom newSecureRandom() {
+			try {
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				try {
+					return SecureRandom.getInstance("SHA1PRNG");
+				} catch (NoSuchAlgorithmException e2) {
+					return new SecureRandom();
+				}
+			}
+		}
+	}
+}
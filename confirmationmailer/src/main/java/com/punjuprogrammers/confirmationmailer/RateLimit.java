@@ -0,0 +1,54 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * Sustained rate and burst of mails, used by {@link MailerConfig#setDomainRateLimit(RateLimit)} and
+ * {@link MailerConfig#setServerRateLimit(RateLimit)}. Up to <code>burst</code> mails are sent at once after a quiet period, then one mail every
+ * <code>1 / mailsPerSecond</code> seconds.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class RateLimit {
+	private final double mailsPerSecond;
+	private final int burst;
+
+	/**
+	 * Default constructor.
+	 * 
+	 * @param mailsPerSecond
+	 *            sustained rate, a positive number. Values below 1 allow one mail every few seconds.
+	 * @param burst
+	 *            number of mails which may be sent without delay, at least 1.
+	 */
+	public RateLimit(double mailsPerSecond, int burst) {
+		if (!(mailsPerSecond > 0) || mailsPerSecond > 1e9) {
+			throw new IllegalArgumentException("mailsPerSecond must be positive and at most 1e9");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		this.mailsPerSecond = mailsPerSecond;
+		this.burst = burst;
+	}
+
+	public double getMailsPerSecond() {
+		return mailsPerSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	@Override
+	public String toString() {
+		return mailsPerSecond + "/s, burst " + burst;
+	}
+}
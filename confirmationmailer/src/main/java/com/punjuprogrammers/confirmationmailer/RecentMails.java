@@ -0,0 +1,172 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tokens of the mails sent recently, per mail address and mail type, for the templates with an idempotency window, see
+ * {@link MailerTemplate#setIdempotencyWindowSeconds(long)}.
+ * 
+ * The first request for a mail claims it and sends it; a repeated request waits until the first one is done and then returns its token, or
+ * claims the mail itself if the first one failed. An asynchronous request gets the token of the first one as a future instead of waiting. Once
+ * there are many mails, those whose window has passed are removed, at most once a second.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class RecentMails {
+	/**
+	 * Returned by {@link #tryClaim(String, String, long)} for a mail being sent by another request.
+	 */
+	static final String BUSY = new String("busy");
+
+	private static final int MAX_IDLE_MAILS = 10000;
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong nextSweepMillis = new AtomicLong();
+
+	/**
+	 * Returns the token of the mail sent within its window, after waiting for a request sending it now.
+	 * 
+	 * @return the token, or null if the caller has claimed the mail and must call {@link #sent(String, String, String, long)} or
+	 *         {@link #failed(String, String)}.
+	 */
+	String claim(String mailType, String mailId, long nowMillis) {
+		return claim(mailType, mailId, nowMillis, true);
+	}
+
+	/**
+	 * Like {@link #claim(String, String, long)}, but returns {@link #BUSY} instead of waiting. A caller holding claims itself must not wait, or two
+	 * callers could wait for each other.
+	 */
+	String tryClaim(String mailType, String mailId, long nowMillis) {
+		return claim(mailType, mailId, nowMillis, false);
+	}
+
+	/**
+	 * Like {@link #claim(String, String, long)}, but returns the token as a future instead of waiting, for a caller which is asynchronous itself.
+	 * 
+	 * @return null if the caller has claimed the mail, otherwise a future which completes with the token, or with null if the request sending the
+	 *         mail fails.
+	 */
+	CompletableFuture<String> claimAsync(String mailType, String mailId, long nowMillis) {
+		String key = key(mailType, mailId);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				if (putClaim(key, nowMillis)) {
+					return null;
+				}
+				continue;
+			}
+			if (!entry.token.isDone() || isLive(entry, nowMillis)) {
+				return entry.token;
+			}
+			entries.remove(key, entry);
+		}
+	}
+
+	/**
+	 * Records the token of a claimed mail.
+	 * 
+	 * @param untilMillis
+	 *            end of the window.
+	 */
+	void sent(String mailType, String mailId, String token, long untilMillis) {
+		Entry entry = entries.get(key(mailType, mailId));
+		if (entry != null && !entry.token.isDone()) {
+			entry.untilMillis = untilMillis;
+			entry.token.complete(token);
+		}
+	}
+
+	/**
+	 * Gives up a claimed mail, so that the next request sends it.
+	 */
+	void failed(String mailType, String mailId) {
+		String key = key(mailType, mailId);
+		Entry entry = entries.get(key);
+		if (entry != null && !entry.token.isDone()) {
+			entries.remove(key, entry);
+			entry.token.complete(null);
+		}
+	}
+
+	/**
+	 * Forgets the token once it is used or deleted, so that the next request sends a new mail.
+	 */
+	void forget(String mailType, String mailId, String token) {
+		String key = key(mailType, mailId);
+		Entry entry = entries.get(key);
+		if (entry != null && token.equals(entry.token.getNow(null))) {
+			entries.remove(key, entry);
+		}
+	}
+
+	private String claim(String mailType, String mailId, long nowMillis, boolean wait) {
+		String key = key(mailType, mailId);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				if (putClaim(key, nowMillis)) {
+					return null;
+				}
+				continue;
+			}
+			if (!wait && !entry.token.isDone()) {
+				return BUSY;
+			}
+			String token = entry.token.join();
+			if (isLive(entry, nowMillis)) {
+				return token;
+			}
+			entries.remove(key, entry);
+		}
+	}
+
+	private boolean putClaim(String key, long nowMillis) {
+		if (entries.size() >= MAX_IDLE_MAILS) {
+			long nextSweep = nextSweepMillis.get();
+			// one caller sweeps, the others go on, so that a map full of live mails is not scanned by every claim
+			if (nowMillis >= nextSweep && nextSweepMillis.compareAndSet(nextSweep, nowMillis + SWEEP_INTERVAL_MILLIS)) {
+				removeExpired(nowMillis);
+			}
+		}
+		return entries.putIfAbsent(key, new Entry()) == null;
+	}
+
+	private static boolean isLive(Entry entry, long nowMillis) {
+		return entry.token.getNow(null) != null && entry.untilMillis > nowMillis;
+	}
+
+	private void removeExpired(long nowMillis) {
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.token.isDone() && entry.untilMillis <= nowMillis) {
+				i.remove();
+			}
+		}
+	}
+
+	private static String key(String mailType, String mailId) {
+		return mailType + '\n' + mailId;
+	}
+
+	private static class Entry {
+		private final CompletableFuture<String> token = new CompletableFuture<String>();
+		// written before the token is completed
+		private volatile long untilMillis;
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import com.punjuprogrammers.confirmationmailer.utils.Util;
+
+/**
+ * One of several SMTP servers the mails are spread over, see {@link MailerConfig#setSmtpEndpoints(java.util.List)}. All servers use the user
+ * name and password of the {@link MailerConfig}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class SmtpEndpoint {
+	public static final int MAX_WEIGHT = 1000;
+
+	private final String host;
+	private final int port;
+	private final int weight;
+
+	/**
+	 * Default constructor.
+	 * 
+	 * @param host
+	 *            SMTP server host name or IP Address.
+	 * @param port
+	 *            port number, 0 for the standard port.
+	 * @param weight
+	 *            share of the mails relative to the other servers, from 1 to {@link #MAX_WEIGHT}.
+	 */
+	public SmtpEndpoint(String host, int port, int weight) {
+		Util.assertNotNullNotEmpty(host, "host");
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("port must be between 0 and 65535");
+		}
+		if (weight < 1 || weight > MAX_WEIGHT) {
+			throw new IllegalArgumentException("weight must be between 1 and " + MAX_WEIGHT);
+		}
+		this.host = host;
+		this.port = port;
+		this.weight = weight;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	@Override
+	public String toString() {
+		return port == 0 ? host : host + ":" + port;
+	}
+}
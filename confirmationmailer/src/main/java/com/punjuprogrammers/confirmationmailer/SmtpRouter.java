@@ -0,0 +1,514 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.punjuprogrammers.confirmationmailer.MailerMetrics.Stage;
+import com.punjuprogrammers.confirmationmailer.utils.MailUtil;
+import com.punjuprogrammers.confirmationmailer.utils.MessageSkeleton;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpSession;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool.BorrowTimeoutException;
+
+/**
+ * Sends the mails over the {@link SmtpTransportPool} to the servers of {@link MailerConfig#getSmtpEndpoints()}, chosen by
+ * {@link MailerConfig#getSmtpRouting()}.
+ *
+ * Every server has a circuit breaker. After {@link MailerConfig#getCircuitBreakerFailures()} failed mails in a row the server is skipped for
+ * {@link MailerConfig#getCircuitBreakerOpenMillis()}, then one mail is let through as a trial which closes or opens the breaker again. A mail which
+ * fails on one server for another reason than rejected recipients is sent to the next server, until all servers were tried.
+ *
+ * Before it is sent, a mail waits for its turn under the rate limits of its recipient domain and of the chosen server, see {@link Throttle}.
+ *
+ * A batch can be pipelined over one connection which bypasses the pool, see {@link #sendAll(List)}. The mails sent at the same time are limited to
+ * {@link MailerConfig#getSmtpConcurrency()}, a pipelined batch counts as one.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class SmtpRouter {
+	/**
+	 * A new send time moves the average by 1/8 of the difference.
+	 */
+	private static final int LATENCY_SMOOTHING = 8;
+	private static final long MAX_LATENCY_NANOS = 60L * 1000 * 1000 * 1000;
+
+	private final SmtpTransportPool transportPool;
+	private final MailerConfig mailConfig;
+	private final Endpoint[] endpoints;
+	/**
+	 * Order of the servers for round robin, each index as often as its weight and spread evenly.
+	 */
+	private final int[] schedule;
+	private final AtomicLong turn = new AtomicLong();
+	private final DomainThrottles domainThrottles;
+	// null without a limit
+	private final Semaphore sendPermits;
+	// per sender address, i.e. per template
+	private final ConcurrentMap<String, MessageSkeleton> skeletons = new ConcurrentHashMap<String, MessageSkeleton>();
+
+	SmtpRouter(SmtpTransportPool transportPool, MailerConfig mailConfig) {
+		this.transportPool = transportPool;
+		this.mailConfig = mailConfig;
+		List<SmtpEndpoint> smtpEndpoints = mailConfig.getSmtpEndpoints();
+		endpoints = new Endpoint[smtpEndpoints.size()];
+		for (int i = 0; i < endpoints.length; i++) {
+			endpoints[i] = new Endpoint(i, smtpEndpoints.get(i), mailConfig.getServerRateLimit());
+		}
+		schedule = schedule(endpoints);
+		domainThrottles = new DomainThrottles(mailConfig);
+		sendPermits = mailConfig.getSmtpConcurrency() > 0 ? new Semaphore(mailConfig.getSmtpConcurrency(), true) : null;
+	}
+
+	/**
+	 * Returns how long a mail to <code>mailId</code> would now wait for the rate limit of its domain.
+	 */
+	long domainDelayMillis(String mailId) {
+		if (!domainThrottles.isEnabled()) {
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(domainThrottles.delay(mailId, System.nanoTime()));
+	}
+
+	/**
+	 * Sends a rendered mail and records the SMTP stages of the attempt which succeeded.
+	 *
+	 * @throws MessagingException
+	 *             the error of the last server tried, or the {@link SendFailedException} of a server which rejected the recipient.
+	 */
+	void send(String mailType, String mailId, String subject, String msgText, String fromEmail) throws MessagingException {
+		MailerMetrics metrics = mailConfig.getMetrics();
+		if (domainThrottles.isEnabled()) {
+			await(domainThrottles.reserve(mailId, System.nanoTime()), metrics, mailType);
+		}
+		acquirePermit();
+		try {
+			sendOnce(mailType, mailId, subject, msgText, fromEmail, metrics);
+		} finally {
+			releasePermit();
+		}
+	}
+
+	private void sendOnce(String mailType, String mailId, String subject, String msgText, String fromEmail, MailerMetrics metrics)
+			throws MessagingException {
+		MessageSkeleton skeleton = skeleton(fromEmail);
+		long tried = 0;
+		MessagingException error = null;
+		for (int attempt = 0; attempt < endpoints.length; attempt++) {
+			Endpoint endpoint = choose(tried);
+			tried |= 1L << endpoint.index;
+			if (endpoint.throttle != null) {
+				await(endpoint.throttle.reserve(System.nanoTime()), metrics, mailType);
+			}
+			endpoint.outstanding.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				long connectNanos = MailUtil.sendMail(transportPool, skeleton, mailId, subject, msgText, endpoint.host, endpoint.port,
+						mailConfig.getServerUserName(), mailConfig.getServerPassowrd());
+				long nanos = System.nanoTime() - start;
+				endpoint.succeeded(nanos);
+				if (connectNanos > 0) {
+					metrics.recordStage(Stage.SMTP_CONNECT, mailType, connectNanos);
+				}
+				metrics.recordStage(Stage.SMTP_SEND, mailType, nanos - connectNanos);
+				metrics.recordSent(mailType);
+				return;
+			} catch (BorrowTimeoutException e) {
+				// all connections busy, not a failure of the server
+				endpoint.skipped();
+				error = e;
+			} catch (MessagingException e) {
+				if (MailUtil.isRefused(e)) {
+					// the server works, it rejected the recipient
+					endpoint.close();
+					throw e;
+				}
+				endpoint.failed(System.currentTimeMillis(), mailConfig.getCircuitBreakerFailures(), mailConfig.getCircuitBreakerOpenMillis());
+				error = e;
+			} catch (RuntimeException e) {
+				endpoint.skipped();
+				throw e;
+			} finally {
+				endpoint.outstanding.decrementAndGet();
+			}
+		}
+		throw error;
+	}
+
+	/**
+	 * Sends several rendered mails. With {@link MailerConfig#isSmtpPipelining()} they go back to back over one {@link SmtpSession} to one server,
+	 * each mail still waiting for its rate limits. Mails which failed there for another reason than a rejection are sent again one by one, so
+	 * that they fail over to the other servers.
+	 *
+	 * @return one entry per mail, null if it was sent, otherwise the error.
+	 */
+	MessagingException[] sendAll(List<Mail> mails) {
+		MessagingException[] errors = new MessagingException[mails.size()];
+		if (!mailConfig.isSmtpPipelining() || mails.size() < 2) {
+			sendEach(mails, errors);
+			return errors;
+		}
+		try {
+			acquirePermit();
+		} catch (MessagingException e) {
+			Arrays.fill(errors, e);
+			return errors;
+		}
+		List<Mail> retries = new ArrayList<Mail>();
+		List<Integer> retryIndexes = new ArrayList<Integer>();
+		try {
+			pipeline(mails, errors, retries, retryIndexes);
+		} finally {
+			releasePermit();
+		}
+		MessagingException[] retryErrors = new MessagingException[retries.size()];
+		sendEach(retries, retryErrors);
+		for (int i = 0; i < retryErrors.length; i++) {
+			errors[retryIndexes.get(i)] = retryErrors[i];
+		}
+		return errors;
+	}
+
+	/**
+	 * Sends the mails over one session and collects the ones to send again one by one.
+	 */
+	private void pipeline(List<Mail> mails, MessagingException[] errors, List<Mail> retries, List<Integer> retryIndexes) {
+		MailerMetrics metrics = mailConfig.getMetrics();
+		Endpoint endpoint = choose(0);
+		endpoint.outstanding.incrementAndGet();
+		try {
+			long start = System.nanoTime();
+			SmtpSession session;
+			try {
+				session = SmtpSession.connect(endpoint.host, endpoint.port > 0 ? endpoint.port : mailConfig.getSmtpPort(),
+						mailConfig.getSmtpTimeoutMillis(), mailConfig.getServerUserName(), mailConfig.getServerPassowrd());
+			} catch (MessagingException e) {
+				endpoint.failed(System.currentTimeMillis(), mailConfig.getCircuitBreakerFailures(), mailConfig.getCircuitBreakerOpenMillis());
+				retries.addAll(mails);
+				for (int i = 0; i < mails.size(); i++) {
+					retryIndexes.add(i);
+				}
+				return;
+			}
+			long connectNanos = System.nanoTime() - start;
+			metrics.recordStage(Stage.SMTP_CONNECT, mails.get(0).mailType, connectNanos);
+			int[] sent = new int[mails.size()];
+			int count = 0;
+			MessagingException[] results;
+			try {
+				for (int i = 0; i < mails.size(); i++) {
+					Mail mail = mails.get(i);
+					try {
+						if (domainThrottles.isEnabled()) {
+							await(domainThrottles.reserve(mail.mailId, System.nanoTime()), metrics, mail.mailType);
+						}
+						if (endpoint.throttle != null) {
+							await(endpoint.throttle.reserve(System.nanoTime()), metrics, mail.mailType);
+						}
+						session.send(MailUtil.createMessage(skeleton(mail.fromEmail), mail.mailId, mail.subject, mail.msgText));
+						sent[count++] = i;
+					} catch (MessagingException e) {
+						errors[i] = e;
+					}
+				}
+				results = session.finish();
+			} finally {
+				session.close();
+			}
+			long sendStart = start + connectNanos;
+			// each mail is recorded with its share of the session
+			long nanos = count == 0 ? 0 : (System.nanoTime() - sendStart) / count;
+			boolean reached = false;
+			for (int i = 0; i < count; i++) {
+				Mail mail = mails.get(sent[i]);
+				MessagingException error = results[i];
+				if (error == null) {
+					reached = true;
+					metrics.recordStage(Stage.SMTP_SEND, mail.mailType, nanos);
+					metrics.recordSent(mail.mailType);
+				} else if (error instanceof SendFailedException) {
+					reached = true;
+					errors[sent[i]] = error;
+				} else {
+					retries.add(mail);
+					retryIndexes.add(sent[i]);
+				}
+			}
+			if (reached) {
+				endpoint.succeeded(nanos);
+			} else if (count > 0) {
+				endpoint.failed(System.currentTimeMillis(), mailConfig.getCircuitBreakerFailures(), mailConfig.getCircuitBreakerOpenMillis());
+			}
+		} catch (RuntimeException e) {
+			endpoint.skipped();
+			throw e;
+		} finally {
+			endpoint.outstanding.decrementAndGet();
+		}
+	}
+
+	private void sendEach(List<Mail> mails, MessagingException[] errors) {
+		for (int i = 0; i < mails.size(); i++) {
+			Mail mail = mails.get(i);
+			try {
+				send(mail.mailType, mail.mailId, mail.subject, mail.msgText, mail.fromEmail);
+			} catch (MessagingException e) {
+				errors[i] = e;
+			}
+		}
+	}
+
+	/**
+	 * Waits for a send permit of {@link MailerConfig#getSmtpConcurrency()}.
+	 */
+	private void acquirePermit() throws MessagingException {
+		if (sendPermits != null) {
+			try {
+				sendPermits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted while waiting for a send permit");
+			}
+		}
+	}
+
+	private void releasePermit() {
+		if (sendPermits != null) {
+			sendPermits.release();
+		}
+	}
+
+	/**
+	 * Waits for the reserved slot of a rate limit.
+	 */
+	private static void await(long nanos, MailerMetrics metrics, String mailType) throws MessagingException {
+		if (nanos <= 0) {
+			return;
+		}
+		long deadline = System.nanoTime() + nanos;
+		for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted while waiting for the send rate limit");
+			}
+		}
+		metrics.recordStage(Stage.RATE_LIMIT, mailType, nanos);
+	}
+
+	/**
+	 * Returns the next server not tried yet. If the breakers of all of them are open, the one which opened first is returned anyway.
+	 */
+	private Endpoint choose(long tried) {
+		long now = System.currentTimeMillis();
+		while (true) {
+			Endpoint endpoint = mailConfig.getSmtpRouting() == SmtpRouting.ROUND_ROBIN ? nextInTurn(tried, now) : leastOutstanding(tried, now);
+			if (endpoint == null) {
+				return openLongest(tried);
+			}
+			if (endpoint.acquire(now)) {
+				return endpoint;
+			}
+			// another mail took the trial meanwhile, the server is no longer available
+		}
+	}
+
+	private Endpoint nextInTurn(long tried, long now) {
+		long start = turn.getAndIncrement();
+		for (int i = 0; i < schedule.length; i++) {
+			Endpoint endpoint = endpoints[schedule[(int) ((start + i) % schedule.length)]];
+			if (!isTried(tried, endpoint) && endpoint.isAvailable(now)) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the server with the lowest mails in progress times average send time, per weight. Equal servers are taken in turns.
+	 */
+	private Endpoint leastOutstanding(long tried, long now) {
+		int start = endpoints.length == 1 ? 0 : (int) (turn.getAndIncrement() % endpoints.length);
+		Endpoint best = null;
+		double bestScore = 0;
+		for (int i = 0; i < endpoints.length; i++) {
+			Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+			if (isTried(tried, endpoint) || !endpoint.isAvailable(now)) {
+				continue;
+			}
+			double score = (endpoint.outstanding.get() + 1) * (double) Math.max(endpoint.latencyNanos, 1) / endpoint.weight;
+			if (best == null || score < bestScore) {
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private Endpoint openLongest(long tried) {
+		Endpoint best = null;
+		for (Endpoint endpoint : endpoints) {
+			if (!isTried(tried, endpoint) && (best == null || endpoint.openUntil < best.openUntil)) {
+				best = endpoint;
+			}
+		}
+		return best;
+	}
+
+	private static boolean isTried(long tried, Endpoint endpoint) {
+		return (tried & (1L << endpoint.index)) != 0;
+	}
+
+	/**
+	 * Smooth weighted round robin: the server with the highest running credit is next and pays the total weight, so that a server of weight 3
+	 * among servers of weight 1 is not chosen three times in a row.
+	 */
+	private static int[] schedule(Endpoint[] endpoints) {
+		int total = 0;
+		for (Endpoint endpoint : endpoints) {
+			total += endpoint.weight;
+		}
+		int[] schedule = new int[total];
+		int[] credit = new int[endpoints.length];
+		for (int turn = 0; turn < total; turn++) {
+			int best = 0;
+			for (int i = 0; i < endpoints.length; i++) {
+				credit[i] += endpoints[i].weight;
+				if (credit[i] > credit[best]) {
+					best = i;
+				}
+			}
+			credit[best] -= total;
+			schedule[turn] = best;
+		}
+		return schedule;
+	}
+
+	/**
+	 * Returns the skeleton of the mails from <code>fromEmail</code>, built on its first mail. An address which cannot be parsed is not kept.
+	 */
+	private MessageSkeleton skeleton(String fromEmail) throws MessagingException {
+		MessageSkeleton skeleton = skeletons.get(fromEmail);
+		if (skeleton == null) {
+			skeleton = new MessageSkeleton(fromEmail);
+			MessageSkeleton existing = skeletons.putIfAbsent(fromEmail, skeleton);
+			if (existing != null) {
+				skeleton = existing;
+			}
+		}
+		return skeleton;
+	}
+
+	/**
+	 * Rendered mail for {@link SmtpRouter#sendAll(List)}.
+	 */
+	static final class Mail {
+		private final String mailType;
+		private final String mailId;
+		private final String subject;
+		private final String msgText;
+		private final String fromEmail;
+
+		Mail(String mailType, String mailId, String subject, String msgText, String fromEmail) {
+			this.mailType = mailType;
+			this.mailId = mailId;
+			this.subject = subject;
+			this.msgText = msgText;
+			this.fromEmail = fromEmail;
+		}
+	}
+
+	/**
+	 * Server with the state of its circuit breaker and its health.
+	 */
+	private static final class Endpoint {
+		private final int index;
+		private final String host;
+		private final int port;
+		private final int weight;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicBoolean trial = new AtomicBoolean();
+		// null without a server rate limit
+		private final Throttle throttle;
+		// 0 while the breaker is closed
+		private volatile long openUntil;
+		// average of the recent send times, 0 until the first mail
+		private volatile long latencyNanos;
+
+		private Endpoint(int index, SmtpEndpoint endpoint, RateLimit rateLimit) {
+			this.index = index;
+			this.throttle = rateLimit == null ? null : new Throttle(rateLimit);
+			this.host = endpoint.getHost();
+			this.port = endpoint.getPort();
+			this.weight = endpoint.getWeight();
+		}
+
+		boolean isAvailable(long now) {
+			long until = openUntil;
+			return until == 0 || (now >= until && !trial.get());
+		}
+
+		/**
+		 * Takes the trial of a server whose breaker has been open long enough.
+		 */
+		boolean acquire(long now) {
+			long until = openUntil;
+			return until == 0 || (now >= until && trial.compareAndSet(false, true));
+		}
+
+		void succeeded(long nanos) {
+			long latency = latencyNanos;
+			latencyNanos = latency == 0 ? nanos : latency + (nanos - latency) / LATENCY_SMOOTHING;
+			close();
+		}
+
+		void close() {
+			failures.set(0);
+			if (openUntil != 0) {
+				openUntil = 0;
+				trial.set(false);
+			}
+		}
+
+		/**
+		 * Counts a failed mail, it also makes the server look slower so that it gets fewer mails before the breaker opens.
+		 */
+		void failed(long now, int maxFailures, long openMillis) {
+			latencyNanos = Math.min(Math.max(latencyNanos, 1) * 2, MAX_LATENCY_NANOS);
+			if (openUntil != 0 || failures.incrementAndGet() >= maxFailures) {
+				openUntil = Math.max(now + openMillis, 1);
+				trial.set(false);
+			}
+		}
+
+		/**
+		 * Gives back a trial which did not reach the server.
+		 */
+		void skipped() {
+			if (openUntil != 0) {
+				trial.set(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * How a mail is routed to one of several SMTP servers, see {@link MailerConfig#setSmtpEndpoints(java.util.List)}. Servers whose circuit breaker
+ * is open are skipped by both.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public enum SmtpRouting {
+	/**
+	 * Servers take turns, each as many times as its weight.
+	 */
+	ROUND_ROBIN,
+	/**
+	 * The server with the fewest mails in progress, weighted by its recent send time and divided by its weight, so that slower servers get
+	 * fewer mails.
+	 */
+	LEAST_OUTSTANDING
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of one {@link RateLimit}, kept as the time at which the bucket is full again (GCRA). A mail reserves its slot with one
+ * compare-and-set and is told how long to wait for it, so excess mails are spread out instead of rejected.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class Throttle {
+	private final long intervalNanos;
+	private final long toleranceNanos;
+	// theoretical arrival time of the next mail, System.nanoTime() based
+	private final AtomicLong nextNanos;
+
+	Throttle(RateLimit rateLimit) {
+		intervalNanos = Math.max(1, (long) (1e9 / rateLimit.getMailsPerSecond()));
+		toleranceNanos = (rateLimit.getBurst() - 1) * intervalNanos;
+		nextNanos = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Reserves the slot of one mail.
+	 * 
+	 * @return nanoseconds to wait before sending, 0 if it may be sent now.
+	 */
+	long reserve(long now) {
+		while (true) {
+			long next = nextNanos.get();
+			long start = next - now > 0 ? next : now;
+			if (nextNanos.compareAndSet(next, start + intervalNanos)) {
+				return Math.max(0, start - now - toleranceNanos);
+			}
+		}
+	}
+
+	/**
+	 * Returns how long a mail would have to wait now, without reserving anything.
+	 */
+	long delay(long now) {
+		long next = nextNanos.get();
+		return Math.max(0, next - now - toleranceNanos);
+	}
+
+	/**
+	 * Tells if the bucket is full, i.e. the throttle is in the same state as a new one.
+	 */
+	boolean isIdle(long now) {
+		return nextNanos.get() - now <= 0;
+	}
+}
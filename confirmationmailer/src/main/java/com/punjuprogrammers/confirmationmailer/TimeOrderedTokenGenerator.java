@@ -0,0 +1,32 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.UUID;
+
+/**
+ * {@link TokenGenerator} of time-ordered bits in the layout of a version 7 UUID: the current time in milliseconds in the first 48 bits, then
+ * 74 random bits. Tokens issued later sort after earlier tokens, so new rows are appended at the end of the primary key index instead of at
+ * random places, which avoids page splits and keeps the recently used pages in the cache.
+ * 
+ * The issue time of a token can be read from the token. With 74 random bits per millisecond, the tokens are still not guessable.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class TimeOrderedTokenGenerator implements TokenGenerator {
+
+	@Override
+	public UUID generate() {
+		long random = RandomTokenGenerator.nextLong();
+		long high = (System.currentTimeMillis() << 16) | 0x7000L | (random & 0x0FFFL);
+		long low = (RandomTokenGenerator.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(high, low);
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of the token expiry dates, used by {@link MemoryTokenStore} to find the expired tokens without scanning all of them. An
+ * entry is put in the bucket of its expiry tick modulo the wheel size, so a bucket also holds entries of later revolutions, which the caller gives
+ * back with {@link #add(long, long, long)}. Entries are not removed when a token is deleted, the caller skips the tokens which are gone.
+ * 
+ * The cursor starts at the tick of the current time. Ticks before the cursor count as drained, an entry added for such a tick is put in the
+ * bucket of the cursor, so that it is found by the next drain. Entries can therefore be added in any order of their expiry, e.g. when the
+ * store is read back from its log.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class TimingWheel {
+	private static final long[] EMPTY = new long[0];
+
+	private final long tickMillis;
+	private final long[][] buckets;
+	private final int[] sizes;
+	private long cursor;
+
+	/**
+	 * @param tickMillis
+	 *            time span of one bucket.
+	 * @param wheelSize
+	 *            number of buckets, a revolution is <code>tickMillis * wheelSize</code> milliseconds.
+	 */
+	TimingWheel(long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.buckets = new long[wheelSize][];
+		this.sizes = new int[wheelSize];
+		this.cursor = Math.floorDiv(System.currentTimeMillis(), tickMillis);
+	}
+
+	/**
+	 * Adds the token with the given bits and expiry.
+	 */
+	synchronized void add(long high, long low, long expiryMillis) {
+		long tick = Math.floorDiv(expiryMillis, tickMillis);
+		int index = (int) Math.floorMod(Math.max(tick, cursor), (long) buckets.length);
+		long[] bucket = buckets[index];
+		int size = sizes[index];
+		if (bucket == null) {
+			bucket = buckets[index] = new long[3 * 8];
+		} else if (size == bucket.length) {
+			bucket = buckets[index] = Arrays.copyOf(bucket, size * 2);
+		}
+		bucket[size] = high;
+		bucket[size + 1] = low;
+		bucket[size + 2] = expiryMillis;
+		sizes[index] = size + 3;
+	}
+
+	/**
+	 * Takes the entries out of the buckets before the tick of <code>tillMillis</code>, whole buckets until at least <code>maxEntries</code> are
+	 * taken.
+	 * 
+	 * @return high bits, low bits and expiry of each entry in turn, empty once all these buckets are drained.
+	 */
+	synchronized long[] drain(long tillMillis, int maxEntries) {
+		long tillTick = Math.floorDiv(tillMillis, tickMillis);
+		if (tillTick - cursor > buckets.length) {
+			// one revolution visits every bucket
+			cursor = tillTick - buckets.length;
+		}
+		long[] entries = EMPTY;
+		int count = 0;
+		while (cursor < tillTick && count / 3 < maxEntries) {
+			int index = (int) Math.floorMod(cursor, (long) buckets.length);
+			if (sizes[index] > 0) {
+				if (count + sizes[index] > entries.length) {
+					entries = Arrays.copyOf(entries, Math.max(count + sizes[index], entries.length * 2));
+				}
+				System.arraycopy(buckets[index], 0, entries, count, sizes[index]);
+				count += sizes[index];
+				clear(index);
+			}
+			cursor++;
+		}
+		return count == entries.length ? entries : Arrays.copyOf(entries, count);
+	}
+
+	/**
+	 * Takes the entries out of the bucket of the tick of <code>tillMillis</code>, once the buckets before are drained. The entries of this tick
+	 * which are not expired yet must be added again.
+	 */
+	synchronized long[] drainCurrent(long tillMillis) {
+		if (cursor != Math.floorDiv(tillMillis, tickMillis)) {
+			return EMPTY;
+		}
+		int index = (int) Math.floorMod(cursor, (long) buckets.length);
+		long[] entries = Arrays.copyOf(buckets[index] == null ? EMPTY : buckets[index], sizes[index]);
+		clear(index);
+		return entries;
+	}
+
+	private void clear(int index) {
+		// a large bucket is given up, to not hold the memory of a peak
+		if (buckets[index] != null && buckets[index].length > 3 * 1024) {
+			buckets[index] = null;
+		}
+		sizes[index] = 0;
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of token lookups. A token which does not exist is cached as a negative entry. The cache is split into segments, each a
+ * small LRU map with its own lock, so that concurrent lookups of different tokens rarely wait for each other.
+ *
+ * A lookup which misses the cache gets a stamp with {@link #stamp(String)} before reading the database and stores the result with
+ * {@link #put(String, MailToken, long, long)}. If the token was invalidated in between, the stamp no longer matches and the result, which may
+ * be stale, is not stored.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class TokenCache {
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments;
+
+	TokenCache(int maxSize) {
+		int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * Returns the cached entry of the token or null if there is none or it has expired at <code>now</code>.
+	 */
+	CachedToken get(String token, long now) {
+		Segment segment = segmentFor(token);
+		synchronized (segment) {
+			CachedToken cached = segment.map.get(token);
+			if (cached != null && cached.expiresAt <= now) {
+				segment.map.remove(token);
+				return null;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Returns the stamp to be passed to {@link #put(String, MailToken, long, long)} for a value read after this call.
+	 */
+	long stamp(String token) {
+		Segment segment = segmentFor(token);
+		synchronized (segment) {
+			return segment.generation;
+		}
+	}
+
+	/**
+	 * Caches the token details, null for a token which does not exist, unless the token was invalidated since <code>stamp</code> was taken.
+	 */
+	void put(String token, MailToken mailToken, long stamp, long expiresAt) {
+		Segment segment = segmentFor(token);
+		synchronized (segment) {
+			if (segment.generation == stamp) {
+				segment.map.put(token, new CachedToken(mailToken, expiresAt));
+			}
+		}
+	}
+
+	void invalidate(String token) {
+		Segment segment = segmentFor(token);
+		synchronized (segment) {
+			segment.generation++;
+			segment.map.remove(token);
+		}
+	}
+
+	void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.generation++;
+				segment.map.clear();
+			}
+		}
+	}
+
+	private Segment segmentFor(String token) {
+		int h = token.hashCode();
+		h ^= h >>> 16;
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Cached lookup result. The token is null if it does not exist.
+	 */
+	static class CachedToken {
+		private final MailToken mailToken;
+		private final long expiresAt;
+
+		private CachedToken(MailToken mailToken, long expiresAt) {
+			this.mailToken = mailToken;
+			this.expiresAt = expiresAt;
+		}
+
+		MailToken getMailToken() {
+			return mailToken;
+		}
+	}
+
+	private static class Segment {
+		private final Map<String, CachedToken> map;
+		private long generation;
+
+		private Segment(final int maxSize) {
+			map = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * URL-safe text form of the 128 bits of a token in 22 characters. The alphabet is sorted in ASCII order, so the strings sort like the bits,
+ * and time-ordered tokens stay ordered in a string column.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+final class TokenEncoding {
+	static final int LENGTH = 22;
+	private static final char[] ALPHABET = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	private TokenEncoding() {
+	}
+
+	static String encode(UUID bits) {
+		return encode(bits.getMostSignificantBits(), bits.getLeastSignificantBits());
+	}
+
+	static String encode(long high, long low) {
+		char[] chars = new char[LENGTH];
+		for (int i = LENGTH - 1; i >= 0; i--) {
+			chars[i] = ALPHABET[(int) (low & 63)];
+			low = (low >>> 6) | (high << 58);
+			high >>>= 6;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Reverses {@link #encode(UUID)}.
+	 * 
+	 * @return the bits, null if the string is not an encoded token.
+	 */
+	static UUID decode(String token) {
+		if (token == null || token.length() != LENGTH) {
+			return null;
+		}
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < LENGTH; i++) {
+			char c = token.charAt(i);
+			int value = c < 128 ? VALUES[c] : -1;
+			// the first character holds the top 2 bits only
+			if (value < 0 || (i == 0 && value > 3)) {
+				return null;
+			}
+			high = (high << 6) | (low >>> 58);
+			low = (low << 6) | value;
+		}
+		return new UUID(high, low);
+	}
+}
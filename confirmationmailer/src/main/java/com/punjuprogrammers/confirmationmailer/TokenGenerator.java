@@ -0,0 +1,33 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.UUID;
+
+/**
+ * Source of the 128 random bits of a new stored token, set with {@link MailerConfig#setTokenGenerator(TokenGenerator)}. The mailer encodes the
+ * bits into the token string, so an implementation only decides how the bits are chosen. The {@link UUID} is used as a holder of the 128 bits,
+ * its version bits need not be set.
+ * 
+ * An implementation is called by all sending threads at the same time and must be thread-safe. The bits must be unpredictable, a token is the
+ * only proof that the mail was received.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ * @see RandomTokenGenerator
+ * @see TimeOrderedTokenGenerator
+ */
+public interface TokenGenerator {
+	/**
+	 * Returns the bits of a new token.
+	 * 
+	 * @return 128 bits, never null.
+	 */
+	public UUID generate();
+}
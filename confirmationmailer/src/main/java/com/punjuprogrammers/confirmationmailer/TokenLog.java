@@ -0,0 +1,261 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only log of the changes of a {@link MemoryTokenStore}, written through a memory mapped file, so that an append is a copy to memory and
+ * the operating system writes the pages to disk. Changes survive a crash of the process, but not of the machine, unless the log was closed.
+ * 
+ * Each record starts with its type, which is written after the rest of the record, so that a record torn by a crash reads as the end of the
+ * log. The log is rewritten with the live tokens only by {@link #rewrite(Contents)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class TokenLog {
+	private static final long MAGIC = 0x4D41494C544F4B31L;
+	private static final int INITIAL_SIZE = 1 << 20;
+	private static final int MAX_STRING_LENGTH = 1 << 24;
+	private static final byte END = 0;
+	private static final byte PUT = 1;
+	private static final byte USED = 2;
+	private static final byte DELETE = 3;
+	private static final byte USE = 4;
+	private static final byte DELETE_USE = 5;
+
+	/**
+	 * Receives the records of the log in order.
+	 */
+	interface Replay {
+		void put(long high, long low, long expiryMillis, long usedMillis, String mailType, String mailId, String userData);
+
+		void used(long high, long low, long usedMillis);
+
+		void delete(long high, long low);
+
+		void use(String id, long usedMillis, long expiryMillis);
+
+		void deleteUse(String id);
+	}
+
+	/**
+	 * Writes the live contents into a new log.
+	 */
+	interface Contents {
+		void writeTo(TokenLog log);
+	}
+
+	private final File file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	TokenLog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the existing log, if there is one.
+	 */
+	void replay(Replay replay) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readLong() != MAGIC) {
+				throw new IOException(file + " is not a token log");
+			}
+			while (true) {
+				byte type = in.readByte();
+				if (type == PUT) {
+					replay.put(in.readLong(), in.readLong(), in.readLong(), in.readLong(), readString(in), readString(in), readString(in));
+				} else if (type == USED) {
+					replay.used(in.readLong(), in.readLong(), in.readLong());
+				} else if (type == DELETE) {
+					replay.delete(in.readLong(), in.readLong());
+				} else if (type == USE) {
+					replay.use(readString(in), in.readLong(), in.readLong());
+				} else if (type == DELETE_USE) {
+					replay.deleteUse(readString(in));
+				} else {
+					return;
+				}
+			}
+		} catch (EOFException e) {
+			// empty file, or the end of a log which was never closed
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a new log with the given contents and replaces the current one with it. The log is appended to afterwards. Where the current log
+	 * cannot be replaced while it is mapped, appending continues on the current log.
+	 * 
+	 * @return true if the log was replaced.
+	 */
+	synchronized boolean rewrite(Contents contents) {
+		File newFile = new File(file.getPath() + ".new");
+		FileChannel oldChannel = channel;
+		MappedByteBuffer oldBuffer = buffer;
+		try {
+			channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+			buffer.putLong(MAGIC);
+			contents.writeTo(this);
+			buffer.force();
+			Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(channel);
+			newFile.delete();
+			channel = oldChannel;
+			buffer = oldBuffer;
+			if (oldChannel == null) {
+				throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+			}
+			return false;
+		}
+		closeQuietly(oldChannel);
+		return true;
+	}
+
+	/**
+	 * Current length of the log in bytes.
+	 */
+	synchronized long size() {
+		return buffer.position();
+	}
+
+	synchronized void put(long high, long low, long expiryMillis, long usedMillis, String mailType, String mailId, String userData) {
+		byte[] type = bytes(mailType);
+		byte[] id = bytes(mailId);
+		byte[] data = bytes(userData);
+		int start = begin(1 + 4 * 8 + length(type) + length(id) + length(data));
+		buffer.putLong(high).putLong(low).putLong(expiryMillis).putLong(usedMillis);
+		putBytes(type);
+		putBytes(id);
+		putBytes(data);
+		buffer.put(start, PUT);
+	}
+
+	synchronized void used(long high, long low, long usedMillis) {
+		int start = begin(1 + 3 * 8);
+		buffer.putLong(high).putLong(low).putLong(usedMillis);
+		buffer.put(start, USED);
+	}
+
+	synchronized void delete(long high, long low) {
+		int start = begin(1 + 2 * 8);
+		buffer.putLong(high).putLong(low);
+		buffer.put(start, DELETE);
+	}
+
+	synchronized void use(String id, long usedMillis, long expiryMillis) {
+		byte[] bytes = bytes(id);
+		int start = begin(1 + length(bytes) + 2 * 8);
+		putBytes(bytes);
+		buffer.putLong(usedMillis).putLong(expiryMillis);
+		buffer.put(start, USE);
+	}
+
+	synchronized void deleteUse(String id) {
+		byte[] bytes = bytes(id);
+		int start = begin(1 + length(bytes));
+		putBytes(bytes);
+		buffer.put(start, DELETE_USE);
+	}
+
+	/**
+	 * Writes the mapped pages to disk and closes the file.
+	 */
+	synchronized void close() {
+		if (channel != null) {
+			buffer.force();
+			closeQuietly(channel);
+			channel = null;
+		}
+	}
+
+	/**
+	 * Makes room for a record of <code>length</code> bytes and the end mark after it.
+	 * 
+	 * @return start of the record, the position is behind its type.
+	 */
+	private int begin(int length) {
+		int start = buffer.position();
+		if (buffer.remaining() <= length) {
+			long size = Math.max((long) buffer.capacity() * 2, (long) start + length + 1);
+			if (size > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Token log " + file + " is full");
+			}
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		buffer.put(start, END);
+		buffer.position(start + 1);
+		return start;
+	}
+
+	private void putBytes(byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_STRING_LENGTH) {
+			throw new EOFException("Corrupt record");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] bytes) {
+		return 4 + (bytes == null ? 0 : bytes.length);
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to clean up
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+/**
+ * How the token of a mail template is issued, see {@link MailerTemplate#setTokenMode(TokenMode)}.
+ * 
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public enum TokenMode {
+	/**
+	 * A random token is saved to the database and can be used only once. This is the default.
+	 */
+	STORED,
+	/**
+	 * The token itself carries the mail id, mail type, expiry and user data, signed with the current key from
+	 * {@link MailerConfig#addTokenSigningKey(String, byte[])}. Nothing is written to the database when the mail is sent and the token is verified
+	 * in memory. The token can be used any number of times until it expires.
+	 */
+	SIGNED,
+	/**
+	 * Like {@link #SIGNED}, but the use of the token is recorded in the {@link MailTokenUse} table, so that it can be used only once.
+	 */
+	SIGNED_SINGLE_USE
+}
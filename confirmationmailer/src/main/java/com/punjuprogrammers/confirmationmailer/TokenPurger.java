@@ -0,0 +1,167 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes expired and used tokens in chunks of {@link MailerConfig#getPurgeChunkSize()}, each in its own transaction. A long purge therefore
+ * never holds many locks at once. The background purge pauses between the chunks, so that concurrent sends are not stalled, an explicit
+ * purge of the application runs the chunks one after the other.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class TokenPurger {
+	private final TokenStore tokenStore;
+	private final MailerConfig mailConfig;
+	private final boolean purgeUses;
+	private volatile PurgeListener listener;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param purgeUses
+	 *            true if the recorded uses of signed tokens are deleted with the expired tokens.
+	 */
+	TokenPurger(TokenStore tokenStore, MailerConfig mailConfig, boolean purgeUses) {
+		this.tokenStore = tokenStore;
+		this.mailConfig = mailConfig;
+		this.purgeUses = purgeUses;
+	}
+
+	void setListener(PurgeListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts purging every {@link MailerConfig#getPurgeIntervalMillis()} milliseconds.
+	 */
+	void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "confirmationmailer-purge");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				purge();
+			}
+		}, mailConfig.getPurgeIntervalMillis(), mailConfig.getPurgeIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Deletes the tokens expired by now and, if configured, the used tokens, within the time budget.
+	 */
+	PurgeResult purge() {
+		return purge(new Date(), mailConfig.isPurgeUsedTokens(), mailConfig.getPurgeTimeBudgetMillis(), mailConfig.getPurgePauseMillis(), false);
+	}
+
+	/**
+	 * Deletes chunks until no matching token is left, the time budget is used up or the thread is interrupted. An error ends the purge, the
+	 * tokens which were not deleted are left for the next purge.
+	 *
+	 * @param expiryDateTill
+	 *            tokens expired till this date are deleted, null to delete no expired tokens.
+	 * @param used
+	 *            true to delete the used tokens.
+	 * @param timeBudgetMillis
+	 *            maximum run time, 0 for no limit.
+	 * @param pauseMillis
+	 *            pause between two chunks, 0 for no pause.
+	 * @param failFast
+	 *            true to throw an error after reporting the progress, false to return an incomplete result.
+	 */
+	PurgeResult purge(Date expiryDateTill, boolean used, long timeBudgetMillis, long pauseMillis, boolean failFast) {
+		long start = System.currentTimeMillis();
+		int chunkSize = mailConfig.getPurgeChunkSize();
+		int deletedExpired = 0;
+		int deletedUsed = 0;
+		int chunks = 0;
+		boolean expiredLeft = expiryDateTill != null;
+		boolean usesLeft = expiryDateTill != null && purgeUses;
+		boolean usedLeft = used;
+		boolean complete = false;
+		RuntimeException error = null;
+		try {
+			while (expiredLeft || usesLeft || usedLeft) {
+				if (chunks > 0 && !pause(start, timeBudgetMillis, pauseMillis)) {
+					break;
+				}
+				int count;
+				if (expiredLeft) {
+					count = tokenStore.deleteExpired(expiryDateTill, chunkSize);
+					deletedExpired += count;
+					expiredLeft = count >= chunkSize;
+				} else if (usesLeft) {
+					count = tokenStore.deleteExpiredUses(expiryDateTill, chunkSize);
+					deletedExpired += count;
+					usesLeft = count == chunkSize;
+				} else {
+					count = tokenStore.deleteUsed(chunkSize);
+					deletedUsed += count;
+					usedLeft = count == chunkSize;
+				}
+				chunks++;
+				report(new PurgeResult(deletedExpired, deletedUsed, chunks, System.currentTimeMillis() - start, false, false));
+			}
+			complete = !(expiredLeft || usesLeft || usedLeft);
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		PurgeResult result = new PurgeResult(deletedExpired, deletedUsed, chunks, System.currentTimeMillis() - start, true, complete);
+		report(result);
+		if (error != null && failFast) {
+			throw error;
+		}
+		return result;
+	}
+
+	/**
+	 * Waits between two chunks.
+	 *
+	 * @return false if the time budget would be exceeded or the thread is interrupted.
+	 */
+	private boolean pause(long start, long timeBudgetMillis, long pauseMillis) {
+		if (timeBudgetMillis > 0 && System.currentTimeMillis() + pauseMillis - start >= timeBudgetMillis) {
+			return false;
+		}
+		if (pauseMillis > 0) {
+			try {
+				Thread.sleep(pauseMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !Thread.currentThread().isInterrupted();
+	}
+
+	private void report(PurgeResult progress) {
+		PurgeListener current = listener;
+		if (current != null) {
+			try {
+				current.purgeProgress(progress);
+			} catch (RuntimeException e) {
+				// a failing listener must not stop the purge
+			}
+		}
+	}
+}
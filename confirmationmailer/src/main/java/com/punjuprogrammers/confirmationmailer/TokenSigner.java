@@ -0,0 +1,172 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and verifies self-contained tokens of the signed {@link TokenMode}s. A token has the form <code>keyId.payload.signature</code>, where
+ * the payload holds the mail type, mail id, expiry date and user data, and the signature is a truncated HMAC-SHA256 of the key id and the
+ * payload. Both parts are base64url encoded. A random nonce in the payload makes every token unique, so that the signature can be used as the id
+ * of its {@link MailTokenUse}.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+class TokenSigner {
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int SIGNATURE_BYTES = 16;
+	private static final int FLAG_SINGLE_USE = 1;
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+	private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final MailerConfig mailConfig;
+
+	TokenSigner(MailerConfig mailConfig) {
+		this.mailConfig = mailConfig;
+	}
+
+	/**
+	 * Tells if the token has the form of a signed token. Random stored tokens never contain a dot.
+	 */
+	static boolean isSigned(String token) {
+		return token.indexOf('.') > 0;
+	}
+
+	/**
+	 * Returns a new token signed with the current key.
+	 */
+	String sign(String mailType, String mailId, Date expiryDate, String userData, boolean singleUse) {
+		String keyId = mailConfig.getTokenSigningKeyId();
+		if (keyId == null) {
+			throw new IllegalStateException("No token signing key, see MailerConfig.addTokenSigningKey()");
+		}
+		byte[] key = mailConfig.getTokenSigningKeys().get(keyId);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mailType.length() + mailId.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(singleUse ? FLAG_SINGLE_USE : 0);
+			out.writeLong(ThreadLocalRandom.current().nextLong());
+			out.writeLong(expiryDate.getTime());
+			out.writeUTF(mailType);
+			out.writeUTF(mailId);
+			out.writeBoolean(userData != null);
+			if (userData != null) {
+				out.writeUTF(userData);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Token data too long", e);
+		}
+		String prefix = keyId + '.' + ENCODER.encodeToString(bytes.toByteArray());
+		return prefix + '.' + ENCODER.encodeToString(signature(key, prefix));
+	}
+
+	/**
+	 * Verifies the signature and decodes the token.
+	 *
+	 * @return decoded token, null if the token is malformed, its key is unknown or the signature does not match.
+	 */
+	SignedToken verify(String token) {
+		int keyEnd = token.indexOf('.');
+		int payloadEnd = token.lastIndexOf('.');
+		if (keyEnd <= 0 || payloadEnd <= keyEnd) {
+			return null;
+		}
+		byte[] key = mailConfig.getTokenSigningKeys().get(token.substring(0, keyEnd));
+		if (key == null) {
+			return null;
+		}
+		try {
+			String prefix = token.substring(0, payloadEnd);
+			byte[] signature = DECODER.decode(token.substring(payloadEnd + 1));
+			if (!MessageDigest.isEqual(signature, signature(key, prefix))) {
+				return null;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(DECODER.decode(token.substring(keyEnd + 1, payloadEnd))));
+			int flags = in.readByte();
+			in.readLong();
+			Date expiryDate = new Date(in.readLong());
+			String mailType = in.readUTF();
+			String mailId = in.readUTF();
+			String userData = in.readBoolean() ? in.readUTF() : null;
+			MailToken mailToken = new MailToken(token, mailType, expiryDate, mailId, userData);
+			return new SignedToken(mailToken, (flags & FLAG_SINGLE_USE) != 0, token.substring(payloadEnd + 1));
+		} catch (IllegalArgumentException e) {
+			// not base64
+			return null;
+		} catch (IOException e) {
+			// truncated payload, cannot happen with a valid signature
+			return null;
+		}
+	}
+
+	private static byte[] signature(byte[] key, String prefix) {
+		Mac mac = MAC.get();
+		try {
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		return Arrays.copyOf(mac.doFinal(prefix.getBytes(StandardCharsets.US_ASCII)), SIGNATURE_BYTES);
+	}
+
+	/**
+	 * Content of a verified token.
+	 */
+	static class SignedToken {
+		private final MailToken mailToken;
+		private final boolean singleUse;
+		private final String useId;
+
+		private SignedToken(MailToken mailToken, boolean singleUse, String useId) {
+			this.mailToken = mailToken;
+			this.singleUse = singleUse;
+			this.useId = useId;
+		}
+
+		MailToken getMailToken() {
+			return mailToken;
+		}
+
+		boolean isSingleUse() {
+			return singleUse;
+		}
+
+		/**
+		 * Returns the id of the {@link MailTokenUse} which records the use of a single use token.
+		 */
+		String getUseId() {
+			return useId;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage of {@link MailToken}. Implementations must be safe for use by several threads.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+interface TokenStore {
+
+	/**
+	 * Returns a new random token for a token expiring at <code>expiryDate</code>.
+	 */
+	String newToken(Date expiryDate);
+
+	/**
+	 * Saves the token and, if not null, its outbox mail in one transaction.
+	 */
+	void save(MailToken mailToken, MailOutbox mail);
+
+	/**
+	 * Saves the tokens and, if not null, their outbox mails in one transaction.
+	 */
+	void saveAll(List<MailToken> mailTokens, List<MailOutbox> mails);
+
+	/**
+	 * @return token details, null if it does not exist.
+	 */
+	MailToken find(String token);
+
+	/**
+	 * Marks the token as used if it is not used and not expired at <code>now</code>.
+	 *
+	 * @return token details if it was marked, null otherwise.
+	 */
+	MailToken markUsed(String token, Date now);
+
+	/**
+	 * Deletes the token if it is not used and not expired at <code>now</code>.
+	 *
+	 * @return token details if it was deleted, null otherwise.
+	 */
+	MailToken deleteValid(String token, Date now);
+
+	/**
+	 * Deletes the token.
+	 *
+	 * @return token details, null if it does not exist.
+	 */
+	MailToken delete(String token);
+
+	int deleteAll(Collection<String> tokens);
+
+	/**
+	 * Deletes about <code>limit</code> tokens whose expiry date is till <code>expiryDateTill</code>, in short transactions.
+	 *
+	 * @return number of deleted tokens, less than <code>limit</code> if no more tokens are expired. Can be more than <code>limit</code> if whole
+	 *         partitions are dropped.
+	 */
+	int deleteExpired(Date expiryDateTill, int limit);
+
+	/**
+	 * Deletes at most <code>limit</code> used tokens, in one short transaction.
+	 *
+	 * @return number of deleted tokens, less than <code>limit</code> if no more tokens are used.
+	 */
+	int deleteUsed(int limit);
+
+	List<MailToken> findExpired(Date expiryDateTill);
+
+	List<MailToken> findUsed();
+
+	List<MailToken> findUsed(Date usedDateFrom, Date usedDateTill);
+
+	/**
+	 * Returns at most <code>limit</code> tokens expired till <code>expiryDateTill</code>, ordered by expiry date and token, which follow
+	 * <code>after</code> in this order.
+	 *
+	 * @param after
+	 *            last token of the previous page, null for the first page.
+	 */
+	List<MailToken> findExpiredPage(Date expiryDateTill, MailToken after, int limit);
+
+	/**
+	 * Returns at most <code>limit</code> used tokens which follow <code>after</code>. Tokens used between <code>usedDateFrom</code> and
+	 * <code>usedDateTill</code> are ordered by used date and token; if the dates are null, all used tokens are returned ordered by token.
+	 *
+	 * @param after
+	 *            last token of the previous page, null for the first page.
+	 */
+	List<MailToken> findUsedPage(Date usedDateFrom, Date usedDateTill, MailToken after, int limit);
+
+	/**
+	 * Records the use of a signed single use token.
+	 *
+	 * @return false if the use was already recorded.
+	 */
+	boolean saveUse(MailTokenUse use);
+
+	/**
+	 * @return recorded use, null if the token was not used.
+	 */
+	MailTokenUse findUse(String id);
+
+	/**
+	 * Deletes at most <code>limit</code> recorded uses of tokens whose expiry date is till <code>expiryDateTill</code>, in one short transaction.
+	 */
+	int deleteExpiredUses(Date expiryDateTill, int limit);
+
+	/**
+	 * Passes the ids of all stored tokens to <code>action</code>, one page at a time so that the whole table is never in memory. The database
+	 * is not used while <code>action</code> runs.
+	 */
+	void forEachTokenPage(Consumer<List<String>> action);
+
+	/**
+	 * Returns the number of stored tokens, including the used and expired ones which are not purged yet.
+	 */
+	long count();
+
+	/**
+	 * Returns a valid, unused token of the mail which expires after <code>expiryAfter</code>. As all tokens of a mail type are issued with the same
+	 * validity, this finds the tokens issued in a recent time window.
+	 *
+	 * @return the token expiring last, null if there is none or the store keeps no index of the mails.
+	 */
+	MailToken findLive(String mailId, String mailType, Date expiryAfter);
+}
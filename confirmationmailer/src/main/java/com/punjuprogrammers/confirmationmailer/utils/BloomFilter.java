@@ -0,0 +1,136 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings held in one bit array. {@link #mightContain(String)} never returns false for an added string, and returns true for a
+ * string which was not added with about the false positive rate given to the constructor, as long as no more than the expected number of strings
+ * are added.
+ *
+ * The filter needs about 1.2 bytes per expected string at a false positive rate of 1%, independent of the string length. Strings can be added
+ * and checked by several threads at the same time.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class BloomFilter {
+	private static final double LN2 = Math.log(2);
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param expectedInsertions
+	 *            number of strings the filter is sized for.
+	 * @param falsePositiveRate
+	 *            wanted rate of false positives, greater than 0 and less than 1.
+	 */
+	public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1) {
+			throw new IllegalArgumentException("expectedInsertions must be at least 1");
+		}
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		}
+		long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (LN2 * LN2));
+		long words = Math.min((bits + 63) >>> 6, Integer.MAX_VALUE - 8);
+		this.bits = new AtomicLongArray((int) Math.max(words, 1));
+		this.bitCount = this.bits.length() * 64L;
+		this.hashCount = (int) Math.max(1, Math.round((double) bitCount / expectedInsertions * LN2));
+	}
+
+	/**
+	 * Adds the string to the filter.
+	 *
+	 * @param value
+	 *            non-null string.
+	 */
+	public void put(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long index = (combined & Long.MAX_VALUE) % bitCount;
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, current, current | mask)) {
+					break;
+				}
+			}
+			combined += hash2;
+		}
+	}
+
+	/**
+	 * Tells if the string may have been added.
+	 *
+	 * @param value
+	 *            non-null string.
+	 * @return false if the string was definitely not added, true if it probably was.
+	 */
+	public boolean mightContain(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long index = (combined & Long.MAX_VALUE) % bitCount;
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+			combined += hash2;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the size of the bit array.
+	 *
+	 * @return number of bits.
+	 */
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	/**
+	 * Returns the number of bits set for each string.
+	 *
+	 * @return number of hash functions.
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters, mixed so that all bits depend on all characters.
+	 */
+	private static long hash(String value) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB93FE1A85EC3L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template text parsed once into literal segments and field slots. A field is written as <code>${FIELD_NAME}</code>, the same syntax which was
+ * earlier matched with the regular expression <code>\$\{(.+?)\}</code>: the name is the shortest non-empty run of characters, not containing a line
+ * terminator, which is followed by a closing brace.
+ *
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class CompiledTemplate {
+	private static final int EXPECTED_FIELD_LENGTH = 16;
+
+	private final String[] literals;
+	private final String[] fieldNames;
+	private final int literalLength;
+
+	private CompiledTemplate(String[] literals, String[] fieldNames, int literalLength) {
+		this.literals = literals;
+		this.fieldNames = fieldNames;
+		this.literalLength = literalLength;
+	}
+
+	/**
+	 * Parses the <code>template</code> text.
+	 *
+	 * @param template
+	 *            template text.
+	 * @return compiled template.
+	 */
+	public static CompiledTemplate compile(String template) {
+		Util.assertNotNull(template, "template");
+		List<String> literals = new ArrayList<String>();
+		List<String> fieldNames = new ArrayList<String>();
+		int length = template.length();
+		int literalStart = 0;
+		int pos = 0;
+		while (pos < length - 3) {
+			if (template.charAt(pos) == '$' && template.charAt(pos + 1) == '{') {
+				int end = findFieldEnd(template, pos + 2);
+				if (end > 0) {
+					literals.add(template.substring(literalStart, pos));
+					fieldNames.add(template.substring(pos + 2, end));
+					pos = end + 1;
+					literalStart = pos;
+					continue;
+				}
+			}
+			pos++;
+		}
+		literals.add(template.substring(literalStart));
+
+		int literalLength = 0;
+		for (String literal : literals) {
+			literalLength += literal.length();
+		}
+		return new CompiledTemplate(literals.toArray(new String[literals.size()]), fieldNames.toArray(new String[fieldNames.size()]), literalLength);
+	}
+
+	/**
+	 * Returns the index of the closing brace of a field name starting at <code>nameStart</code> or -1 if there is none. At least one character of
+	 * the name is consumed before a closing brace is looked for.
+	 */
+	private static int findFieldEnd(String template, int nameStart) {
+		int length = template.length();
+		for (int i = nameStart; i < length; i++) {
+			char c = template.charAt(i);
+			if (isLineTerminator(c)) {
+				return -1;
+			}
+			if (c == '}' && i > nameStart) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * Replaces the template fields with the values from <code>fields</code>.
+	 *
+	 * @param fields
+	 *            field names and their values.
+	 * @return rendered text.
+	 * @throws IllegalStateException
+	 *             if a template field has no value in <code>fields</code>.
+	 */
+	public String render(Map<String, String> fields) {
+		StringBuilder sb = new StringBuilder(literalLength + fieldNames.length * EXPECTED_FIELD_LENGTH);
+		for (int i = 0; i < fieldNames.length; i++) {
+			sb.append(literals[i]);
+			String value = fields.get(fieldNames[i]);
+			if (value == null) {
+				throw new IllegalStateException("Field not found in template: " + fieldNames[i]);
+			}
+			sb.append(value);
+		}
+		sb.append(literals[fieldNames.length]);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the number of field slots.
+	 *
+	 * @return field count.
+	 */
+	public int getFieldCount() {
+		return fieldNames.length;
+	}
+
+	/**
+	 * Returns the name of the field slot at <code>index</code>.
+	 *
+	 * @param index
+	 *            slot index, from 0 to {@link #getFieldCount()} - 1.
+	 * @return field name.
+	 */
+	public String getFieldName(int index) {
+		return fieldNames[index];
+	}
+
+	/**
+	 * Returns the literal text preceding the field slot at <code>index</code>. The index {@link #getFieldCount()} returns the trailing literal.
+	 *
+	 * @param index
+	 *            segment index, from 0 to {@link #getFieldCount()}.
+	 * @return literal text, possibly empty.
+	 */
+	public String getLiteral(int index) {
+		return literals[index];
+	}
+}
@@ -12,18 +12,122 @@ import java.util.Properties;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool.PooledTransport;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
 public class MailUtil {
+	private static final Session MESSAGE_SESSION = Session.getInstance(new Properties());
 
 	public static void sendMail(String toEmailId, String subject, String msgText, String from, String smtpServer, String userName, String password) throws MessagingException {
 
 		Properties properties = new Properties();
 		properties.setProperty("mail.smtp.host", smtpServer);
 		Session session = Session.getDefaultInstance(properties);
+		Transport.send(createMessage(session, toEmailId, subject, msgText, from));
+	}
+
+	/**
+	 * Sends the mail over a connection borrowed from <code>pool</code>. If a reused connection fails, for example because the server has closed
+	 * it meanwhile, the mail is sent once more over a new connection.
+	 * 
+	 * @return nanoseconds spent opening new connections, 0 if a pooled connection was reused.
+	 */
+	public static long sendMail(SmtpTransportPool pool, String toEmailId, String subject, String msgText, String from, String smtpServer, String userName,
+			String password) throws MessagingException {
+		return sendMail(pool, toEmailId, subject, msgText, from, smtpServer, 0, userName, password);
+	}
+
+	/**
+	 * Sends the mail like {@link #sendMail(SmtpTransportPool, String, String, String, String, String, String, String)} to a server on the given
+	 * port, 0 for the port of the pool.
+	 */
+	public static long sendMail(SmtpTransportPool pool, String toEmailId, String subject, String msgText, String from, String smtpServer, int port,
+			String userName, String password) throws MessagingException {
+		return sendMail(pool, new MessageSkeleton(from), toEmailId, subject, msgText, smtpServer, port, userName, password);
+	}
+
+	/**
+	 * Sends the mail like {@link #sendMail(SmtpTransportPool, String, String, String, String, String, int, String, String)}, with the sender and
+	 * the static headers of <code>skeleton</code>.
+	 */
+	public static long sendMail(SmtpTransportPool pool, MessageSkeleton skeleton, String toEmailId, String subject, String msgText, String smtpServer,
+			int port, String userName, String password) throws MessagingException {
+		PooledTransport transport = borrow(pool, smtpServer, port, userName, password);
+		long connectNanos = transport.getConnectNanos();
+		MimeMessage message;
+		try {
+			message = skeleton.createMessage(transport.getSession(), toEmailId, subject, msgText);
+		} catch (MessagingException e) {
+			pool.release(transport);
+			throw e;
+		}
+		try {
+			send(pool, transport, message);
+		} catch (MessagingException e) {
+			if (!transport.isReused() || isRefused(e)) {
+				throw e;
+			}
+			PooledTransport retry = borrow(pool, smtpServer, port, userName, password);
+			connectNanos += retry.getConnectNanos();
+			send(pool, retry, message);
+		}
+		return connectNanos;
+	}
+
+	/**
+	 * Tells if the server refused the mail, which would be refused again. A connection closed by the server is reported as a
+	 * {@link SendFailedException} as well, but without a reply code.
+	 * 
+	 * @param e
+	 *            error of a send.
+	 * @return true for a permanent rejection of the mail.
+	 */
+	public static boolean isRefused(MessagingException e) {
+		if (e instanceof SMTPSendFailedException) {
+			return ((SMTPSendFailedException) e).getReturnCode() > 0;
+		}
+		return e instanceof SendFailedException;
+	}
+
+	private static PooledTransport borrow(SmtpTransportPool pool, String smtpServer, int port, String userName, String password) throws MessagingException {
+		return port > 0 ? pool.borrow(smtpServer, port, userName, password) : pool.borrow(smtpServer, userName, password);
+	}
+
+	private static void send(SmtpTransportPool pool, PooledTransport transport, MimeMessage message) throws MessagingException {
+		boolean sent = false;
+		try {
+			transport.send(message);
+			sent = true;
+		} finally {
+			if (sent) {
+				pool.release(transport);
+			} else {
+				pool.invalidate(transport);
+			}
+		}
+	}
+
+	/**
+	 * Creates the mail without sending it, i.e. for a {@link SmtpSession}.
+	 */
+	public static MimeMessage createMessage(String toEmailId, String subject, String msgText, String from) throws MessagingException {
+		return createMessage(MESSAGE_SESSION, toEmailId, subject, msgText, from);
+	}
+
+	/**
+	 * Creates the mail from <code>skeleton</code> without sending it, i.e. for a {@link SmtpSession}.
+	 */
+	public static MimeMessage createMessage(MessageSkeleton skeleton, String toEmailId, String subject, String msgText) throws MessagingException {
+		return skeleton.createMessage(MESSAGE_SESSION, toEmailId, subject, msgText);
+	}
+
+	private static MimeMessage createMessage(Session session, String toEmailId, String subject, String msgText, String from) throws MessagingException {
 		MimeMessage message = new MimeMessage(session);
 
 		message.setFrom(new InternetAddress(from));
@@ -31,6 +135,6 @@ public class MailUtil {
 		message.setSubject(subject);
 		message.setContent(msgText, "text/html; charset=utf-8");
 		message.setSentDate(new Date());
-		Transport.send(message);
+		return message;
 	}
 }
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Enumeration;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * The parts of a mail which are the same for every mail of a sender: the parsed sender address and the encoded From, MIME-Version,
+ * Content-Type and Content-Transfer-Encoding headers. The messages created from it encode only the recipient, subject, date and message id,
+ * and write the UTF-8 text as quoted-printable straight to the transport stream. JavaMail neither parses the sender nor scans the text to
+ * choose a transfer encoding.
+ *
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class MessageSkeleton {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(ASCII);
+	// RFC 2045 allows 76 characters per line, one is left for the soft line break
+	private static final int MAX_LINE_LENGTH = 75;
+
+	private final InternetAddress from;
+	private final byte[] headers;
+
+	/**
+	 * @param fromEmail
+	 *            sender address, with an optional personal name which is encoded in UTF-8 like the text.
+	 * @throws AddressException
+	 *             if the address cannot be parsed.
+	 */
+	public MessageSkeleton(String fromEmail) throws AddressException {
+		InternetAddress parsed = new InternetAddress(fromEmail);
+		if (parsed.getPersonal() != null) {
+			try {
+				parsed = new InternetAddress(parsed.getAddress(), parsed.getPersonal(), "utf-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		from = parsed;
+		String fromHeader = "From: " + MimeUtility.fold(6, from.toString()) + "\r\n";
+		headers = (fromHeader + "MIME-Version: 1.0\r\nContent-Type: text/html; charset=utf-8\r\nContent-Transfer-Encoding: quoted-printable\r\n")
+				.getBytes(ASCII);
+	}
+
+	public InternetAddress getFrom() {
+		return from;
+	}
+
+	/**
+	 * Creates a mail to be sent, not to be read: its content is only available through {@link MimeMessage#writeTo(OutputStream)}.
+	 */
+	public MimeMessage createMessage(Session session, String toEmailId, String subject, String msgText) throws MessagingException {
+		return new SkeletonMessage(session, this, toEmailId, subject, msgText);
+	}
+
+	/**
+	 * Writes the UTF-8 bytes of <code>text</code> as quoted-printable. Line breaks become CRLF, a space or tab before one is encoded.
+	 */
+	static void writeQuotedPrintable(String text, OutputStream out) throws IOException {
+		byte[] line = new byte[MAX_LINE_LENGTH + 1];
+		byte[] utf8 = new byte[4];
+		int length = 0;
+		int textLength = text.length();
+		for (int i = 0; i < textLength; i++) {
+			char c = text.charAt(i);
+			if (c == '\r' || c == '\n') {
+				if (c == '\r' && i + 1 < textLength && text.charAt(i + 1) == '\n') {
+					i++;
+				}
+				out.write(line, 0, length);
+				out.write(CRLF);
+				length = 0;
+				continue;
+			}
+			int count;
+			if (c < 0x80) {
+				utf8[0] = (byte) c;
+				count = 1;
+			} else if (c < 0x800) {
+				utf8[0] = (byte) (0xc0 | c >> 6);
+				utf8[1] = (byte) (0x80 | c & 0x3f);
+				count = 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < textLength && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				utf8[0] = (byte) (0xf0 | codePoint >> 18);
+				utf8[1] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+				utf8[2] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+				utf8[3] = (byte) (0x80 | codePoint & 0x3f);
+				count = 4;
+			} else if (Character.isSurrogate(c)) {
+				// unpaired, replaced like the UTF-8 encoder of the JDK does
+				utf8[0] = '?';
+				count = 1;
+			} else {
+				utf8[0] = (byte) (0xe0 | c >> 12);
+				utf8[1] = (byte) (0x80 | c >> 6 & 0x3f);
+				utf8[2] = (byte) (0x80 | c & 0x3f);
+				count = 3;
+			}
+			boolean lineEnds = i + 1 == textLength || text.charAt(i + 1) == '\r' || text.charAt(i + 1) == '\n';
+			for (int j = 0; j < count; j++) {
+				int b = utf8[j] & 0xff;
+				boolean literal = b >= 33 && b <= 126 && b != '=' || (b == ' ' || b == '\t') && !lineEnds;
+				if (length + (literal ? 1 : 3) > MAX_LINE_LENGTH) {
+					line[length++] = '=';
+					out.write(line, 0, length);
+					out.write(CRLF);
+					length = 0;
+				}
+				if (literal) {
+					line[length++] = (byte) b;
+				} else {
+					line[length++] = '=';
+					line[length++] = HEX[b >> 4];
+					line[length++] = HEX[b & 0x0f];
+				}
+			}
+		}
+		out.write(line, 0, length);
+	}
+
+	private static class SkeletonMessage extends MimeMessage {
+		private final MessageSkeleton skeleton;
+		private final String msgText;
+
+		private SkeletonMessage(Session session, MessageSkeleton skeleton, String toEmailId, String subject, String msgText)
+				throws MessagingException {
+			super(session);
+			this.skeleton = skeleton;
+			this.msgText = msgText;
+			setRecipient(Message.RecipientType.TO, new InternetAddress(toEmailId));
+			setSubject(subject, "utf-8");
+			setSentDate(new Date());
+		}
+
+		@Override
+		public Address[] getFrom() {
+			return new Address[] { skeleton.from };
+		}
+
+		/**
+		 * Only the message id is added, the other headers are set when the message is created or come from the skeleton.
+		 */
+		@Override
+		protected void updateHeaders() throws MessagingException {
+			updateMessageID();
+		}
+
+		@Override
+		public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+			if (!saved) {
+				saveChanges();
+			}
+			os.write(skeleton.headers);
+			for (Enumeration<?> lines = getNonMatchingHeaderLines(ignoreList); lines.hasMoreElements();) {
+				os.write(((String) lines.nextElement()).getBytes(ASCII));
+				os.write(CRLF);
+			}
+			os.write(CRLF);
+			writeQuotedPrintable(msgText, os);
+			os.flush();
+		}
+	}
+}
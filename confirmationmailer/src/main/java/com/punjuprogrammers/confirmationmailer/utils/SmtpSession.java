@@ -0,0 +1,483 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * SMTP connection which delivers many messages back to back. If the server announces the PIPELINING extension (RFC 2920), the envelope of a
+ * message, i.e. MAIL FROM, RCPT TO and DATA, is sent as one group together with the end of the previous message, so that every message costs one
+ * round trip instead of four. Without the extension the commands are sent one by one, still over the same connection.
+ *
+ * The connection is plain SMTP with AUTH PLAIN or LOGIN, STARTTLS is not supported. A failed transaction is followed by RSET before the next
+ * message. Instances are not thread-safe.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class SmtpSession implements AutoCloseable {
+	private static final int DEFAULT_PORT = 25;
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final boolean pipelining;
+	private final List<MessagingException> results = new ArrayList<MessagingException>();
+	private final List<Pending> pending = new ArrayList<Pending>();
+	private MessagingException broken;
+	private boolean dirty;
+	private Reply dataReply;
+
+	private SmtpSession(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new BufferedInputStream(socket.getInputStream());
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+		this.pipelining = false;
+	}
+
+	private SmtpSession(SmtpSession connected, boolean pipelining) {
+		this.socket = connected.socket;
+		this.in = connected.in;
+		this.out = connected.out;
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Connects, greets the server and authenticates.
+	 *
+	 * @param port
+	 *            port number, 0 for the standard port.
+	 * @param timeoutMillis
+	 *            connect and reply timeout, 0 to wait without limit.
+	 * @param userName
+	 *            user name, null if the server does not require authentication.
+	 * @throws MessagingException
+	 *             if the server cannot be reached or refuses the session.
+	 */
+	public static SmtpSession connect(String smtpServer, int port, long timeoutMillis, String userName, String password) throws MessagingException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int) timeoutMillis);
+			socket.connect(new InetSocketAddress(smtpServer, port > 0 ? port : DEFAULT_PORT), (int) timeoutMillis);
+			SmtpSession connection = new SmtpSession(socket);
+			Reply greeting = connection.read();
+			if (greeting.code != 220) {
+				throw new MessagingException("Bad greeting from " + smtpServer + ": " + greeting);
+			}
+			connection.write("EHLO " + localHost());
+			connection.out.flush();
+			Reply ehlo = connection.read();
+			if (ehlo.code != 250) {
+				connection.write("HELO " + localHost());
+				connection.out.flush();
+				Reply helo = connection.read();
+				if (helo.code != 250) {
+					throw new MessagingException("HELO refused by " + smtpServer + ": " + helo);
+				}
+			}
+			if (userName != null) {
+				connection.authenticate(ehlo, userName, password);
+			}
+			return new SmtpSession(connection, ehlo.code == 250 && ehlo.hasExtension("PIPELINING"));
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw new MessagingException("Cannot connect to " + smtpServer + ": " + e.getMessage(), e);
+		} catch (MessagingException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Tells if the server accepts pipelined commands.
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	/**
+	 * Sends the message to all of its recipients. The result is known only after {@link #finish()}; the reply for the end of a message is read
+	 * together with the replies for the envelope of the next one.
+	 *
+	 * @param message
+	 *            message with its sender in the From header.
+	 */
+	public void send(MimeMessage message) {
+		int index = results.size();
+		results.add(null);
+		if (broken != null) {
+			results.set(index, broken);
+			return;
+		}
+		try {
+			message.saveChanges();
+			Address[] from = message.getFrom();
+			Address[] recipients = message.getAllRecipients();
+			if (from == null || from.length == 0 || recipients == null || recipients.length == 0) {
+				throw new MessagingException("Message needs a sender and a recipient");
+			}
+			if (dirty) {
+				command("RSET", Pending.RSET, index);
+				dirty = false;
+			}
+			command("MAIL FROM:<" + ((InternetAddress) from[0]).getAddress() + ">", Pending.MAIL, index);
+			for (Address recipient : recipients) {
+				command("RCPT TO:<" + ((InternetAddress) recipient).getAddress() + ">", Pending.RCPT, index);
+			}
+			command("DATA", Pending.DATA, index);
+			sync();
+			Reply data = dataReply;
+			// with some recipients accepted the message goes to them, the rejected ones are reported
+			if (data.code != 354) {
+				if (results.get(index) == null) {
+					results.set(index, error("DATA", data));
+				}
+				dirty = true;
+				return;
+			}
+			DotStuffingOutputStream body = new DotStuffingOutputStream(out);
+			try {
+				message.writeTo(body);
+			} catch (MessagingException e) {
+				// the server takes anything sent after DATA as the text of the message, there is no way back
+				fail(e, index);
+				return;
+			}
+			body.end();
+			// the reply is read with the next group
+			pending.add(new Pending(Pending.END, index));
+			if (!pipelining) {
+				sync();
+			}
+		} catch (IOException e) {
+			fail(new MessagingException("Connection lost: " + e.getMessage(), e), index);
+		} catch (MessagingException e) {
+			if (broken == null) {
+				results.set(index, e);
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the outstanding replies.
+	 *
+	 * @return one entry per sent message in the order of {@link #send(MimeMessage)}, null if the server accepted the message, otherwise the
+	 *         error; a {@link SendFailedException} for a permanent rejection.
+	 */
+	public MessagingException[] finish() {
+		if (broken == null && !pending.isEmpty()) {
+			try {
+				sync();
+			} catch (IOException e) {
+				fail(new MessagingException("Connection lost: " + e.getMessage(), e), -1);
+			}
+		}
+		return results.toArray(new MessagingException[results.size()]);
+	}
+
+	/**
+	 * Says goodbye and closes the connection.
+	 */
+	@Override
+	public void close() {
+		if (broken == null) {
+			try {
+				write("QUIT");
+				out.flush();
+				read();
+			} catch (IOException e) {
+				// closed anyway
+			}
+		}
+		closeQuietly(socket);
+	}
+
+	private void command(String command, int type, int index) throws IOException {
+		write(command);
+		pending.add(new Pending(type, index));
+		if (!pipelining) {
+			sync();
+		}
+	}
+
+	/**
+	 * Flushes the commands and reads one reply per command.
+	 */
+	private void sync() throws IOException {
+		out.flush();
+		for (Pending command : pending) {
+			Reply reply = read();
+			MessagingException failure = null;
+			switch (command.type) {
+			case Pending.MAIL:
+				failure = reply.code == 250 ? null : error("MAIL FROM", reply);
+				break;
+			case Pending.RCPT:
+				if (reply.code != 250 && reply.code != 251) {
+					failure = error("RCPT TO", reply);
+				}
+				break;
+			case Pending.END:
+				failure = reply.code == 250 ? null : error("message", reply);
+				break;
+			case Pending.DATA:
+				dataReply = reply;
+				break;
+			default:
+				// a failed RSET shows in the next command
+			}
+			if (failure != null && results.get(command.index) == null) {
+				results.set(command.index, failure);
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Marks the connection as broken, the messages without a reply and the message being sent have failed.
+	 */
+	private void fail(MessagingException e, int index) {
+		broken = e;
+		for (Pending command : pending) {
+			if (results.get(command.index) == null) {
+				results.set(command.index, e);
+			}
+		}
+		pending.clear();
+		if (index >= 0 && results.get(index) == null) {
+			results.set(index, e);
+		}
+		closeQuietly(socket);
+	}
+
+	private void authenticate(Reply ehlo, String userName, String password) throws IOException, MessagingException {
+		String mechanisms = ehlo.extension("AUTH");
+		if (mechanisms != null && mechanisms.contains("PLAIN")) {
+			write("AUTH PLAIN " + base64("\0" + userName + "\0" + (password == null ? "" : password)));
+			out.flush();
+			expectAuth(read());
+		} else if (mechanisms != null && mechanisms.contains("LOGIN")) {
+			write("AUTH LOGIN");
+			out.flush();
+			Reply reply = read();
+			if (reply.code == 334) {
+				write(base64(userName));
+				out.flush();
+				reply = read();
+			}
+			if (reply.code == 334) {
+				write(base64(password == null ? "" : password));
+				out.flush();
+				reply = read();
+			}
+			expectAuth(reply);
+		} else {
+			throw new MessagingException("Server does not offer AUTH PLAIN or LOGIN");
+		}
+	}
+
+	private static void expectAuth(Reply reply) throws MessagingException {
+		if (reply.code != 235) {
+			throw new MessagingException("Authentication failed: " + reply);
+		}
+	}
+
+	private static MessagingException error(String command, Reply reply) {
+		String message = command + " failed: " + reply;
+		// 5xx is permanent, 4xx may succeed later
+		return reply.code >= 500 ? new SendFailedException(message) : new MessagingException(message);
+	}
+
+	private void write(String command) throws IOException {
+		out.write(command.getBytes(StandardCharsets.US_ASCII));
+		out.write('\r');
+		out.write('\n');
+	}
+
+	/**
+	 * Reads a reply, joining the lines of a multi-line reply.
+	 */
+	private Reply read() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while (true) {
+			String line = readLine();
+			if (line.length() < 3) {
+				throw new IOException("Bad reply: " + line);
+			}
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(line.length() > 4 ? line.substring(4) : "");
+			if (line.length() == 3 || line.charAt(3) != '-') {
+				try {
+					return new Reply(Integer.parseInt(line.substring(0, 3)), text.toString());
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad reply: " + line);
+				}
+			}
+		}
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new IOException("Connection closed by server");
+			}
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	private static String base64(String value) {
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String localHost() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "localhost";
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to clean up
+		}
+	}
+
+	/**
+	 * Command whose reply is not read yet.
+	 */
+	private static class Pending {
+		static final int RSET = 0;
+		static final int MAIL = 1;
+		static final int RCPT = 2;
+		static final int DATA = 3;
+		static final int END = 4;
+
+		private final int type;
+		private final int index;
+
+		private Pending(int type, int index) {
+			this.type = type;
+			this.index = index;
+		}
+	}
+
+	private static class Reply {
+		private final int code;
+		private final String text;
+
+		private Reply(int code, String text) {
+			this.code = code;
+			this.text = text;
+		}
+
+		boolean hasExtension(String name) {
+			return extension(name) != null;
+		}
+
+		/**
+		 * Returns the parameters of an EHLO extension, null if the server does not announce it.
+		 */
+		String extension(String name) {
+			for (String line : text.split("\n")) {
+				String upper = line.toUpperCase(Locale.ROOT);
+				if (upper.equals(name) || upper.startsWith(name + " ")) {
+					return upper.substring(name.length()).trim();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return code + " " + text;
+		}
+	}
+
+	/**
+	 * Writes the message as DATA content: line ends as CRLF and a dot doubled at the start of a line.
+	 */
+	private static class DotStuffingOutputStream extends FilterOutputStream {
+		private boolean lineStart = true;
+		private boolean afterCr;
+
+		private DotStuffingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b == '\n' && !afterCr) {
+				out.write('\r');
+			}
+			if (b == '.' && lineStart) {
+				out.write('.');
+			}
+			out.write(b);
+			lineStart = b == '\n';
+			afterCr = b == '\r';
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+
+		@Override
+		public void flush() {
+			// flushed with the next group of commands
+		}
+
+		/**
+		 * Writes the end of data line.
+		 */
+		void end() throws IOException {
+			if (!lineStart) {
+				out.write('\r');
+				out.write('\n');
+			}
+			out.write('.');
+			out.write('\r');
+			out.write('\n');
+		}
+	}
+}
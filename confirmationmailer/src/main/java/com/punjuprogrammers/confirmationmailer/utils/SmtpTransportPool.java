@@ -0,0 +1,390 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Bounded pool of connected SMTP transports. Connections are kept per server, user name and password, so that many messages can be sent over
+ * one connection instead of connecting and authenticating for each message.
+ *
+ * A connection which was idle for a while is checked with a NOOP command before it is handed out again, and connections idle for longer than
+ * <code>maxIdleMillis</code> are closed.
+ *
+ * @author Joga Singh - joga.singh@gmail.com
+ *
+ */
+public class SmtpTransportPool {
+	private static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+
+	private final int maxConnectionsPerServer;
+	private final long maxIdleMillis;
+	private final long borrowTimeoutMillis;
+	private final int smtpPort;
+	private final long timeoutMillis;
+	private final ConcurrentMap<ServerKey, ServerPool> pools = new ConcurrentHashMap<ServerKey, ServerPool>();
+	private volatile boolean closed;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param maxConnectionsPerServer
+	 *            maximum number of open connections to one server.
+	 * @param maxIdleMillis
+	 *            idle connections older than this are closed.
+	 * @param borrowTimeoutMillis
+	 *            how long to wait for a free connection when all connections are in use.
+	 */
+	public SmtpTransportPool(int maxConnectionsPerServer, long maxIdleMillis, long borrowTimeoutMillis) {
+		this(maxConnectionsPerServer, maxIdleMillis, borrowTimeoutMillis, 0);
+	}
+
+	/**
+	 * Constructor for servers listening on another than the standard SMTP port.
+	 *
+	 * @param smtpPort
+	 *            port to connect to, 0 for the standard port.
+	 */
+	public SmtpTransportPool(int maxConnectionsPerServer, long maxIdleMillis, long borrowTimeoutMillis, int smtpPort) {
+		this(maxConnectionsPerServer, maxIdleMillis, borrowTimeoutMillis, smtpPort, 0);
+	}
+
+	/**
+	 * Constructor with a timeout for the connection and the replies of the servers.
+	 *
+	 * @param timeoutMillis
+	 *            socket connect and read timeout, 0 to wait without limit.
+	 */
+	public SmtpTransportPool(int maxConnectionsPerServer, long maxIdleMillis, long borrowTimeoutMillis, int smtpPort, long timeoutMillis) {
+		if (maxConnectionsPerServer < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerServer must be at least 1");
+		}
+		this.maxConnectionsPerServer = maxConnectionsPerServer;
+		this.maxIdleMillis = maxIdleMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.smtpPort = smtpPort;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Returns a connected transport for the given server. It must be given back with {@link #release(PooledTransport)} or
+	 * {@link #invalidate(PooledTransport)}.
+	 *
+	 * @param smtpServer
+	 *            SMTP server host name or IP Address.
+	 * @param userName
+	 *            user name, null if the server does not require authentication.
+	 * @param password
+	 *            password, null if the server does not require authentication.
+	 * @return connected transport.
+	 * @throws MessagingException
+	 *             if no connection is available in time or connecting fails.
+	 */
+	public PooledTransport borrow(String smtpServer, String userName, String password) throws MessagingException {
+		return borrow(smtpServer, smtpPort, userName, password);
+	}
+
+	/**
+	 * Returns a connected transport for the given server and port. Every port of a server has its own connections.
+	 *
+	 * @param port
+	 *            port to connect to, 0 for the standard port.
+	 * @throws MessagingException
+	 *             if connecting fails, a {@link BorrowTimeoutException} if no connection is available in time.
+	 * @see #borrow(String, String, String)
+	 */
+	public PooledTransport borrow(String smtpServer, int port, String userName, String password) throws MessagingException {
+		if (closed) {
+			throw new IllegalStateException("Transport pool is closed");
+		}
+		ServerKey key = new ServerKey(smtpServer, port, userName, password);
+		ServerPool pool = pools.get(key);
+		if (pool == null) {
+			ServerPool newPool = new ServerPool(key);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool.borrow();
+	}
+
+	/**
+	 * Gives back a healthy transport for reuse.
+	 *
+	 * @param transport
+	 *            transport returned from {@link #borrow(String, String, String)}.
+	 */
+	public void release(PooledTransport transport) {
+		transport.pool.release(transport);
+	}
+
+	/**
+	 * Closes a transport which failed and frees its slot.
+	 *
+	 * @param transport
+	 *            transport returned from {@link #borrow(String, String, String)}.
+	 */
+	public void invalidate(PooledTransport transport) {
+		transport.pool.invalidate(transport);
+	}
+
+	/**
+	 * Returns the number of borrowed connections, over all servers.
+	 *
+	 * @return connections in use.
+	 */
+	public int getInUse() {
+		int count = 0;
+		for (ServerPool pool : pools.values()) {
+			count += maxConnectionsPerServer - pool.permits.availablePermits();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of open connections waiting to be borrowed, over all servers.
+	 *
+	 * @return idle connections.
+	 */
+	public int getIdle() {
+		int count = 0;
+		for (ServerPool pool : pools.values()) {
+			count += pool.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Closes all idle connections. Borrowed connections are closed when they are given back.
+	 */
+	public void close() {
+		closed = true;
+		for (ServerPool pool : pools.values()) {
+			pool.evict(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Thrown when all connections to a server are in use for longer than the borrow timeout. The server itself may be healthy.
+	 */
+	public static class BorrowTimeoutException extends MessagingException {
+		private static final long serialVersionUID = 1L;
+
+		public BorrowTimeoutException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A connected transport together with the session it was created from.
+	 */
+	public static class PooledTransport {
+		private final ServerPool pool;
+		private final Transport transport;
+		private final long connectNanos;
+		private boolean reused;
+		private long lastUsed;
+
+		private PooledTransport(ServerPool pool, Transport transport, long connectNanos) {
+			this.pool = pool;
+			this.transport = transport;
+			this.connectNanos = connectNanos;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Session getSession() {
+			return pool.session;
+		}
+
+		/**
+		 * Tells if the connection was used before. A failure on a reused connection can be caused by the server having dropped it and is worth
+		 * a retry over a new connection.
+		 *
+		 * @return true if the connection was taken from the idle connections.
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * Returns how long it took to open the connection, including the authentication.
+		 *
+		 * @return nanoseconds, 0 if the connection was reused.
+		 */
+		public long getConnectNanos() {
+			return reused ? 0 : connectNanos;
+		}
+
+		/**
+		 * Sends the message to all of its recipients.
+		 *
+		 * @param message
+		 *            message created with {@link #getSession()}.
+		 * @throws MessagingException
+		 *             if the message cannot be sent.
+		 */
+		public void send(Message message) throws MessagingException {
+			message.saveChanges();
+			transport.sendMessage(message, message.getAllRecipients());
+		}
+
+		private void closeQuietly() {
+			try {
+				transport.close();
+			} catch (MessagingException e) {
+				// connection is discarded anyway
+			}
+		}
+	}
+
+	private class ServerPool {
+		private final ServerKey key;
+		private final Session session;
+		private final Semaphore permits = new Semaphore(maxConnectionsPerServer);
+		private final ConcurrentLinkedDeque<PooledTransport> idle = new ConcurrentLinkedDeque<PooledTransport>();
+
+		private ServerPool(ServerKey key) {
+			this.key = key;
+			Properties properties = new Properties();
+			properties.setProperty("mail.smtp.host", key.smtpServer);
+			if (key.port > 0) {
+				properties.setProperty("mail.smtp.port", Integer.toString(key.port));
+			}
+			if (timeoutMillis > 0) {
+				properties.setProperty("mail.smtp.connectiontimeout", Long.toString(timeoutMillis));
+				properties.setProperty("mail.smtp.timeout", Long.toString(timeoutMillis));
+			}
+			if (key.userName != null) {
+				properties.setProperty("mail.smtp.auth", "true");
+			}
+			this.session = Session.getInstance(properties);
+		}
+
+		private PooledTransport borrow() throws MessagingException {
+			try {
+				if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					throw new BorrowTimeoutException("No SMTP connection available for " + key.smtpServer + " within " + borrowTimeoutMillis + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted while waiting for SMTP connection", e);
+			}
+			try {
+				long now = System.currentTimeMillis();
+				PooledTransport pooled;
+				while ((pooled = idle.pollFirst()) != null) {
+					long idleMillis = now - pooled.lastUsed;
+					if (idleMillis > maxIdleMillis) {
+						pooled.closeQuietly();
+					} else if (idleMillis > VALIDATE_AFTER_IDLE_MILLIS && !pooled.transport.isConnected()) {
+						// isConnected() issues a NOOP to check the connection
+						pooled.closeQuietly();
+					} else {
+						pooled.reused = true;
+						return pooled;
+					}
+				}
+				long start = System.nanoTime();
+				Transport transport = session.getTransport("smtp");
+				transport.connect(key.smtpServer, key.userName, key.password);
+				return new PooledTransport(this, transport, System.nanoTime() - start);
+			} catch (MessagingException e) {
+				permits.release();
+				throw e;
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		private void release(PooledTransport transport) {
+			transport.lastUsed = System.currentTimeMillis();
+			if (closed) {
+				transport.closeQuietly();
+			} else {
+				idle.offerFirst(transport);
+			}
+			permits.release();
+			evict(maxIdleMillis);
+		}
+
+		private void invalidate(PooledTransport transport) {
+			transport.closeQuietly();
+			permits.release();
+		}
+
+		/**
+		 * Closes the idle connections which are not used since <code>idleMillis</code>. Least recently used connections are at the tail.
+		 */
+		private void evict(long idleMillis) {
+			long now = System.currentTimeMillis();
+			Iterator<PooledTransport> it = idle.descendingIterator();
+			while (it.hasNext()) {
+				PooledTransport pooled = it.next();
+				if (idleMillis != Long.MAX_VALUE && now - pooled.lastUsed <= idleMillis) {
+					break;
+				}
+				if (idle.removeLastOccurrence(pooled)) {
+					pooled.closeQuietly();
+				}
+			}
+		}
+	}
+
+	private static class ServerKey {
+		private final String smtpServer;
+		private final int port;
+		private final String userName;
+		private final String password;
+
+		private ServerKey(String smtpServer, int port, String userName, String password) {
+			Util.assertNotNullNotEmpty(smtpServer, "smtpServer");
+			this.smtpServer = smtpServer;
+			this.port = port;
+			this.userName = userName;
+			this.password = password;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = smtpServer.hashCode() * 31 + port;
+			result = 31 * result + (userName == null ? 0 : userName.hashCode());
+			result = 31 * result + (password == null ? 0 : password.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof ServerKey)) {
+				return false;
+			}
+			ServerKey other = (ServerKey) obj;
+			return smtpServer.equals(other.smtpServer) && port == other.port && equal(userName, other.userName) && equal(password, other.password);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
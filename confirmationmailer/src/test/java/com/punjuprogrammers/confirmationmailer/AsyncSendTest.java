@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests {@link ConfirmationMailer#sendMailWithTokenAsync(String, String, Map, String)}: the future completes with the token, a failed mail
+ * completes it exceptionally and deletes the token, and a full queue rejects the mail.
+ */
+public class AsyncSendTest extends TestCase {
+	private FakeSmtpServer server;
+	private ConfirmationMailer mailer;
+	private Map<String, String> fields;
+
+	public AsyncSendTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(AsyncSendTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+		mailer = new ConfirmationMailer(new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+				config.setSmtpPort(server.getPort());
+				config.setAsyncWorkers(1);
+				config.setAsyncQueueCapacity(1);
+				config.setBackpressurePolicy(BackpressurePolicy.REJECT);
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Collections.singletonList(new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+			}
+		}, (java.io.File) null);
+		fields = new HashMap<String, String>();
+		fields.put("NAME", "Joga");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mailer.shutdown();
+		server.close();
+	}
+
+	public void testSent() throws Exception {
+		String token = mailer.sendMailWithTokenAsync("to@example.com", "activation", fields, null).get(10, TimeUnit.SECONDS);
+		Assert.assertEquals("to@example.com", mailer.validateToken(token).getMailId());
+		Assert.assertEquals(1, server.getReceived());
+	}
+
+	public void testSendFailure() throws Exception {
+		CompletableFuture<String> future = mailer.sendMailWithTokenAsync("to@rejected.example.com", "activation", fields, null);
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("recipient should be rejected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof ConfirmationMailerException);
+		}
+		Assert.assertEquals(0, mailer.getTokenCount());
+	}
+
+	public void testQueueFull() throws Exception {
+		server.setLatencyMillis(50);
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		// one mail is sent, one waits in the queue
+		futures.add(mailer.sendMailWithTokenAsync("a@example.com", "activation", fields, null));
+		futures.add(mailer.sendMailWithTokenAsync("b@example.com", "activation", fields, null));
+		try {
+			mailer.sendMailWithTokenAsync("c@example.com", "activation", fields, null);
+			fail("queue should be full");
+		} catch (ConfirmationMailerException e) {
+			Assert.assertEquals(ConfirmationMailer.ERROR_QUEUE_FULL, e.getErrorCode());
+		}
+		for (CompletableFuture<String> future : futures) {
+			future.get(30, TimeUnit.SECONDS);
+		}
+		Assert.assertEquals(2, server.getReceived());
+		Assert.assertEquals(2, mailer.getTokenCount());
+	}
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the failures of {@link ConfirmationMailer#sendMailsWithTokens(Collection)}: a failed request does not stop the others, the token of a
+ * mail which cannot be sent is deleted again, and no mail is sent if the tokens of its chunk cannot be saved.
+ */
+public class BatchSendTest extends TestCase {
+	private FakeSmtpServer server;
+	private MailerStats stats;
+	private ConfirmationMailer mailer;
+	private Map<String, String> fields;
+
+	public BatchSendTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(BatchSendTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+		stats = new MailerStats();
+		fields = new HashMap<String, String>();
+		fields.put("NAME", "Joga");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mailer != null) {
+			mailer.shutdown();
+		}
+		server.close();
+	}
+
+	/**
+	 * Rejected recipients in two chunks fail their own mails only, and their tokens are deleted.
+	 */
+	public void testRejectedRecipients() throws Exception {
+		mailer = new ConfirmationMailer(configProvider(), (java.io.File) null);
+		List<MailRequest> requests = new ArrayList<MailRequest>();
+		for (int i = 0; i < 5; i++) {
+			String mailId = i % 2 == 1 ? "to" + i + "@rejected.example.com" : "to" + i + "@example.com";
+			requests.add(new MailRequest(mailId, "activation", fields, null));
+		}
+		List<MailResult> results = mailer.sendMailsWithTokens(requests);
+		Assert.assertEquals(5, results.size());
+		for (int i = 0; i < 5; i++) {
+			MailResult result = results.get(i);
+			Assert.assertSame(requests.get(i), result.getRequest());
+			if (i % 2 == 1) {
+				Assert.assertFalse(result.isSuccess());
+				Assert.assertTrue(result.getError() instanceof ConfirmationMailerException);
+				Assert.assertNull(result.getToken());
+			} else {
+				Assert.assertTrue(result.isSuccess());
+				Assert.assertEquals(requests.get(i).getMailId(), mailer.validateToken(result.getToken()).getMailId());
+			}
+		}
+		Assert.assertEquals(3, server.getReceived());
+		// only the tokens of the sent mails are left
+		Assert.assertEquals(3, mailer.getTokenCount());
+		Assert.assertEquals(3, stats.getSent("activation"));
+		Assert.assertEquals(2, stats.getFailed("activation"));
+		Assert.assertEquals(2, stats.getCompensatingDeletes("activation"));
+	}
+
+	/**
+	 * Requests which cannot be prepared get their error, without a token, and the others are sent.
+	 */
+	public void testInvalidRequests() throws Exception {
+		mailer = new ConfirmationMailer(configProvider(), (java.io.File) null);
+		List<MailRequest> requests = new ArrayList<MailRequest>();
+		requests.add(new MailRequest("a@example.com", "activation", fields, null));
+		requests.add(new MailRequest("b@example.com", "unknown", fields, null));
+		requests.add(null);
+		requests.add(new MailRequest("c@example.com", "activation", Collections.<String, String> emptyMap(), null));
+		requests.add(new MailRequest("d@example.com", "activation", fields, null));
+		List<MailResult> results = mailer.sendMailsWithTokens(requests);
+		Assert.assertTrue(results.get(0).isSuccess());
+		for (int i = 1; i < 4; i++) {
+			Assert.assertFalse(results.get(i).isSuccess());
+			Assert.assertTrue(results.get(i).getError() instanceof RuntimeException);
+		}
+		Assert.assertTrue(results.get(4).isSuccess());
+		Assert.assertEquals(2, server.getReceived());
+		Assert.assertEquals(2, mailer.getTokenCount());
+	}
+
+	/**
+	 * When the tokens of a chunk cannot be saved, none of its mails is sent.
+	 */
+	public void testSaveFailure() throws Exception {
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:batch");
+		dataSource.setUser("SA");
+		mailer = new ConfirmationMailer(configProvider(), dataSource);
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.createStatement().execute("DROP TABLE MAIL_TOKEN");
+			List<MailRequest> requests = new ArrayList<MailRequest>();
+			requests.add(new MailRequest("a@example.com", "activation", fields, null));
+			requests.add(new MailRequest("b@example.com", "activation", fields, null));
+			for (MailResult result : mailer.sendMailsWithTokens(requests)) {
+				Assert.assertFalse(result.isSuccess());
+				Assert.assertTrue(result.getError() instanceof ConfirmationMailerException);
+			}
+			Assert.assertEquals(0, server.getReceived());
+		} finally {
+			connection.createStatement().execute("SHUTDOWN");
+			connection.close();
+		}
+	}
+
+	private MailerConfigProvier configProvider() {
+		return new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+				config.setSmtpPort(server.getPort());
+				config.setBatchSize(2);
+				config.setMetrics(stats);
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Collections.singletonList(new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+			}
+		};
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the partitioned store tests with the compact layout, and tests the encoding of the token in the two key columns.
+ */
+public class CompactTokenStoreTest extends PartitionedTokenStoreTest {
+	private static final String[] KEYS = { "00000000000000000000000000000000", "000000000000000080000000000000ff", "00000000000000007fffffffffffffff",
+			"7fffffffffffffff0000000000000001", "80000000000000000000000000000000", "8000000000000000ffffffffffffffff", "ffffffffffffffff0000000000000000",
+			"ffffffffffffffffffffffffffffffff", "0123456789abcdef0123456789abcdef" };
+
+	public CompactTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(CompactTokenStoreTest.class);
+	}
+
+	@Override
+	protected boolean isCompact() {
+		return true;
+	}
+
+	/**
+	 * Each half of the key is stored with its sign bit flipped, the lowest hex digits are the lowest numbers.
+	 */
+	public void testKeyColumns() throws Exception {
+		Date expiryDate = later();
+		long bucket = bucketOf(expiryDate);
+		for (String key : KEYS) {
+			tokenStore.save(new MailToken(bucket + "x" + key, "type", expiryDate, "a@b.com", null), null);
+		}
+		Connection connection = dataSource.getConnection();
+		try {
+			PreparedStatement select = connection.prepareStatement("SELECT TOKEN_HI, TOKEN_LO, STATUS, EXPIRY_MILLIS FROM " + table(bucket)
+					+ " WHERE TOKEN_HI = ? AND TOKEN_LO = ?");
+			select.setLong(1, Long.MIN_VALUE);
+			select.setLong(2, Long.MIN_VALUE);
+			Assert.assertTrue(select.executeQuery().next());
+			select.setLong(1, Long.MAX_VALUE);
+			select.setLong(2, Long.MAX_VALUE);
+			ResultSet rs = select.executeQuery();
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(0, rs.getInt(3));
+			Assert.assertEquals(expiryDate.getTime(), rs.getLong(4));
+			// 0x80000000000000ff in the low half
+			select.setLong(1, Long.MIN_VALUE);
+			select.setLong(2, 0xff);
+			Assert.assertTrue(select.executeQuery().next());
+		} finally {
+			connection.close();
+		}
+		for (String key : KEYS) {
+			String token = bucket + "x" + key;
+			Assert.assertEquals(token, tokenStore.find(token).getToken());
+		}
+		String used = bucket + "x" + KEYS[5];
+		Assert.assertEquals(used, tokenStore.markUsed(used, new Date()).getToken());
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM " + table(bucket) + " WHERE STATUS = 1 AND TOKEN_HI = 0 AND TOKEN_LO = " + Long.MAX_VALUE));
+	}
+
+	/**
+	 * A token of the compact form which is not spelled like an issued token, or belongs to another bucket, is not found and not changed.
+	 */
+	public void testForeignTokens() throws Exception {
+		Date expiryDate = later();
+		long bucket = bucketOf(expiryDate);
+		String token = bucket + "x" + KEYS[8];
+		tokenStore.save(new MailToken(token, "type", expiryDate, "a@b.com", null), null);
+
+		String[] foreign = { bucket + "x" + KEYS[8].toUpperCase(), bucket + "x+123456789abcdef0123456789abcdef",
+				bucket + "x0123456789abcdeg0123456789abcdef", bucket + "x-123456789abcdef0123456789abcdef", (bucket + 1) + "x" + KEYS[8] };
+		for (String t : foreign) {
+			Assert.assertNull(t, tokenStore.find(t));
+			Assert.assertNull(t, tokenStore.markUsed(t, new Date()));
+			Assert.assertNull(t, tokenStore.deleteValid(t, new Date()));
+			Assert.assertNull(t, tokenStore.delete(t));
+		}
+		Assert.assertEquals(0, tokenStore.deleteAll(Arrays.asList(foreign)));
+		Assert.assertNull(tokenStore.find(token).getStatus());
+		Assert.assertEquals(1, tokenStore.count());
+	}
+
+	/**
+	 * Keyset pages in the order of the key columns return the tokens in the order of their hex digits, also across the sign bit of a half.
+	 */
+	public void testKeyOrder() {
+		// inside a bucket which has not ended, so that it is not dropped
+		Date expiryDate = new Date((System.currentTimeMillis() / PARTITION_MILLIS + 10) * PARTITION_MILLIS + 1000);
+		Date till = new Date(expiryDate.getTime() + 1);
+		long bucket = bucketOf(expiryDate);
+		List<String> expected = new ArrayList<String>();
+		for (String key : KEYS) {
+			String token = bucket + "x" + key;
+			tokenStore.save(new MailToken(token, "type", expiryDate, "a@b.com", null), null);
+			expected.add(token);
+		}
+		Collections.sort(expected);
+
+		List<String> paged = new ArrayList<String>();
+		MailToken after = null;
+		List<MailToken> page;
+		do {
+			page = tokenStore.findExpiredPage(till, after, 2);
+			for (MailToken mailToken : page) {
+				paged.add(mailToken.getToken());
+				after = mailToken;
+			}
+		} while (page.size() == 2);
+		Assert.assertEquals(expected, paged);
+
+		// the chunk ends at a token in the middle of the order
+		Assert.assertEquals(4, tokenStore.deleteExpired(till, 4));
+		Assert.assertNull(tokenStore.find(expected.get(3)));
+		Assert.assertNotNull(tokenStore.find(expected.get(4)));
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal SMTP server in the test process, which accepts every mail and drops it. It can be switched to refuse the connections with a temporary
+ * error, as a server which is down. Recipients in the domain rejected.example.com are refused.
+ *
+ * With a latency, every reply the client waits for is delayed as by a distant server, while the replies to commands already sent after it
+ * are not.
+ */
+class FakeSmtpServer implements AutoCloseable {
+	private final ServerSocket serverSocket;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong connections = new AtomicLong();
+	private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+	private volatile boolean available = true;
+	private volatile boolean pipelining = true;
+	private volatile long latencyMillis;
+
+	/**
+	 * Starts the server on a free local port.
+	 */
+	public FakeSmtpServer() throws IOException {
+		serverSocket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "test-smtp-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Number of mails received so far.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Number of connections accepted so far, including the refused ones.
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * While not available, every connection is greeted with a 421 reply and closed.
+	 */
+	public void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	/**
+	 * Whether PIPELINING is announced, default is true.
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Delay of the replies the client waits for, default is 0.
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Closes the open connections without a reply, as a server which drops idle clients.
+	 */
+	public void dropConnections() throws IOException {
+		for (Socket socket : open) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				Thread session = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "test-smtp-session");
+				session.setDaemon(true);
+				session.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		open.add(socket);
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			connections.incrementAndGet();
+			if (!available) {
+				reply(in, out, "421 localhost service not available");
+				return;
+			}
+			reply(in, out, "220 localhost fake ESMTP");
+			String line;
+			int recipients = 0;
+			while ((line = in.readLine()) != null) {
+				String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+				if (command.equals("EHLO")) {
+					reply(in, out, pipelining ? "250-localhost\r\n250-PIPELINING\r\n250 8BITMIME" : "250-localhost\r\n250 8BITMIME");
+				} else if (command.equals("RCPT") && line.toLowerCase().contains("@rejected.example.com")) {
+					reply(in, out, "550 No such user");
+				} else if (command.equals("RCPT")) {
+					recipients++;
+					reply(in, out, "250 OK");
+				} else if (command.equals("DATA") && recipients == 0) {
+					reply(in, out, "554 No valid recipients");
+				} else if (command.equals("DATA")) {
+					reply(in, out, "354 End data with <CR><LF>.<CR><LF>");
+					while ((line = in.readLine()) != null && !line.equals(".")) {
+						// mail content is dropped
+					}
+					if (line == null) {
+						// a mail cut off by a closed connection is not delivered
+						break;
+					}
+					received.incrementAndGet();
+					recipients = 0;
+					reply(in, out, "250 OK");
+				} else if (command.equals("QUIT")) {
+					reply(in, out, "221 Bye");
+					break;
+				} else {
+					// HELO, MAIL, RSET, NOOP start a new transaction
+					recipients = 0;
+					reply(in, out, "250 OK");
+				}
+			}
+		} catch (InterruptedException e) {
+			// test is over
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			open.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to clean up
+			}
+		}
+	}
+
+	/**
+	 * Writes the reply, and sends it after the latency once the client has sent all its commands.
+	 */
+	private void reply(BufferedReader in, OutputStream out, String reply) throws IOException, InterruptedException {
+		out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		if (!in.ready()) {
+			long latency = latencyMillis;
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the Bloom filter in front of the token store: lookups of tokens which were never issued skip the store once the filter is built, and
+ * tokens saved during a build are not lost.
+ */
+public class FilteringTokenStoreTest extends TestCase {
+	private static final long HOUR = 3600000L;
+	private final AtomicInteger lookups = new AtomicInteger();
+	private Runnable duringScan;
+	private TokenStore store;
+	private FilteringTokenStore tokenStore;
+
+	public FilteringTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(FilteringTokenStoreTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		store = new MemoryTokenStore(new RandomTokenGenerator(), null) {
+			@Override
+			public MailToken find(String token) {
+				lookups.incrementAndGet();
+				return super.find(token);
+			}
+
+			@Override
+			public void forEachTokenPage(Consumer<List<String>> action) {
+				super.forEachTokenPage(action);
+				if (duringScan != null) {
+					duringScan.run();
+				}
+			}
+		};
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		config.setTokenFilterExpectedTokens(1000);
+		config.setTokenFilterFalsePositiveRate(0.0001);
+		tokenStore = new FilteringTokenStore(store, config);
+	}
+
+	public void testUnknownTokenSkipsStore() {
+		String token = save(store);
+		String unknown = store.newToken(new Date());
+		// before the first build every lookup goes to the store
+		Assert.assertNull(tokenStore.find(unknown));
+		Assert.assertEquals(1, lookups.get());
+
+		tokenStore.rebuild();
+		Assert.assertNull(tokenStore.find(unknown));
+		Assert.assertNull(tokenStore.markUsed(unknown, new Date()));
+		Assert.assertEquals(1, lookups.get());
+		Assert.assertEquals(token, tokenStore.find(token).getToken());
+		Assert.assertEquals(2, lookups.get());
+	}
+
+	/**
+	 * A token saved through the filter is found at once, a token saved by another node only after the next build.
+	 */
+	public void testSavedTokens() {
+		tokenStore.rebuild();
+		String token = save(tokenStore);
+		Assert.assertEquals(token, tokenStore.find(token).getToken());
+
+		String other = save(store);
+		Assert.assertNull(tokenStore.find(other));
+		tokenStore.rebuild();
+		Assert.assertEquals(other, tokenStore.find(other).getToken());
+	}
+
+	/**
+	 * A token saved after the table is read by a build, before the new filter is published, is in the new filter.
+	 */
+	public void testSaveDuringBuild() {
+		tokenStore.rebuild();
+		final String[] saved = new String[1];
+		duringScan = new Runnable() {
+			public void run() {
+				saved[0] = save(tokenStore);
+			}
+		};
+		tokenStore.rebuild();
+		duringScan = null;
+		Assert.assertEquals(saved[0], tokenStore.find(saved[0]).getToken());
+	}
+
+	private static String save(TokenStore tokenStore) {
+		Date expiryDate = new Date(System.currentTimeMillis() + HOUR);
+		String token = tokenStore.newToken(expiryDate);
+		tokenStore.save(new MailToken(token, "type", expiryDate, "a@b.com", null), null);
+		return token;
+	}
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that a mail requested again within the idempotency window of its template is not sent twice.
+ */
+public class IdempotentSendTest extends TestCase {
+	private FakeSmtpServer server;
+	private ConfirmationMailer mailer;
+	private Map<String, String> fields;
+
+	public IdempotentSendTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(IdempotentSendTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+		mailer = new ConfirmationMailer(new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+				config.setSmtpPort(server.getPort());
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				MailerTemplate activation = new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60);
+				activation.setIdempotencyWindowSeconds(60);
+				List<MailerTemplate> templates = new ArrayList<MailerTemplate>();
+				templates.add(activation);
+				templates.add(new MailerTemplate("reset", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+				return templates;
+			}
+		}, (java.io.File) null);
+		fields = new HashMap<String, String>();
+		fields.put("NAME", "Joga");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mailer.shutdown();
+		server.close();
+	}
+
+	public void testRepeatedSendReturnsSameToken() throws Exception {
+		String token = mailer.sendMailWithToken("to@example.com", "activation", fields, null);
+		Assert.assertEquals(token, mailer.sendMailWithToken("to@example.com", "activation", fields, null));
+		Assert.assertEquals(token, mailer.sendMailWithTokenAsync("to@example.com", "activation", fields, null).get());
+		Assert.assertEquals(1, server.getReceived());
+
+		// other addresses and templates without a window are not affected
+		Assert.assertFalse(token.equals(mailer.sendMailWithToken("other@example.com", "activation", fields, null)));
+		mailer.sendMailWithToken("to@example.com", "reset", fields, null);
+		mailer.sendMailWithToken("to@example.com", "reset", fields, null);
+		Assert.assertEquals(4, server.getReceived());
+	}
+
+	public void testUsedTokenAllowsNewMail() throws Exception {
+		String token = mailer.sendMailWithToken("to@example.com", "activation", fields, null);
+		mailer.validateAndMarkUsedToken(token);
+		Assert.assertFalse(token.equals(mailer.sendMailWithToken("to@example.com", "activation", fields, null)));
+		Assert.assertEquals(2, server.getReceived());
+	}
+
+	/**
+	 * A failed asynchronous mail gives up its claim, so that the next request sends the mail instead of waiting.
+	 */
+	public void testFailedAsyncSendReleasesClaim() throws Exception {
+		try {
+			mailer.sendMailWithTokenAsync("to@rejected.example.com", "activation", fields, null).get(10, TimeUnit.SECONDS);
+			fail("recipient should be rejected");
+		} catch (ExecutionException e) {
+			// expected
+		}
+		try {
+			mailer.sendMailWithTokenAsync("to@rejected.example.com", "activation", fields, null).get(10, TimeUnit.SECONDS);
+			fail("recipient should be rejected again");
+		} catch (ExecutionException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * An asynchronous request for a mail being sent returns at once, with a future of the token of the first request.
+	 */
+	public void testRepeatedAsyncSendDoesNotWait() throws Exception {
+		server.setLatencyMillis(200);
+		CompletableFuture<String> first = mailer.sendMailWithTokenAsync("to@example.com", "activation", fields, null);
+		CompletableFuture<String> second = mailer.sendMailWithTokenAsync("to@example.com", "activation", fields, null);
+		Assert.assertFalse(first.isDone());
+		Assert.assertEquals(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(1, server.getReceived());
+	}
+
+	public void testBatchWithDuplicates() throws Exception {
+		List<MailRequest> requests = new ArrayList<MailRequest>();
+		for (int i = 0; i < 3; i++) {
+			requests.add(new MailRequest("to@example.com", "activation", fields, null));
+			requests.add(new MailRequest("to" + i + "@example.com", "activation", fields, null));
+		}
+		List<MailResult> results = mailer.sendMailsWithTokens(requests);
+		for (MailResult result : results) {
+			Assert.assertTrue(result.isSuccess());
+		}
+		Assert.assertEquals(results.get(0).getToken(), results.get(2).getToken());
+		Assert.assertEquals(results.get(0).getToken(), results.get(4).getToken());
+		Assert.assertEquals(4, server.getReceived());
+		Assert.assertEquals(results.get(0).getToken(),
+				mailer.sendMailsWithTokens(Collections.singletonList(requests.get(0))).get(0).getToken());
+		Assert.assertEquals(4, server.getReceived());
+	}
+}
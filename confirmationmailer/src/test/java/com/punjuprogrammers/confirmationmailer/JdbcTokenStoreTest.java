@@ -0,0 +1,47 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the token store tests against the JDBC store.
+ */
+public class JdbcTokenStoreTest extends TokenStoreTestCase {
+	private JDBCDataSource dataSource;
+
+	public JdbcTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(JdbcTokenStoreTest.class);
+	}
+
+	@Override
+	protected void open(String url) {
+		dataSource = new JDBCDataSource();
+		dataSource.setUrl(url);
+		dataSource.setUser("SA");
+		JdbcAccess jdbcAccess = new JdbcAccess(dataSource);
+		jdbcAccess.createTables();
+		// a second mailer on the same database finds the tables
+		jdbcAccess.createTables();
+		tokenStore = new JdbcTokenStore(jdbcAccess, new RandomTokenGenerator());
+		outboxStore = new JdbcOutboxStore(jdbcAccess);
+	}
+
+	@Override
+	protected void close() throws Exception {
+		dataSource.getConnection().createStatement().execute("SHUTDOWN");
+	}
+}
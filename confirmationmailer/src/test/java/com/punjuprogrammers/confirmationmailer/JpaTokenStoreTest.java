@@ -0,0 +1,56 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the token store tests against the JPA store. The tables are created by the JDBC store and validated by Hibernate, so that both stores
+ * are known to work on the same schema.
+ */
+public class JpaTokenStoreTest extends TokenStoreTestCase {
+	private EntityManagerFactory emf;
+
+	public JpaTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(JpaTokenStoreTest.class);
+	}
+
+	@Override
+	protected void open(String url) {
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl(url);
+		dataSource.setUser("SA");
+		new JdbcAccess(dataSource).createTables();
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("javax.persistence.jdbc.url", url);
+		emf = Persistence.createEntityManagerFactory("mailerMemory", properties);
+		EntityManagerAccess emAccess = new EntityManagerAccess(new EntityManagerFactoryProvider(emf));
+		tokenStore = new JpaTokenStore(emAccess, new RandomTokenGenerator());
+		outboxStore = new JpaOutboxStore(emAccess);
+	}
+
+	@Override
+	protected void close() {
+		emf.close();
+	}
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that the limiting store lets no more callers into the store than it has permits, and gives its permit back between the pages of a
+ * scan.
+ */
+public class LimitingTokenStoreTest extends TestCase {
+	private static final long HOUR = 3600000L;
+
+	public LimitingTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(LimitingTokenStoreTest.class);
+	}
+
+	public void testLimitsConcurrency() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		TokenStore slowStore = new MemoryTokenStore(new RandomTokenGenerator(), null) {
+			@Override
+			public MailToken find(String token) {
+				int now = running.incrementAndGet();
+				try {
+					int max;
+					while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+						// raced with another caller
+					}
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					running.decrementAndGet();
+				}
+				return super.find(token);
+			}
+		};
+		final TokenStore tokenStore = new LimitingTokenStore(slowStore, 2);
+		final String token = save(tokenStore);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<MailToken>> futures = new ArrayList<Future<MailToken>>();
+			for (int i = 0; i < 16; i++) {
+				futures.add(executor.submit(new Callable<MailToken>() {
+					public MailToken call() {
+						return tokenStore.find(token);
+					}
+				}));
+			}
+			for (Future<MailToken> future : futures) {
+				Assert.assertEquals(token, future.get().getToken());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(2, maxRunning.get());
+	}
+
+	/**
+	 * With a single permit, the store can be used by another thread while the scan works on a page.
+	 */
+	public void testScanTakesPermitPerPage() throws Exception {
+		final TokenStore tokenStore = new LimitingTokenStore(new MemoryTokenStore(new RandomTokenGenerator(), null), 1);
+		Set<String> saved = new HashSet<String>();
+		for (int i = 0; i < 50; i++) {
+			saved.add(save(tokenStore));
+		}
+		final Set<String> scanned = new HashSet<String>();
+		final AtomicInteger blocked = new AtomicInteger();
+		tokenStore.forEachTokenPage(new Consumer<List<String>>() {
+			public void accept(List<String> tokens) {
+				scanned.addAll(tokens);
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						tokenStore.count();
+					}
+				});
+				reader.setDaemon(true);
+				reader.start();
+				try {
+					reader.join(5000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (reader.isAlive()) {
+					blocked.incrementAndGet();
+				}
+			}
+		});
+		Assert.assertEquals(0, blocked.get());
+		Assert.assertEquals(saved, scanned);
+		Assert.assertEquals(50, tokenStore.count());
+	}
+
+	private static String save(TokenStore tokenStore) {
+		Date expiryDate = new Date(System.currentTimeMillis() + HOUR);
+		String token = tokenStore.newToken(expiryDate);
+		tokenStore.save(new MailToken(token, "type", expiryDate, "a@b.com", null), null);
+		return token;
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the dispatcher with a thread per mail, the mode used with virtual threads.
+ */
+public class MailDispatcherTest extends TestCase {
+	private static final ThreadFactory PLATFORM_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "test-sender");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	public MailDispatcherTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(MailDispatcherTest.class);
+	}
+
+	public void testRejectAboveMaxInFlight() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		MailDispatcher dispatcher = new MailDispatcher(PLATFORM_THREADS, 2, BackpressurePolicy.REJECT);
+		dispatcher.execute(waitFor(release));
+		dispatcher.execute(waitFor(release));
+		Assert.assertEquals(2, dispatcher.getQueueDepth());
+		try {
+			dispatcher.execute(waitFor(release));
+			fail("only two mails may be in progress");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		release.countDown();
+		dispatcher.shutdown();
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+		try {
+			dispatcher.execute(waitFor(release));
+			fail("dispatcher is shut down");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+	}
+
+	public void testCallerRunsAboveMaxInFlight() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		MailDispatcher dispatcher = new MailDispatcher(PLATFORM_THREADS, 1, BackpressurePolicy.CALLER_RUNS);
+		dispatcher.execute(waitFor(release));
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		dispatcher.execute(new Runnable() {
+			public void run() {
+				runner.set(Thread.currentThread());
+			}
+		});
+		Assert.assertSame(Thread.currentThread(), runner.get());
+		release.countDown();
+		dispatcher.shutdown();
+	}
+
+	/**
+	 * A caller waiting for a permit when the dispatcher is shut down is refused, its task is not run.
+	 */
+	public void testShutdownWhileBlocked() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		final MailDispatcher dispatcher = new MailDispatcher(PLATFORM_THREADS, 1, BackpressurePolicy.BLOCK);
+		dispatcher.execute(waitFor(release));
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		final AtomicReference<RuntimeException> refused = new AtomicReference<RuntimeException>();
+		Thread caller = new Thread(new Runnable() {
+			public void run() {
+				try {
+					dispatcher.execute(new Runnable() {
+						public void run() {
+							runner.set(Thread.currentThread());
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					refused.set(e);
+				}
+			}
+		});
+		caller.start();
+		awaitState(caller, Thread.State.WAITING);
+		Thread shutdown = new Thread(new Runnable() {
+			public void run() {
+				dispatcher.shutdown();
+			}
+		});
+		shutdown.start();
+		awaitState(shutdown, Thread.State.TIMED_WAITING);
+		release.countDown();
+		caller.join(5000);
+		shutdown.join(5000);
+		Assert.assertFalse(shutdown.isAlive());
+		Assert.assertNotNull(refused.get());
+		Assert.assertNull(runner.get());
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+	}
+
+	/**
+	 * Before Java 21 the option is refused, otherwise each mail runs on a virtual thread.
+	 */
+	public void testVirtualThreads() throws Exception {
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		if (!MailDispatcher.isVirtualThreadsSupported()) {
+			try {
+				config.setVirtualThreads(true);
+				fail("virtual threads are not supported by this JVM");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			return;
+		}
+		config.setVirtualThreads(true);
+		MailDispatcher dispatcher = MailDispatcher.withVirtualThreads(10, BackpressurePolicy.BLOCK);
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.execute(new Runnable() {
+			public void run() {
+				runner.set(Thread.currentThread());
+				done.countDown();
+			}
+		});
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(runner.get()));
+		dispatcher.shutdown();
+	}
+
+	private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (thread.getState() != state && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(state, thread.getState());
+	}
+
+	private static Runnable waitFor(final CountDownLatch release) {
+		return new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+}
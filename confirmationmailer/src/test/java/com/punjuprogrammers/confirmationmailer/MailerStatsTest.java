@@ -0,0 +1,141 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+
+import com.punjuprogrammers.confirmationmailer.MailerMetrics.Stage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the latency buckets of {@link MailerStats} and the measurements recorded by the mailer.
+ */
+public class MailerStatsTest extends TestCase {
+
+	public MailerStatsTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(MailerStatsTest.class);
+	}
+
+	public void testBucketsCoverAllValues() {
+		long previous = -1;
+		for (int bucket = 0; bucket < 488; bucket++) {
+			long upper = MailerStats.Latency.upperBound(bucket);
+			Assert.assertEquals(bucket, MailerStats.Latency.bucket(previous + 1));
+			Assert.assertEquals(bucket, MailerStats.Latency.bucket(upper));
+			// at most 1/8 of the lower bound wide
+			Assert.assertTrue(upper - previous - 1 <= Math.max(0, (previous + 1) / 8));
+			previous = upper;
+		}
+		Assert.assertEquals(Long.MAX_VALUE, previous);
+	}
+
+	public void testPercentiles() {
+		MailerStats stats = new MailerStats();
+		for (int i = 1; i <= 1000; i++) {
+			stats.recordStage(Stage.RENDER, "a", i * 1000L);
+		}
+		MailerStats.Latency latency = stats.getLatency(Stage.RENDER, "a");
+		Assert.assertEquals(1000, latency.getCount());
+		Assert.assertEquals(500500, latency.getMeanNanos());
+		Assert.assertEquals(1000000, latency.getMaxNanos());
+		assertNear(500000, latency.getPercentileNanos(50));
+		assertNear(990000, latency.getPercentileNanos(99));
+		Assert.assertEquals(1000000, latency.getPercentileNanos(100));
+		Assert.assertEquals(0, stats.getLatency(Stage.RENDER, "b").getCount());
+		Assert.assertEquals(0, stats.getLatency(Stage.RENDER, "b").getPercentileNanos(99));
+	}
+
+	public void testValidationCodes() {
+		MailerStats stats = new MailerStats();
+		stats.recordValidation("a", 0);
+		stats.recordValidation("a", ConfirmationMailer.ERROR_TOKEN_EXPIRED);
+		stats.recordValidation(null, ConfirmationMailer.ERROR_TOKEN_NOT_FOUND);
+		stats.recordValidation("a", 42);
+		Assert.assertEquals(1, stats.getValidations("a", 0));
+		Assert.assertEquals(1, stats.getValidations("a", ConfirmationMailer.ERROR_TOKEN_EXPIRED));
+		Assert.assertEquals(1, stats.getValidations(null, ConfirmationMailer.ERROR_TOKEN_NOT_FOUND));
+		Assert.assertEquals(1, stats.getValidations("a", 42));
+		Assert.assertEquals(Collections.singleton("a"), stats.getMailTypes());
+	}
+
+	/**
+	 * A mail to a server which refuses the connection is counted as failed and its token is deleted again.
+	 */
+	public void testMailerRecordsFailureAndValidation() throws Exception {
+		final MailerStats stats = new MailerStats();
+		final int port = closedPort();
+		ConfirmationMailer mailer = new ConfirmationMailer(new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+				config.setSmtpPort(port);
+				config.setMetrics(stats);
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Collections.singletonList(new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+			}
+		}, (java.io.File) null);
+		try {
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("NAME", "Joga");
+			try {
+				mailer.sendMailWithToken("to@example.com", "activation", fields, null);
+				fail("connection should be refused");
+			} catch (ConfirmationMailerException e) {
+				// expected
+			}
+			Assert.assertEquals(1, stats.getLatency(Stage.RENDER, "activation").getCount());
+			Assert.assertEquals(1, stats.getLatency(Stage.TOKEN_SAVE, "activation").getCount());
+			Assert.assertEquals(0, stats.getSent("activation"));
+			Assert.assertEquals(1, stats.getFailed("activation"));
+			Assert.assertEquals(1, stats.getCompensatingDeletes("activation"));
+			Assert.assertEquals(0, mailer.getTokenCount());
+			Assert.assertEquals(0, mailer.getSmtpConnectionsInUse());
+
+			try {
+				mailer.validateToken("unknown");
+				fail("token should not be found");
+			} catch (ConfirmationMailerException e) {
+				Assert.assertEquals(ConfirmationMailer.ERROR_TOKEN_NOT_FOUND, e.getErrorCode());
+			}
+			Assert.assertEquals(1, stats.getValidations(null, ConfirmationMailer.ERROR_TOKEN_NOT_FOUND));
+			Assert.assertEquals(1, stats.getLatency(Stage.VALIDATE, null).getCount());
+		} finally {
+			mailer.shutdown();
+		}
+	}
+
+	private static void assertNear(long expected, long actual) {
+		Assert.assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 8);
+	}
+
+	private static int closedPort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
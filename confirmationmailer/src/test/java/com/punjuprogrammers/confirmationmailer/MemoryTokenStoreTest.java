@@ -0,0 +1,128 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the token store tests against the memory store with a log, and tests the recovery from the log and the expiry through the timing wheel.
+ */
+public class MemoryTokenStoreTest extends TokenStoreTestCase {
+	private static final long HOUR = 3600000L;
+	private File logFile;
+	private MemoryTokenStore memoryStore;
+
+	public MemoryTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(MemoryTokenStoreTest.class);
+	}
+
+	@Override
+	protected void open(String url) throws Exception {
+		logFile = File.createTempFile("tokens", ".log");
+		logFile.delete();
+		memoryStore = new MemoryTokenStore(new RandomTokenGenerator(), logFile);
+		tokenStore = memoryStore;
+	}
+
+	@Override
+	protected void close() {
+		memoryStore.close();
+		logFile.delete();
+	}
+
+	public void testRecoveryFromLog() {
+		long now = System.currentTimeMillis();
+		String kept = save(now + HOUR, "data");
+		String used = save(now + HOUR, null);
+		String deleted = save(now + HOUR, "data");
+		memoryStore.markUsed(used, new Date(now));
+		memoryStore.delete(deleted);
+		memoryStore.saveUse(new MailTokenUse("use1", new Date(now), new Date(now + HOUR)));
+		memoryStore.close();
+
+		memoryStore = new MemoryTokenStore(new RandomTokenGenerator(), logFile);
+		Assert.assertEquals("data", memoryStore.find(kept).getUserData());
+		Assert.assertNull(memoryStore.find(kept).getStatus());
+		Assert.assertEquals(now, memoryStore.find(used).getUsedDate().getTime());
+		Assert.assertNull(memoryStore.find(used).getUserData());
+		Assert.assertNull(memoryStore.find(deleted));
+		Assert.assertNotNull(memoryStore.findUse("use1"));
+
+		// the rewritten log holds the same tokens
+		memoryStore.markUsed(kept, new Date(now));
+		memoryStore.close();
+		memoryStore = new MemoryTokenStore(new RandomTokenGenerator(), logFile);
+		Assert.assertEquals(2, memoryStore.findUsed().size());
+	}
+
+	public void testExpiryThroughWheel() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 50; i++) {
+			save(now - i * 1000L, null);
+		}
+		// beyond one revolution of the wheel
+		String later = save(now + 10 * HOUR, null);
+		String next = save(now + 1000, null);
+
+		Assert.assertEquals(20, memoryStore.deleteExpired(new Date(now), 20));
+		Assert.assertEquals(20, memoryStore.deleteExpired(new Date(now), 20));
+		Assert.assertEquals(10, memoryStore.deleteExpired(new Date(now), 20));
+		Assert.assertEquals(0, memoryStore.deleteExpired(new Date(now), 20));
+		Assert.assertNotNull(memoryStore.find(next));
+
+		// expired in the meantime, also when saved after the purge passed its tick
+		String late = save(now - HOUR, null);
+		Assert.assertEquals(2, memoryStore.deleteExpired(new Date(now + 2 * HOUR), 20));
+		Assert.assertNull(memoryStore.find(late));
+		Assert.assertNull(memoryStore.find(next));
+		Assert.assertEquals(0, memoryStore.deleteAll(Arrays.asList(late, next)));
+		Assert.assertEquals(1, memoryStore.deleteExpired(new Date(now + 20 * HOUR), 20));
+		Assert.assertNull(memoryStore.find(later));
+	}
+
+	/**
+	 * A token which expires before the ones saved ahead of it is found by the purge, also when the tokens are read back from the log.
+	 */
+	public void testOutOfOrderExpiry() {
+		long now = System.currentTimeMillis();
+		String later = save(now + HOUR, null);
+		String first = save(now + 1000, null);
+		Date till = new Date(now + 2500);
+		Assert.assertEquals(1, memoryStore.findExpired(till).size());
+		Assert.assertEquals(1, memoryStore.deleteExpired(till, 20));
+		Assert.assertNull(memoryStore.find(first));
+		Assert.assertNotNull(memoryStore.find(later));
+
+		String second = save(now + 2000, null);
+		save(now - HOUR, null);
+		memoryStore.close();
+		memoryStore = new MemoryTokenStore(new RandomTokenGenerator(), logFile);
+		Assert.assertEquals(2, memoryStore.findExpired(till).size());
+		Assert.assertEquals(2, memoryStore.deleteExpired(till, 20));
+		Assert.assertNull(memoryStore.find(second));
+		Assert.assertNotNull(memoryStore.find(later));
+	}
+
+	private String save(long expiryMillis, String userData) {
+		String token = memoryStore.newToken(new Date(expiryMillis));
+		memoryStore.save(new MailToken(token, "type", new Date(expiryMillis), "a@b.com", userData), null);
+		return token;
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the delivery of the outbox by {@link ConfirmationMailer#dispatchOutbox()}: sent mails are removed, rejected ones are kept as failed
+ * with their token deleted, and mails to an unavailable server are retried later.
+ */
+public class OutboxDispatcherTest extends TestCase {
+	private FakeSmtpServer server;
+	private JDBCDataSource dataSource;
+	private ConfirmationMailer mailer;
+	private Map<String, String> fields;
+
+	public OutboxDispatcherTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(OutboxDispatcherTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+		dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:outbox");
+		dataSource.setUser("SA");
+		mailer = new ConfirmationMailer(new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+				config.setSmtpPort(server.getPort());
+				config.setOutboxEnabled(true);
+				config.setOutboxPollMillis(0);
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Collections.singletonList(new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+			}
+		}, dataSource);
+		fields = new HashMap<String, String>();
+		fields.put("NAME", "Joga");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mailer.shutdown();
+		server.close();
+		dataSource.getConnection().createStatement().execute("SHUTDOWN");
+	}
+
+	public void testDelivery() throws Exception {
+		for (int i = 0; i < 45; i++) {
+			mailer.sendMailWithToken("to" + i + "@example.com", "activation", fields, null);
+		}
+		String rejected = mailer.sendMailWithToken("to@rejected.example.com", "activation", fields, null);
+		Assert.assertEquals(0, server.getReceived());
+		Assert.assertEquals(46, mailer.getOutboxDepth());
+
+		Assert.assertEquals(46, mailer.dispatchOutbox());
+		Assert.assertEquals(45, server.getReceived());
+		Assert.assertEquals(0, mailer.getOutboxDepth());
+		Assert.assertEquals(0, mailer.dispatchOutbox());
+
+		List<MailOutbox> failed = mailer.getFailedOutboxMails(10);
+		Assert.assertEquals(1, failed.size());
+		Assert.assertEquals(rejected, failed.get(0).getToken());
+		Assert.assertEquals(MailOutbox.STATUS_FAILED, failed.get(0).getStatus());
+		Assert.assertNotNull(failed.get(0).getLastError());
+		Assert.assertNull(mailer.getTokenDetails(rejected));
+		Assert.assertEquals(1, mailer.deleteFailedOutboxMails(new Date()));
+		Assert.assertTrue(mailer.getFailedOutboxMails(10).isEmpty());
+	}
+
+	public void testRetryLater() throws Exception {
+		server.setAvailable(false);
+		String token = mailer.sendMailWithToken("to@example.com", "activation", fields, null);
+		Assert.assertEquals(1, mailer.dispatchOutbox());
+		// the mail waits for its next attempt
+		Assert.assertEquals(1, mailer.getOutboxDepth());
+		Assert.assertEquals(0, mailer.dispatchOutbox());
+		Assert.assertTrue(mailer.getFailedOutboxMails(10).isEmpty());
+		Assert.assertNotNull(mailer.getTokenDetails(token));
+	}
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the token store tests against the partitioned store with the text layout, and tests the routing of tokens to their bucket tables, the creation of a table
+ * by several nodes at once, the drop of expired buckets and the pages merged from several tables.
+ */
+public class PartitionedTokenStoreTest extends TokenStoreTestCase {
+	protected static final long PARTITION_MILLIS = 600000L;
+	private String url;
+	protected JDBCDataSource dataSource;
+	private final List<EntityManagerFactory> factories = new ArrayList<EntityManagerFactory>();
+
+	public PartitionedTokenStoreTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(PartitionedTokenStoreTest.class);
+	}
+
+	/**
+	 * Tells if the store issues tokens in the {@link PartitionedTokenStore.Layout#COMPACT} layout.
+	 */
+	protected boolean isCompact() {
+		return false;
+	}
+
+	@Override
+	protected void open(String url) {
+		this.url = url;
+		dataSource = new JDBCDataSource();
+		dataSource.setUrl(url);
+		dataSource.setUser("SA");
+		new JdbcAccess(dataSource).createTables();
+		EntityManagerAccess emAccess = newNode();
+		tokenStore = newStore(emAccess);
+		outboxStore = new JpaOutboxStore(emAccess);
+	}
+
+	@Override
+	protected void close() throws Exception {
+		for (EntityManagerFactory emf : factories) {
+			emf.close();
+		}
+		dataSource.getConnection().createStatement().execute("SHUTDOWN");
+	}
+
+	public void testPartitionOf() throws Exception {
+		long bucket = bucketOf(later());
+		String token = tokenStore.newToken(later());
+		String key = token.substring(Long.toString(bucket).length());
+		Assert.assertTrue(token, token.startsWith(bucket + (isCompact() ? "x" : "_")));
+		Assert.assertNull(tokenStore.find(token));
+		Assert.assertEquals(0, countTables(table(bucket)));
+
+		tokenStore.save(new MailToken(token, "type", later(), "a@b.com", null), null);
+		// the UUID form of older tokens has a bucket as well
+		String uuid = bucket + "_" + UUID.randomUUID();
+		tokenStore.save(new MailToken(uuid, "type", later(), "a@b.com", null), null);
+		// no bucket, or a key of another length
+		String legacy = UUID.randomUUID().toString();
+		String shortKey = bucket + "_abc";
+		tokenStore.save(new MailToken(legacy, "type", later(), "a@b.com", null), null);
+		tokenStore.save(new MailToken(shortKey, "type", later(), "a@b.com", null), null);
+
+		Assert.assertEquals(1, countTables(table(bucket)));
+		Assert.assertEquals(1, countRegistered(table(bucket)));
+		Assert.assertEquals(1, countRegistered("MAIL_TOKEN_P" + bucket));
+		// the UUID token is in the text layout table, which is the table of the issued token unless it is compact
+		Assert.assertEquals(isCompact() ? 1 : 2, countRows(table(bucket)));
+		Assert.assertEquals(isCompact() ? 1 : 2, countRows("MAIL_TOKEN_P" + bucket));
+		Assert.assertEquals(2, countRows("MAIL_TOKEN"));
+		for (String t : new String[] { token, uuid, legacy, shortKey }) {
+			Assert.assertEquals(t, tokenStore.find(t).getToken());
+		}
+		Assert.assertEquals(4, tokenStore.count());
+
+		// a bucket without table, or a prefix which is no bucket
+		Assert.assertNull(tokenStore.find((bucket + 1) + key));
+		Assert.assertNull(tokenStore.markUsed((bucket + 1) + key, new Date()));
+		for (String t : new String[] { "_" + token, bucket + "_", "12345678901234567890" + key }) {
+			Assert.assertNull(t, tokenStore.find(t));
+			Assert.assertNull(t, tokenStore.delete(t));
+		}
+	}
+
+	/**
+	 * Two nodes save tokens of a new bucket at the same time, each of them creates the table or finds it created by the other one.
+	 */
+	public void testConcurrentPartitionCreation() throws Exception {
+		final TokenStore[] nodes = { tokenStore, newStore(newNode()) };
+		final Date expiryDate = later();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+			for (int i = 0; i < 8; i++) {
+				final TokenStore node = nodes[i % 2];
+				futures.add(executor.submit(new Callable<List<String>>() {
+					public List<String> call() throws Exception {
+						start.await();
+						List<String> saved = new ArrayList<String>();
+						for (int j = 0; j < 10; j++) {
+							String token = node.newToken(expiryDate);
+							node.save(new MailToken(token, "type", expiryDate, "a@b.com", null), null);
+							saved.add(token);
+						}
+						return saved;
+					}
+				}));
+			}
+			start.countDown();
+			List<String> saved = new ArrayList<String>();
+			for (Future<List<String>> future : futures) {
+				saved.addAll(future.get());
+			}
+
+			String table = table(bucketOf(expiryDate));
+			Assert.assertEquals(1, countRegistered(table));
+			Assert.assertEquals(80, countRows(table));
+			for (String token : saved) {
+				Assert.assertNotNull(nodes[0].find(token));
+				Assert.assertNotNull(nodes[1].find(token));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * A bucket which has ended is dropped with all its rows, see {@link #testDropPartition()}. The chunks are deleted from a bucket which has
+	 * not ended yet.
+	 */
+	@Override
+	public void testDeleteInChunks() {
+		long start = (System.currentTimeMillis() / PARTITION_MILLIS + 10) * PARTITION_MILLIS;
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		for (int i = 0; i < 25; i++) {
+			mailTokens.add(token(new Date(start + 1000 + i)));
+		}
+		MailToken valid = token(new Date(start + PARTITION_MILLIS / 2));
+		mailTokens.add(valid);
+		tokenStore.saveAll(mailTokens, null);
+		tokenStore.markUsed(valid.getToken(), new Date());
+
+		Date till = new Date(start + 2000);
+		Assert.assertEquals(10, tokenStore.deleteExpired(till, 10));
+		Assert.assertEquals(10, tokenStore.deleteExpired(till, 10));
+		Assert.assertEquals(5, tokenStore.deleteExpired(till, 10));
+		Assert.assertEquals(0, tokenStore.deleteExpired(till, 10));
+		Assert.assertEquals(1, tokenStore.deleteUsed(10));
+		Assert.assertEquals(0, tokenStore.count());
+	}
+
+	/**
+	 * A batch with tokens with and without a bucket saves all of them, each in its own table.
+	 */
+	public void testSaveMixedBatch() throws Exception {
+		Date expiryDate = later();
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		mailTokens.add(token(expiryDate));
+		mailTokens.add(new MailToken(UUID.randomUUID().toString(), "type", expiryDate, "a@b.com", null));
+		mailTokens.add(token(expiryDate));
+		tokenStore.saveAll(mailTokens, null);
+		for (MailToken mailToken : mailTokens) {
+			Assert.assertNotNull(mailToken.getToken(), tokenStore.find(mailToken.getToken()));
+		}
+		Assert.assertEquals(2, countRows(table(bucketOf(expiryDate))));
+		Assert.assertEquals(1, countRows("MAIL_TOKEN"));
+		Assert.assertEquals(3, tokenStore.count());
+	}
+
+	public void testDropPartition() throws Exception {
+		long start = (System.currentTimeMillis() / PARTITION_MILLIS + 10) * PARTITION_MILLIS;
+		List<MailToken> first = new ArrayList<MailToken>();
+		for (int i = 0; i < 5; i++) {
+			first.add(token(new Date(start + 1000 + i)));
+		}
+		tokenStore.saveAll(first, null);
+		List<MailToken> second = new ArrayList<MailToken>();
+		for (int i = 0; i < 4; i++) {
+			second.add(token(new Date(start + PARTITION_MILLIS + 1000 * (i + 1))));
+		}
+		tokenStore.saveAll(second, null);
+		String firstTable = table(bucketOf(new Date(start)));
+		String secondTable = table(bucketOf(new Date(start + PARTITION_MILLIS)));
+
+		// a dropped bucket counts all its rows, even over the limit
+		Assert.assertEquals(5, tokenStore.deleteExpired(new Date(start + PARTITION_MILLIS + 2500), 2));
+		Assert.assertEquals(0, countTables(firstTable));
+		Assert.assertEquals(0, countRegistered(firstTable));
+		Assert.assertNull(tokenStore.find(first.get(0).getToken()));
+
+		// the second bucket has tokens expiring later, its rows are deleted
+		Assert.assertEquals(2, tokenStore.deleteExpired(new Date(start + PARTITION_MILLIS + 2500), 10));
+		Assert.assertEquals(1, countTables(secondTable));
+		Assert.assertEquals(2, countRows(secondTable));
+		Assert.assertEquals(0, tokenStore.deleteExpired(new Date(start + PARTITION_MILLIS + 2500), 10));
+
+		Assert.assertEquals(2, tokenStore.deleteExpired(new Date(start + 2 * PARTITION_MILLIS), 10));
+		Assert.assertEquals(0, countTables(secondTable));
+		Assert.assertEquals(0, tokenStore.count());
+	}
+
+	/**
+	 * Pages of tokens in several buckets and in the legacy table are merged in expiry and token order, the key of the last token of a page is
+	 * compared with the tokens of every table.
+	 */
+	public void testPagesAcrossPartitions() {
+		long start = (System.currentTimeMillis() / PARTITION_MILLIS - 10) * PARTITION_MILLIS;
+		List<MailToken> expected = new ArrayList<MailToken>();
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 4; j++) {
+				// equal expiry dates in the bucket and in the legacy table
+				Date expiryDate = new Date(start + i * PARTITION_MILLIS + 1000 * (j % 2));
+				expected.add(token(expiryDate));
+				expected.add(new MailToken(UUID.randomUUID().toString(), "type", expiryDate, "a@b.com", null));
+			}
+		}
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < expected.size(); i++) {
+			MailToken mailToken = expected.get(i);
+			if (i % 3 == 0) {
+				mailToken.setStatus(ConfirmationMailer.TOKEN_STATUS_USED);
+				mailToken.setUsedDate(new Date());
+				used.add(mailToken.getToken());
+			}
+			tokenStore.save(mailToken, null);
+		}
+		Collections.sort(expected, new Comparator<MailToken>() {
+			public int compare(MailToken a, MailToken b) {
+				int result = a.getExpiryDate().compareTo(b.getExpiryDate());
+				return result != 0 ? result : a.getToken().compareTo(b.getToken());
+			}
+		});
+
+		List<String> paged = new ArrayList<String>();
+		MailToken after = null;
+		List<MailToken> page;
+		do {
+			page = tokenStore.findExpiredPage(new Date(), after, 5);
+			for (MailToken mailToken : page) {
+				paged.add(mailToken.getToken());
+				after = mailToken;
+			}
+		} while (page.size() == 5);
+		List<String> tokens = new ArrayList<String>();
+		for (MailToken mailToken : expected) {
+			tokens.add(mailToken.getToken());
+		}
+		Assert.assertEquals(tokens, paged);
+
+		List<String> usedPaged = new ArrayList<String>();
+		after = null;
+		do {
+			page = tokenStore.findUsedPage(null, null, after, 4);
+			for (MailToken mailToken : page) {
+				usedPaged.add(mailToken.getToken());
+				after = mailToken;
+			}
+		} while (page.size() == 4);
+		Assert.assertEquals(used, new HashSet<String>(usedPaged));
+		List<String> sorted = new ArrayList<String>(usedPaged);
+		Collections.sort(sorted);
+		Assert.assertEquals(sorted, usedPaged);
+	}
+
+	private EntityManagerAccess newNode() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("javax.persistence.jdbc.url", url);
+		EntityManagerFactory emf = Persistence.createEntityManagerFactory("mailerMemory", properties);
+		factories.add(emf);
+		return new EntityManagerAccess(new EntityManagerFactoryProvider(emf));
+	}
+
+	private TokenStore newStore(EntityManagerAccess emAccess) {
+		RandomTokenGenerator tokenGenerator = new RandomTokenGenerator();
+		return new PartitionedTokenStore(emAccess, new JpaTokenStore(emAccess, tokenGenerator), tokenGenerator, PARTITION_MILLIS, isCompact());
+	}
+
+	/**
+	 * Returns the table of the bucket in the layout of the store.
+	 */
+	protected String table(long bucket) {
+		return (isCompact() ? "MAIL_TOKEN_C" : "MAIL_TOKEN_P") + bucket;
+	}
+
+	protected MailToken token(Date expiryDate) {
+		return new MailToken(tokenStore.newToken(expiryDate), "type", expiryDate, "a@b.com", null);
+	}
+
+	protected static long bucketOf(Date expiryDate) {
+		return expiryDate.getTime() / PARTITION_MILLIS;
+	}
+
+	protected static Date later() {
+		return new Date(System.currentTimeMillis() + 3600000L);
+	}
+
+	private int countTables(String table) throws SQLException {
+		return count("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = ?", table);
+	}
+
+	private int countRegistered(String table) throws SQLException {
+		return count("SELECT COUNT(*) FROM MAIL_TOKEN_PARTITION WHERE TABLE_NAME = ?", table);
+	}
+
+	protected int countRows(String table) throws SQLException {
+		return count("SELECT COUNT(*) FROM " + table);
+	}
+
+	protected int count(String sql, String... params) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(sql);
+			for (int i = 0; i < params.length; i++) {
+				statement.setString(i + 1, params[i]);
+			}
+			ResultSet rs = statement.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			connection.close();
+		}
+	}
+}
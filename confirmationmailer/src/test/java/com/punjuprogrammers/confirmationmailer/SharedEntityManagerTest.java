@@ -0,0 +1,140 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the mailer with a provider which returns no EntityManagerFactory, so that one EntityManager is used by all operations. Everything which
+ * would use it from another thread is refused.
+ */
+public class SharedEntityManagerTest extends TestCase {
+	private static final String URL = "jdbc:hsqldb:mem:shared";
+	private FakeSmtpServer server;
+	private EntityManagerFactory emf;
+	private EntityManager entityManager;
+	private ConfirmationMailer mailer;
+	private Map<String, String> fields;
+
+	public SharedEntityManagerTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(SharedEntityManagerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl(URL);
+		dataSource.setUser("SA");
+		new JdbcAccess(dataSource).createTables();
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("javax.persistence.jdbc.url", URL);
+		emf = Persistence.createEntityManagerFactory("mailerMemory", properties);
+		entityManager = emf.createEntityManager();
+		fields = new HashMap<String, String>();
+		fields.put("NAME", "Joga");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mailer != null) {
+			mailer.shutdown();
+		}
+		entityManager.close();
+		emf.close();
+		server.close();
+	}
+
+	public void testSyncSend() throws Exception {
+		mailer = newMailer(new MailerConfig("127.0.0.1", null, null));
+		String token = mailer.sendMailWithToken("to@example.com", "activation", fields, null);
+		Assert.assertEquals("to@example.com", mailer.validateAndDeleteToken(token).getMailId());
+		Assert.assertEquals(1, server.getReceived());
+	}
+
+	public void testAsyncSendIsRefused() throws Exception {
+		mailer = newMailer(new MailerConfig("127.0.0.1", null, null));
+		try {
+			mailer.sendMailWithTokenAsync("to@example.com", "activation", fields, null);
+			fail("async send should be refused");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertEquals(0, mailer.getTokenCount());
+		Assert.assertEquals(0, server.getReceived());
+	}
+
+	public void testOutboxIsRefused() {
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		config.setOutboxEnabled(true);
+		try {
+			mailer = newMailer(config);
+			fail("outbox should be refused");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testBackgroundPurgeIsRefused() {
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		config.setPurgeIntervalMillis(60000);
+		try {
+			mailer = newMailer(config);
+			fail("background purge should be refused");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testTokenFilterIsRefused() {
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		config.setTokenFilterExpectedTokens(1000);
+		try {
+			mailer = newMailer(config);
+			fail("token filter should be refused");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private ConfirmationMailer newMailer(final MailerConfig config) {
+		config.setSmtpPort(server.getPort());
+		return new ConfirmationMailer(new MailerConfigProvier() {
+			public MailerConfig getMailConfig() {
+				return config;
+			}
+
+			public List<MailerTemplate> getMailerTemplates() {
+				return Collections.singletonList(new MailerTemplate("activation", "Hello ${NAME}", "Token ${TOKEN}", "from@example.com", 60));
+			}
+		}, new MailerPersistentProvider() {
+			public EntityManager getEntityManager() {
+				return entityManager;
+			}
+		});
+	}
+}
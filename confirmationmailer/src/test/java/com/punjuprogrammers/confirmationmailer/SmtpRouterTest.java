@@ -0,0 +1,145 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the routing of mails over several SMTP servers, the failover and the circuit breakers.
+ */
+public class SmtpRouterTest extends TestCase {
+	private FakeSmtpServer first;
+	private FakeSmtpServer second;
+	private SmtpTransportPool transportPool;
+
+	public SmtpRouterTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(SmtpRouterTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		first = new FakeSmtpServer();
+		second = new FakeSmtpServer();
+		transportPool = new SmtpTransportPool(2, 60000, 5000, 0, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		transportPool.close();
+		first.close();
+		second.close();
+	}
+
+	public void testRoundRobinFollowsWeights() throws Exception {
+		MailerConfig config = config(SmtpRouting.ROUND_ROBIN, 3, 1);
+		SmtpRouter router = new SmtpRouter(transportPool, config);
+		send(router, 40);
+		Assert.assertEquals(30, first.getReceived());
+		Assert.assertEquals(10, second.getReceived());
+	}
+
+	public void testLeastOutstandingUsesAllServers() throws Exception {
+		SmtpRouter router = new SmtpRouter(transportPool, config(SmtpRouting.LEAST_OUTSTANDING, 1, 1));
+		send(router, 40);
+		Assert.assertEquals(40, first.getReceived() + second.getReceived());
+		Assert.assertTrue(first.getReceived() > 0);
+		Assert.assertTrue(second.getReceived() > 0);
+	}
+
+	/**
+	 * Mails to a server which is down go to the other server, and after two failures the server is skipped until a trial succeeds.
+	 */
+	public void testFailoverAndCircuitBreaker() throws Exception {
+		MailerConfig config = config(SmtpRouting.ROUND_ROBIN, 1, 1);
+		config.setCircuitBreakerFailures(2);
+		config.setCircuitBreakerOpenMillis(300);
+		SmtpRouter router = new SmtpRouter(transportPool, config);
+		first.setAvailable(false);
+		send(router, 20);
+		Assert.assertEquals(0, first.getReceived());
+		Assert.assertEquals(2, first.getConnections());
+		Assert.assertEquals(20, second.getReceived());
+
+		first.setAvailable(true);
+		Thread.sleep(400);
+		send(router, 20);
+		Assert.assertEquals(10, first.getReceived());
+		Assert.assertEquals(30, second.getReceived());
+	}
+
+	public void testAllServersDown() throws Exception {
+		MailerConfig config = config(SmtpRouting.LEAST_OUTSTANDING, 1, 1);
+		config.setCircuitBreakerFailures(1);
+		SmtpRouter router = new SmtpRouter(transportPool, config);
+		first.setAvailable(false);
+		second.setAvailable(false);
+		for (int i = 0; i < 3; i++) {
+			try {
+				router.send("test", "to@example.com", "Subject", "Text", "from@example.com");
+				fail("all servers are down");
+			} catch (javax.mail.MessagingException e) {
+				// expected
+			}
+		}
+		// open breakers do not stop the mails, each server is still tried once per mail
+		Assert.assertEquals(3, first.getConnections());
+		Assert.assertEquals(3, second.getConnections());
+	}
+
+	/**
+	 * Mails to a limited domain are spread out, mails to other domains are not held up by them.
+	 */
+	public void testDomainRateLimit() throws Exception {
+		MailerConfig config = config(SmtpRouting.ROUND_ROBIN, 1, 1);
+		config.setDomainRateLimit("slow.example.com", new RateLimit(50, 5));
+		SmtpRouter router = new SmtpRouter(transportPool, config);
+		// connections are opened and JavaMail is loaded
+		send(router, 10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			router.send("test", "to" + i + "@example.com", "Subject", "Text", "from@example.com");
+		}
+		long unlimitedMillis = (System.nanoTime() - start) / 1000000;
+		start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			router.send("test", "to" + i + "@slow.example.com", "Subject", "Text", "from@example.com");
+		}
+		long limitedMillis = (System.nanoTime() - start) / 1000000;
+		// 15 mails after the burst at 20 ms each
+		Assert.assertTrue("took " + limitedMillis + " ms", limitedMillis >= 290);
+		Assert.assertTrue("took " + unlimitedMillis + " ms", unlimitedMillis < limitedMillis);
+		Assert.assertEquals(50, first.getReceived() + second.getReceived());
+	}
+
+	private MailerConfig config(SmtpRouting routing, int firstWeight, int secondWeight) {
+		MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+		config.setSmtpEndpoints(Arrays.asList(new SmtpEndpoint("127.0.0.1", first.getPort(), firstWeight),
+				new SmtpEndpoint("127.0.0.1", second.getPort(), secondWeight)));
+		config.setSmtpRouting(routing);
+		return config;
+	}
+
+	private static void send(SmtpRouter router, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			router.send("test", "to" + i + "@example.com", "Subject " + i, "Text " + i, "from@example.com");
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+
+import com.punjuprogrammers.confirmationmailer.utils.MailUtil;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpSession;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the delivery of several mails over one pipelined SMTP connection.
+ */
+public class SmtpSessionTest extends TestCase {
+	private FakeSmtpServer server;
+
+	public SmtpSessionTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(SmtpSessionTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	/**
+	 * A rejected recipient fails its own mail only, the session goes on after RSET.
+	 */
+	public void testRejectedRecipient() throws Exception {
+		SmtpSession session = SmtpSession.connect("127.0.0.1", server.getPort(), 5000, null, null);
+		MessagingException[] results;
+		try {
+			Assert.assertTrue(session.isPipelining());
+			session.send(MailUtil.createMessage("a@example.com", "Subject", "Text", "from@example.com"));
+			session.send(MailUtil.createMessage("b@rejected.example.com", "Subject", "Text", "from@example.com"));
+			session.send(MailUtil.createMessage("c@example.com", "Subject", "Text", "from@example.com"));
+			results = session.finish();
+		} finally {
+			session.close();
+		}
+		Assert.assertEquals(3, results.length);
+		Assert.assertNull(results[0]);
+		Assert.assertTrue(results[1] instanceof SendFailedException);
+		Assert.assertNull(results[2]);
+		Assert.assertEquals(2, server.getReceived());
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	/**
+	 * A message which fails while its text is written breaks the session, as the server is still reading the text.
+	 */
+	public void testMessageFailsAfterData() throws Exception {
+		MimeMessage broken = new MimeMessage(MailUtil.createMessage("b@example.com", "Subject", "Text", "from@example.com")) {
+			@Override
+			public void writeTo(OutputStream os) throws IOException, MessagingException {
+				os.write("Subject: Subject\r\n".getBytes(StandardCharsets.US_ASCII));
+				throw new MessagingException("Cannot read the attachment");
+			}
+		};
+		SmtpSession session = SmtpSession.connect("127.0.0.1", server.getPort(), 5000, null, null);
+		MessagingException[] results;
+		try {
+			session.send(MailUtil.createMessage("a@example.com", "Subject", "Text", "from@example.com"));
+			session.send(broken);
+			session.send(MailUtil.createMessage("c@example.com", "Subject", "Text", "from@example.com"));
+			results = session.finish();
+		} finally {
+			session.close();
+		}
+		Assert.assertNull(results[0]);
+		Assert.assertEquals("Cannot read the attachment", results[1].getMessage());
+		Assert.assertSame(results[1], results[2]);
+		Assert.assertEquals(1, server.getReceived());
+	}
+
+	/**
+	 * Without PIPELINING the commands go one by one; a line with a single dot in the text does not end the mail.
+	 */
+	public void testWithoutPipelining() throws Exception {
+		server.setPipelining(false);
+		SmtpSession session = SmtpSession.connect("127.0.0.1", server.getPort(), 5000, null, null);
+		MessagingException[] results;
+		try {
+			Assert.assertFalse(session.isPipelining());
+			for (int i = 0; i < 5; i++) {
+				session.send(MailUtil.createMessage("to" + i + "@example.com", "Subject", "Line\n.\nLine", "from@example.com"));
+			}
+			results = session.finish();
+		} finally {
+			session.close();
+		}
+		for (MessagingException result : results) {
+			Assert.assertNull(result);
+		}
+		Assert.assertEquals(5, server.getReceived());
+	}
+
+	/**
+	 * With 10 ms per round trip a batch takes a fraction of the time of mails sent one by one.
+	 */
+	public void testPipeliningSavesRoundTrips() throws Exception {
+		SmtpTransportPool transportPool = new SmtpTransportPool(1, 60000, 5000, server.getPort(), 5000);
+		try {
+			MailerConfig config = new MailerConfig("127.0.0.1", null, null);
+			config.setSmtpPort(server.getPort());
+			List<SmtpRouter.Mail> mails = new ArrayList<SmtpRouter.Mail>();
+			for (int i = 0; i < 20; i++) {
+				mails.add(new SmtpRouter.Mail("test", "to" + i + "@example.com", "Subject " + i, "Text " + i, "from@example.com"));
+			}
+			SmtpRouter router = new SmtpRouter(transportPool, config);
+			// connection is opened and JavaMail is loaded
+			router.sendAll(mails);
+			server.setLatencyMillis(10);
+			long start = System.nanoTime();
+			assertSent(router.sendAll(mails));
+			long lockStepMillis = (System.nanoTime() - start) / 1000000;
+
+			config.setSmtpPipelining(true);
+			start = System.nanoTime();
+			assertSent(router.sendAll(mails));
+			long pipelinedMillis = (System.nanoTime() - start) / 1000000;
+			// 4 round trips per mail against 1 per mail and 3 for the connection
+			Assert.assertTrue("lock step " + lockStepMillis + " ms, pipelined " + pipelinedMillis + " ms", pipelinedMillis * 2 < lockStepMillis);
+			Assert.assertEquals(60, server.getReceived());
+		} finally {
+			transportPool.close();
+		}
+	}
+
+	private static void assertSent(MessagingException[] errors) {
+		for (MessagingException error : errors) {
+			Assert.assertNull(error);
+		}
+	}
+}
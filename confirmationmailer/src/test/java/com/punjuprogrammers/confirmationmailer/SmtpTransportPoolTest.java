@@ -0,0 +1,154 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import javax.mail.SendFailedException;
+
+import org.junit.Assert;
+
+import com.punjuprogrammers.confirmationmailer.utils.MailUtil;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool.BorrowTimeoutException;
+import com.punjuprogrammers.confirmationmailer.utils.SmtpTransportPool.PooledTransport;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the reuse of pooled SMTP connections: borrow and release, the eviction of idle connections, the check of a connection the server has
+ * dropped, and the single retry of a mail which failed on a reused connection.
+ */
+public class SmtpTransportPoolTest extends TestCase {
+	private FakeSmtpServer server;
+	private SmtpTransportPool pool;
+
+	public SmtpTransportPoolTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(SmtpTransportPoolTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeSmtpServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+	}
+
+	public void testBorrowAndRelease() throws Exception {
+		pool = new SmtpTransportPool(2, 60000, 100, server.getPort(), 5000);
+		PooledTransport first = pool.borrow("127.0.0.1", null, null);
+		Assert.assertFalse(first.isReused());
+		Assert.assertTrue(first.getConnectNanos() > 0);
+		PooledTransport second = pool.borrow("127.0.0.1", null, null);
+		Assert.assertEquals(2, pool.getInUse());
+		try {
+			pool.borrow("127.0.0.1", null, null);
+			fail("both connections are in use");
+		} catch (BorrowTimeoutException e) {
+			// expected
+		}
+
+		pool.release(first);
+		pool.release(second);
+		Assert.assertEquals(0, pool.getInUse());
+		Assert.assertEquals(2, pool.getIdle());
+		PooledTransport reused = pool.borrow("127.0.0.1", null, null);
+		Assert.assertTrue(reused.isReused());
+		Assert.assertEquals(0, reused.getConnectNanos());
+		pool.invalidate(reused);
+		Assert.assertEquals(1, pool.getIdle());
+		Assert.assertEquals(0, pool.getInUse());
+		Assert.assertEquals(2, server.getConnections());
+	}
+
+	public void testIdleEviction() throws Exception {
+		pool = new SmtpTransportPool(2, 50, 100, server.getPort(), 5000);
+		PooledTransport first = pool.borrow("127.0.0.1", null, null);
+		PooledTransport second = pool.borrow("127.0.0.1", null, null);
+		pool.release(first);
+		Thread.sleep(100);
+		// giving back a connection closes the ones idle for too long
+		pool.release(second);
+		Assert.assertEquals(1, pool.getIdle());
+
+		Thread.sleep(100);
+		PooledTransport fresh = pool.borrow("127.0.0.1", null, null);
+		Assert.assertFalse(fresh.isReused());
+		Assert.assertEquals(3, server.getConnections());
+		pool.release(fresh);
+	}
+
+	/**
+	 * A connection idle for more than a second is checked before it is handed out, one the server has dropped is replaced.
+	 */
+	public void testStaleConnection() throws Exception {
+		pool = new SmtpTransportPool(1, 60000, 100, server.getPort(), 5000);
+		pool.release(pool.borrow("127.0.0.1", null, null));
+		server.dropConnections();
+		Thread.sleep(1100);
+
+		PooledTransport transport = pool.borrow("127.0.0.1", null, null);
+		Assert.assertFalse(transport.isReused());
+		Assert.assertEquals(2, server.getConnections());
+		pool.release(transport);
+	}
+
+	/**
+	 * A mail which fails on a connection the server has dropped is sent again over a new connection, once.
+	 */
+	public void testRetryOnReusedConnection() throws Exception {
+		pool = new SmtpTransportPool(1, 60000, 100, server.getPort(), 5000);
+		MailUtil.sendMail(pool, "a@example.com", "Subject", "Text", "from@example.com", "127.0.0.1", null, null);
+		server.dropConnections();
+		// not idle long enough to be checked
+		MailUtil.sendMail(pool, "b@example.com", "Subject", "Text", "from@example.com", "127.0.0.1", null, null);
+		Assert.assertEquals(2, server.getReceived());
+		Assert.assertEquals(2, server.getConnections());
+		Assert.assertEquals(1, pool.getIdle());
+
+		// the new connection fails as well, the error is not hidden by a second retry
+		server.dropConnections();
+		server.setAvailable(false);
+		try {
+			MailUtil.sendMail(pool, "c@example.com", "Subject", "Text", "from@example.com", "127.0.0.1", null, null);
+			fail("server is down");
+		} catch (javax.mail.MessagingException e) {
+			// expected
+		}
+		Assert.assertEquals(3, server.getConnections());
+		Assert.assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * A rejected recipient is not a broken connection, the mail is not sent again.
+	 */
+	public void testNoRetryOnRejectedRecipient() throws Exception {
+		pool = new SmtpTransportPool(1, 60000, 100, server.getPort(), 5000);
+		MailUtil.sendMail(pool, "a@example.com", "Subject", "Text", "from@example.com", "127.0.0.1", null, null);
+		try {
+			MailUtil.sendMail(pool, "b@rejected.example.com", "Subject", "Text", "from@example.com", "127.0.0.1", null, null);
+			fail("recipient should be rejected");
+		} catch (SendFailedException e) {
+			// expected
+		}
+		Assert.assertEquals(1, server.getConnections());
+		Assert.assertEquals(1, server.getReceived());
+		Assert.assertEquals(0, pool.getInUse());
+	}
+}
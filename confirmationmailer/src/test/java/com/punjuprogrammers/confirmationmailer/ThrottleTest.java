@@ -0,0 +1,71 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the send rate limits.
+ */
+public class ThrottleTest extends TestCase {
+	private static final long MS = 1000 * 1000;
+
+	public ThrottleTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(ThrottleTest.class);
+	}
+
+	/**
+	 * 10 mails per second with a burst of 3: three mails at once, then one every 100 ms.
+	 */
+	public void testBurstThenRate() {
+		long now = System.nanoTime() + 1000 * MS;
+		Throttle throttle = new Throttle(new RateLimit(10, 3));
+		Assert.assertEquals(0, throttle.delay(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(100 * MS, throttle.delay(now));
+		Assert.assertEquals(100 * MS, throttle.reserve(now));
+		Assert.assertEquals(200 * MS, throttle.reserve(now));
+		Assert.assertFalse(throttle.isIdle(now));
+
+		// after the reserved mails are sent, the rate is sustained
+		now += 200 * MS;
+		Assert.assertEquals(100 * MS, throttle.reserve(now));
+		// after a quiet period the full burst is available again
+		now += 10000 * MS;
+		Assert.assertTrue(throttle.isIdle(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(0, throttle.reserve(now));
+		Assert.assertEquals(100 * MS, throttle.reserve(now));
+	}
+
+	public void testDomainLimits() {
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.setDomainRateLimit("Example.COM", new RateLimit(1, 1));
+		DomainThrottles throttles = new DomainThrottles(config);
+		Assert.assertEquals("example.com", DomainThrottles.domainOf("Joga@Example.com"));
+		long now = System.nanoTime() + 1000 * MS;
+		Assert.assertEquals(0, throttles.reserve("a@example.com", now));
+		Assert.assertEquals(1000 * MS, throttles.reserve("b@EXAMPLE.com", now));
+		Assert.assertEquals(2000 * MS, throttles.delay("c@example.com", now));
+		// other domains are not limited without a default limit
+		Assert.assertEquals(0, throttles.reserve("a@example.org", now));
+		Assert.assertEquals(0, throttles.reserve("a@example.org", now));
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Date;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests expiry, invalidation and eviction of the token cache.
+ */
+public class TokenCacheTest extends TestCase {
+
+	public TokenCacheTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TokenCacheTest.class);
+	}
+
+	public void testPositiveAndNegativeEntries() {
+		TokenCache cache = new TokenCache(100);
+		MailToken mailToken = new MailToken("t1", "type", new Date(), "a@b.com", null);
+		cache.put("t1", mailToken, cache.stamp("t1"), 2000);
+		cache.put("t2", null, cache.stamp("t2"), 1000);
+
+		Assert.assertSame(mailToken, cache.get("t1", 1500).getMailToken());
+		Assert.assertNotNull(cache.get("t2", 500));
+		Assert.assertNull(cache.get("t2", 500).getMailToken());
+		Assert.assertNull("negative entry expired", cache.get("t2", 1000));
+		Assert.assertNull("never cached", cache.get("t3", 0));
+	}
+
+	/**
+	 * A value read before an invalidation must not be cached.
+	 */
+	public void testStaleStamp() {
+		TokenCache cache = new TokenCache(100);
+		long stamp = cache.stamp("t1");
+		cache.invalidate("t1");
+		cache.put("t1", null, stamp, Long.MAX_VALUE);
+		Assert.assertNull(cache.get("t1", 0));
+
+		stamp = cache.stamp("t1");
+		cache.clear();
+		cache.put("t1", null, stamp, Long.MAX_VALUE);
+		Assert.assertNull(cache.get("t1", 0));
+
+		cache.put("t1", null, cache.stamp("t1"), Long.MAX_VALUE);
+		Assert.assertNotNull(cache.get("t1", 0));
+	}
+
+	/**
+	 * An expired token is served from the cache like a valid one, it cannot become valid again.
+	 */
+	public void testExpiredTokenIsCached() {
+		MemoryTokenStore store = new MemoryTokenStore(new RandomTokenGenerator(), null);
+		CachingTokenStore cachingStore = new CachingTokenStore(store, new TokenCache(100), 60000, 1000);
+		String token = store.newToken(new Date());
+		store.save(new MailToken(token, "type", new Date(System.currentTimeMillis() - 1000), "a@b.com", null), null);
+		Assert.assertNotNull(cachingStore.find(token));
+
+		// removed behind the cache, the cached entry is still served
+		store.delete(token);
+		Assert.assertNotNull(cachingStore.find(token));
+		Assert.assertNull(cachingStore.markUsed(token, new Date()));
+		store.close();
+	}
+
+	public void testBounded() {
+		TokenCache cache = new TokenCache(160);
+		for (int i = 0; i < 10000; i++) {
+			String token = "token" + i;
+			cache.put(token, null, cache.stamp(token), Long.MAX_VALUE);
+		}
+		int cached = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (cache.get("token" + i, 0) != null) {
+				cached++;
+			}
+		}
+		Assert.assertTrue("cached " + cached, cached > 0 && cached <= 160);
+		Assert.assertNotNull("most recent entry is kept", cache.get("token9999", 0));
+	}
+}
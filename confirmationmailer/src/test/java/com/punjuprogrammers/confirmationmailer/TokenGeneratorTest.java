@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the token generators and the text form of the tokens.
+ */
+public class TokenGeneratorTest extends TestCase {
+
+	public TokenGeneratorTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TokenGeneratorTest.class);
+	}
+
+	public void testRandomTokensAreUnique() {
+		TokenGenerator generator = new RandomTokenGenerator();
+		Set<String> tokens = new HashSet<String>();
+		for (int i = 0; i < 10000; i++) {
+			String token = TokenEncoding.encode(generator.generate());
+			Assert.assertEquals(TokenEncoding.LENGTH, token.length());
+			Assert.assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+			Assert.assertTrue("duplicate " + token, tokens.add(token));
+		}
+	}
+
+	/**
+	 * The text form must sort like the unsigned bits.
+	 */
+	public void testEncodingKeepsOrder() {
+		Assert.assertEquals("----------------------", TokenEncoding.encode(new UUID(0, 0)));
+		Assert.assertEquals("--------------------0-", TokenEncoding.encode(new UUID(0, 64)));
+		Assert.assertEquals("2zzzzzzzzzzzzzzzzzzzzz", TokenEncoding.encode(new UUID(-1, -1)));
+		Assert.assertTrue(TokenEncoding.encode(new UUID(0, -1)).compareTo(TokenEncoding.encode(new UUID(1, 0))) < 0);
+		Assert.assertTrue(TokenEncoding.encode(new UUID(Long.MAX_VALUE, 0)).compareTo(TokenEncoding.encode(new UUID(Long.MIN_VALUE, 0))) < 0);
+	}
+
+	public void testTimeOrderedTokens() throws InterruptedException {
+		TokenGenerator generator = new TimeOrderedTokenGenerator();
+		UUID first = generator.generate();
+		Assert.assertEquals(7, first.version());
+		Assert.assertEquals(2, first.variant());
+		Assert.assertTrue(Math.abs((first.getMostSignificantBits() >>> 16) - System.currentTimeMillis()) < 1000);
+		Thread.sleep(2);
+		String later = TokenEncoding.encode(generator.generate());
+		Assert.assertTrue(TokenEncoding.encode(first).compareTo(later) < 0);
+	}
+}
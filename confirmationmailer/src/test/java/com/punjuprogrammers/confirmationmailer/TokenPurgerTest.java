@@ -0,0 +1,119 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the chunks of the purge and its counts: an explicit purge deletes all chunks without pausing, the paced purge stops at its time
+ * budget and the next one deletes the rest.
+ */
+public class TokenPurgerTest extends TestCase {
+	private MailerConfig config;
+	private MemoryTokenStore tokenStore;
+	private TokenPurger purger;
+	private final List<PurgeResult> progress = new ArrayList<PurgeResult>();
+
+	public TokenPurgerTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TokenPurgerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		config = new MailerConfig("127.0.0.1", null, null);
+		config.setPurgeChunkSize(10);
+		tokenStore = new MemoryTokenStore(new RandomTokenGenerator(), null);
+		purger = new TokenPurger(tokenStore, config, false);
+		purger.setListener(new PurgeListener() {
+			public void purgeProgress(PurgeResult result) {
+				progress.add(result);
+			}
+		});
+	}
+
+	public void testExplicitPurge() {
+		// an explicit purge would wait more than a minute if it paused
+		config.setPurgePauseMillis(60000);
+		save(25, new Date(System.currentTimeMillis() - 1000), false);
+		save(7, new Date(System.currentTimeMillis() + 3600000L), true);
+
+		PurgeResult result = purger.purge(new Date(), false, 0, 0, true);
+		Assert.assertEquals(25, result.getDeletedExpired());
+		Assert.assertEquals(0, result.getDeletedUsed());
+		Assert.assertEquals(3, result.getChunks());
+		Assert.assertTrue(result.isFinished());
+		Assert.assertTrue(result.isComplete());
+		Assert.assertEquals(4, progress.size());
+		Assert.assertEquals(10, progress.get(0).getDeletedExpired());
+		Assert.assertEquals(20, progress.get(1).getDeletedExpired());
+		Assert.assertFalse(progress.get(2).isFinished());
+		Assert.assertEquals(7, tokenStore.count());
+
+		result = purger.purge(null, true, 0, 0, true);
+		Assert.assertEquals(0, result.getDeletedExpired());
+		Assert.assertEquals(7, result.getDeletedUsed());
+		Assert.assertEquals(1, result.getChunks());
+		Assert.assertTrue(result.isComplete());
+		Assert.assertEquals(0, tokenStore.count());
+	}
+
+	/**
+	 * A full last chunk cannot tell if more tokens are left, one more chunk finds none.
+	 */
+	public void testFullLastChunk() {
+		save(20, new Date(System.currentTimeMillis() - 1000), false);
+		PurgeResult result = purger.purge(new Date(), false, 0, 0, true);
+		Assert.assertEquals(20, result.getDeletedExpired());
+		Assert.assertEquals(3, result.getChunks());
+		Assert.assertTrue(result.isComplete());
+	}
+
+	public void testTimeBudget() {
+		config.setPurgePauseMillis(100);
+		config.setPurgeTimeBudgetMillis(150);
+		save(45, new Date(System.currentTimeMillis() - 1000), false);
+
+		PurgeResult result = purger.purge();
+		Assert.assertTrue(result.isFinished());
+		Assert.assertFalse(result.isComplete());
+		Assert.assertTrue(result.toString(), result.getChunks() >= 1 && result.getChunks() <= 2);
+		Assert.assertEquals(10 * result.getChunks(), result.getDeletedExpired());
+
+		int deleted = result.getDeletedExpired();
+		while (!result.isComplete()) {
+			result = purger.purge();
+			deleted += result.getDeletedExpired();
+		}
+		Assert.assertEquals(45, deleted);
+		Assert.assertEquals(0, tokenStore.count());
+	}
+
+	private void save(int count, Date expiryDate, boolean used) {
+		for (int i = 0; i < count; i++) {
+			MailToken mailToken = new MailToken(tokenStore.newToken(expiryDate), "type", expiryDate, "a@b.com", null);
+			if (used) {
+				mailToken.setStatus(ConfirmationMailer.TOKEN_STATUS_USED);
+				mailToken.setUsedDate(new Date());
+			}
+			tokenStore.save(mailToken, null);
+		}
+	}
+}
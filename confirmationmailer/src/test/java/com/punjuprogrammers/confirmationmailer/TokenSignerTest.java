@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests signing, verification and key rotation of signed tokens.
+ */
+public class TokenSignerTest extends TestCase {
+
+	public TokenSignerTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TokenSignerTest.class);
+	}
+
+	private static byte[] key(int value) {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) value);
+		return key;
+	}
+
+	public void testRoundTrip() {
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.addTokenSigningKey("k1", key(1));
+		TokenSigner signer = new TokenSigner(config);
+		Date expiry = new Date(System.currentTimeMillis() + 60000);
+		String token = signer.sign("newsletter", "abc@xyz.com", expiry, "user \u00e9 1", true);
+		Assert.assertTrue(TokenSigner.isSigned(token));
+
+		TokenSigner.SignedToken signed = signer.verify(token);
+		Assert.assertNotNull(signed);
+		Assert.assertTrue(signed.isSingleUse());
+		Assert.assertEquals(token, signed.getMailToken().getToken());
+		Assert.assertEquals("newsletter", signed.getMailToken().getMailType());
+		Assert.assertEquals("abc@xyz.com", signed.getMailToken().getMailId());
+		Assert.assertEquals("user \u00e9 1", signed.getMailToken().getUserData());
+		Assert.assertEquals(expiry, signed.getMailToken().getExpiryDate());
+
+		String other = signer.sign("newsletter", "abc@xyz.com", expiry, null, false);
+		Assert.assertFalse("tokens are unique", token.equals(other));
+		Assert.assertNull(signer.verify(other).getMailToken().getUserData());
+		Assert.assertFalse(signer.verify(other).isSingleUse());
+	}
+
+	public void testTampered() {
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.addTokenSigningKey("k1", key(1));
+		TokenSigner signer = new TokenSigner(config);
+		String token = signer.sign("newsletter", "abc@xyz.com", new Date(), null, false);
+		int payload = token.indexOf('.') + 3;
+		char c = token.charAt(payload) == 'A' ? 'B' : 'A';
+		Assert.assertNull(signer.verify(token.substring(0, payload) + c + token.substring(payload + 1)));
+		Assert.assertNull(signer.verify(token.substring(0, token.length() - 1)));
+		Assert.assertNull(signer.verify("k1.garbage.garbage"));
+		Assert.assertNull(signer.verify("k1.%%.%%"));
+		Assert.assertNull(signer.verify("unknown" + token.substring(2)));
+	}
+
+	public void testRotation() {
+		MailerConfig config = new MailerConfig("localhost", null, null);
+		config.addTokenSigningKey("k1", key(1));
+		TokenSigner signer = new TokenSigner(config);
+		String oldToken = signer.sign("newsletter", "abc@xyz.com", new Date(), null, false);
+		config.addTokenSigningKey("k2", key(2));
+		String newToken = signer.sign("newsletter", "abc@xyz.com", new Date(), null, false);
+		Assert.assertTrue(newToken.startsWith("k2."));
+		Assert.assertNotNull(signer.verify(oldToken));
+		Assert.assertNotNull(signer.verify(newToken));
+		config.removeTokenSigningKey("k1");
+		Assert.assertNull(signer.verify(oldToken));
+		Assert.assertNotNull(signer.verify(newToken));
+	}
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests shared by the token stores, each subclass runs them against its own store on an empty in-memory database.
+ */
+public abstract class TokenStoreTestCase extends TestCase {
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+	private static final long HOUR = 3600000L;
+	protected TokenStore tokenStore;
+	protected OutboxStore outboxStore;
+	private final Map<String, String> tokens = new HashMap<String, String>();
+
+	public TokenStoreTestCase(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * Creates {@link #tokenStore} and {@link #outboxStore} on the database at <code>url</code>. The outbox store is left null by a store which
+	 * has no outbox.
+	 */
+	protected abstract void open(String url) throws Exception;
+
+	protected abstract void close() throws Exception;
+
+	@Override
+	protected void setUp() throws Exception {
+		open("jdbc:hsqldb:mem:tokens" + DATABASES.incrementAndGet());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		close();
+	}
+
+	public void testSaveAndMarkUsed() {
+		MailToken mailToken = token("token", later());
+		tokenStore.save(mailToken, null);
+
+		Assert.assertEquals("a@b.com", tokenStore.find(mailToken.getToken()).getMailId());
+		Assert.assertNull(tokenStore.find("unknown"));
+		MailToken used = tokenStore.markUsed(mailToken.getToken(), new Date());
+		Assert.assertEquals(ConfirmationMailer.TOKEN_STATUS_USED, used.getStatus());
+		Assert.assertNotNull(used.getUsedDate());
+		Assert.assertNull(tokenStore.markUsed(mailToken.getToken(), new Date()));
+		Assert.assertNull(tokenStore.deleteValid(mailToken.getToken(), new Date()));
+		Assert.assertEquals(1, tokenStore.findUsed().size());
+		Assert.assertEquals(mailToken.getToken(), tokenStore.delete(mailToken.getToken()).getToken());
+		Assert.assertNull(tokenStore.find(mailToken.getToken()));
+	}
+
+	public void testExpiredTokenIsNotUsable() {
+		MailToken mailToken = token("expired", earlier());
+		tokenStore.save(mailToken, null);
+
+		Assert.assertNull(tokenStore.markUsed(id("expired"), new Date()));
+		Assert.assertNull(tokenStore.deleteValid(id("expired"), new Date()));
+		Assert.assertNotNull(tokenStore.find(id("expired")));
+	}
+
+	public void testSaveAllWithOutbox() {
+		if (outboxStore == null) {
+			return;
+		}
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		List<MailOutbox> mails = new ArrayList<MailOutbox>();
+		for (int i = 0; i < 10; i++) {
+			mailTokens.add(token("t" + i, later()));
+			mails.add(new MailOutbox(id("t" + i), "a@b.com", "type", "c@d.com", "subject " + i, "body " + i, new Date(System.currentTimeMillis() - 1000)));
+		}
+		tokenStore.saveAll(mailTokens, mails);
+
+		List<MailOutbox> claimed = outboxStore.claim(new Date(), later(), "owner1", 4);
+		Assert.assertEquals(4, claimed.size());
+		Assert.assertEquals("owner1", claimed.get(0).getLeaseOwner());
+		Assert.assertEquals(6, outboxStore.claim(new Date(), later(), "owner2", 100).size());
+		Assert.assertTrue(outboxStore.claim(new Date(), later(), "owner3", 100).isEmpty());
+
+		MailOutbox failed = claimed.get(0);
+		failed.setStatus(MailOutbox.STATUS_FAILED);
+		failed.setAttempts(1);
+		failed.setLastError("550 rejected");
+		Assert.assertFalse(outboxStore.update(failed, "owner2"));
+		Assert.assertTrue(outboxStore.update(failed, "owner1"));
+		Assert.assertFalse(outboxStore.delete(claimed.get(1).getToken(), "owner2"));
+		Assert.assertTrue(outboxStore.delete(claimed.get(1).getToken(), "owner1"));
+		Assert.assertEquals(8, outboxStore.claim(new Date(System.currentTimeMillis() + 2 * HOUR), later(), "owner4", 100).size());
+		Assert.assertEquals(10, tokenStore.findExpired(new Date(System.currentTimeMillis() + 2 * HOUR)).size());
+
+		List<MailOutbox> failedMails = outboxStore.findFailed(10);
+		Assert.assertEquals(1, failedMails.size());
+		Assert.assertEquals("550 rejected", failedMails.get(0).getLastError());
+		Assert.assertNull(failedMails.get(0).getLeaseOwner());
+		Assert.assertEquals(0, outboxStore.deleteFailed(earlier()));
+		Assert.assertEquals(1, outboxStore.deleteFailed(new Date()));
+		Assert.assertTrue(outboxStore.findFailed(10).isEmpty());
+	}
+
+	/**
+	 * A dispatcher whose lease expired and was taken over by another one can neither renew it nor write the mail.
+	 */
+	public void testLostLease() {
+		if (outboxStore == null) {
+			return;
+		}
+		tokenStore.saveAll(Arrays.asList(token("o1", later())),
+				Arrays.asList(new MailOutbox(id("o1"), "a@b.com", "type", "c@d.com", "subject", "body", new Date(System.currentTimeMillis() - 1000))));
+		MailOutbox mail = outboxStore.claim(new Date(), new Date(System.currentTimeMillis() + 1000), "owner1", 10).get(0);
+		Assert.assertEquals(1, outboxStore.renew("owner1", new Date(System.currentTimeMillis() + HOUR)));
+
+		Date afterLease = new Date(System.currentTimeMillis() + 2 * HOUR);
+		Assert.assertEquals(1, outboxStore.claim(afterLease, new Date(afterLease.getTime() + HOUR), "owner2", 10).size());
+		Assert.assertEquals(0, outboxStore.renew("owner1", new Date(afterLease.getTime() + 2 * HOUR)));
+		mail.setAttempts(1);
+		Assert.assertFalse(outboxStore.update(mail, "owner1"));
+		Assert.assertFalse(outboxStore.delete(mail.getToken(), "owner1"));
+		Assert.assertTrue(outboxStore.delete(mail.getToken(), "owner2"));
+		Assert.assertEquals(0, outboxStore.countPending());
+	}
+
+	public void testDeleteInChunks() {
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		for (int i = 0; i < 25; i++) {
+			mailTokens.add(token("e" + i, earlier()));
+		}
+		mailTokens.add(token("valid", later()));
+		tokenStore.saveAll(mailTokens, null);
+		tokenStore.markUsed(id("valid"), new Date());
+
+		Assert.assertEquals(10, tokenStore.deleteExpired(new Date(), 10));
+		Assert.assertEquals(10, tokenStore.deleteExpired(new Date(), 10));
+		Assert.assertEquals(5, tokenStore.deleteExpired(new Date(), 10));
+		Assert.assertEquals(0, tokenStore.deleteExpired(new Date(), 10));
+		Assert.assertEquals(1, tokenStore.deleteUsed(10));
+		Assert.assertEquals(0, tokenStore.deleteAll(Arrays.asList(id("e1"), id("valid"))));
+	}
+
+	public void testPages() {
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		for (int i = 0; i < 23; i++) {
+			// equal expiry dates, the token decides the order
+			mailTokens.add(token("p" + (char) ('a' + i), i < 10 ? earlier() : new Date(System.currentTimeMillis() - 1000)));
+		}
+		tokenStore.saveAll(mailTokens, null);
+		for (int i = 0; i < 7; i++) {
+			tokenStore.save(token("u" + i, later()), null);
+			tokenStore.markUsed(id("u" + i), new Date());
+		}
+
+		Set<String> seen = new HashSet<String>();
+		MailToken after = null;
+		List<MailToken> page;
+		do {
+			page = tokenStore.findExpiredPage(new Date(), after, 5);
+			for (MailToken mailToken : page) {
+				Assert.assertTrue(seen.add(mailToken.getToken()));
+				after = mailToken;
+			}
+		} while (page.size() == 5);
+		Assert.assertEquals(23, seen.size());
+
+		List<MailToken> used = tokenStore.findUsedPage(null, null, null, 3);
+		Assert.assertEquals(4, tokenStore.findUsedPage(null, null, used.get(2), 5).size());
+		Date from = new Date(System.currentTimeMillis() - HOUR);
+		Assert.assertEquals(5, tokenStore.findUsedPage(from, later(), null, 5).size());
+		Assert.assertEquals(7, tokenStore.findUsed(from, later()).size());
+
+		final List<String> all = new ArrayList<String>();
+		tokenStore.forEachTokenPage(new Consumer<List<String>>() {
+			public void accept(List<String> tokens) {
+				all.addAll(tokens);
+			}
+		});
+		Assert.assertEquals(30, all.size());
+	}
+
+	/**
+	 * The streams of the mailer read every token exactly once, also when more tokens than a page share the same date, and stop after a page
+	 * which is not full.
+	 */
+	public void testStreamPages() {
+		final Date expiryDate = new Date(System.currentTimeMillis() - 1000);
+		List<MailToken> mailTokens = new ArrayList<MailToken>();
+		for (int i = 0; i < 23; i++) {
+			mailTokens.add(token("s" + i, expiryDate));
+		}
+		tokenStore.saveAll(mailTokens, null);
+		final Date usedDate = new Date();
+		for (int i = 0; i < 12; i++) {
+			tokenStore.save(token("v" + i, later()), null);
+			tokenStore.markUsed(id("v" + i), usedDate);
+		}
+
+		final AtomicInteger reads = new AtomicInteger();
+		List<MailToken> expired = PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				reads.incrementAndGet();
+				return tokenStore.findExpiredPage(new Date(), after, limit);
+			}
+		}, 5).collect(Collectors.<MailToken> toList());
+		Assert.assertEquals(23, expired.size());
+		Assert.assertEquals(23, tokens(expired).size());
+		Assert.assertEquals(sorted(expired), names(expired));
+		// the fifth page has 3 tokens
+		Assert.assertEquals(5, reads.get());
+
+		reads.set(0);
+		List<MailToken> used = PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				reads.incrementAndGet();
+				return tokenStore.findUsedPage(null, null, after, limit);
+			}
+		}, 4).collect(Collectors.<MailToken> toList());
+		Assert.assertEquals(12, tokens(used).size());
+		Assert.assertEquals(sorted(used), names(used));
+		// 3 full pages, the empty fourth one ends the stream
+		Assert.assertEquals(4, reads.get());
+
+		used = PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				return tokenStore.findUsedPage(new Date(usedDate.getTime() - 1000), new Date(usedDate.getTime() + 1000), after, limit);
+			}
+		}, 5).collect(Collectors.<MailToken> toList());
+		Assert.assertEquals(12, used.size());
+		Assert.assertEquals(12, tokens(used).size());
+		Assert.assertEquals(sorted(used), names(used));
+
+		// a stream which is not consumed reads nothing, one which is stopped early reads only its first page
+		reads.set(0);
+		Assert.assertEquals(3, PagedTokenSpliterator.stream(new PagedTokenSpliterator.PageReader() {
+			public List<MailToken> read(MailToken after, int limit) {
+				reads.incrementAndGet();
+				return tokenStore.findExpiredPage(new Date(), after, limit);
+			}
+		}, 5).limit(3).count());
+		Assert.assertEquals(1, reads.get());
+	}
+
+	public void testFindLive() {
+		if (tokenStore instanceof MemoryTokenStore) {
+			// relies on the mailer's own index of recent mails
+			return;
+		}
+		tokenStore.save(token("l1", later()), null);
+		tokenStore.save(token("l2", new Date(System.currentTimeMillis() + 2 * HOUR)), null);
+		tokenStore.save(token("l3", new Date(System.currentTimeMillis() + 3 * HOUR)), null);
+		tokenStore.markUsed(id("l3"), new Date());
+		tokenStore.save(token("l4", earlier()), null);
+
+		Assert.assertEquals(id("l2"), tokenStore.findLive("a@b.com", "type", new Date()).getToken());
+		Assert.assertNull(tokenStore.findLive("a@b.com", "type", new Date(System.currentTimeMillis() + 2 * HOUR + 1000)));
+		Assert.assertNull(tokenStore.findLive("a@b.com", "other", new Date()));
+		Assert.assertNull(tokenStore.findLive("x@b.com", "type", new Date()));
+	}
+
+	public void testSingleUse() {
+		Assert.assertTrue(tokenStore.saveUse(new MailTokenUse("id1", new Date(), earlier())));
+		Assert.assertFalse(tokenStore.saveUse(new MailTokenUse("id1", new Date(), earlier())));
+		Assert.assertTrue(tokenStore.saveUse(new MailTokenUse("id2", new Date(), later())));
+		Assert.assertNotNull(tokenStore.findUse("id1"));
+
+		Assert.assertEquals(1, tokenStore.deleteExpiredUses(new Date(), 10));
+		Assert.assertNull(tokenStore.findUse("id1"));
+		Assert.assertNotNull(tokenStore.findUse("id2"));
+	}
+
+	private static Set<String> tokens(List<MailToken> mailTokens) {
+		return new HashSet<String>(names(mailTokens));
+	}
+
+	private static List<String> names(List<MailToken> mailTokens) {
+		List<String> result = new ArrayList<String>();
+		for (MailToken mailToken : mailTokens) {
+			result.add(mailToken.getToken());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the tokens in the order of their value, which is the order of a page of tokens sharing the same date.
+	 */
+	private static List<String> sorted(List<MailToken> mailTokens) {
+		List<String> result = names(mailTokens);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Returns the token issued by the store for the given name.
+	 */
+	private String id(String name) {
+		return id(name, later());
+	}
+
+	/**
+	 * Returns the token issued by the store for the given name, a new one is issued for <code>expiryDate</code> like the mailer does.
+	 */
+	private String id(String name, Date expiryDate) {
+		String token = tokens.get(name);
+		if (token == null) {
+			token = tokenStore.newToken(expiryDate);
+			tokens.put(name, token);
+		}
+		return token;
+	}
+
+	private MailToken token(String name, Date expiryDate) {
+		return new MailToken(id(name, expiryDate), "type", expiryDate, "a@b.com", "data");
+	}
+
+	private static Date earlier() {
+		return new Date(System.currentTimeMillis() - HOUR);
+	}
+
+	private static Date later() {
+		return new Date(System.currentTimeMillis() + HOUR);
+	}
+}
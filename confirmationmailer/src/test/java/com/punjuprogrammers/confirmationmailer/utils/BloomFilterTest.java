@@ -0,0 +1,57 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that added strings are always found and that the false positive rate stays near the configured one.
+ */
+public class BloomFilterTest extends TestCase {
+
+	public BloomFilterTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(BloomFilterTest.class);
+	}
+
+	public void testFalsePositiveRate() {
+		int count = 100000;
+		BloomFilter filter = new BloomFilter(count, 0.01);
+		String[] added = new String[count];
+		for (int i = 0; i < count; i++) {
+			added[i] = UUID.randomUUID().toString();
+			filter.put(added[i]);
+		}
+		for (String value : added) {
+			Assert.assertTrue(filter.mightContain(value));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < count; i++) {
+			if (filter.mightContain(UUID.randomUUID().toString())) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue("false positives " + falsePositives, falsePositives < count * 0.015);
+		Assert.assertEquals(7, filter.getHashCount());
+	}
+
+	public void testSize() {
+		BloomFilter filter = new BloomFilter(10000000, 0.01);
+		Assert.assertTrue(filter.getBitCount() / 8 < 12 * 1024 * 1024);
+	}
+}
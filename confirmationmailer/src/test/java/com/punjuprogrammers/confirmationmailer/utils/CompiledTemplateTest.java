@@ -0,0 +1,77 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *  
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *  
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the template parsing and rendering against the regular expression based substitution it replaces.
+ */
+public class CompiledTemplateTest extends TestCase {
+
+	public CompiledTemplateTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(CompiledTemplateTest.class);
+	}
+
+	/**
+	 * Renders templates with edge cases and compares with the old regular expression output.
+	 */
+	public void testSameAsRegex() {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("TITLE", "Mr.");
+		fields.put("LAST_NAME", "Singh $1 \\ ${TITLE}");
+		fields.put("}X", "brace");
+		fields.put("${A", "nested");
+
+		String[] templates = { "Dear ${TITLE} ${LAST_NAME} <br>", "${TITLE}", "no fields", "", "${}X}", "${${A}", "${TITLE", "$${TITLE}}",
+				"${TI\nTLE} ${TITLE}", "end $", "end ${", "${TITLE}${TITLE}" };
+		for (String template : templates) {
+			Assert.assertEquals(template, regexReplace(template, fields), CompiledTemplate.compile(template).render(fields));
+		}
+	}
+
+	/**
+	 * A missing field must fail the same way as before.
+	 */
+	public void testMissingField() {
+		CompiledTemplate template = CompiledTemplate.compile("Dear ${TITLE} ${LAST_NAME}");
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("TITLE", "Mr.");
+		try {
+			template.render(fields);
+			Assert.fail("Missing field must not be rendered");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("Field not found in template: LAST_NAME", e.getMessage());
+		}
+	}
+
+	private String regexReplace(String template, Map<String, String> fields) {
+		Matcher matcher = Pattern.compile("\\$\\{(.+?)\\}").matcher(template);
+		StringBuffer buffer = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(buffer, "");
+			buffer.append(fields.get(matcher.group(1)));
+		}
+		matcher.appendTail(buffer);
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ *  This file is part of free utilities created by Joga Singh <joga.singh@gmail.com>.
+ *  You are free to copy/modify/distribute the files to use it in any way you like.
+ *  However as a credit, author's name should be mentioned in the file header.
+ *
+ *  See the complete license terms (MIT License) in LICENSE.TXT included in the package.
+ *
+ *******************************************************************************/
+package com.punjuprogrammers.confirmationmailer.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that the mails written from a skeleton are read back by JavaMail as they were created.
+ */
+public class MessageSkeletonTest extends TestCase {
+	private final Session session = Session.getInstance(new Properties());
+
+	public MessageSkeletonTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(MessageSkeletonTest.class);
+	}
+
+	public void testRoundTrip() throws Exception {
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			longLine.append("<a href=\"x?a=").append(i).append("\">\u00fc\u20ac</a> ");
+		}
+		String text = "Hello J\u00f6ga \ud83d\ude00,\r\nline with trailing space \nand tab\t\r" + longLine + "\n.\n=3D end ";
+		MessageSkeleton skeleton = new MessageSkeleton("Mailer \u00c4 <from@example.com>");
+		MimeMessage message = skeleton.createMessage(session, "to@example.com", "Confirm J\u00f6ga", text);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		byte[] bytes = out.toByteArray();
+
+		for (String line : new String(bytes, "US-ASCII").split("\r\n")) {
+			Assert.assertTrue(line, line.length() <= 76);
+		}
+		for (byte b : bytes) {
+			Assert.assertTrue(b > 0);
+		}
+
+		MimeMessage read = new MimeMessage(session, new ByteArrayInputStream(bytes));
+		Assert.assertEquals(skeleton.getFrom(), read.getFrom()[0]);
+		Assert.assertEquals("Mailer \u00c4", ((InternetAddress) read.getFrom()[0]).getPersonal());
+		Assert.assertEquals(new InternetAddress("to@example.com"), read.getRecipients(Message.RecipientType.TO)[0]);
+		Assert.assertEquals("Confirm J\u00f6ga", read.getSubject());
+		Assert.assertNotNull(read.getMessageID());
+		Assert.assertNotNull(read.getSentDate());
+		Assert.assertTrue(read.isMimeType("text/html"));
+		Assert.assertEquals(text.replaceAll("\r\n|\r|\n", "\r\n"), read.getContent());
+	}
+
+	public void testInvalidSender() {
+		try {
+			new MessageSkeleton("not an address");
+			fail("address should not be parsed");
+		} catch (javax.mail.internet.AddressException e) {
+			// expected
+		}
+	}
+}